@@ -5,6 +5,12 @@
 import ij.plugin.Duplicator;
 import ij.process.StackConverter;
 
+import isosurface.MeshProperties;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 
 import javax.media.j3d.Appearance;
@@ -16,9 +22,12 @@
 import javax.media.j3d.TransparencyAttributes;
 import javax.media.j3d.TriangleArray;
 import javax.vecmath.Color3f;
+import javax.vecmath.Point3d;
 import javax.vecmath.Point3f;
 import javax.vecmath.Vector3f;
 
+import marchingcubes.IndexedMesh;
+
 import vib.InterpolatedImage;
 
 public class CustomIndexedTriangleMesh extends CustomMesh {
@@ -29,14 +38,26 @@ public class CustomIndexedTriangleMesh extends CustomMesh {
 	protected int nFaces;
 	protected int nVertices;
 
+	/**
+	 * Creates a mesh from a list of points, three subsequent points
+	 * making up one triangle. Equal points become one shared vertex.
+	 */
 	public CustomIndexedTriangleMesh(List<Point3f> mesh) {
-		// TODO
+		this(index(mesh), DEFAULT_COLOR, 0);
 	}
 
 	public CustomIndexedTriangleMesh(Point3f[] vertices, int[] faces) {
 		this(vertices, faces, DEFAULT_COLOR, 0);
 	}
 
+	/**
+	 * Creates a mesh from an indexed mesh as it is made by
+	 * MCTriangulator.getIndexedMesh().
+	 */
+	public CustomIndexedTriangleMesh(IndexedMesh mesh, Color3f color, float transp) {
+		this(mesh.getPoints(), mesh.faces, color, transp);
+	}
+
 	public CustomIndexedTriangleMesh(Point3f[] vertices, int[] faces, Color3f color, float transp) {
 		this.nVertices = vertices.length;
 		this.nFaces = faces.length;
@@ -52,6 +73,89 @@ public CustomIndexedTriangleMesh(Point3f[] vertices, int[] faces, Color3f color,
 		update();
 	}
 
+	/**
+	 * Replaces the vertices and faces of this mesh by the ones of
+	 * the specified indexed mesh. The mesh keeps its color, or gets
+	 * the default color if it had vertex-wise colors.
+	 */
+	public void setMesh(IndexedMesh mesh) {
+		setMesh(mesh.getPoints(), mesh.faces);
+	}
+
+	/**
+	 * Replaces the vertices and faces of this mesh by the triangles
+	 * of the specified list, three subsequent points making up one
+	 * triangle. Equal points become one shared vertex.
+	 */
+	public void setMesh(List<Point3f> mesh) {
+		setMesh(index(mesh));
+	}
+
+	private void setMesh(Point3f[] vertices, int[] faces) {
+		this.nVertices = vertices.length;
+		this.nFaces = faces.length;
+		this.vertices = vertices;
+		this.faces = faces;
+		if(color == null)
+			color = DEFAULT_COLOR;
+		colors = new Color3f[nVertices];
+		for(int i = 0; i < nVertices; i++)
+			colors[i] = color;
+		update();
+	}
+
+	/**
+	 * Returns the vertices of this mesh (not a copy).
+	 */
+	public Point3f[] getVertices() {
+		return vertices;
+	}
+
+	/**
+	 * Returns the vertex indices of the faces of this mesh (not a
+	 * copy), three subsequent indices making up one triangle.
+	 */
+	public int[] getFaces() {
+		return faces;
+	}
+
+	/**
+	 * Returns the colors of the vertices of this mesh (not a copy).
+	 */
+	public Color3f[] getColors() {
+		return colors;
+	}
+
+	/**
+	 * Merges the equal points of a list of triangles into shared
+	 * vertices. The vertices are copies of the points.
+	 */
+	private static IndexedMesh index(List<Point3f> mesh) {
+		HashMap<Point3f, Integer> indices =
+			new HashMap<Point3f, Integer>();
+		List<Point3f> unique = new ArrayList<Point3f>();
+		int[] faces = new int[mesh.size()];
+		for(int i = 0; i < faces.length; i++) {
+			Point3f p = mesh.get(i);
+			Integer index = indices.get(p);
+			if(index == null) {
+				index = unique.size();
+				Point3f copy = new Point3f(p);
+				indices.put(copy, index);
+				unique.add(copy);
+			}
+			faces[i] = index;
+		}
+		float[] vertices = new float[3 * unique.size()];
+		for(int i = 0; i < unique.size(); i++) {
+			Point3f p = unique.get(i);
+			vertices[3 * i] = p.x;
+			vertices[3 * i + 1] = p.y;
+			vertices[3 * i + 2] = p.z;
+		}
+		return new IndexedMesh(vertices, faces);
+	}
+
 	@Override
 	public String getFile() {
 		return loadedFromFile;
@@ -74,9 +178,28 @@ public void update() {
 		changed = true;
 	}
 
+	/**
+	 * Returns the triangles of this mesh as a list of points, three
+	 * subsequent points making up one triangle. The list is a view
+	 * over the vertices: it does not copy them, and the points of
+	 * triangles sharing a vertex are the same instance. Modified
+	 * points take effect after update().
+	 */
 	@Override
 	public List getMesh() {
-		return mesh;
+		return new AbstractList<Point3f>() {
+			@Override
+			public Point3f get(int i) {
+				if(i >= nFaces)
+					throw new IndexOutOfBoundsException();
+				return vertices[faces[i]];
+			}
+
+			@Override
+			public int size() {
+				return nFaces;
+			}
+		};
 	}
 
 	@Override
@@ -133,7 +256,10 @@ public void calculateMinMaxCenterPoint(Point3f min,
 
 	@Override
 	public float getVolume() {
-		throw new IllegalArgumentException("Not supported yet");
+		if(nFaces == 0)
+			return 0;
+		return (float)MeshProperties.compute(getMesh(),
+			new Point3d(), new double[3][3]);
 	}
 
 	// private int[] valid = new int[1];
@@ -324,17 +450,37 @@ protected Appearance createAppearance () {
 
 	@Override
 	public void restoreDisplayedData(String path, String name) {
-		throw new RuntimeException("CustomIndexedTriangleMesh does not support swapping data.");
+		HashMap<String, CustomMesh> contents = null;
+		try {
+			contents = WavefrontLoader.load(path);
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+		if(contents.containsKey(name))
+			setMesh(contents.get(name).getMesh());
 	}
 
 	@Override
 	public void swapDisplayedData(String path, String name) {
-		throw new RuntimeException("CustomIndexedTriangleMesh does not support swapping data.");
+		HashMap<String, CustomMesh> contents =
+			new HashMap<String, CustomMesh>();
+		contents.put(name, this);
+		try {
+			WavefrontExporter.save(
+				contents,
+				path + ".obj");
+			clearDisplayedData();
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
 	}
 
 	@Override
 	public void clearDisplayedData() {
-		throw new RuntimeException("CustomIndexedTriangleMesh does not support swapping data.");
+		vertices = new Point3f[0];
+		colors = new Color3f[0];
+		faces = new int[0];
+		nVertices = nFaces = 0;
 	}
 
 	@Override
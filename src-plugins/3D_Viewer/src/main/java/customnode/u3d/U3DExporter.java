@@ -24,6 +24,8 @@
 import javax.vecmath.Point3f;
 import javax.vecmath.Vector3f;
 
+import customnode.CustomIndexedTriangleMesh;
+import customnode.CustomMesh;
 import customnode.CustomMeshNode;
 import customnode.CustomTriangleMesh;
 
@@ -85,16 +87,22 @@ public static void export(Image3DUniverse univ, String path) throws IOException
 		for(Object content : univ.getContents()) {
 			ContentNode cn = ((Content)content).getContent();
 			CustomTriangleMesh ctm = null;
+			CustomIndexedTriangleMesh citm = null;
 			if(cn instanceof CustomMeshNode) {
 				ctm = (CustomTriangleMesh)((CustomMeshNode)cn).getMesh();
 			} else if(cn instanceof MeshGroup) {
-				if(((MeshGroup)cn).getMesh() instanceof CustomTriangleMesh)
-					ctm = ((MeshGroup)cn).getMesh();
+				CustomMesh cm = ((MeshGroup)cn).getMesh();
+				if(cm instanceof CustomTriangleMesh)
+					ctm = (CustomTriangleMesh)cm;
+				else if(cm instanceof CustomIndexedTriangleMesh)
+					citm = (CustomIndexedTriangleMesh)cm;
 			}
 
-			if(ctm != null) {
+			if(ctm != null || citm != null) {
 				Content c = (Content)content;
-				Mesh m = new Mesh(ctm, c.getName(), c.getColor(), c.getTransparency());
+				Mesh m = ctm != null
+					? new Mesh(ctm, c.getName(), c.getColor(), c.getTransparency())
+					: new Mesh(citm, c.getName(), c.getColor(), c.getTransparency());
 				m.getMinMax(min, max);
 				meshes.add(m);
 			}
@@ -628,5 +636,26 @@ public Mesh(CustomTriangleMesh mesh, String name, Color3f color, float transpare
 			colors = new Color3f[cList.size()];
 			cList.toArray(colors);
 		}
+
+		/**
+		 * Creates a mesh from an indexed mesh, whose faces already
+		 * share their vertices.
+		 */
+		public Mesh(CustomIndexedTriangleMesh mesh, String name, Color3f color, float transparency) {
+			this.name = name;
+			this.color = new Color4f(color.x, color.y, color.z, 1f - transparency);
+			Point3f[] vertices = mesh.getVertices();
+			Color3f[] vertexColors = mesh.getColors();
+			coords = new Point3f[vertices.length];
+			colors = new Color3f[vertices.length];
+			for(int i = 0; i < vertices.length; i++) {
+				coords[i] = new Point3f(vertices[i]);
+				colors[i] = new Color3f(vertexColors[i]);
+			}
+			normals = mesh.getNormals();
+			coordIndices  = mesh.getFaces().clone();
+			colorIndices  = mesh.getFaces().clone();
+			normalIndices = mesh.getFaces().clone();
+		}
 	}
 }
@@ -66,6 +66,7 @@
 import vib.FastMatrix;
 import voltex.VoltexGroup;
 import voltex.VolumeRenderer;
+import customnode.CustomIndexedTriangleMesh;
 import customnode.CustomMesh;
 import customnode.CustomMeshNode;
 import customnode.CustomMultiMesh;
@@ -651,19 +652,19 @@ public void decimateMesh() {
 		Content c = univ.getSelected();
 		if(c == null)
 			return;
-		CustomTriangleMesh ctm;
+		CustomMesh mesh;
 		ContentNode n = c.getContent();
 		if(n instanceof CustomMeshNode) {
-			if(((CustomMeshNode)n).getMesh() instanceof CustomTriangleMesh)
-				ctm = (CustomTriangleMesh)((CustomMeshNode) n).getMesh();
-			else
-				return;
+			mesh = ((CustomMeshNode) n).getMesh();
 		} else if (n instanceof MeshGroup) {
-			ctm = ((MeshGroup)n).getMesh();
+			mesh = ((MeshGroup)n).getMesh();
 		} else {
 			return;
 		}
-		new InteractiveMeshDecimation().run(ctm);
+		if(mesh instanceof CustomTriangleMesh)
+			new InteractiveMeshDecimation().run((CustomTriangleMesh)mesh);
+		else if(mesh instanceof CustomIndexedTriangleMesh)
+			new InteractiveMeshDecimation().run((CustomIndexedTriangleMesh)mesh);
 	}
 
 	/* ----------------------------------------------------------
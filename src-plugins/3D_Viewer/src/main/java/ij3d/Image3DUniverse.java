@@ -7,6 +7,7 @@
 import ij3d.shortcuts.ShortCuts;
 
 import java.awt.BorderLayout;
+import java.awt.Color;
 import java.awt.CheckboxMenuItem;
 import java.awt.GraphicsDevice;
 import java.awt.Menu;
@@ -48,9 +49,12 @@
 import javax.vecmath.Point3f;
 import javax.vecmath.Vector3d;
 
+import marchingcubes.IndexedMesh;
+import marchingcubes.MCTriangulator;
 import octree.VolumeOctree;
 import view4d.Timeline;
 import view4d.TimelineGUI;
+import customnode.CustomIndexedTriangleMesh;
 import customnode.CustomLineMesh;
 import customnode.CustomMesh;
 import customnode.CustomMultiMesh;
@@ -1124,6 +1128,37 @@ public Content addMesh(ImagePlus image, Color3f color, String name,
 				resamplingF, Content.SURFACE);
 	}
 
+	/**
+	 * Add a new image as a content, displaying it as an iso-surface in
+	 * which the triangles share their vertices (see
+	 * MCTriangulator.getIndexedMesh()). This needs much less memory than
+	 * addMesh() for large images, but the surface is added as a custom
+	 * mesh, which can not be re-thresholded, smoothed or swapped.
+	 *
+	 * @param image the image to display
+	 * @param color the color in which this surface is displayed, or null
+	 *        to take it from the lookup table of the image.
+	 * @param name the name of the displayed Content.
+	 * @param threshold the threshold used for generating the surface
+	 * @param channels the used color channels,
+	 *        must be a boolean array of length 3
+	 * @param resamplingF a resampling factor.
+	 * @return the added Content, null if any error occurred
+	 */
+	public Content addIndexedMesh(ImagePlus image, Color3f color, String name,
+		int threshold, boolean[] channels, int resamplingF) {
+
+		IndexedMesh mesh = new MCTriangulator().getIndexedMesh(image,
+			threshold, channels, resamplingF);
+		if(color == null) {
+			int value = image.getProcessor().getColorModel().
+				getRGB(threshold);
+			color = new Color3f(new Color(value));
+		}
+		return addCustomMesh(new CustomIndexedTriangleMesh(
+			mesh, color, 0), name);
+	}
+
 	/**
 	 * Add a custom mesh to the universe.
 	 *
@@ -46,6 +46,31 @@ public ImgLibVolume(final Image<T> img, final float[] origin) throws Exception {
 		initLoader();
 	}
 
+	/** Create a volume on the same image as other, with a cursor of its own. */
+	protected ImgLibVolume(final ImgLibVolume<T> other) {
+		super();
+		this.img = other.img;
+		this.xDim = other.xDim;
+		this.yDim = other.yDim;
+		this.zDim = other.zDim;
+		this.pw = other.pw;
+		this.ph = other.ph;
+		this.pd = other.pd;
+		this.dataType = other.dataType;
+		minCoord.set(other.minCoord);
+		maxCoord.set(other.maxCoord);
+
+		initLoader();
+	}
+
+	/**
+	 * Create a volume on the same image, with a cursor of its own, so that
+	 * another thread can load values at the same time as this one.
+	 */
+	public ImgLibVolume<T> duplicate() {
+		return new ImgLibVolume<T>(this);
+	}
+
 	public Image<T> getImage() {
 		return img;
 	}
@@ -641,9 +641,9 @@ protected AverageByteLoader(Img imp) {
 		}
 
 		private int[] color = new int[3];
+		// does not use color, so that several threads can load at once
 		public final int load(int x, int y, int z) {
-			image.get(x, y, z, color);
-			return (color[0] + color[1] + color[2]) / 3;
+			return image.getAverage(x, y, z) & 0xff;
 		}
 
 		public final int loadWithLUT(int x, int y, int z) {
@@ -10,12 +10,26 @@
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 
+import java.util.List;
+
+import javax.vecmath.Point3f;
+
+import customnode.CustomIndexedTriangleMesh;
+import customnode.CustomMesh;
 import customnode.CustomTriangleMesh;
 import customnode.EdgeContraction;
 import customnode.FullInfoMesh;
 
 public class InteractiveMeshDecimation {
 	public void run(final CustomTriangleMesh ctm) {
+		run((CustomMesh)ctm);
+	}
+
+	public void run(final CustomIndexedTriangleMesh ctm) {
+		run((CustomMesh)ctm);
+	}
+
+	private void run(final CustomMesh ctm) {
 		@SuppressWarnings("unchecked")
 		final FullInfoMesh fim = new FullInfoMesh(ctm.getMesh());
 		final EdgeContraction ec = new EdgeContraction(fim, false);
@@ -49,7 +63,7 @@ public void actionPerformed(ActionEvent e) {
 					public void run() {
 						int v = simplify(ec, n);
 						gd.setEnabled(true);
-						ctm.setMesh(fim.getMesh());
+						setMesh(ctm, fim.getMesh());
 						label.setText(v + " remaining vertices");
 					}
 				}.start();
@@ -66,6 +80,13 @@ public void actionPerformed(ActionEvent e) {
 		});
 	}
 
+	private static void setMesh(CustomMesh mesh, List<Point3f> tri) {
+		if(mesh instanceof CustomIndexedTriangleMesh)
+			((CustomIndexedTriangleMesh)mesh).setMesh(tri);
+		else
+			((CustomTriangleMesh)mesh).setMesh(tri);
+	}
+
 	private int simplify(EdgeContraction ec, int n) {
 		int part = n / 10;
 		int last = n % 10;
@@ -6,20 +6,21 @@
 import ij3d.ContentNode;
 
 import java.awt.Color;
-import java.util.List;
 
 import javax.media.j3d.View;
 import javax.vecmath.Color3f;
 import javax.vecmath.Point3f;
 import javax.vecmath.Tuple3d;
 
+import marchingcubes.IndexedMesh;
 import marchingcubes.MCTriangulator;
-import customnode.CustomTriangleMesh;
+import customnode.CustomIndexedTriangleMesh;
+import customnode.CustomMesh;
 
 public class MeshGroup extends ContentNode {
 
-	private CustomTriangleMesh mesh;
-	private Triangulator triangulator = new MCTriangulator();
+	private CustomIndexedTriangleMesh mesh;
+	private MCTriangulator triangulator = new MCTriangulator();
 	private ContentInstant c;
 	private Point3f min, max, center;
 
@@ -31,20 +32,27 @@ public MeshGroup (ContentInstant c) {
 		super();
 		this.c = c;
 		Color3f color = c.getColor();
-		List tri = triangulator.getTriangles(c.getImage(),
-			c.getThreshold(), c.getChannels(),
-			c.getResamplingFactor());
+		IndexedMesh tri = getIndexedMesh();
 		if(color == null) {
 			int value = c.getImage().getProcessor().
 				getColorModel().getRGB(c.getThreshold());
 			color = new Color3f(new Color(value));
 		}
-		mesh = new CustomTriangleMesh(tri, color, c.getTransparency());
+		mesh = new CustomIndexedTriangleMesh(tri, color, c.getTransparency());
 		calculateMinMaxCenterPoint();
 		addChild(mesh);
 	}
 
-	public CustomTriangleMesh getMesh() {
+	/**
+	 * Triangulates the image of the content in parallel.
+	 */
+	private IndexedMesh getIndexedMesh() {
+		return triangulator.getIndexedMesh(c.getImage(),
+			c.getThreshold(), c.getChannels(),
+			c.getResamplingFactor());
+	}
+
+	public CustomMesh getMesh() {
 		return mesh;
 	}
 
@@ -70,10 +78,7 @@ public void thresholdUpdated(int threshold) {
 				"image. Can't change threshold");
 			return;
 		}
-		List tri = triangulator.getTriangles(c.getImage(),
-				c.getThreshold(), c.getChannels(),
-				c.getResamplingFactor());
-		mesh.setMesh(tri);
+		mesh.setMesh(getIndexedMesh());
 	}
 
 	public void lutUpdated(int[] r, int[] g, int[] b, int[] a) {
@@ -86,10 +91,7 @@ public void channelsUpdated(boolean[] channels) {
 				"image. Can't change channels");
 			return;
 		}
-		List tri = triangulator.getTriangles(c.getImage(),
-			c.getThreshold(), c.getChannels(),
-			c.getResamplingFactor());
-		mesh.setMesh(tri);
+		mesh.setMesh(getIndexedMesh());
 	}
 
 	public void calculateMinMaxCenterPoint() {
@@ -4,6 +4,7 @@
 import ij3d.Content;
 import ij3d.ContentInstant;
 import ij3d.ContentNode;
+import customnode.CustomIndexedTriangleMesh;
 import customnode.CustomMesh;
 import customnode.CustomTriangleMesh;
 import customnode.CustomMultiMesh;
@@ -34,7 +35,7 @@
 
 public class SmoothControl {
 
-	static private final void apply(final CustomTriangleMesh m, final List<Point3f> triangles) {
+	static private final void apply(final CustomMesh m, final List<Point3f> triangles) {
 		final List<Point3f> current = m.getMesh(); // the triangles, specified as triplets of vertices
 		for (int i=0; i<current.size(); ++i) {
 			current.get(i).set(triangles.get(i));
@@ -44,14 +45,14 @@ static private final void apply(final CustomTriangleMesh m, final List<Point3f>
 
 	static private final class Originals {
 
-		final private Map<CustomTriangleMesh,List<Point3f>> data = new HashMap<CustomTriangleMesh,List<Point3f>>();
+		final private Map<CustomMesh,List<Point3f>> data = new HashMap<CustomMesh,List<Point3f>>();
 
 		private Originals() {}
 
 		/** Restore the coordinates of the points in all meshes. */
 		private void restore(final Content except) {
-			final Set<CustomTriangleMesh> avoid = findMeshes(except);
-			for (final Map.Entry<CustomTriangleMesh,List<Point3f>> e : data.entrySet()) {
+			final Set<CustomMesh> avoid = findMeshes(except);
+			for (final Map.Entry<CustomMesh,List<Point3f>> e : data.entrySet()) {
 				if (avoid.contains(e.getKey())) continue;
 				apply(e.getKey(), e.getValue());
 			}
@@ -67,13 +68,13 @@ private void copy(final Image3DUniverse univ, final boolean all) {
 				add(univ.getSelected());
 		}
 
-		private final List<Point3f> getCopyOfOriginals(final CustomTriangleMesh tm) {
+		private final List<Point3f> getCopyOfOriginals(final CustomMesh tm) {
 			return deepCopy(data.get(tm));
 		}
 
-		/** Add any CustomTriangleMesh contained in {@param content} only if not there already. */
+		/** Add any triangle mesh contained in {@param content} only if not there already. */
 		private void add(final Content content) {
-			for (final CustomTriangleMesh tm : findMeshes(content)) {
+			for (final CustomMesh tm : findMeshes(content)) {
 				if (data.containsKey(tm)) continue; // already stored
 				data.put(tm, deepCopy(tm.getMesh()));
 			}
@@ -87,8 +88,8 @@ private final List<Point3f> deepCopy(final List<Point3f> t) {
 		}
 	}
 
-	static public final Set<CustomTriangleMesh> findMeshes(final Content content) {
-		final HashSet<CustomTriangleMesh> meshes = new HashSet<CustomTriangleMesh>();
+	static public final Set<CustomMesh> findMeshes(final Content content) {
+		final HashSet<CustomMesh> meshes = new HashSet<CustomMesh>();
 		if (null == content) return meshes;
 		ContentInstant ci = content.getCurrent();
 		if (null == ci) return meshes;
@@ -99,25 +100,25 @@ static public final Set<CustomTriangleMesh> findMeshes(final Content content) {
 			CustomMultiMesh multi = (CustomMultiMesh)node;
 			for (int i=0; i<multi.size(); ++i) {
 				CustomMesh m = multi.getMesh(i);
-				if (m instanceof CustomTriangleMesh) {
-					meshes.add((CustomTriangleMesh)m);
+				if (m instanceof CustomTriangleMesh || m instanceof CustomIndexedTriangleMesh) {
+					meshes.add(m);
 				}
 			}
 		} else if (node instanceof CustomMeshNode) {
 			CustomMesh m = ((CustomMeshNode)node).getMesh();
-			if (m instanceof CustomTriangleMesh) {
-				meshes.add((CustomTriangleMesh)m);
+			if (m instanceof CustomTriangleMesh || m instanceof CustomIndexedTriangleMesh) {
+				meshes.add(m);
 			}
 		} else if (node instanceof MeshGroup) {
 			CustomMesh m = ((MeshGroup)node).getMesh();
-			if (m instanceof CustomTriangleMesh) {
-				meshes.add((CustomTriangleMesh)m);
+			if (m instanceof CustomTriangleMesh || m instanceof CustomIndexedTriangleMesh) {
+				meshes.add(m);
 			}
 		}
 		return meshes;
 	}
 
-	static private final void smooth(final CustomTriangleMesh tm, final int iterations, final Originals originals) {
+	static private final void smooth(final CustomMesh tm, final int iterations, final Originals originals) {
 		// Start always from the original mesh
 		final List<Point3f> triangles = originals.getCopyOfOriginals(tm);
 		MeshEditor.smooth2(triangles, iterations);
@@ -127,13 +128,13 @@ static private final void smooth(final CustomTriangleMesh tm, final int iteratio
 	static private final void smooth(final Content c, final int iterations, final Originals originals) {
 		if (null == c) return;
 		final ContentNode cn = c.getContent();
-		final Set<CustomTriangleMesh> meshes = findMeshes(c);
+		final Set<CustomMesh> meshes = findMeshes(c);
 		if (meshes.isEmpty()) {
 			IJ.log("Cannot smooth content of class " + cn.getClass());
 			return;
 		}
 		originals.add(c); // ensure it's there
-		for (CustomTriangleMesh tm : meshes) {
+		for (CustomMesh tm : meshes) {
 			smooth(tm, iterations, originals);
 		}
 	}
@@ -0,0 +1,57 @@
+package marchingcubes;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.vecmath.Point3f;
+
+/**
+ * A triangle mesh in which the triangles share their vertices.
+ * The coordinates of vertex i are vertices[3*i], vertices[3*i+1] and
+ * vertices[3*i+2], and three subsequent entries of faces are the
+ * indices of the vertices of one triangle.
+ */
+public class IndexedMesh {
+
+	public final float[] vertices;
+	public final int[] faces;
+
+	public IndexedMesh(float[] vertices, int[] faces) {
+		this.vertices = vertices;
+		this.faces = faces;
+	}
+
+	public int getVertexCount() {
+		return vertices.length / 3;
+	}
+
+	public int getTriangleCount() {
+		return faces.length / 3;
+	}
+
+	/**
+	 * Returns the triangles as a list of points, three subsequent points
+	 * making up one triangle, as MCCube.getTriangles() does. Each point
+	 * of the list is a new instance.
+	 */
+	public List<Point3f> getTriangles() {
+		List<Point3f> tri = new ArrayList<Point3f>(faces.length);
+		for(int i = 0; i < faces.length; i++) {
+			int v = 3 * faces[i];
+			tri.add(new Point3f(vertices[v],
+				vertices[v + 1], vertices[v + 2]));
+		}
+		return tri;
+	}
+
+	/**
+	 * Returns the vertices as points.
+	 */
+	public Point3f[] getPoints() {
+		Point3f[] points = new Point3f[getVertexCount()];
+		for(int i = 0; i < points.length; i++)
+			points[i] = new Point3f(vertices[3 * i],
+				vertices[3 * i + 1], vertices[3 * i + 2]);
+		return points;
+	}
+}
@@ -11,7 +11,9 @@
 import java.awt.Shape;
 import java.awt.geom.Area;
 import java.awt.geom.PathIterator;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import mpicbg.imglib.container.shapelist.ShapeList;
 import ij3d.ImgLibVolume;
 
@@ -175,6 +177,29 @@ final int intensity(final Point3f p) {
 				return 0;
 			return volume.load((int)p.x, (int)p.y, (int)p.z);
 		}
+
+		final int intensity(final int x, final int y, final int z) {
+			if(x < 0 || y < 0 || z < 0
+				|| x >= w || y >= h || z >= d)
+				return 0;
+			return volume.load(x, y, z);
+		}
+
+		/**
+		 * Returns a carrier of the same data which another thread
+		 * can read at the same time as this one.
+		 */
+		final Carrier copyForThread() {
+			final Carrier car = new Carrier();
+			car.w = w;
+			car.h = h;
+			car.d = d;
+			car.threshold = threshold;
+			// an ImgLibVolume loads through a single cursor
+			car.volume = volume instanceof ImgLibVolume ?
+				((ImgLibVolume)volume).duplicate() : volume;
+			return car;
+		}
 	}
 
 	/**
@@ -219,6 +244,297 @@ public static final List<Point3f> getTriangles(Volume volume, int thresh){
 		return tri;
 	}
 
+	/**
+	 * Create an indexed mesh from the specified image data and the
+	 * given isovalue. It has the same triangles (in the same order) as
+	 * the list of getTriangles(), but a vertex on an edge of the voxel
+	 * grid is only stored once, for all the triangles using it.
+	 * The layers of cubes are split into one slab per processor, and
+	 * the slabs are triangulated in parallel.
+	 * @param volume the image data
+	 * @param thresh the isovalue
+	 * @return the mesh, in the coordinates of the volume
+	 */
+	public static final IndexedMesh getIndexedMesh(Volume volume, int thresh) {
+		return getIndexedMesh(volume, thresh,
+			Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Like getIndexedMesh(Volume, int), but with the given number of
+	 * threads. The layers of cubes are split into one slab per thread,
+	 * and the slabs are triangulated in parallel. Afterwards the vertices
+	 * on the plane between two slabs, which both slabs have made, are
+	 * merged. The result does not depend on the number of threads.
+	 * @param volume the image data
+	 * @param thresh the isovalue
+	 * @param nThreads the number of threads to use
+	 * @return the mesh, in the coordinates of the volume
+	 */
+	public static final IndexedMesh getIndexedMesh(Volume volume, int thresh,
+			int nThreads) {
+		final Carrier car = new Carrier();
+		car.w = volume.xDim;
+		car.h = volume.yDim;
+		car.d = volume.zDim;
+		car.threshold = thresh + 0.5f;
+		car.volume = volume;
+
+		// the layers of cubes go from z = -1 to z = d
+		final int nLayers = car.d + 2;
+		final int nSlabs = Math.max(1, Math.min(nLayers, nThreads));
+		final AtomicInteger layersDone = new AtomicInteger(0);
+		final Slab[] slabs = new Slab[nSlabs];
+		final Thread[] threads = new Thread[nSlabs];
+		for(int i = 0; i < nSlabs; i++) {
+			final Slab slab = new Slab(i == 0 ? car : car.copyForThread(),
+				-1 + (int)((long)i * nLayers / nSlabs),
+				-1 + (int)((long)(i + 1) * nLayers / nSlabs),
+				layersDone, nLayers);
+			slabs[i] = slab;
+			threads[i] = new Thread() {
+				public void run() {
+					slab.triangulate();
+				}
+			};
+			threads[i].start();
+		}
+		try {
+			for(int i = 0; i < nSlabs; i++)
+				threads[i].join();
+		} catch(InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+
+		// number the vertices of all slabs, merging the shared ones
+		int nVertices = 0, nIndices = 0;
+		final int[][] globalIndex = new int[nSlabs][];
+		// the number of the first vertex which is new in each slab
+		final int[] firstNew = new int[nSlabs];
+		for(int s = 0; s < nSlabs; s++) {
+			Slab slab = slabs[s];
+			int[] index = new int[slab.nVertices];
+			Arrays.fill(index, -1);
+			if(s > 0) {
+				Slab below = slabs[s - 1];
+				mergePlane(slab.bottomX, below.upX,
+					index, globalIndex[s - 1]);
+				mergePlane(slab.bottomY, below.upY,
+					index, globalIndex[s - 1]);
+			}
+			firstNew[s] = nVertices;
+			for(int v = 0; v < index.length; v++)
+				if(index[v] < 0)
+					index[v] = nVertices++;
+			globalIndex[s] = index;
+			nIndices += slab.nIndices;
+		}
+
+		// copy the vertices, converting the pixel coordinates,
+		// and the triangles
+		final float[] vertices = new float[3 * nVertices];
+		final int[] faces = new int[nIndices];
+		int f = 0;
+		for(int s = 0; s < nSlabs; s++) {
+			Slab slab = slabs[s];
+			int[] index = globalIndex[s];
+			for(int v = 0; v < slab.nVertices; v++) {
+				int g = index[v];
+				// the merged vertices were copied with the slab below
+				if(g < firstNew[s])
+					continue;
+				vertices[3 * g] = (float) (slab.vertices[3 * v] *
+					volume.pw + volume.minCoord.x);
+				vertices[3 * g + 1] = (float) (slab.vertices[3 * v + 1] *
+					volume.ph + volume.minCoord.y);
+				vertices[3 * g + 2] = (float) (slab.vertices[3 * v + 2] *
+					volume.pd + volume.minCoord.z);
+			}
+			for(int i = 0; i < slab.nIndices; i++)
+				faces[f++] = index[slab.faces[i]];
+			slabs[s] = null;
+		}
+		return new IndexedMesh(vertices, faces);
+	}
+
+	/**
+	 * Gives the vertices on the lower plane of a slab the numbers of the
+	 * same vertices on the upper plane of the slab below.
+	 */
+	private static void mergePlane(int[] lower, int[] upper,
+			int[] index, int[] upperIndex) {
+		for(int i = 0; i < lower.length; i++)
+			if(lower[i] >= 0 && upper[i] >= 0)
+				index[lower[i]] = upperIndex[upper[i]];
+	}
+
+	/**
+	 * A range of layers of cubes, which are triangulated by one thread.
+	 * The vertices are numbered per slab; for each edge of the voxel grid
+	 * around the current layer of cubes, the number of the vertex on it
+	 * is kept until the layer is done, so that each vertex is made once.
+	 */
+	private static final class Slab {
+		// the corners of a cube, relative to its first corner
+		private static final int[] CX = {0, 1, 1, 0, 0, 1, 1, 0};
+		private static final int[] CY = {0, 0, 1, 1, 0, 0, 1, 1};
+		private static final int[] CZ = {0, 0, 0, 0, 1, 1, 1, 1};
+
+		final Carrier car;
+		final int zStart, zEnd;
+		final AtomicInteger layersDone;
+		final int nLayers;
+		// points per row of the grid, including the padding
+		final int pw;
+
+		// pixel coordinates of the vertices, and the triangles
+		float[] vertices = new float[3 * 1024];
+		int nVertices = 0;
+		int[] faces = new int[3 * 1024];
+		int nIndices = 0;
+
+		// vertex numbers of the edges along x and y in the lower and
+		// upper plane of the current layer, and of those along z
+		// between the planes (-1 if there is no vertex yet)
+		int[] lowX, lowY, upX, upY, zEdges;
+		// the edges in the lower plane of the first layer
+		int[] bottomX, bottomY;
+
+		private final int[] in = new int[8];
+
+		Slab(Carrier car, int zStart, int zEnd,
+				AtomicInteger layersDone, int nLayers) {
+			this.car = car;
+			this.zStart = zStart;
+			this.zEnd = zEnd;
+			this.layersDone = layersDone;
+			this.nLayers = nLayers;
+			this.pw = car.w + 3;
+		}
+
+		void triangulate() {
+			int size = pw * (car.h + 3);
+			lowX = newPlane(size);
+			lowY = newPlane(size);
+			upX = newPlane(size);
+			upY = newPlane(size);
+			zEdges = newPlane(size);
+			for(int z = zStart; z < zEnd; z++) {
+				for(int x = -1; x < car.w+1; x++)
+					for(int y = -1; y < car.h+1; y++)
+						cube(x, y, z);
+				if(z == zStart) {
+					bottomX = lowX.clone();
+					bottomY = lowY.clone();
+				}
+				// the upper plane of the last layer is kept
+				if(z < zEnd - 1) {
+					int[] tmp = lowX;
+					lowX = upX;
+					upX = tmp;
+					tmp = lowY;
+					lowY = upY;
+					upY = tmp;
+					Arrays.fill(upX, -1);
+					Arrays.fill(upY, -1);
+					Arrays.fill(zEdges, -1);
+				}
+				IJ.showProgress(layersDone.incrementAndGet(), nLayers);
+			}
+			lowX = lowY = zEdges = null;
+		}
+
+		private static int[] newPlane(int size) {
+			int[] plane = new int[size];
+			Arrays.fill(plane, -1);
+			return plane;
+		}
+
+		private void cube(int x, int y, int z) {
+			int cn = 0;
+			for(int c = 0; c < 8; c++) {
+				in[c] = car.intensity(x + CX[c], y + CY[c], z + CZ[c]);
+				if(in[c] - car.threshold > 0)
+					cn += 1 << c;
+			}
+			int offset = cn * 15;
+			for(int index = 0; index < 5; index++) {
+				if(MCCube.faces[offset] != -1) {
+					if(nIndices + 3 > faces.length) {
+						int[] tmp = new int[2 * faces.length];
+						System.arraycopy(faces, 0, tmp, 0, nIndices);
+						faces = tmp;
+					}
+					faces[nIndices++] = vertex(MCCube.faces[offset], x, y, z);
+					faces[nIndices++] = vertex(MCCube.faces[offset+1], x, y, z);
+					faces[nIndices++] = vertex(MCCube.faces[offset+2], x, y, z);
+				}
+				offset += 3;
+			}
+		}
+
+		/**
+		 * Returns the number of the vertex on the given edge of the
+		 * cube, making the vertex if there is none yet.
+		 */
+		private int vertex(int edge, int x, int y, int z) {
+			int[] plane;
+			int slot, a, b;
+			switch(edge) {
+				case 0: plane = lowX; slot = slot(x, y); a = 0; b = 1; break;
+				case 1: plane = lowY; slot = slot(x + 1, y); a = 1; b = 2; break;
+				case 2: plane = lowX; slot = slot(x, y + 1); a = 2; b = 3; break;
+				case 3: plane = lowY; slot = slot(x, y); a = 3; b = 0; break;
+				case 4: plane = upX; slot = slot(x, y); a = 4; b = 5; break;
+				case 5: plane = upY; slot = slot(x + 1, y); a = 5; b = 6; break;
+				case 6: plane = upX; slot = slot(x, y + 1); a = 6; b = 7; break;
+				case 7: plane = upY; slot = slot(x, y); a = 7; b = 4; break;
+				case 8: plane = zEdges; slot = slot(x, y); a = 0; b = 4; break;
+				case 9: plane = zEdges; slot = slot(x + 1, y); a = 1; b = 5; break;
+				case 10: plane = zEdges; slot = slot(x, y + 1); a = 3; b = 7; break;
+				default: plane = zEdges; slot = slot(x + 1, y + 1); a = 2; b = 6; break;
+			}
+			if(plane[slot] < 0)
+				plane[slot] = addVertex(x, y, z, a, b);
+			return plane[slot];
+		}
+
+		private int slot(int x, int y) {
+			return (y + 1) * pw + x + 1;
+		}
+
+		/**
+		 * Adds the point on the edge between corners a and b of the
+		 * cube where the intensity equals the threshold, computed
+		 * exactly like computeEdge() does.
+		 */
+		private int addVertex(int x, int y, int z, int a, int b) {
+			if(in[b] < in[a]) {
+				int tmp = a;
+				a = b;
+				b = tmp;
+			}
+			float t = (car.threshold - in[a]) / (float) (in[b] - in[a]);
+			float vx = -1, vy = -1, vz = -1;
+			if (t >= 0 && t <= 1) {
+				float x1 = x + CX[a], y1 = y + CY[a], z1 = z + CZ[a];
+				float x2 = x + CX[b], y2 = y + CY[b], z2 = z + CZ[b];
+				vx = (x2 - x1) * t + x1;
+				vy = (y2 - y1) * t + y1;
+				vz = (z2 - z1) * t + z1;
+			}
+			if(3 * nVertices + 3 > vertices.length) {
+				float[] tmp = new float[2 * vertices.length];
+				System.arraycopy(vertices, 0, tmp, 0, 3 * nVertices);
+				vertices = tmp;
+			}
+			vertices[3 * nVertices] = vx;
+			vertices[3 * nVertices + 1] = vy;
+			vertices[3 * nVertices + 2] = vz;
+			return nVertices++;
+		}
+	}
+
 	/** Identical to getTriangles, but iterates only the minimal necessary bounding box, by asking the shapes objects. */
 	private static final void getShapeListImageTriangles(final ImgLibVolume volume, final Carrier car, final List<Point3f> tri) {
 		final ShapeList sli = (ShapeList) volume.getImage().getContainer();
@@ -40,6 +40,36 @@ public List getTriangles(ImagePlus image, int threshold,
 		return l;
 	}
 
+	/**
+	 * Like getTriangles(), but returns the triangles as an indexed mesh,
+	 * in which the triangles share their vertices. This needs much less
+	 * memory for large images, and is calculated in parallel, with one
+	 * thread per processor.
+	 * The image is not zero padded either; outside of it, the values
+	 * are taken to be zero.
+	 */
+	public IndexedMesh getIndexedMesh(ImagePlus image, int threshold,
+					boolean[] channels, int resamplingF) {
+		return getIndexedMesh(image, threshold, channels, resamplingF,
+			Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Like getIndexedMesh(ImagePlus, int, boolean[], int), but with the
+	 * given number of threads.
+	 */
+	public IndexedMesh getIndexedMesh(ImagePlus image, int threshold,
+					boolean[] channels, int resamplingF,
+					int nThreads) {
+
+		if(resamplingF != 1)
+			image = NaiveResampler.resample(image, resamplingF);
+		Volume volume = new Volume(image, channels);
+		volume.setAverage(true);
+
+		return MCCube.getIndexedMesh(volume, threshold, nThreads);
+	}
+
 	/**
 	 * @param img The Image<? extends RealType> instance to use.
 	 * @param threshold The cut-off (inclusive) of pixel values considered inside.
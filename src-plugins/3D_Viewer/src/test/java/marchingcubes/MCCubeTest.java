@@ -0,0 +1,118 @@
+package marchingcubes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij3d.ImgLibVolume;
+import ij3d.Volume;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import javax.vecmath.Point3f;
+
+import mpicbg.imglib.container.array.ArrayContainerFactory;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.image.ImageFactory;
+import mpicbg.imglib.type.numeric.integer.UnsignedByteType;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link MCCube#getIndexedMesh(Volume, int, int)} makes the same
+ * triangles as {@link MCCube#getTriangles(Volume, int)}, whatever the number
+ * of threads.
+ */
+public class MCCubeTest {
+
+	final static int w = 23, h = 19, d = 13;
+	final static int threshold = 100;
+	final static int[] nThreads = { 1, 2, 3, 5, d + 2, 32 };
+
+	/** Some overlapping blurred balls, touching the border of the image */
+	static int[][] createData() {
+		final Random random = new Random(42);
+		final int[][] data = new int[d][w * h];
+		for (int n = 0; n < 6; n++) {
+			final double cx = random.nextDouble() * w, cy = random.nextDouble() * h, cz = random.nextDouble() * d;
+			final double r = 2 + random.nextDouble() * 6;
+			for (int z = 0; z < d; z++)
+				for (int y = 0; y < h; y++)
+					for (int x = 0; x < w; x++) {
+						final double dx = x - cx, dy = y - cy, dz = z - cz;
+						final double dist = Math.sqrt(dx * dx + dy * dy + dz * dz);
+						final int value = (int)Math.max(0, Math.min(255, 255 * (r + 1 - dist) / 2));
+						data[z][x + w * y] = Math.max(data[z][x + w * y], value);
+					}
+		}
+		return data;
+	}
+
+	static void assertSameTriangles(final Volume volume) {
+		final List<Point3f> expected = MCCube.getTriangles(volume, threshold);
+		assertTrue(expected.size() > 0);
+
+		for (final int n : nThreads) {
+			final IndexedMesh mesh = MCCube.getIndexedMesh(volume, threshold, n);
+			assertEquals(n + " threads", expected, mesh.getTriangles());
+
+			// each vertex is only stored once
+			final HashSet<Point3f> distinct = new HashSet<Point3f>();
+			for (final Point3f p : mesh.getPoints())
+				distinct.add(p);
+			assertEquals(n + " threads", distinct.size(), mesh.getVertexCount());
+		}
+	}
+
+	@Test
+	public void testGray() {
+		final int[][] data = createData();
+		final ImageStack stack = new ImageStack(w, h);
+		for (int z = 0; z < d; z++) {
+			final ByteProcessor ip = new ByteProcessor(w, h);
+			for (int i = 0; i < w * h; i++)
+				ip.set(i, data[z][i]);
+			stack.addSlice("", ip);
+		}
+		final Volume volume = new Volume(new ImagePlus("gray", stack));
+		volume.setAverage(true);
+		assertSameTriangles(volume);
+	}
+
+	@Test
+	public void testAveragedRGB() {
+		final int[][] data = createData();
+		final ImageStack stack = new ImageStack(w, h);
+		for (int z = 0; z < d; z++) {
+			final ColorProcessor ip = new ColorProcessor(w, h);
+			for (int i = 0; i < w * h; i++) {
+				final int v = data[z][i];
+				// the channels differ, so that they have to be averaged
+				ip.set(i, (v << 16) | ((v / 2) << 8) | (255 - v / 4));
+			}
+			stack.addSlice("", ip);
+		}
+		final Volume volume = new Volume(new ImagePlus("rgb", stack));
+		volume.setAverage(true);
+		assertSameTriangles(volume);
+	}
+
+	@Test
+	public void testImgLib() throws Exception {
+		final int[][] data = createData();
+		final Image<UnsignedByteType> img = new ImageFactory<UnsignedByteType>(
+				new UnsignedByteType(), new ArrayContainerFactory()).createImage(new int[] { w, h, d });
+		final ImgLibVolume<UnsignedByteType> volume =
+				new ImgLibVolume<UnsignedByteType>(img, new float[3]);
+		for (int z = 0; z < d; z++)
+			for (int y = 0; y < h; y++)
+				for (int x = 0; x < w; x++)
+					volume.set(x, y, z, data[z][x + w * y]);
+		assertSameTriangles(volume);
+	}
+}
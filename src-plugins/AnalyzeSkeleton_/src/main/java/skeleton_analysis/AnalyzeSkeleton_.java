@@ -3,12 +3,15 @@
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.ListIterator;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Prefs;
 import ij.WindowManager;
 import ij.gui.GenericDialog;
 import ij.measure.Calibration;
@@ -70,9 +73,11 @@ public class AnalyzeSkeleton_ implements PlugInFilter
 	private int depth = 0;
 	/** working image stack */
 	private ImageStack inputImage = null;
+	/** pixels of the input image (one array per slice) */
+	private byte[][] inputSlices = null;
 	
-	/** visit flags */
-	private boolean [][][] visited = null;
+	/** visit flags (one array per slice) */
+	private boolean [][] visited = null;
 	
 	// Measures
 	/** total number of end points voxels */
@@ -144,6 +149,10 @@ public class AnalyzeSkeleton_ implements PlugInFilter
 	
 	/** stack image containing the corresponding skeleton tags (end point, junction or slab) */
 	private ImageStack taggedImage = null;
+	/** pixels of the tagged image (one array per slice) */
+	private byte[][] taggedSlices = null;
+	/** junction vertex containing each junction voxel (indexed by voxel index) */
+	private HashMap<Long, Vertex> junctionVertexOfVoxel = null;
 	
 	/** auxiliary temporary point */
 	private Point auxPoint = null;
@@ -880,7 +889,9 @@ public void processSkeleton(ImageStack inputImage2)
 		
 		
 		// Prepare data: classify voxels and tag them.
+		this.inputSlices = getByteSlices(this.inputImage != null ? this.inputImage : inputImage2);
 		this.taggedImage = tagImage(inputImage2);		
+		this.taggedSlices = getByteSlices(this.taggedImage);
 		
 		// Show tags image.
 		if(!bPruneCycles && !silent)
@@ -1570,7 +1581,7 @@ private void visitSkeleton(ImageStack taggedImage, ImageStack treeImage, int cur
 				final Point aux = getVisitedJunctionNeighbor(endPointCoord, v1);				
 				if(null != aux)
 				{
-					this.auxFinalVertex = findPointVertex(this.junctionVertex[iTree], aux);
+					this.auxFinalVertex = findJunctionVertex(aux);
 					length += calculateDistance(endPointCoord, aux);
 					
 					// Add the length to the first point of the vertex (to prevent later from having
@@ -1603,7 +1614,7 @@ private void visitSkeleton(ImageStack taggedImage, ImageStack treeImage, int cur
 				final Point aux = this.auxPoint;
 				//IJ.log("Looking for " + this.auxPoint + " in the list of vertices...");
 				this.auxPoint = getVisitedJunctionNeighbor(this.auxPoint, v1);
-				this.auxFinalVertex = findPointVertex(this.junctionVertex[iTree], this.auxPoint);
+				this.auxFinalVertex = findJunctionVertex(this.auxPoint);
 				if(this.auxPoint == null)
 				{
 					//IJ.log("Point "+ aux + " has not neighbor end junction! (inner loop)");
@@ -1711,7 +1722,7 @@ private void visitSkeleton(ImageStack taggedImage, ImageStack treeImage, int cur
 								final Point aux = this.auxPoint;
 								//IJ.log("Looking for " + this.auxPoint + " in the list of vertices...");
 								this.auxPoint = getVisitedJunctionNeighbor(this.auxPoint, initialVertex);
-								this.auxFinalVertex = findPointVertex(this.junctionVertex[iTree], this.auxPoint);
+								this.auxFinalVertex = findJunctionVertex(this.auxPoint);
 								if(this.auxPoint == null)
 								{
 									//IJ.log("Point "+ aux + " has not neighbor end junction! (inner loop)");
@@ -2166,7 +2177,7 @@ else if(isJunction(nextPoint))
 			{
 				if(debug)
 					IJ.log("found unvisited junction point: " + nextPoint);
-				this.auxFinalVertex = findPointVertex(this.junctionVertex[iTree], nextPoint);
+				this.auxFinalVertex = findJunctionVertex(nextPoint);
 				// Add the length to the first point of the vertex (to prevent later from having
 				// euclidean distances larger than the actual distance)
 				length += calculateDistance(auxFinalVertex.getPoints().get(0), nextPoint);
@@ -2216,6 +2227,30 @@ public Vertex findPointVertex(Vertex[] vertex, Point p)
 		return null;
 	}
 	
+	// -----------------------------------------------------------------------
+	/**
+	 * Find the junction vertex containing a specific junction voxel. This 
+	 * gives the same result as {@link #findPointVertex(Vertex[], Point)} on 
+	 * the junction vertices of the tree, without searching all of them.
+	 * 
+	 * @param p junction voxel (can be null)
+	 * @return vertex containing that point or null if there is none
+	 */
+	private Vertex findJunctionVertex(Point p)
+	{
+		if(null == p)
+			return null;
+		final Vertex v = this.junctionVertexOfVoxel.get(getVoxelIndex(p));
+		if(debug)
+		{
+			if(null == v)
+				IJ.log("point " + p + " was not found in vertex list!");
+			else
+				IJ.log(" " + p + " belongs to junction " + v.getPoints().get(0));
+		}
+		return v;
+	}
+
 	// -----------------------------------------------------------------------
 	/**
 	 * Calculate distance between two points in 3D.
@@ -2254,6 +2289,8 @@ private void groupJunctions(ImageStack treeIS)
 			}
 		}		
 				
+		this.junctionVertexOfVoxel = new HashMap<Long, Vertex>();
+
 		// Count number of single junctions for every tree in the image
 		for (int iTree = 0; iTree < this.numOfTrees; iTree++)
 		{
@@ -2270,7 +2307,10 @@ private void groupJunctions(ImageStack treeIS)
 				final ArrayList<Point> list = this.listOfSingleJunctions[iTree].get(j);
 				this.junctionVertex[iTree][j] = new Vertex();
 				for(final Point p : list)
+				{
 					this.junctionVertex[iTree][j].addPoint(p);
+					this.junctionVertexOfVoxel.put(getVoxelIndex(p), this.junctionVertex[iTree][j]);
+				}
 				
 			}
 		}
@@ -2287,7 +2327,7 @@ private void resetVisited()
 	{
 		// Reset visited variable
 		this.visited = null;
-		this.visited = new boolean[this.width][this.height][this.depth];
+		this.visited = new boolean[this.depth][this.width * this.height];
 		/*
 		for(int i = 0; i < this.width; i ++)
 			for(int j = 0; j < this.height; j++)
@@ -2441,7 +2481,7 @@ private boolean isNeighbor(Point point1, Point point2)
 	 */
 	private boolean isSlab(Point point) 
 	{		
-		return getPixel(this.taggedImage, point.x, point.y, point.z) == AnalyzeSkeleton_.SLAB;
+		return getTaggedPixel(point.x, point.y, point.z) == AnalyzeSkeleton_.SLAB;
 	}
 
 	/* -----------------------------------------------------------------------*/
@@ -2453,7 +2493,7 @@ private boolean isSlab(Point point)
 	 */
 	private boolean isJunction(Point point) 
 	{		
-		return getPixel(this.taggedImage, point.x, point.y, point.z) == AnalyzeSkeleton_.JUNCTION;
+		return getTaggedPixel(point.x, point.y, point.z) == AnalyzeSkeleton_.JUNCTION;
 	}	
 	
 	/* -----------------------------------------------------------------------*/
@@ -2465,7 +2505,7 @@ private boolean isJunction(Point point)
 	 */
 	private boolean isEndPoint(Point point) 
 	{		
-		return getPixel(this.taggedImage, point.x, point.y, point.z) == AnalyzeSkeleton_.END_POINT;
+		return getTaggedPixel(point.x, point.y, point.z) == AnalyzeSkeleton_.END_POINT;
 	}	
 	
 	/* -----------------------------------------------------------------------*/
@@ -2479,7 +2519,7 @@ private boolean isEndPoint(Point point)
 	 */
 	private boolean isJunction(int x, int y, int z) 
 	{		
-		return getPixel(this.taggedImage, x, y, z) == AnalyzeSkeleton_.JUNCTION;
+		return getTaggedPixel(x, y, z) == AnalyzeSkeleton_.JUNCTION;
 	}	
 	
 	/* -----------------------------------------------------------------------*/
@@ -2501,7 +2541,7 @@ private Point getNextUnvisitedVoxel(Point point)
 					if(x == 0 && y == 0 && z == 0)
 						continue;
 					
-					if(getPixel(this.inputImage, point.x + x, point.y + y, point.z + z) != 0
+					if(getInputPixel(point.x + x, point.y + y, point.z + z) != 0
 						&& isVisited(point.x + x, point.y + y, point.z + z) == false)						
 					{					
 						unvisitedNeighbor = new Point(point.x + x, point.y + y, point.z + z);
@@ -2532,7 +2572,7 @@ private Point getNextUnvisitedJunctionVoxel(Point point)
 					if(x == 0 && y == 0 && z == 0)
 						continue;
 					
-					if(getPixel(this.inputImage, point.x + x, point.y + y, point.z + z) != 0
+					if(getInputPixel(point.x + x, point.y + y, point.z + z) != 0
 						&& isVisited(point.x + x, point.y + y, point.z + z) == false 
 						&& isJunction(point.x + x, point.y + y, point.z + z))						
 					{					
@@ -2568,7 +2608,7 @@ private Point getVisitedJunctionNeighbor(Point point, Vertex exclude)
 					
 					final Point neighbor = new Point( point.x + x, point.y + y, point.z + z);
 					
-					if(getPixel(this.inputImage, neighbor) != 0
+					if(getInputPixel(neighbor.x, neighbor.y, neighbor.z) != 0
 						&& isVisited(neighbor)
 						&& isJunction(neighbor)
 						&& ! exclude.getPoints().contains(neighbor))						
@@ -2608,7 +2648,7 @@ private boolean isVisited(Point point)
 	private boolean isVisited(int x, int y, int z) 
 	{
 		if(x >= 0 && x < this.width && y >= 0 && y < this.height && z >= 0 && z < this.depth)
-			return this.visited[x][y][z];
+			return this.visited[z][x + y * this.width];
 		return true;
 	}
 	
@@ -2625,7 +2665,7 @@ private boolean isVisited(int x, int y, int z)
 	private void setVisited(int x, int y, int z, boolean b) 
 	{
 		if(x >= 0 && x < this.width && y >= 0 && y < this.height && z >= 0 && z < this.depth)
-			this.visited[x][y][z] = b;		
+			this.visited[z][x + y * this.width] = b;		
 	}
 
 	/* -----------------------------------------------------------------------*/
@@ -2655,45 +2695,223 @@ private ImageStack tagImage(ImageStack inputImage2)
 	{
 		// Create output image
 		ImageStack outputImage = new ImageStack(this.width, this.height, inputImage2.getColorModel());
-			
-		// Tag voxels
 		for (int z = 0; z < depth; z++)
+			outputImage.addSlice(inputImage2.getSliceLabel(z+1), new ByteProcessor(this.width, this.height));
+
+		final byte[][] inputPixels = getByteSlices(inputImage2);
+		final byte[][] outputPixels = getByteSlices(outputImage);
+
+		// In-plane indices of the end points, junctions and slabs 
+		// of every slice
+		final int[][] endPoints = new int[depth][];
+		final int[][] junctions = new int[depth][];
+		final int[][] slabs = new int[depth][];
+
+		// Tag the slices in parallel
+		final AtomicInteger ai = new AtomicInteger(0);
+		final Thread[] threads = new Thread[Math.max(1, Math.min(Prefs.getThreads(), depth))];
+		for (int ithread = 0; ithread < threads.length; ithread++)
 		{
-			outputImage.addSlice(inputImage2.getSliceLabel(z+1), new ByteProcessor(this.width, this.height));			
-			for (int x = 0; x < width; x++) 
-				for (int y = 0; y < height; y++)
+			threads[ithread] = new Thread()
+			{
+				public void run()
 				{
-					if(getPixel(inputImage2, x, y, z) != 0)
-					{
-						int numOfNeighbors = getNumberOfNeighbors(inputImage2, x, y, z);
-						if(numOfNeighbors < 2)
-						{
-							setPixel(outputImage, x, y, z, AnalyzeSkeleton_.END_POINT);
-							this.totalNumberOfEndPoints++;
-							Point endPoint = new Point(x, y, z);
-							this.listOfEndPoints.add(endPoint);							
-						}
-						else if(numOfNeighbors > 2)
-						{
-							setPixel(outputImage, x, y, z, AnalyzeSkeleton_.JUNCTION);
-							Point junction = new Point(x, y, z);
-							this.listOfJunctionVoxels.add(junction);	
-							this.totalNumberOfJunctionVoxels++;
-						}
-						else
-						{
-							setPixel(outputImage, x, y, z, AnalyzeSkeleton_.SLAB);
-							Point slab = new Point(x, y, z);
-							this.listOfSlabVoxels.add(slab);
-							this.totalNumberOfSlabs++;
-						}
-					}					
+					for (int z = ai.getAndIncrement(); z < depth; z = ai.getAndIncrement())
+						tagSlice(inputPixels, outputPixels[z], z, endPoints, junctions, slabs);
 				}
+			};
+			threads[ithread].start();
+		}
+		try
+		{
+			for (int ithread = 0; ithread < threads.length; ithread++)
+				threads[ithread].join();
+		}
+		catch (InterruptedException ie)
+		{
+			throw new RuntimeException(ie);
+		}
+
+		// Fill the lists of points slice by slice, in the same order 
+		// as the voxels were visited
+		for (int z = 0; z < depth; z++)
+		{
+			for (final int i : endPoints[z])
+				this.listOfEndPoints.add(new Point(i % this.width, i / this.width, z));
+			for (final int i : junctions[z])
+				this.listOfJunctionVoxels.add(new Point(i % this.width, i / this.width, z));
+			for (final int i : slabs[z])
+				this.listOfSlabVoxels.add(new Point(i % this.width, i / this.width, z));
+			this.totalNumberOfEndPoints += endPoints[z].length;
+			this.totalNumberOfJunctionVoxels += junctions[z].length;
+			this.totalNumberOfSlabs += slabs[z].length;
 		}
 		
 		return outputImage;
 	}// end method tagImage 
 
+	/* -----------------------------------------------------------------------*/
+	/**
+	 * Tag one slice of the skeleton, working directly on the pixel arrays. 
+	 * The in-plane indices of the end points, junctions and slabs of the 
+	 * slice are stored in the corresponding arrays, in the order in which 
+	 * the voxels used to be visited (by columns).
+	 *  
+	 * @param input skeleton image pixels (one array per slice)
+	 * @param output tagged slice pixels
+	 * @param z slice index (0-based)
+	 * @param endPoints in-plane indices of the end points of every slice
+	 * @param junctions in-plane indices of the junction voxels of every slice
+	 * @param slabs in-plane indices of the slab voxels of every slice
+	 */
+	private void tagSlice(
+			final byte[][] input, 
+			final byte[] output, 
+			final int z,
+			final int[][] endPoints, 
+			final int[][] junctions, 
+			final int[][] slabs) 
+	{
+		final int width = this.width;
+		final int height = this.height;
+		
+		// The slices above, at and below the voxel (null if out of image)
+		final byte[][] slices = new byte[][]{ 
+				z > 0 ? input[z-1] : null, 
+				input[z], 
+				z < depth - 1 ? input[z+1] : null };
+		
+		// In-plane offsets of the 3x3 neighborhood
+		final int[] offsets = new int[]{ 
+				-width-1, -width, -width+1, 
+				-1, 0, 1, 
+				width-1, width, width+1 };
+		
+		final byte[] slice = input[z];
+		int nEndPoints = 0, nJunctions = 0, nSlabs = 0;
+		
+		for (int y = 0; y < height; y++)
+			for (int x = 0, i = y * width; x < width; x++, i++)
+			{
+				if(slice[i] == 0)
+					continue;
+				
+				int n = 0;
+				if(x > 0 && x < width - 1 && y > 0 && y < height - 1)
+				{
+					for(final byte[] s : slices)
+						if(null != s)
+							for(final int offset : offsets)
+								if(s[i + offset] != 0)
+									n++;
+				}
+				else
+				{
+					// 0 border conditions
+					for(final byte[] s : slices)
+						if(null != s)
+							for(int yy = Math.max(0, y-1); yy <= Math.min(height-1, y+1); yy++)
+								for(int xx = Math.max(0, x-1); xx <= Math.min(width-1, x+1); xx++)
+									if(s[xx + yy * width] != 0)
+										n++;
+				}
+				// The neighborhood includes the actual voxel.
+				n--;
+				
+				if(n < 2)
+				{
+					output[i] = AnalyzeSkeleton_.END_POINT;
+					nEndPoints++;
+				}
+				else if(n > 2)
+				{
+					output[i] = AnalyzeSkeleton_.JUNCTION;
+					nJunctions++;
+				}
+				else
+				{
+					output[i] = AnalyzeSkeleton_.SLAB;
+					nSlabs++;
+				}
+			}
+		
+		endPoints[z] = new int[nEndPoints];
+		junctions[z] = new int[nJunctions];
+		slabs[z] = new int[nSlabs];
+		nEndPoints = nJunctions = nSlabs = 0;
+		
+		for (int x = 0; x < width; x++) 
+			for (int y = 0, i = x; y < height; y++, i += width)
+			{
+				final byte tag = output[i];
+				if(tag == AnalyzeSkeleton_.END_POINT)
+					endPoints[z][nEndPoints++] = i;
+				else if(tag == AnalyzeSkeleton_.JUNCTION)
+					junctions[z][nJunctions++] = i;
+				else if(tag == AnalyzeSkeleton_.SLAB)
+					slabs[z][nSlabs++] = i;
+			}
+	}// end method tagSlice
+	
+	/* -----------------------------------------------------------------------*/
+	/**
+	 * Get the pixel arrays of all the slices of an 8-bit stack.
+	 * 
+	 * @param image 8-bit image stack
+	 * @return pixel arrays (one per slice)
+	 */
+	private static byte[][] getByteSlices(final ImageStack image)
+	{
+		final byte[][] slices = new byte[image.getSize()][];
+		for(int z = 0; z < slices.length; z++)
+			slices[z] = (byte[]) image.getPixels(z + 1);
+		return slices;
+	}
+	
+	/* -----------------------------------------------------------------------*/
+	/**
+	 * Get the index of a voxel in the whole image.
+	 * 
+	 * @param p voxel coordinates
+	 * @return voxel index (x + y * width + z * width * height)
+	 */
+	private long getVoxelIndex(final Point p)
+	{
+		return p.x + p.y * (long) this.width + p.z * (long) this.width * this.height;
+	}
+	
+	/* -----------------------------------------------------------------------*/
+	/**
+	 * Get pixel of the input image (0 border conditions).
+	 * 
+	 * @param x x- coordinate
+	 * @param y y- coordinate
+	 * @param z z- coordinate (0-based)
+	 * @return corresponding pixel (0 if out of image)
+	 */
+	private byte getInputPixel(final int x, final int y, final int z)
+	{
+		if(x >= 0 && x < this.width && y >= 0 && y < this.height && z >= 0 && z < this.depth)
+			return this.inputSlices[z][x + y * this.width];
+		return 0;
+	}
+	
+	/* -----------------------------------------------------------------------*/
+	/**
+	 * Get pixel of the tagged image (0 border conditions).
+	 * 
+	 * @param x x- coordinate
+	 * @param y y- coordinate
+	 * @param z z- coordinate (0-based)
+	 * @return corresponding pixel (0 if out of image)
+	 */
+	private byte getTaggedPixel(final int x, final int y, final int z)
+	{
+		if(x >= 0 && x < this.width && y >= 0 && y < this.height && z >= 0 && z < this.depth)
+			return this.taggedSlices[z][x + y * this.width];
+		return 0;
+	}
+
 	/* -----------------------------------------------------------------------*/
 	/**
 	 * Get number of neighbors of a voxel in a 3D image (0 border conditions).
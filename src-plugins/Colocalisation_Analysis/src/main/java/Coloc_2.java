@@ -408,7 +408,8 @@ public void colocalise(Img<T> img1, Img<T> img2, BoundingBox roi,
 		userSelectedJobs.add( container.setInputCheck(
 			new InputCheck<T>()) );
 		userSelectedJobs.add( container.setAutoThreshold(
-			new AutoThresholdRegression<T>(pearsonsCorrelation)) );
+			new AutoThresholdRegression<T>(pearsonsCorrelation,
+				AutoThresholdRegression.Implementation.Histogram)) );
 
 		// add user selected algorithms
 		addIfValid(pearsonsCorrelation, userSelectedJobs);
@@ -15,6 +15,18 @@
  * used for Person colocalisation calculation.
  */
 public class AutoThresholdRegression<T extends RealType< T >> extends Algorithm<T> {
+	/* Identifiers for choosing how the Pearson's values of the threshold
+	 * candidates are calculated: by going over the images again for each
+	 * candidate, or from a joint histogram made while going over the images
+	 * for the regression line.
+	 */
+	public enum Implementation {Scan, Histogram};
+	// the implementation used
+	Implementation theImplementation = Implementation.Scan;
+	/* The maximum number of cells of the joint histogram. If the
+	 * channels have a wider range, the images get scanned instead.
+	 */
+	static final int maxHistogramCells = 1 << 20;
 	/* the threshold for y-intercept to y-max to
 	 *  raise a warning about it being to high.
 	 */
@@ -33,8 +45,13 @@
 	PearsonsCorrelation<T> pearsonsCorrellation;
 
 	public AutoThresholdRegression(PearsonsCorrelation<T> pc) {
+		this(pc, Implementation.Scan);
+	}
+
+	public AutoThresholdRegression(PearsonsCorrelation<T> pc, Implementation implementation) {
 		super("auto threshold regression");
 		pearsonsCorrellation = pc;
+		theImplementation = implementation;
 	}
 
 	@Override
@@ -60,6 +77,12 @@ public void execute(DataContainer<T> container)
 		double combinedSum = 0.0;
 		int N = 0, NZero = 0;
 
+		// the joint histogram, if wanted and not too large
+		JointHistogram histogram = null;
+		if (theImplementation == Implementation.Histogram)
+			histogram = JointHistogram.create(container.getMinCh1(), container.getMaxCh1(),
+					container.getMinCh2(), container.getMaxCh2(), ch1Mean, ch2Mean);
+
 		while (cursor.hasNext()) {
 			cursor.fwd();
 			T type1 = cursor.getChannel1();
@@ -78,6 +101,9 @@ public void execute(DataContainer<T> container)
 			ch2MeanDiffSum += (ch2 - ch2Mean) * (ch2 - ch2Mean);
 			combinedMeanDiffSum += (combinedSum - combinedMean) * (combinedSum - combinedMean);
 
+			if (histogram != null)
+				histogram.add(ch1, ch2);
+
 			// count only pixels that are above zero
 			if ( (ch1 + ch2) > 0.00001)
 				NZero++;
@@ -85,6 +111,9 @@ public void execute(DataContainer<T> container)
 			N++;
 		}
 
+		if (histogram != null)
+			histogram.finish();
+
 		double ch1Variance = ch1MeanDiffSum / (N - 1);
 		double ch2Variance = ch2MeanDiffSum / (N - 1);
 		double combinedVariance = combinedMeanDiffSum / (N - 1.0);
@@ -141,8 +170,12 @@ public void execute(DataContainer<T> container)
 			boolean badResult = false;
 			try {
 				// do persons calculation within the limits
-				currentPersonsR = pearsonsCorrellation.calculatePearsons(cursor,
-						ch1Mean, ch2Mean, thresholdCh1, thresholdCh2, ThresholdMode.Below);
+				if (histogram != null)
+					currentPersonsR = histogram.pearsonsBelow(pearsonsCorrellation,
+							thresholdCh1.getRealDouble(), thresholdCh2.getRealDouble());
+				else
+					currentPersonsR = pearsonsCorrellation.calculatePearsons(cursor,
+							ch1Mean, ch2Mean, thresholdCh1, thresholdCh2, ThresholdMode.Below);
 			} catch (MissingPreconditionException e) {
 				/* the exception that could occur is due to numerical
 				 * problems within the pearsons calculation.
@@ -244,6 +277,130 @@ public void processResults(ResultHandler<T> handler) {
 		handler.handleValue( "Ch2 Max Threshold", ch2MaxThreshold.getRealDouble(), 2);
 	}
 
+	/**
+	 * A joint histogram of both channels with bins that are one wide
+	 * and start at whole numbers. For the thresholds of the regression,
+	 * which are whole numbers, a pixel is below a threshold exactly when
+	 * its bin is, so the sums of the pixels below the thresholds can be
+	 * put together from the bins. Each bin keeps the sums (of the values
+	 * minus the channel means) an {@link Accumulator} would collect, and
+	 * each row of bins is turned into running sums, so that the pixels
+	 * below a pair of thresholds are found with one look-up per row.
+	 */
+	static class JointHistogram {
+		// the value of the first bin and the number of bins of both channels
+		final long min1, min2;
+		final int bins1, bins2;
+		final double mean1, mean2;
+		/* The sums of each bin, the bins of a row being followed by one
+		 * more entry. After finish(), entry j of a row is the sum over the
+		 * bins before bin j of the row.
+		 */
+		final double[] count, x, y, xx, yy, xy;
+
+		JointHistogram(long min1, int bins1, long min2, int bins2,
+				double mean1, double mean2) {
+			this.min1 = min1;
+			this.bins1 = bins1;
+			this.min2 = min2;
+			this.bins2 = bins2;
+			this.mean1 = mean1;
+			this.mean2 = mean2;
+			int size = bins1 * (bins2 + 1);
+			count = new double[size];
+			x = new double[size];
+			y = new double[size];
+			xx = new double[size];
+			yy = new double[size];
+			xy = new double[size];
+		}
+
+		/**
+		 * Creates a joint histogram for the given channel ranges, or
+		 * returns null if it would have too many bins.
+		 */
+		static JointHistogram create(double minCh1, double maxCh1,
+				double minCh2, double maxCh2, double mean1, double mean2) {
+			long min1 = (long) Math.floor(minCh1);
+			long min2 = (long) Math.floor(minCh2);
+			long bins1 = (long) Math.floor(maxCh1) - min1 + 1;
+			long bins2 = (long) Math.floor(maxCh2) - min2 + 1;
+			if (bins1 < 1 || bins2 < 1 || bins1 * (bins2 + 1) > maxHistogramCells)
+				return null;
+			return new JointHistogram(min1, (int) bins1, min2, (int) bins2, mean1, mean2);
+		}
+
+		/**
+		 * Adds a pixel to its bin. Pixels with a value that is not a
+		 * finite number have no bin and are skipped.
+		 */
+		void add(double ch1, double ch2) {
+			if (Double.isNaN(ch1) || Double.isInfinite(ch1)
+					|| Double.isNaN(ch2) || Double.isInfinite(ch2))
+				return;
+			int i = (int) ((long) Math.floor(ch1) - min1);
+			int j = (int) ((long) Math.floor(ch2) - min2);
+			// the sums of a bin are stored in the entry after it
+			int index = i * (bins2 + 1) + j + 1;
+			double value1 = ch1 - mean1;
+			double value2 = ch2 - mean2;
+			count[index]++;
+			x[index] += value1;
+			y[index] += value2;
+			xx[index] += value1 * value1;
+			yy[index] += value2 * value2;
+			xy[index] += value1 * value2;
+		}
+
+		/**
+		 * Turns the rows into running sums. Call this after all pixels
+		 * have been added.
+		 */
+		void finish() {
+			for (int i = 0; i < bins1; i++) {
+				int rowStart = i * (bins2 + 1);
+				for (int index = rowStart + 1; index <= rowStart + bins2; index++) {
+					count[index] += count[index - 1];
+					x[index] += x[index - 1];
+					y[index] += y[index - 1];
+					xx[index] += xx[index - 1];
+					yy[index] += yy[index - 1];
+					xy[index] += xy[index - 1];
+				}
+			}
+		}
+
+		/**
+		 * Calculates Pearson's R value of the pixels that are below the
+		 * threshold in at least one channel (see {@link ThresholdMode#Below}).
+		 */
+		double pearsonsBelow(PearsonsCorrelation<?> pc, double threshold1,
+				double threshold2) throws MissingPreconditionException {
+			// the number of rows and columns of bins below the thresholds
+			int rowsBelow = binsBelow(threshold1, min1, bins1);
+			int columnsBelow = binsBelow(threshold2, min2, bins2);
+			double n = 0, sx = 0, sy = 0, sxx = 0, syy = 0, sxy = 0;
+			for (int i = 0; i < bins1; i++) {
+				// all of a row is below if channel one is
+				int index = i * (bins2 + 1) + (i < rowsBelow ? bins2 : columnsBelow);
+				n += count[index];
+				sx += x[index];
+				sy += y[index];
+				sxx += xx[index];
+				syy += yy[index];
+				sxy += xy[index];
+			}
+			return pc.calculatePearsons((int) n, sx, sy, sxx, syy, sxy);
+		}
+
+		static int binsBelow(double threshold, long min, int bins) {
+			double below = Math.ceil(threshold) - min;
+			if (below < 0)
+				return 0;
+			return below > bins ? bins : (int) below;
+		}
+	}
+
 	public double getBToYMaxRatio() {
 		return bToYMaxRatio;
 	}
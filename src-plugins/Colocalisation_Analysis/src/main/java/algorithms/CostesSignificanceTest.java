@@ -6,8 +6,9 @@
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.imglib2.Cursor;
 import net.imglib2.IterableInterval;
@@ -54,6 +55,10 @@
 	double costesPValue;
 	// the maximum retries in case of Pearson numerical errors
 	protected final int maxErrorRetries = 3;
+	// the number of threads doing the randomizations
+	int numThreads = Runtime.getRuntime().availableProcessors();
+	// the seed the random number generators of the randomizations are made from
+	long seed = new Random().nextLong();
 
 
 	/**
@@ -124,100 +129,151 @@ public void execute(DataContainer<T> container)
 		RandomAccessible< T> infiniteImg = Views.extendMirrorSingle( img1 );
 		generateBlocks( infiniteImg, blockIntervals, floatOffset, floatDimensions);
 		
-		// create input and output cursors and store them along their offset
-		List<Cursor<T>> inputBlocks = new ArrayList<Cursor<T>>(nrBlocksPerImage);
-		List<Cursor<T>> outputBlocks = new ArrayList<Cursor<T>>(nrBlocksPerImage);
-		for (IterableInterval<T> roiIt : blockIntervals) {
-			inputBlocks.add(roiIt.localizingCursor());
-			outputBlocks.add(roiIt.localizingCursor());
-		}
-		
-		// we will need a zero variable
-		final T zero = Util.getTypeFromRandomAccess(img1).createVariable();
-		zero.setZero();
-
-		/* Create a new image to contain the shuffled data and with
-		 * same dimensions as the original data.
+		/* Read the input blocks once. Every randomization copies the
+		 * blocks around in the same way, so we keep the values of each
+		 * block and, for the same block used as output, the index of
+		 * each of its pixels in the shuffled image (or -1 if a pixel
+		 * is out of the image bounds).
 		 */
 		final long[] dims = new long[img1.numDimensions()];
 		img1.dimensions(dims);
-		ImgFactory<T> factory = new ArrayImgFactory<T>();
-		Img<T> shuffledImage = factory.create(
-				dims, Util.getTypeFromRandomAccess(img1).createVariable() );
-		RandomAccessible< T> infiniteShuffledImage =
-				Views.extendValue(shuffledImage, zero );
+		final int nrBlocks = blockIntervals.size();
+		final double[][] blockValues = new double[nrBlocks][];
+		final int[][] blockIndices = new int[nrBlocks][];
+		for (int j=0; j<nrBlocks; ++j) {
+			IterableInterval<T> roiIt = blockIntervals.get(j);
+			int blockSize = (int) roiIt.size();
+			double[] values = new double[blockSize];
+			int[] indices = new int[blockSize];
+			Cursor<T> cursor = roiIt.localizingCursor();
+			for (int k=0; k<blockSize && cursor.hasNext(); ++k) {
+				cursor.fwd();
+				values[k] = cursor.get().getRealDouble();
+				indices[k] = linearIndex(cursor, dims);
+			}
+			blockValues[j] = values;
+			blockIndices[j] = indices;
+		}
 
 		// create a double version of the PSF for the smoothing
-		double[] smoothingPsfRadius = new double[nrDimensions];
+		final double[] smoothingPsfRadius = new double[nrDimensions];
 		for (int i = 0; i < nrDimensions; i++) {
 			smoothingPsfRadius[i] = (double) psfRadius[i];
 		}
 
-		// the retry count for error cases
-		int retries = 0;
-
-		shuffledPearsonsResults = new ArrayList<Double>();
-		for (int i=0; i < nrRandomizations; i++) {
-			// shuffle the list
-			Collections.shuffle( inputBlocks );
-			// get an output random access
-			RandomAccess<T> output = infiniteShuffledImage.randomAccess();
-
-			// check if a mask is in use and further actions are needed
-			if (container.getMaskType() == MaskType.Irregular) {
-				Cursor<T> siCursor = shuffledImage.cursor();
-				// black the whole intermediate image, just in case we have irr. masks
-				while (siCursor.hasNext()) {
-					siCursor.fwd();
-					output.setPosition(siCursor);
-					output.get().setZero();
-				}
-			}
-
-			// write out the shuffled input blocks into the output blocks
-			for (int j=0; j<inputBlocks.size(); ++j) {
-				Cursor<T> inputCursor = inputBlocks.get(j);
-				Cursor<T> outputCursor = outputBlocks.get(j);
-				/* Iterate over both blocks. Theoretically the iteration
-				 * order could be different. Because we are dealing with
-				 * randomized data anyway, this is not a problem here.
-				 */
-				while (inputCursor.hasNext() && outputCursor.hasNext()) {
-					inputCursor.fwd();
-					outputCursor.fwd();
-					output.setPosition(outputCursor);
-					// write the data
-					output.get().set( inputCursor.get() );
-				}
-				
-				/* Reset both cursors. If we wouldn't do that, the
-				 * image contents would not change on the next pass.
-				 */
-				inputCursor.reset();
-				outputCursor.reset();
-			}
-
-			smoothedShuffledImage = Gauss.inFloat( smoothingPsfRadius, shuffledImage);
-
-			try {
-				// calculate correlation value...
-				double pValue = pearsonsCorrelation.calculatePearsons( smoothedShuffledImage, img2, mask);
-				// ...and add it to the results list
-				shuffledPearsonsResults.add( pValue );
-			} catch (MissingPreconditionException e) {
-				/* if the randomized input data does not suit due to numerical
-				 * problems, try it three times again and then fail.
-				 */
-				if (retries < maxErrorRetries) {
-					// increase retry count and the number of randomizations
-					retries++;
-					nrRandomizations++;
-				} else {
-					throw new MissingPreconditionException("Maximum retries have been made (" +
-							+ retries + "), but errors keep on coming: " + e.getMessage(), e);
+		final boolean irregularMask = container.getMaskType() == MaskType.Irregular;
+		final T type = Util.getTypeFromRandomAccess(img1);
+		final int randomizations = nrRandomizations;
+		final double[] results = new double[randomizations];
+		final AtomicInteger nextRandomization = new AtomicInteger(0);
+		// the retry count for error cases, shared by all threads
+		final AtomicInteger retries = new AtomicInteger(0);
+		final MissingPreconditionException[] failure = new MissingPreconditionException[1];
+
+		/* Each thread gets its own shuffled image and block permutation,
+		 * which it reuses for all the randomizations it does. Each
+		 * randomization has its own random number generator, seeded from
+		 * the seed of the test and its index, so that the results do not
+		 * depend on the number of threads.
+		 */
+		final Thread[] threads = new Thread[Math.max(1, Math.min(numThreads, randomizations))];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					ImgFactory<T> factory = new ArrayImgFactory<T>();
+					Img<T> shuffledImage = factory.create(dims, type.createVariable());
+					RandomAccess<T> output = shuffledImage.randomAccess();
+					long[] position = new long[dims.length];
+					int[] permutation = new int[nrBlocks];
+
+					for (int i = nextRandomization.getAndIncrement(); i < randomizations;
+							i = nextRandomization.getAndIncrement()) {
+						Random random = new Random(seed + i * 0x9E3779B97F4A7C15L);
+						while (true) {
+							synchronized (failure) {
+								if (failure[0] != null)
+									return;
+							}
+							// shuffle the order of the input blocks
+							for (int j=0; j<nrBlocks; ++j)
+								permutation[j] = j;
+							for (int j=nrBlocks - 1; j>0; --j) {
+								int k = random.nextInt(j + 1);
+								int swap = permutation[j];
+								permutation[j] = permutation[k];
+								permutation[k] = swap;
+							}
+
+							// black the whole intermediate image, just in case we have irr. masks
+							if (irregularMask) {
+								Cursor<T> siCursor = shuffledImage.cursor();
+								while (siCursor.hasNext()) {
+									siCursor.fwd();
+									siCursor.get().setZero();
+								}
+							}
+
+							/* Write out the shuffled input blocks into the output blocks.
+							 * Theoretically the iteration order of two blocks could be
+							 * different. Because we are dealing with randomized data
+							 * anyway, this is not a problem here.
+							 */
+							for (int j=0; j<nrBlocks; ++j) {
+								double[] values = blockValues[permutation[j]];
+								int[] indices = blockIndices[j];
+								int n = Math.min(values.length, indices.length);
+								for (int k=0; k<n; ++k) {
+									if (indices[k] < 0)
+										continue;
+									positionOf(indices[k], dims, position);
+									output.setPosition(position);
+									output.get().setReal(values[k]);
+								}
+							}
+
+							Img<T> smoothed = Gauss.inFloat( smoothingPsfRadius, shuffledImage);
+
+							try {
+								// calculate correlation value...
+								results[i] = pearsonsCorrelation.calculatePearsons( smoothed, img2, mask);
+								// keep the smoothed image of the last randomization
+								if (i == randomizations - 1)
+									smoothedShuffledImage = smoothed;
+								break;
+							} catch (MissingPreconditionException e) {
+								/* if the randomized input data does not suit due to numerical
+								 * problems, try it three times again and then fail.
+								 */
+								int retry = retries.incrementAndGet();
+								if (retry > maxErrorRetries) {
+									synchronized (failure) {
+										if (failure[0] == null)
+											failure[0] = new MissingPreconditionException(
+													"Maximum retries have been made (" + maxErrorRetries
+													+ "), but errors keep on coming: " + e.getMessage(), e);
+									}
+									return;
+								}
+							}
+						}
+					}
 				}
-			}
+			};
+			threads[t].start();
 		}
+		try {
+			for (Thread thread : threads)
+				thread.join();
+		} catch (InterruptedException e) {
+			throw new MissingPreconditionException("The Costes randomizations were interrupted.", e);
+		}
+		if (failure[0] != null)
+			throw failure[0];
+
+		shuffledPearsonsResults = new ArrayList<Double>(randomizations);
+		for (double r : results)
+			shuffledPearsonsResults.add( r );
 
 		// calculate statistics on the randomized values and the original one
 		double originalVal = pearsonsCorrelation.getPearsonsCorrelationValue();
@@ -333,6 +389,32 @@ protected void generateBlocksX(RandomAccessible<T> img, List<IterableInterval<T>
 		offset[0] = originalX;
 	}
 
+	/**
+	 * Gets the index of the cursor's position in an image of the given
+	 * dimensions (x varying fastest), or -1 if it is outside the image.
+	 */
+	protected static int linearIndex(Cursor<?> cursor, long[] dims) {
+		long index = 0;
+		for (int d = dims.length - 1; d >= 0; --d) {
+			long p = cursor.getLongPosition(d);
+			if (p < 0 || p >= dims[d])
+				return -1;
+			index = index * dims[d] + p;
+		}
+		return (int) index;
+	}
+
+	/**
+	 * Converts an index made by {@link #linearIndex} back to a position.
+	 */
+	protected static void positionOf(int index, long[] dims, long[] position) {
+		long rest = index;
+		for (int d = 0; d < dims.length; ++d) {
+			position[d] = rest % dims[d];
+			rest /= dims[d];
+		}
+	}
+
 	protected void calculateStatistics(List<Double> compareValues, double originalVal) {
 		shuffledPearsonsNotLessOriginal = 0;
 		int iterations = shuffledPearsonsResults.size();
@@ -383,6 +465,21 @@ public void processResults(ResultHandler<T> handler) {
 		handler.handleValue("Ratio of rand. Pearsons >= actual Pearsons value ", ratio, 2);
 	}
 
+	/**
+	 * Sets the number of threads that do the randomizations.
+	 */
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+
+	/**
+	 * Sets the seed of the randomizations. With the same seed, the same
+	 * shuffled images are made, whatever the number of threads.
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
 	public double getCostesPValue() {
 		return costesPValue;
 	}
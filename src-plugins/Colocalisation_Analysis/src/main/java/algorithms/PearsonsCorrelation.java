@@ -220,6 +220,38 @@ public <S extends RealType<S>> double calculatePearsons(TwinCursor<S> cursor,
 		}
 	}
 
+	/**
+	 * Calculates Pearson's R value from sums that have already been
+	 * accumulated, e.g. from a histogram. The values summed up have to
+	 * be the channel values minus the means of the channels, like the
+	 * {@link Accumulator} of the Classic implementation collects them.
+	 *
+	 * @param count The number of data points.
+	 * @param x The sum of the channel one values.
+	 * @param y The sum of the channel two values.
+	 * @param xx The sum of the squared channel one values.
+	 * @param yy The sum of the squared channel two values.
+	 * @param xy The sum of the products of both channel values.
+	 * @return Pearson's R value.
+	 * @throws MissingPreconditionException
+	 */
+	public double calculatePearsons(int count, double x, double y,
+			double xx, double yy, double xy) throws MissingPreconditionException {
+		double pearsonsR;
+		if (theImplementation == Implementation.Classic) {
+			pearsonsR = xy / Math.sqrt(xx * yy);
+		} else {
+			double invCount = 1.0 / count;
+			double pearsons1 = xy - (x * y * invCount);
+			double pearsons2 = xx - (x * x * invCount);
+			double pearsons3 = yy - (y * y * invCount);
+			pearsonsR = pearsons1 / (Math.sqrt(pearsons2 * pearsons3));
+		}
+
+		checkForSanity(pearsonsR, count);
+		return pearsonsR;
+	}
+
 	/**
 	 * Calculates Person's R value by using a Classic implementation of the
 	 * algorithm. This method allows the specification of a TwinValueRangeCursor.
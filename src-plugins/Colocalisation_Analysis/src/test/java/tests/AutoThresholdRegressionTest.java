@@ -0,0 +1,55 @@
+package tests;
+
+import static org.junit.Assert.assertEquals;
+import gadgets.DataContainer;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+
+import org.junit.Test;
+
+import algorithms.AutoThresholdRegression;
+import algorithms.MissingPreconditionException;
+import algorithms.PearsonsCorrelation;
+
+/**
+ * This class contains JUnit 4 test cases for the automatic
+ * threshold regression.
+ */
+public class AutoThresholdRegressionTest extends ColocalisationTest {
+
+	/**
+	 * Checks that the thresholds found with the joint histogram are
+	 * the same as the ones found by scanning the images, for both
+	 * implementations of Pearson's correlation.
+	 */
+	@Test
+	public void histogramSameAsScanTest() throws MissingPreconditionException {
+		for (PearsonsCorrelation.Implementation impl : PearsonsCorrelation.Implementation.values()) {
+			compareImplementations(positiveCorrelationImageCh1, positiveCorrelationImageCh2, impl);
+			compareImplementations(zeroCorrelationImageCh1, zeroCorrelationImageCh2, impl);
+		}
+	}
+
+	protected void compareImplementations(RandomAccessibleInterval<UnsignedByteType> ch1,
+			RandomAccessibleInterval<UnsignedByteType> ch2,
+			PearsonsCorrelation.Implementation impl) throws MissingPreconditionException {
+		DataContainer<UnsignedByteType> container = new DataContainer<UnsignedByteType>(
+				ch1, ch2, 1, 1, "Channel 1", "Channel 2");
+		PearsonsCorrelation<UnsignedByteType> pc = new PearsonsCorrelation<UnsignedByteType>(impl);
+
+		AutoThresholdRegression<UnsignedByteType> scan =
+			new AutoThresholdRegression<UnsignedByteType>(pc,
+				AutoThresholdRegression.Implementation.Scan);
+		scan.execute(container);
+		AutoThresholdRegression<UnsignedByteType> histogram =
+			new AutoThresholdRegression<UnsignedByteType>(pc,
+				AutoThresholdRegression.Implementation.Histogram);
+		histogram.execute(container);
+
+		assertEquals(scan.getAutoThresholdSlope(), histogram.getAutoThresholdSlope(), 0.0);
+		assertEquals(scan.getCh1MaxThreshold().getRealDouble(),
+				histogram.getCh1MaxThreshold().getRealDouble(), 0.0);
+		assertEquals(scan.getCh2MaxThreshold().getRealDouble(),
+				histogram.getCh2MaxThreshold().getRealDouble(), 0.0);
+	}
+}
@@ -1,5 +1,6 @@
 package tests;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import gadgets.DataContainer;
 import net.imglib2.RandomAccessibleInterval;
@@ -95,4 +96,48 @@ public void backgroundNoiseTest() throws MissingPreconditionException {
 			}
 		}
 	}
-}
\ No newline at end of file
+
+	/**
+	 * This test checks that the randomizations give the same results
+	 * with the same seed, regardless of the number of threads used.
+	 */
+	@Test
+	public void reproducibleTest() throws MissingPreconditionException {
+		final int width = 128;
+		final int height = 96;
+		final double[] sigma = new double[] {3.0,3.0};
+
+		RandomAccessibleInterval<FloatType> ch1 = TestImageAccessor.producePerlinNoiseImage(
+			new FloatType(), width, height, 2.178, 0.1);
+		RandomAccessibleInterval<FloatType> ch2 = TestImageAccessor.producePerlinNoiseImage(
+			new FloatType(), width, height, 2.178, 0.1);
+		RandomAccessibleInterval<FloatType> colocImg = TestImageAccessor.produceNoiseImage(
+			width, height, 7, 20);
+		TestImageAccessor.combineImages(ch1, colocImg);
+		ch1 = TestImageAccessor.gaussianSmooth(ch1, sigma);
+		TestImageAccessor.combineImages(ch2, colocImg);
+		ch2 = TestImageAccessor.gaussianSmooth(ch2, sigma);
+
+		DataContainer<FloatType> container
+			= new DataContainer<FloatType>(ch1, ch2, 1, 1, "Channel 1", "Channel 2");
+		// only the shuffled values are compared, so Pearson's need not be run first
+		PearsonsCorrelation<FloatType> pc
+			= new PearsonsCorrelation<FloatType>(PearsonsCorrelation.Implementation.Fast);
+
+		double[] means = new double[4];
+		double[] stdDevs = new double[4];
+		for (int threads = 1; threads <= 4; threads++) {
+			algorithms.CostesSignificanceTest<FloatType> costes
+				= new algorithms.CostesSignificanceTest<FloatType>(pc, 3, 7, false);
+			costes.setNumThreads(threads);
+			costes.setSeed(4711);
+			costes.execute(container);
+			means[threads - 1] = costes.getShuffledMean();
+			stdDevs[threads - 1] = costes.getShuffledStdDerivation();
+		}
+		for (int i = 1; i < means.length; i++) {
+			assertEquals(means[0], means[i], 0.0);
+			assertEquals(stdDevs[0], stdDevs[i], 0.0);
+		}
+	}
+}
@@ -37,7 +37,6 @@
 import edu.utexas.clm.archipelago.network.translation.Bottler;
 import edu.utexas.clm.archipelago.network.translation.FileBottler;
 import edu.utexas.clm.archipelago.ui.ArchipelagoUI;
-import edu.utexas.clm.archipelago.util.ProcessManagerCoreComparator;
 import edu.utexas.clm.archipelago.util.XCErrorAdapter;
 import ij.Prefs;
 
@@ -59,7 +58,6 @@
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Vector;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -69,6 +67,8 @@
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -91,42 +91,75 @@ public class Cluster implements NodeStateListener, NodeShellListener
     
 
     /**
-     * This is a very dumb scheduler. It attempts to submit the first ProcessManager in its
-     * queue to the first ClusterNode that it finds available. This should work well as long as
-     * all ProcessManagers are more-or-less equals, and all ClusterNodes can accept them as
-     * equally as any other. There is code here that will attempt to recover in the case that
-     * a ProcessManager is rejected, but if this becomes a common occurrence, then this
-     * scheduler should be replaced with something more sophisticated.
+     * Schedules ProcessManagers on the ClusterNodes. Queued jobs are kept in a JobQueue, which
+     * picks the next job for a node by priority, then round-robin across the submitting
+     * ExecutorServices, preferring jobs whose data the node has already read.
+     *
+     * The scheduler sleeps until it is woken by a newly queued job, a finished job or a change
+     * in the state of a node, so that jobs are dispatched as soon as there is room for them. The
+     * poll time only bounds how long it sleeps otherwise, so that jobs held back for a busy
+     * preferred node are eventually handed to another one.
      * @author Larry Lindsey
      */
     public class ProcessScheduler extends Thread
     {
-        private final LinkedBlockingQueue<ProcessManager> jobQueue, priorityJobQueue;
+        private final JobQueue jobQueue;
         private final AtomicInteger pollTime;
         private final AtomicBoolean running;
         private final Hashtable<Long, ProcessManager> runningProcesses;
         private final Vector<ProcessManager<?>> remainingJobList;
-        private final LinkedList<ProcessManager> internalQueue;
         private final ReentrantLock lock;
+        private final Condition wakeCondition;
+        private final ProcessListener listener;
+        private boolean woken;
 
         private ProcessScheduler(int t)
         {
-            jobQueue = new LinkedBlockingQueue<ProcessManager>();
-            priorityJobQueue = new LinkedBlockingQueue<ProcessManager>();
+            jobQueue = new JobQueue();
             running = new AtomicBoolean(true);
             pollTime = new AtomicInteger(t);
             runningProcesses = new Hashtable<Long, ProcessManager>();
             remainingJobList = new Vector<ProcessManager<?>>();
-            internalQueue = new LinkedList<ProcessManager>();
             lock = new ReentrantLock();
+            wakeCondition = lock.newCondition();
+            woken = false;
+
+            listener = new ProcessListener() {
+                /**
+                 * processFinished is called when the given ClusterNode recieves a message
+                 * from its remote counterpart indicating that the job has finished.
+                 * @param process a ProcessManager that just returned from the cluster
+                 * @return true if the Future was finished successfully, false otherwise.
+                 */
+                public boolean processFinished(ProcessManager<?> process)
+                {
+                    runningProcesses.remove(process.getID());
+                    jobQueue.finished(process.getID());
+                    wake();
+                    return finishFuture(process);
+                }
+            };
         }
-        
 
+        /**
+         * Sets the longest time the scheduler sleeps without being woken by an event.
+         * @param t the poll time in milliseconds
+         */
         public void setPollTimeMillis(int t)
         {
             pollTime.set(t);
         }
 
+        /**
+         * Sets how long a job is held back for the node that holds its data, before it may be
+         * run on any other node.
+         * @param t the locality delay in milliseconds
+         */
+        public void setLocalityDelayMillis(long t)
+        {
+            jobQueue.setLocalityDelay(t);
+        }
+
         public synchronized <T> boolean queueJob(Callable<T> c, long id, float np, boolean f)
         {
             return queueJob(c, id, false, np, f);
@@ -134,33 +167,98 @@ public synchronized <T> boolean queueJob(Callable<T> c, long id, float np, boole
         
         public synchronized <T> boolean queueJob(Callable<T> c, long id,
                                                  boolean priority, float np, boolean f)
+        {
+            return queueJob(c, id, 0, priority ? JobQueue.PRIORITY_HIGH : JobQueue.PRIORITY_NORMAL,
+                    np, f);
+        }
+
+        /**
+         * Queues a job.
+         * @param c the Callable to run on the Cluster
+         * @param id the id of the job
+         * @param submitter identifies the ExecutorService the job was submitted to. Submitters
+         *                  of the same priority are served in turn.
+         * @param priority the priority of the job. Jobs with higher priority are run first.
+         * @param np the number, or fraction, of cores the job requests
+         * @param f true if np is a fraction
+         * @return true if the job was queued, false otherwise
+         */
+        public synchronized <T> boolean queueJob(Callable<T> c, long id, long submitter,
+                                                 int priority, float np, boolean f)
         {
             ProcessManager<T> pm = new ProcessManager<T>(c, id, np, f);
-            return queueJob(pm, priority);
+
+            if (jobQueue.add(pm, submitter, priority, System.currentTimeMillis()))
+            {
+                wake();
+                return true;
+            }
+            else
+            {
+                return false;
+            }
         }
         
         public synchronized boolean queueJob(ProcessManager pm, boolean priority)
         {
-
-            BlockingQueue<ProcessManager> queue = priority ? priorityJobQueue : jobQueue;
+            final boolean queued;
 
             // This is done in the event that the ProcessManager in question is being
             // re-queued.
             pm.setRunningOn(null);
 
+            if (priority)
+            {
+                FijiArchipelago.debug("Scheduler: Put job " + pm.getID() +
+                        " on the priority queue");
+                queued = jobQueue.requeue(pm, System.currentTimeMillis());
+            }
+            else
+            {
+                queued = jobQueue.add(pm, 0, JobQueue.PRIORITY_NORMAL,
+                        System.currentTimeMillis());
+            }
+
+            if (queued)
+            {
+                wake();
+            }
+
+            return queued;
+        }
+
+        /**
+         * Wakes the scheduler, to let it know that a job or a node might have become available.
+         */
+        public void wake()
+        {
+            lock.lock();
             try
             {
-                if (priority)
-                {
-                    FijiArchipelago.debug("Scheduler: Put job " + pm.getID() +
-                            " on the priority queue");
-                }
-                queue.add(pm);
-                return true;
-            } catch (IllegalStateException ise)
+                woken = true;
+                wakeCondition.signal();
+            }
+            finally
             {
-                return false;
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Lets the JobQueue know that a node has come up or gone away, then wakes the scheduler.
+         * @param node the ClusterNode whose state changed
+         */
+        public void nodeStateChanged(final ClusterNode node)
+        {
+            if (node.getState() == ClusterNodeState.ACTIVE)
+            {
+                jobQueue.nodeActive(node.getID());
+            }
+            else
+            {
+                jobQueue.nodeInactive(node.getID());
             }
+            wake();
         }
 
         /**
@@ -173,18 +271,6 @@ public ClusterNode getNode(long id)
         {
             return self.getNode(id);
         }
-        
-        private synchronized ClusterNode getFreeNode()
-        {
-            for (ClusterNode node : nodes)
-            {
-                if (node.numAvailableThreads() > 0)
-                {
-                    return node;
-                }
-            }
-            return null;
-        }
 
         public void start()
         {
@@ -195,69 +281,53 @@ public void start()
             }
         }
 
-        private void rotate(LinkedList<ClusterNode> nodeList)
-        {
-            if (nodeList.size() > 1)
-            {
-                final ClusterNode front = nodeList.remove(0);
-                nodeList.addLast(front);
-            }
-        }
-
         /**
-         * Attempts to submit the ProcessManager pm on each node in nodeList. This function
-         * runs on the same thread as run().
-         * @param pm a queued ProcessManager that is to be run to the Cluster
-         * @param nodeList a List of ClusterNodes with available Threads
-         * @return true if pm was scheduled, false otherwise.
+         * Hands queued jobs to the nodes that have threads available, one job per node in
+         * turn, until no node can take another job. This function runs on the same thread as
+         * run().
          */
-        private boolean trySubmit(final ProcessManager<?> pm,
-                                  final LinkedList<ClusterNode> nodeList)
+        private void dispatch()
         {
-            if (nodeList.isEmpty())
+            final LinkedList<ClusterNode> nodeList = new LinkedList<ClusterNode>();
+            final long now = System.currentTimeMillis();
+
+            for (ClusterNode node : nodes)
             {
-                return false;
+                if (node.getState() == ClusterNodeState.ACTIVE && node.numAvailableThreads() > 0)
+                {
+                    nodeList.add(node);
+                }
             }
-            else
+
+            // Deal PM's to the nodes like we're playing poker.
+            while (!nodeList.isEmpty() && !jobQueue.isEmpty())
             {
-                ProcessListener listener = new ProcessListener() {
-                    /**
-                     * processFinished is called when the given ClusterNode recieves a message
-                     * from its remote counterpart indicating that the job has finished.
-                     * @param process a ProcessManager that just returned from the cluster
-                     * @return true if the Future was finished successfully, false otherwise.
-                     */
-                    public boolean processFinished(ProcessManager<?> process)
-                    {
-                        runningProcesses.remove(process.getID());
-                        return finishFuture(process);
-                    }
-                };
-                
-                /*
-                 Run through the available ClusterNodes, attempting to submit the job to each one.
-                 When a node rejects the PM, rotate the list. Assuming that our job list is rather
-                 uniform, this should reduce our overhead.
-                 */
-                for (int i = 0; i < nodeList.size(); ++i)
+                final ClusterNode node = nodeList.removeFirst();
+                final ProcessManager<?> pm = jobQueue.poll(node.getID(),
+                        node.numAvailableThreads(), node.getThreadLimit(), now);
+
+                if (pm == null)
                 {
-                    final ClusterNode node = nodeList.getFirst();
+                    // Nothing in the queue may run on this node right now.
+                    continue;
+                }
 
-                    if (node.numAvailableThreads() >= pm.requestedCores(node) &&
-                            node.submit(pm, listener))
+                if (node.submit(pm, listener))
+                {
+                    FijiArchipelago.debug("Scheduler: Job " + pm.getID() +
+                            " scheduled on host " + node.getHost());
+                    runningProcesses.put(pm.getID(), pm);
+                    incrementJobCount();
+                    if (node.numAvailableThreads() > 0)
                     {
-                        runningProcesses.put(pm.getID(), pm);
-                        incrementJobCount();
-                        if (node.numAvailableThreads() <= 0)
-                        {
-                            nodeList.remove(node);
-                        }
-                        return true;
+                        nodeList.addLast(node);
                     }
-                    rotate(nodeList);
                 }
-
-                return false;
+                else
+                {
+                    // The node rejected the job. Put it back, and leave the node alone for now.
+                    jobQueue.putBack(pm);
+                }
             }
         }
         
@@ -265,96 +335,37 @@ public void run()
         {
             FijiArchipelago.log("Scheduler: Started. Running flag: " + running.get());
 
-            final ArrayList<ProcessManager> tempQ = new ArrayList<ProcessManager>();
-            final ArrayList<ProcessManager> pmQ = new ArrayList<ProcessManager>();
-            final LinkedList<ClusterNode> nodeList = new LinkedList<ClusterNode>();           
-            final ProcessManagerCoreComparator comparator = new ProcessManagerCoreComparator();
-            
             while (running.get())
             {
                 lock.lock();
-
-                // Remove de-activated nodes, and those that are saturated with jobs
-                for (ClusterNode node : new ArrayList<ClusterNode>(nodeList))
-                {
-                    if (node.getState() != ClusterNodeState.ACTIVE ||
-                            node.numAvailableThreads() <= 0)
-                    {
-                        nodeList.remove(node);
-                    }
-                }
-
-                // Add any newly-available nodes we might have.
-                for (ClusterNode node : nodes)
-                {
-                    if (node.numAvailableThreads() > 0 && !nodeList.contains(node))
-                    {
-                        nodeList.addFirst(node);
-                    }
-                }
-
-                comparator.setThreadCount(getMaxThreads());
-                
-                //Put priority jobs in front of the internal queue, in the correct order
-//                FijiArchipelago.debug("Scheduler: " + priorityJobQueue.size() +
-//                        " jobs in priority queue");
-//
-                priorityJobQueue.drainTo(tempQ);                
-                Collections.sort(tempQ, comparator);
-                for (int i = tempQ.size(); i > 0; --i)
-                {
-                    ProcessManager pm  = tempQ.get(i - 1);
-                    FijiArchipelago.debug("Scheduler: Adding job " + pm.getID() +
-                            " to internal queue");
-                    internalQueue.addFirst(pm);
-                }
-                tempQ.clear();
-
-
-                //Put non-priority jobs at the end of the internal queue.
-                jobQueue.drainTo(tempQ);
-                Collections.sort(tempQ, comparator);
-                internalQueue.addAll(tempQ);
-                tempQ.clear();
-                
-                //FijiArchipelago.debug("Scheduler: " + internalQueue.size() + " jobs in queue");
-
-                //If we have both jobs and nodes to run them on...
-                if (!internalQueue.isEmpty() && !nodeList.isEmpty())
+                try
                 {
-                    // Temporary queue so we can remove jobs from the internalQueue
-                    // without suffering ConcurrentModificationExceptions
-                    pmQ.addAll(internalQueue);
-                    for (ProcessManager<?> pm : pmQ)
+                    woken = false;
+                    dispatch();
+
+                    // At this stage, all PM's that can be run should be running on a ClusterNode
+                    // somewhere. Wait for a job to finish, a node to become available, or a new
+                    // job to be queued. If there are jobs waiting for their preferred node, wake
+                    // up in time to let another node steal them.
+                    if (!woken)
                     {
-                        if (trySubmit(pm, nodeList))
+                        long wait = pollTime.get();
+                        if (!jobQueue.isEmpty())
                         {
-                            FijiArchipelago.debug("Scheduler: Job " + pm.getID() +
-                                    " scheduled on host " + getNode(pm.getRunningOn()));
-                            internalQueue.remove(pm);
+                            wait = Math.min(wait, Math.max(1, jobQueue.getLocalityDelay()));
                         }
-                        // Deal PM's to the nodes like we're playing poker.
-                        rotate(nodeList);
+                        wakeCondition.await(wait, TimeUnit.MILLISECONDS);
                     }
-                    
-                    pmQ.clear();
-                }
-                
-                lock.unlock();
-                
-                // At this stage, all PM's that can be run should be running on a ClusterNode
-                // somewhere. Sleep for a bit. Perhaps a new node will become available, or we'll
-                // get a PM that can be slotted on an available node.
-                try
-                {                    
-                    Thread.sleep(pollTime.get());
                 }
                 catch (InterruptedException ie)
                 {
                     FijiArchipelago.log("Scheduler interrupted while sleeping, stopping.");
                     running.set(false);
                 }
-                
+                finally
+                {
+                    lock.unlock();
+                }
             }
             FijiArchipelago.log("Scheduler exited");
         }
@@ -364,21 +375,6 @@ public synchronized void setActive(boolean active)
             running.set(active);
         }
 
-        private boolean removeFromQueue(Collection<ProcessManager> pms, long id)
-        {
-            ProcessManager rmpm = null;
-            for (ProcessManager pm : pms)
-            {
-                if (pm.getID() == id)
-                {
-                    rmpm = pm;
-                    break;
-                }
-            }
-
-            return rmpm != null && pms.remove(rmpm);
-        }
-        
         /**
          * Attempts to cancel a running job with the given id, optionally canclling jobs that have
          * already been submitted to a node.
@@ -391,9 +387,7 @@ public synchronized boolean cancelJob(long id, boolean force)
         {
             lock.lock();
 
-            if (removeFromQueue(priorityJobQueue, id) ||
-                    removeFromQueue(jobQueue, id) ||
-                    removeFromQueue(internalQueue, id))
+            if (jobQueue.remove(id))
             {
                 lock.unlock();
                 return true;
@@ -425,6 +419,8 @@ public synchronized boolean cancelJob(long id, boolean force)
                     if (runningOn.cancelJob(id))
                     {
                         runningProcesses.remove(id);
+                        jobQueue.finished(id);
+                        wake();
                         lock.unlock();
                         return true;
                     }
@@ -474,32 +470,16 @@ public synchronized void close()
             
             remainingJobList.clear();
 
-            for (ProcessManager pm : internalQueue)
-            {
-                remainingJobList.add(pm);
-                futures.get(pm.getID()).cancel(false);
-            }
-            
-            for (ProcessManager pm : priorityJobQueue)
-            {
-                remainingJobList.add(pm);
-                futures.get(pm.getID()).cancel(false);
-            }
-            
-            for (ProcessManager pm : jobQueue)
+            for (ProcessManager<?> pm : jobQueue.drain())
             {
                 remainingJobList.add(pm);
                 futures.get(pm.getID()).cancel(false);
             }
-
-            priorityJobQueue.clear();
-            jobQueue.clear();
-            internalQueue.clear();
         }
         
         public int queuedJobCount()
         {
-            return internalQueue.size() + priorityJobQueue.size() + jobQueue.size();
+            return jobQueue.size();
         }
 
     }
@@ -509,17 +489,23 @@ private class ClusterExecutorService implements ExecutorService
 
         private final boolean isFractional;
         private final float numCores;
+        private final int priority;
+        private final long submitterID;
 
-        public ClusterExecutorService(final float ft)
+        public ClusterExecutorService(final float ft, final int p)
         {
             isFractional = true;
             numCores = ft;
+            priority = p;
+            submitterID = nextSubmitterID.incrementAndGet();
         }
 
-        public ClusterExecutorService(final int nc)
+        public ClusterExecutorService(final int nc, final int p)
         {
             isFractional = false;
             numCores = nc;
+            priority = p;
+            submitterID = nextSubmitterID.incrementAndGet();
         }
 
         public synchronized void shutdown()
@@ -568,7 +554,8 @@ public <T> Future<T> submit(Callable<T> tCallable)
         {
             ArchipelagoFuture<T> future = new ArchipelagoFuture<T>(scheduler);
             futures.put(future.getID(), future);
-            if (!scheduler.queueJob(tCallable, future.getID(), numCores, isFractional))
+            if (!scheduler.queueJob(tCallable, future.getID(), submitterID, priority, numCores,
+                    isFractional))
             {
                 future.finish(new Exception("Could not schedule"));
                 futures.remove(future.getID());
@@ -580,7 +567,8 @@ public <T> Future<T> submit(final Runnable runnable, T t) {
             Callable<T> tCallable = new QuickCallable<T>(runnable);
             ArchipelagoFuture<T> future = new ArchipelagoFuture<T>(scheduler, t);
             futures.put(future.getID(), future);
-            scheduler.queueJob(tCallable, future.getID(), numCores, isFractional);
+            scheduler.queueJob(tCallable, future.getID(), submitterID, priority, numCores,
+                    isFractional);
             return future;
         }
 
@@ -1047,6 +1035,7 @@ A call to shutdownNow() will halt all processing on all cluster nodes, and retur
     
     //private final AtomicBoolean halted, ready, terminated, initted, started;        
     private final AtomicInteger jobCount, runningNodes;
+    private final AtomicLong nextSubmitterID;
 
     private final Vector<ClusterNode> nodes;
     private final Vector<Thread> waitThreads;
@@ -1084,6 +1073,7 @@ private Cluster()
         
         jobCount = new AtomicInteger(0);
         runningNodes = new AtomicInteger(0);
+        nextSubmitterID = new AtomicLong(0);
         
         startQueue = new LinkedBlockingQueue<NodeManager.NodeParameters>();
         waitNodes = new Vector<NodeManager.NodeParameters>();
@@ -1400,6 +1390,8 @@ public boolean acceptingNodes()
     
     public synchronized void stateChanged(ClusterNode node, ClusterNodeState stateNow,
                              ClusterNodeState lastState) {
+        scheduler.nodeStateChanged(node);
+
         switch (stateNow)
         {
             case ACTIVE:
@@ -1863,6 +1855,19 @@ public int getMaxThreads()
     }
     
     public ExecutorService getService(final int nThreads)
+    {
+        return getService(nThreads, JobQueue.PRIORITY_NORMAL);
+    }
+
+    /**
+     * Returns an ExecutorService that runs its jobs on the Cluster with the given priority.
+     * Queued jobs of higher priority are run before those of lower priority. Among
+     * ExecutorServices of equal priority, jobs are taken from each in turn.
+     * @param nThreads the number of threads each job requests
+     * @param priority the priority of the jobs, JobQueue.PRIORITY_NORMAL by default
+     * @return an ExecutorService that runs its jobs on the Cluster
+     */
+    public ExecutorService getService(final int nThreads, final int priority)
     {
         int maxThreads = getMaxThreads(), nt;
 
@@ -1877,12 +1882,17 @@ public ExecutorService getService(final int nThreads)
             nt = nThreads;
         }
 
-        return new ClusterExecutorService(nt);
+        return new ClusterExecutorService(nt, priority);
     }
     
     public ExecutorService getService(final float fractionThreads)
     {
-        return new ClusterExecutorService(fractionThreads);
+        return getService(fractionThreads, JobQueue.PRIORITY_NORMAL);
+    }
+
+    public ExecutorService getService(final float fractionThreads, final int priority)
+    {
+        return new ClusterExecutorService(fractionThreads, priority);
     }
     
     public String getLocalHostName()
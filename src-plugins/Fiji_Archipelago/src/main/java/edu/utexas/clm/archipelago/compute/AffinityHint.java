@@ -0,0 +1,33 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ */
+
+package edu.utexas.clm.archipelago.compute;
+
+import java.util.Collection;
+
+/**
+ * May be implemented by a Callable submitted to the Cluster to tell the scheduler which data it
+ * reads. Jobs that share a key are preferably run on the node that last ran a job with that
+ * key, for instance so that a file that node has already read is still in its cache.
+ */
+public interface AffinityHint
+{
+    /**
+     * @return the keys identifying the data this job reads, for instance FileChunks. Keys must
+     * implement equals() and hashCode().
+     */
+    public Collection<?> getAffinityKeys();
+}
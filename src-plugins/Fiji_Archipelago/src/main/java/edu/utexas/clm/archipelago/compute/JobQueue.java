@@ -0,0 +1,423 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ */
+
+package edu.utexas.clm.archipelago.compute;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The queue of jobs waiting to be scheduled on the Cluster.
+ *
+ * Jobs are kept by priority level, and within a level by submitter. When asked for a job for a
+ * given node, the queue looks at the highest level first, and visits the submitters of that
+ * level in round-robin order, so that one submitter with many jobs cannot starve the others.
+ *
+ * Jobs whose Callable is an AffinityHint prefer the node that last ran a job sharing one of
+ * their keys. Such a job is held back from other nodes for up to the locality delay, after which
+ * any node with room for it may steal it. Jobs are otherwise served in the order they were
+ * queued, skipping those that need more threads than the node has available.
+ *
+ * All times are given by the caller, so that the queue may also be driven by a simulation.
+ */
+public class JobQueue
+{
+    private static class Job
+    {
+        final ProcessManager<?> pm;
+        final long submitter;
+        final int priority;
+        final Collection<?> keys;
+        final long queuedAt;
+
+        public Job(final ProcessManager<?> pm, final long submitter, final int priority,
+                   final long queuedAt)
+        {
+            final Object callable = pm.getCallable();
+            this.pm = pm;
+            this.submitter = submitter;
+            this.priority = priority;
+            this.queuedAt = queuedAt;
+            keys = callable instanceof AffinityHint ?
+                    ((AffinityHint)callable).getAffinityKeys() : null;
+        }
+    }
+
+    private static class Level
+    {
+        final LinkedList<Long> submitters = new LinkedList<Long>();
+        final HashMap<Long, LinkedList<Job>> queues = new HashMap<Long, LinkedList<Job>>();
+    }
+
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 100;
+    public static final long DEFAULT_LOCALITY_DELAY = 2000;
+    public static final int DEFAULT_LOOKAHEAD = 64;
+    private static final int MAX_AFFINITY_KEYS = 65536;
+
+    private final TreeMap<Integer, Level> levels;
+    private final HashMap<Long, Job> queuedJobs, dispatchedJobs;
+    private final LinkedHashMap<Object, Long> affinity;
+    private final HashSet<Long> activeNodes;
+    private long localityDelay;
+    private int lookahead;
+
+    public JobQueue()
+    {
+        levels = new TreeMap<Integer, Level>(Collections.reverseOrder());
+        queuedJobs = new HashMap<Long, Job>();
+        dispatchedJobs = new HashMap<Long, Job>();
+        affinity = new LinkedHashMap<Object, Long>(16, 0.75f, true)
+        {
+            protected boolean removeEldestEntry(final Map.Entry<Object, Long> eldest)
+            {
+                return size() > MAX_AFFINITY_KEYS;
+            }
+        };
+        activeNodes = new HashSet<Long>();
+        localityDelay = DEFAULT_LOCALITY_DELAY;
+        lookahead = DEFAULT_LOOKAHEAD;
+    }
+
+    /**
+     * Sets how long a job is held back for the node it prefers before any node may run it.
+     * @param delay the locality delay, in the same unit as the times given to the queue
+     */
+    public synchronized void setLocalityDelay(final long delay)
+    {
+        localityDelay = delay;
+    }
+
+    public synchronized long getLocalityDelay()
+    {
+        return localityDelay;
+    }
+
+    /**
+     * Sets how many jobs of each submitter are looked at when searching for a job for a node.
+     * @param n the number of jobs to look at
+     */
+    public synchronized void setLookahead(final int n)
+    {
+        lookahead = n > 0 ? n : 1;
+    }
+
+    /**
+     * Queue a job.
+     * @param pm the job
+     * @param submitter identifies the submitter of the job, for fairness
+     * @param priority the priority of the job. Jobs with a higher priority are run first.
+     * @param now the current time
+     * @return false if a job with the same id is already queued, true otherwise
+     */
+    public synchronized boolean add(final ProcessManager<?> pm, final long submitter,
+                                    final int priority, final long now)
+    {
+        if (queuedJobs.containsKey(pm.getID()))
+        {
+            return false;
+        }
+        else
+        {
+            enqueue(new Job(pm, submitter, priority, now), false);
+            return true;
+        }
+    }
+
+    /**
+     * Queue a job that was dispatched before, but has to be run again, for instance because the
+     * node it ran on went down. It keeps its submitter, and is given high priority.
+     * @param pm the job
+     * @param now the current time
+     * @return false if a job with the same id is already queued, true otherwise
+     */
+    public synchronized boolean requeue(final ProcessManager<?> pm, final long now)
+    {
+        final Job job = dispatchedJobs.remove(pm.getID());
+        return add(pm, job == null ? 0 : job.submitter, PRIORITY_HIGH, now);
+    }
+
+    /**
+     * Return a job obtained from poll() to the front of its queue, for instance if the node
+     * rejected it.
+     * @param pm the job
+     */
+    public synchronized void putBack(final ProcessManager<?> pm)
+    {
+        final Job job = dispatchedJobs.remove(pm.getID());
+        if (job != null && !queuedJobs.containsKey(pm.getID()))
+        {
+            enqueue(job, true);
+        }
+    }
+
+    private void enqueue(final Job job, final boolean atFront)
+    {
+        Level level = levels.get(job.priority);
+        LinkedList<Job> queue;
+
+        if (level == null)
+        {
+            level = new Level();
+            levels.put(job.priority, level);
+        }
+
+        queue = level.queues.get(job.submitter);
+
+        if (queue == null)
+        {
+            queue = new LinkedList<Job>();
+            level.queues.put(job.submitter, queue);
+            level.submitters.addLast(job.submitter);
+        }
+
+        if (atFront)
+        {
+            queue.addFirst(job);
+        }
+        else
+        {
+            queue.addLast(job);
+        }
+
+        queuedJobs.put(job.pm.getID(), job);
+    }
+
+    /**
+     * Take the job that should run next on the given node out of the queue.
+     * @param nodeID the id of the node
+     * @param availableThreads the number of threads available on the node
+     * @param threadLimit the total number of threads on the node
+     * @param now the current time
+     * @return the job to run on the node, or null if there is none that may run there now
+     */
+    public synchronized ProcessManager<?> poll(final long nodeID, final int availableThreads,
+                                               final int threadLimit, final long now)
+    {
+        for (final Level level : levels.values())
+        {
+            Job steal = null;
+
+            for (final Long submitter : level.submitters)
+            {
+                int n = 0;
+
+                for (final Job job : level.queues.get(submitter))
+                {
+                    final long preferred;
+
+                    if (n++ >= lookahead)
+                    {
+                        break;
+                    }
+
+                    if (job.pm.requestedCores(threadLimit) > availableThreads)
+                    {
+                        continue;
+                    }
+
+                    preferred = preferredNode(job);
+
+                    if (preferred < 0 || preferred == nodeID)
+                    {
+                        take(level, job, nodeID);
+                        return job.pm;
+                    }
+                    else if (steal == null && now - job.queuedAt >= localityDelay)
+                    {
+                        steal = job;
+                    }
+                }
+            }
+
+            // Nothing runs here by preference, so take over a job that has waited long enough
+            // for its own node.
+            if (steal != null)
+            {
+                take(level, steal, nodeID);
+                return steal.pm;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Return the active node that last ran a job sharing a key with the given one, or -1.
+     */
+    private long preferredNode(final Job job)
+    {
+        if (job.keys != null)
+        {
+            for (final Object key : job.keys)
+            {
+                final Long node = affinity.get(key);
+                if (node != null && activeNodes.contains(node))
+                {
+                    return node;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private void take(final Level level, final Job job, final long nodeID)
+    {
+        final LinkedList<Job> queue = level.queues.get(job.submitter);
+
+        queue.remove(job);
+
+        // Send this submitter to the back of the line
+        level.submitters.remove(job.submitter);
+
+        if (queue.isEmpty())
+        {
+            level.queues.remove(job.submitter);
+            if (level.submitters.isEmpty())
+            {
+                levels.remove(job.priority);
+            }
+        }
+        else
+        {
+            level.submitters.addLast(job.submitter);
+        }
+
+        queuedJobs.remove(job.pm.getID());
+        dispatchedJobs.put(job.pm.getID(), job);
+
+        if (job.keys != null)
+        {
+            for (final Object key : job.keys)
+            {
+                affinity.put(key, nodeID);
+            }
+        }
+    }
+
+    /**
+     * Forget a dispatched job, once it has finished or been cancelled.
+     * @param id the id of the job
+     */
+    public synchronized void finished(final long id)
+    {
+        dispatchedJobs.remove(id);
+    }
+
+    /**
+     * Remove a queued job.
+     * @param id the id of the job
+     * @return true if the job was queued, false otherwise
+     */
+    public synchronized boolean remove(final long id)
+    {
+        final Job job = queuedJobs.remove(id);
+
+        if (job == null)
+        {
+            return false;
+        }
+        else
+        {
+            final Level level = levels.get(job.priority);
+            final LinkedList<Job> queue = level.queues.get(job.submitter);
+
+            queue.remove(job);
+
+            if (queue.isEmpty())
+            {
+                level.queues.remove(job.submitter);
+                level.submitters.remove(job.submitter);
+                if (level.submitters.isEmpty())
+                {
+                    levels.remove(job.priority);
+                }
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * Remove all queued jobs.
+     * @return the jobs that were queued, highest priority first
+     */
+    public synchronized List<ProcessManager<?>> drain()
+    {
+        final ArrayList<ProcessManager<?>> pms = new ArrayList<ProcessManager<?>>(queuedJobs.size());
+
+        for (final Level level : levels.values())
+        {
+            for (final Long submitter : level.submitters)
+            {
+                for (final Job job : level.queues.get(submitter))
+                {
+                    pms.add(job.pm);
+                }
+            }
+        }
+
+        levels.clear();
+        queuedJobs.clear();
+
+        return pms;
+    }
+
+    public synchronized int size()
+    {
+        return queuedJobs.size();
+    }
+
+    public synchronized boolean isEmpty()
+    {
+        return queuedJobs.isEmpty();
+    }
+
+    /**
+     * Called when a node becomes available for jobs.
+     * @param nodeID the id of the node
+     */
+    public synchronized void nodeActive(final long nodeID)
+    {
+        activeNodes.add(nodeID);
+    }
+
+    /**
+     * Called when a node goes away. Jobs that preferred it may now run anywhere.
+     * @param nodeID the id of the node
+     */
+    public synchronized void nodeInactive(final long nodeID)
+    {
+        activeNodes.remove(nodeID);
+
+        for (final Iterator<Long> it = affinity.values().iterator(); it.hasNext(); )
+        {
+            if (it.next() == nodeID)
+            {
+                it.remove();
+            }
+        }
+    }
+}
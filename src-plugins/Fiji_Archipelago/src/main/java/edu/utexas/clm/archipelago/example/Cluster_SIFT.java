@@ -20,6 +20,7 @@
 
 import edu.utexas.clm.archipelago.Cluster;
 import edu.utexas.clm.archipelago.FijiArchipelago;
+import edu.utexas.clm.archipelago.compute.AffinityHint;
 import edu.utexas.clm.archipelago.compute.SerializableCallable;
 import edu.utexas.clm.archipelago.data.FileChunk;
 import ij.IJ;
@@ -47,7 +48,7 @@ public class Cluster_SIFT implements PlugIn
 
 
     
-    public static class SIFTCall implements SerializableCallable<ArrayList<Feature>>
+    public static class SIFTCall implements SerializableCallable<ArrayList<Feature>>, AffinityHint
     {
         private final FloatArray2DSIFT.Param param;
         private final FileChunk fileChunk;
@@ -58,6 +59,11 @@ public SIFTCall(FloatArray2DSIFT.Param p, String filename)
             fileChunk = new FileChunk(filename);
         }
         
+        public Collection<?> getAffinityKeys()
+        {
+            return Collections.singleton(fileChunk);
+        }
+
         public ArrayList<Feature> call() throws Exception {
             ImagePlus im = IJ.openImage(fileChunk.getData());
             FijiArchipelago.debug("attempting to open file " + fileChunk.getData());
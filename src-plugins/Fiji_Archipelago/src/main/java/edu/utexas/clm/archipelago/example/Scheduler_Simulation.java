@@ -0,0 +1,293 @@
+package edu.utexas.clm.archipelago.example;
+
+import edu.utexas.clm.archipelago.compute.AffinityHint;
+import edu.utexas.clm.archipelago.compute.JobQueue;
+import edu.utexas.clm.archipelago.compute.ProcessManager;
+import ij.IJ;
+import ij.plugin.PlugIn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+/**
+ * Discrete-event simulation of the Cluster scheduling policy, using in-process fake nodes
+ * instead of remote ClusterNodes, so that no network or cluster is needed. The fake nodes are
+ * driven through the JobQueue in the same way as the ProcessScheduler does: whenever a job is
+ * submitted or finishes, free threads are dealt jobs from the queue in turn.
+ *
+ * The workload is a large batch job, two passes over the same set of files, competing with an
+ * interactive submitter that sends small bursts of jobs. Reading a file costs extra time unless
+ * the node has read it recently. Throughput and latency percentiles of each submitter are
+ * reported for first-come-first-served scheduling, for round-robin across submitters, and for
+ * round-robin with file affinity.
+ */
+public class Scheduler_Simulation implements PlugIn
+{
+    private static class SimCall implements Callable<Object>
+    {
+        final Object file;
+
+        public SimCall(final Object file)
+        {
+            this.file = file;
+        }
+
+        public Object call()
+        {
+            return null;
+        }
+    }
+
+    private static class HintedSimCall extends SimCall implements AffinityHint
+    {
+        public HintedSimCall(final Object file)
+        {
+            super(file);
+        }
+
+        public Collection<?> getAffinityKeys()
+        {
+            return Collections.singleton(file);
+        }
+    }
+
+    private static class FakeNode
+    {
+        final long id;
+        final int threads;
+        int busy = 0;
+        final LinkedHashSet<Object> cache = new LinkedHashSet<Object>();
+
+        public FakeNode(final long id, final int threads)
+        {
+            this.id = id;
+            this.threads = threads;
+        }
+
+        /**
+         * Read a file, return true if it was cached.
+         */
+        public boolean read(final Object file)
+        {
+            final boolean hit = cache.remove(file);
+            cache.add(file);
+            if (cache.size() > CACHE_FILES)
+            {
+                cache.remove(cache.iterator().next());
+            }
+            return hit;
+        }
+    }
+
+    private static class SimJob
+    {
+        final ProcessManager<Object> pm;
+        final int submitter;
+        final long submitted;
+        FakeNode node;
+
+        public SimJob(final ProcessManager<Object> pm, final int submitter, final long submitted)
+        {
+            this.pm = pm;
+            this.submitter = submitter;
+            this.submitted = submitted;
+        }
+    }
+
+    private static class Event implements Comparable<Event>
+    {
+        final long time;
+        final long order;
+        final SimJob submit, finish;
+
+        public Event(final long time, final long order, final SimJob submit, final SimJob finish)
+        {
+            this.time = time;
+            this.order = order;
+            this.submit = submit;
+            this.finish = finish;
+        }
+
+        public int compareTo(final Event e)
+        {
+            return time != e.time ? (time < e.time ? -1 : 1) :
+                    (order < e.order ? -1 : order == e.order ? 0 : 1);
+        }
+    }
+
+    private static final int NUM_NODES = 8;
+    private static final int THREADS_PER_NODE = 4;
+    private static final int CACHE_FILES = 64;
+    private static final int NUM_FILES = 256;
+    private static final int BURSTS = 40;
+    private static final int BURST_SIZE = 8;
+    private static final long BURST_INTERVAL = 500;
+    private static final long COMPUTE_TIME = 200;
+    private static final long READ_TIME = 300;
+    private static final long LOCALITY_DELAY = 400;
+
+    private final String[] submitterNames = {"batch", "interactive"};
+
+    private long eventOrder;
+
+    public void run(final String arg)
+    {
+        simulate("First come, first served", false, false);
+        simulate("Fair", true, false);
+        simulate("Fair, file affinity", true, true);
+    }
+
+    private void simulate(final String name, final boolean fair, final boolean affinity)
+    {
+        final Random random = new Random(42);
+        final JobQueue queue = new JobQueue();
+        final PriorityQueue<Event> events = new PriorityQueue<Event>();
+        final ArrayList<FakeNode> nodes = new ArrayList<FakeNode>();
+        final HashMap<Long, SimJob> jobs = new HashMap<Long, SimJob>();
+        final ArrayList<ArrayList<Long>> latencies = new ArrayList<ArrayList<Long>>();
+        long nextID = 0, now = 0, nextWake = -1, batchDone = 0;
+        int hits = 0, reads = 0, batchJobs = 0;
+
+        eventOrder = 0;
+        queue.setLocalityDelay(affinity ? LOCALITY_DELAY : 0);
+
+        for (int i = 0; i < NUM_NODES; ++i)
+        {
+            nodes.add(new FakeNode(i, THREADS_PER_NODE));
+            queue.nodeActive(i);
+        }
+
+        // The batch: two passes over the same files, in a different order each time.
+        for (int pass = 0; pass < 2; ++pass)
+        {
+            final ArrayList<Integer> order = new ArrayList<Integer>();
+            for (int f = 0; f < NUM_FILES; ++f)
+            {
+                order.add(f);
+            }
+            Collections.shuffle(order, random);
+            for (final Integer f : order)
+            {
+                events.add(newSubmit(0, nextID++, "file" + f, 0, affinity));
+            }
+        }
+
+        // Interactive bursts, each reading a few files of its own.
+        for (int b = 0; b < BURSTS; ++b)
+        {
+            for (int j = 0; j < BURST_SIZE; ++j)
+            {
+                events.add(newSubmit(1, nextID++, "burst" + b + "-" + random.nextInt(4),
+                        b * BURST_INTERVAL, affinity));
+            }
+        }
+
+        for (int s = 0; s < submitterNames.length; ++s)
+        {
+            latencies.add(new ArrayList<Long>());
+        }
+
+        while (!events.isEmpty())
+        {
+            final Event event = events.poll();
+            now = event.time;
+
+            if (event.submit != null)
+            {
+                final SimJob job = event.submit;
+                jobs.put(job.pm.getID(), job);
+                queue.add(job.pm, fair ? job.submitter : 0, JobQueue.PRIORITY_NORMAL, now);
+            }
+            else if (event.finish != null)
+            {
+                final SimJob job = event.finish;
+                job.node.busy--;
+                queue.finished(job.pm.getID());
+                latencies.get(job.submitter).add(now - job.submitted);
+                if (job.submitter == 0)
+                {
+                    batchJobs++;
+                    batchDone = now;
+                }
+            }
+
+            // Dispatch, like the ProcessScheduler does.
+            boolean dispatched = true;
+            while (dispatched && !queue.isEmpty())
+            {
+                dispatched = false;
+                for (final FakeNode node : nodes)
+                {
+                    final ProcessManager<?> pm;
+
+                    if (node.busy >= node.threads)
+                    {
+                        continue;
+                    }
+
+                    pm = queue.poll(node.id, node.threads - node.busy, node.threads, now);
+
+                    if (pm != null)
+                    {
+                        final SimJob job = jobs.remove(pm.getID());
+                        final boolean hit = node.read(((SimCall)pm.getCallable()).file);
+                        final long duration = COMPUTE_TIME + (hit ? 0 : READ_TIME) +
+                                random.nextInt((int)COMPUTE_TIME / 4);
+
+                        job.node = node;
+                        node.busy++;
+                        reads++;
+                        hits += hit ? 1 : 0;
+                        dispatched = true;
+                        events.add(new Event(now + duration, eventOrder++, null, job));
+                    }
+                }
+            }
+
+            // Jobs held back for a busy node become available to the others after a while.
+            if (!queue.isEmpty() && nextWake <= now)
+            {
+                nextWake = now + Math.max(1, queue.getLocalityDelay());
+                events.add(new Event(nextWake, eventOrder++, null, null));
+            }
+        }
+
+        IJ.log(name + ": batch of " + batchJobs + " jobs done in " + batchDone + "ms, " +
+                String.format("%.1f", 1000.0 * batchJobs / batchDone) + " jobs/s, cache hits " +
+                (100 * hits / reads) + "%");
+
+        for (int s = 0; s < submitterNames.length; ++s)
+        {
+            final Long[] l = latencies.get(s).toArray(new Long[0]);
+            Arrays.sort(l);
+            IJ.log("    " + submitterNames[s] + " latency: p50 " + percentile(l, 50) +
+                    "ms, p95 " + percentile(l, 95) + "ms, p99 " + percentile(l, 99) +
+                    "ms, max " + l[l.length - 1] + "ms");
+        }
+    }
+
+    private Event newSubmit(final int submitter, final long id, final Object file,
+                            final long time, final boolean affinity)
+    {
+        final SimCall call = affinity ? new HintedSimCall(file) : new SimCall(file);
+        final ProcessManager<Object> pm = new ProcessManager<Object>(call, id, 1, false);
+        return new Event(time, eventOrder++, new SimJob(pm, submitter, time), null);
+    }
+
+    private static long percentile(final Long[] sorted, final int p)
+    {
+        return sorted[Math.min(sorted.length - 1, (sorted.length * p) / 100)];
+    }
+
+    public static void main(final String[] args)
+    {
+        new Scheduler_Simulation().run("");
+    }
+}
@@ -0,0 +1,152 @@
+package edu.utexas.clm.archipelago.example;
+
+import edu.utexas.clm.archipelago.data.ClusterMessage;
+import edu.utexas.clm.archipelago.listen.MessageType;
+import edu.utexas.clm.archipelago.listen.NodeShellListener;
+import edu.utexas.clm.archipelago.listen.TransceiverListener;
+import edu.utexas.clm.archipelago.network.MessageXC;
+import edu.utexas.clm.archipelago.network.client.ArchipelagoClient;
+import edu.utexas.clm.archipelago.network.server.ArchipelagoServer;
+import edu.utexas.clm.archipelago.network.transport.FramedTransport;
+import edu.utexas.clm.archipelago.network.transport.MessageTransport;
+import edu.utexas.clm.archipelago.network.transport.SerialTransport;
+import edu.utexas.clm.archipelago.util.XCErrorAdapter;
+import ij.IJ;
+import ij.plugin.PlugIn;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loopback benchmark for the MessageTransports. A local ArchipelagoServer accepts a connection
+ * from a local ArchipelagoClient, then float[] payloads the size of a set of SIFT features are
+ * sent to the client as USER messages, each of which is answered by the client. The time until
+ * all answers have arrived is reported for each transport.
+ */
+public class Transport_Benchmark implements PlugIn
+{
+    private static class Root implements NodeShellListener, TransceiverListener
+    {
+        private final ArrayBlockingQueue<MessageXC> xcQueue = new ArrayBlockingQueue<MessageXC>(1);
+        private volatile CountDownLatch replies;
+
+        public void execFinished(final long nodeID, final Exception e, final int status) {}
+
+        public void ioStreamsReady(final InputStream is, final OutputStream os)
+        {
+            try
+            {
+                xcQueue.put(new MessageXC(is, os, this, new XCErrorAdapter()));
+            }
+            catch (IOException ioe)
+            {
+                IJ.log("Could not open the root transceiver: " + ioe);
+            }
+            catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public void streamClosed() {}
+
+        public void handleMessage(final ClusterMessage cm)
+        {
+            if (cm.type == MessageType.USER)
+            {
+                replies.countDown();
+            }
+        }
+    }
+
+    private static final int NUM_MESSAGES = 256;
+    private static final int PAYLOAD_FLOATS = 128 * 2048;
+
+    public void run(final String arg)
+    {
+        final Root root = new Root();
+        final ArchipelagoServer server = ArchipelagoServer.getServer(root);
+        final float[] payload = new float[PAYLOAD_FLOATS];
+
+        // Smooth, descriptor-like values, so that compression has something to work with
+        for (int i = 0; i < payload.length; ++i)
+        {
+            payload[i] = (float)Math.floor(64 * (1 + Math.sin(i / 100.0)));
+        }
+
+        final String[] names = {"Serial", "Framed", "Framed, deflate"};
+        final MessageTransport.Factory[] factories = {
+                new SerialTransport.Factory(),
+                new FramedTransport.Factory(Integer.MAX_VALUE,
+                        FramedTransport.DEFAULT_MAX_FRAME_SIZE,
+                        FramedTransport.DEFAULT_RESET_INTERVAL),
+                new FramedTransport.Factory()};
+
+        final MessageTransport.Factory defaultFactory = MessageXC.getDefaultTransportFactory();
+
+        try
+        {
+            for (int f = 0; f < factories.length; ++f)
+            {
+                MessageXC.setDefaultTransportFactory(factories[f]);
+                IJ.log(names[f] + ": " + benchmark(root, server, payload) + "ms for " +
+                        NUM_MESSAGES + " messages of " + (4 * PAYLOAD_FLOATS / 1024) + "kB");
+            }
+        }
+        catch (Exception e)
+        {
+            IJ.log("Transport benchmark failed: " + e);
+        }
+        finally
+        {
+            MessageXC.setDefaultTransportFactory(defaultFactory);
+            server.close();
+        }
+    }
+
+    private long benchmark(final Root root, final ArchipelagoServer server, final float[] payload)
+            throws IOException, InterruptedException
+    {
+        final Socket socket = new Socket("localhost", server.getPort());
+        final ArchipelagoClient client = new ArchipelagoClient(1, socket.getInputStream(),
+                socket.getOutputStream());
+        final MessageXC xc = root.xcQueue.poll(10, TimeUnit.SECONDS);
+        final long start;
+        final long time;
+
+        if (xc == null)
+        {
+            client.close();
+            throw new IOException("Timed out waiting for the client connection");
+        }
+
+        root.replies = new CountDownLatch(NUM_MESSAGES);
+        start = System.currentTimeMillis();
+
+        // Send copies, otherwise the object stream would send back-references to one array
+        for (int i = 0; i < NUM_MESSAGES; ++i)
+        {
+            xc.queueMessage(MessageType.USER, payload.clone());
+        }
+
+        root.replies.await();
+        time = System.currentTimeMillis() - start;
+
+        client.close();
+        xc.close();
+        socket.close();
+
+        return time;
+    }
+
+    public static void main(final String[] args)
+    {
+        new Transport_Benchmark().run("");
+        System.exit(0);
+    }
+}
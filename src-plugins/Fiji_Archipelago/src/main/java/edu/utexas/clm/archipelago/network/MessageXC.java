@@ -27,6 +27,9 @@
 import edu.utexas.clm.archipelago.network.translation.Bottle;
 import edu.utexas.clm.archipelago.network.translation.Bottler;
 import edu.utexas.clm.archipelago.network.translation.FileTranslator;
+import edu.utexas.clm.archipelago.network.transport.SerialTransport;
+import edu.utexas.clm.archipelago.network.transport.MessageTransport;
+import edu.utexas.clm.archipelago.network.transport.ObjectStreamFactory;
 
 import java.io.*;
 import java.util.ArrayList;
@@ -117,7 +120,7 @@ public void run()
             {
                 try
                 {
-                    ClusterMessage message = (ClusterMessage)objectInputStream.readObject();
+                    ClusterMessage message = transport.read();
                     // Don't debug beats, or they'll fill your log
                     if (message.type != MessageType.BEAT)
                     {
@@ -149,11 +152,7 @@ public void run()
                 }
                 finally
                 {
-                    try
-                    {
-                        objectInputStream = new BottlingInputStream(inStream);
-                    }
-                    catch (IOException ioe)
+                    if (!transport.isConnected())
                     {
                         close();
                     }
@@ -164,6 +163,8 @@ public void run()
     
     private class TXThread extends Thread
     {
+        private final ArrayList<ClusterMessage> batch = new ArrayList<ClusterMessage>();
+
         public void run()
         {
             while (active.get())
@@ -184,44 +185,39 @@ public void run()
 
                 if (nextMessage != null)
                 {
-                    try
+                    // Send whatever else is waiting along with this message
+                    batch.clear();
+                    batch.add(nextMessage);
+                    messageQ.drainTo(batch, MAX_BATCH - 1);
+
+                    for (final ClusterMessage message : batch)
                     {
-                        if (nextMessage.type != MessageType.BEAT)
+                        try
                         {
-                            FijiArchipelago.debug("TX: " + id + " writing message " +
-                                    ClusterMessage.messageToString(nextMessage));
+                            if (message.type != MessageType.BEAT)
+                            {
+                                FijiArchipelago.debug("TX: " + id + " writing message " +
+                                        ClusterMessage.messageToString(message));
+                            }
+                            transport.write(message);
+                        }
+                        catch (Throwable e)
+                        {
+                            xcExceptionListener.handleTXThrowable(e, xc, message);
                         }
-                        objectOutputStream.writeObject(nextMessage);
-                        objectOutputStream.flush();
-
-                    }
-                    /*catch (NotSerializableException nse)
-                    {
-                        xcExceptionListener.handleTXThrowable(nse, xc);
-                    }
-                    catch (IOException ioe)
-                    {
-                        xcExceptionListener.handleTXThrowable(ioe, xc);
                     }
-                    catch (ConcurrentModificationException ccme)
+
+                    try
                     {
-                        xcExceptionListener.handleTXThrowable(ccme, xc);
+                        transport.flush();
                     }
-                    catch (RuntimeException re)
-                    {
-                        xcExceptionListener.handleTXThrowable(re, xc);
-                    }*/
                     catch (Throwable e)
                     {
-                        xcExceptionListener.handleTXThrowable(e, xc, nextMessage);
+                        xcExceptionListener.handleTXThrowable(e, xc, batch.get(batch.size() - 1));
                     }
                     finally
                     {
-                        try
-                        {
-                            objectOutputStream = new BottlingOutputStream(outStream);
-                        }
-                        catch (IOException ioe)
+                        if (!transport.isConnected())
                         {
                             close();
                         }
@@ -230,14 +226,33 @@ public void run()
             }
         }
     }
+
+    private class BottlingStreamFactory implements ObjectStreamFactory
+    {
+        public ObjectInputStream createInputStream(final InputStream is) throws IOException
+        {
+            return new BottlingInputStream(is);
+        }
+
+        public ObjectOutputStream createOutputStream(final OutputStream os) throws IOException
+        {
+            return new BottlingOutputStream(os);
+        }
+    }
     
     public static final long DEFAULT_WAIT = 10000;
     public static final TimeUnit DEFAULT_UNIT = TimeUnit.MILLISECONDS;
+    public static final int MAX_BATCH = 64;
+
+    /*
+     * The default stays the original wire format, since there is no handshake to agree on a
+     * transport: nodes running an older build can only talk to SerialTransport.
+     */
+    private static MessageTransport.Factory defaultTransportFactory = new SerialTransport.Factory();
 
     private final List<Bottler> bottlers;
     private final ArrayBlockingQueue<ClusterMessage> messageQ;
-    private BottlingOutputStream objectOutputStream;
-    private BottlingInputStream objectInputStream;
+    private final MessageTransport transport;
     private FileTranslator fileTranslator;
     private final Thread txThread, rxThread;
     private final AtomicBoolean active;
@@ -266,13 +281,24 @@ public MessageXC(InputStream inStream,
                      final TransceiverExceptionListener listenerE,
                      final long wait,
                      TimeUnit unit) throws IOException
+    {
+        this(inStream, outStream, listener, listenerE, wait, unit, getDefaultTransportFactory());
+    }
+
+    public MessageXC(InputStream inStream,
+                     OutputStream outStream,
+                     final TransceiverListener listener,
+                     final TransceiverExceptionListener listenerE,
+                     final long wait,
+                     TimeUnit unit,
+                     final MessageTransport.Factory transportFactory) throws IOException
     {
         FijiArchipelago.debug("Creating Message Transciever");
         fileTranslator = new NullFileTranslator();
         bottlers = Collections.synchronizedList(new Vector<Bottler>());
         messageQ = new ArrayBlockingQueue<ClusterMessage>(16, true);
-        objectOutputStream = new BottlingOutputStream(outStream);
-        objectInputStream =  new BottlingInputStream(inStream);
+        transport = transportFactory.createTransport(inStream, outStream,
+                new BottlingStreamFactory());
         FijiArchipelago.debug("XC: streams are set");
         this.inStream = inStream;
         this.outStream = outStream;
@@ -292,6 +318,28 @@ public MessageXC(InputStream inStream,
         txThread.start();
     }
 
+    /**
+     * Returns the MessageTransport.Factory used by MessageXCs that are created without one.
+     * @return the default MessageTransport.Factory
+     */
+    public static synchronized MessageTransport.Factory getDefaultTransportFactory()
+    {
+        return defaultTransportFactory;
+    }
+
+    /**
+     * Sets the MessageTransport.Factory used by MessageXCs that are created without one. Both
+     * ends of a connection must use the same kind of transport, so a different transport, such
+     * as FramedTransport, should only be set when every node in the cluster runs this build and
+     * sets the same one.
+     * @param factory the new default MessageTransport.Factory
+     */
+    public static synchronized void setDefaultTransportFactory(
+            final MessageTransport.Factory factory)
+    {
+        defaultTransportFactory = factory;
+    }
+
     public long getLastProcessID()
     {
         return lastSentID.get();
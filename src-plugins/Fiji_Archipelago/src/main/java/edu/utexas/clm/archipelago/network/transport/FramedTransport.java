@@ -0,0 +1,465 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ */
+
+package edu.utexas.clm.archipelago.network.transport;
+
+import edu.utexas.clm.archipelago.data.ClusterMessage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A MessageTransport that keeps one object stream open across messages and sends it in
+ * length-prefixed frames.
+ *
+ * Messages written between two calls to flush() are serialized into a single frame, so that a
+ * burst of small messages costs one socket write. A frame whose payload exceeds the compression
+ * threshold is deflated, if that makes it smaller. The object stream is reset() at the start of
+ * a frame once resetInterval messages have been written since the last reset, which keeps the
+ * stream's back-reference table, and every object in it, from growing without bound.
+ *
+ * Frame layout: int wire length, int payload length, byte flags, int message count, followed by
+ * the (possibly deflated) payload. A frame flagged NEW_STREAM starts with an object stream
+ * header, after which the receiver replaces its object stream. This happens for the first frame,
+ * and after a message failed to serialize, since the sender's stream state can no longer be
+ * trusted at that point.
+ */
+public class FramedTransport implements MessageTransport
+{
+    public static class Factory implements MessageTransport.Factory
+    {
+        private final int compressionThreshold, maxFrameSize, resetInterval, frameSizeLimit;
+
+        public Factory()
+        {
+            this(DEFAULT_COMPRESSION_THRESHOLD, DEFAULT_MAX_FRAME_SIZE, DEFAULT_RESET_INTERVAL);
+        }
+
+        /**
+         * @param compressionThreshold frames with a payload at least this large are deflated. Use
+         *                             Integer.MAX_VALUE to disable compression.
+         * @param maxFrameSize a frame is sent as soon as its payload reaches this size
+         * @param resetInterval the number of messages between resets of the object stream
+         */
+        public Factory(final int compressionThreshold, final int maxFrameSize,
+                       final int resetInterval)
+        {
+            this(compressionThreshold, maxFrameSize, resetInterval, DEFAULT_FRAME_SIZE_LIMIT);
+        }
+
+        /**
+         * @param compressionThreshold frames with a payload at least this large are deflated. Use
+         *                             Integer.MAX_VALUE to disable compression.
+         * @param maxFrameSize a frame is sent as soon as its payload reaches this size
+         * @param resetInterval the number of messages between resets of the object stream
+         * @param frameSizeLimit received frames whose wire or payload length exceeds this are
+         *                       rejected before any buffer is allocated for them
+         */
+        public Factory(final int compressionThreshold, final int maxFrameSize,
+                       final int resetInterval, final int frameSizeLimit)
+        {
+            this.compressionThreshold = compressionThreshold;
+            this.maxFrameSize = maxFrameSize;
+            this.resetInterval = resetInterval;
+            this.frameSizeLimit = frameSizeLimit;
+        }
+
+        public MessageTransport createTransport(final InputStream is, final OutputStream os,
+                                                final ObjectStreamFactory streamFactory)
+                throws IOException
+        {
+            return new FramedTransport(is, os, streamFactory, compressionThreshold, maxFrameSize,
+                    resetInterval, frameSizeLimit);
+        }
+    }
+
+    /**
+     * A ByteArrayOutputStream that gives access to its buffer, so that frames need not be copied.
+     */
+    private static class FrameBuffer extends ByteArrayOutputStream
+    {
+        public FrameBuffer(final int size)
+        {
+            super(size);
+        }
+
+        public byte[] buffer()
+        {
+            return buf;
+        }
+
+        public void truncate(final int size)
+        {
+            count = size;
+        }
+
+        /**
+         * Make sure the buffer holds at least size bytes, and return it.
+         */
+        public byte[] ensureCapacity(final int size)
+        {
+            if (buf.length < size)
+            {
+                buf = new byte[size];
+            }
+            return buf;
+        }
+    }
+
+    /**
+     * Serves the payload of the current frame to the ObjectInputStream.
+     */
+    private static class FrameInputStream extends InputStream
+    {
+        private byte[] data = new byte[0];
+        private int pos = 0, length = 0;
+
+        public void setFrame(final byte[] data, final int length)
+        {
+            this.data = data;
+            this.length = length;
+            pos = 0;
+        }
+
+        public int read()
+        {
+            return pos < length ? data[pos++] & 0xff : -1;
+        }
+
+        public int read(final byte[] b, final int off, final int len)
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+            else if (pos >= length)
+            {
+                return -1;
+            }
+            else
+            {
+                final int n = Math.min(len, length - pos);
+                System.arraycopy(data, pos, b, off, n);
+                pos += n;
+                return n;
+            }
+        }
+
+        public int available()
+        {
+            return length - pos;
+        }
+    }
+
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 64 * 1024;
+    public static final int DEFAULT_MAX_FRAME_SIZE = 1024 * 1024;
+    public static final int DEFAULT_RESET_INTERVAL = 1;
+    public static final int DEFAULT_FRAME_SIZE_LIMIT = 1024 * 1024 * 1024;
+
+    public static final byte FLAG_DEFLATED = 1;
+    public static final byte FLAG_NEW_STREAM = 2;
+
+    private final ObjectStreamFactory streamFactory;
+    private final int compressionThreshold, maxFrameSize, resetInterval, frameSizeLimit;
+    private final AtomicBoolean connected;
+
+    // TX state, only touched by the writing thread
+    private final DataOutputStream outStream;
+    private final FrameBuffer txBuffer, deflateBuffer;
+    private final Deflater deflater;
+    private ObjectOutputStream objectOutputStream;
+    private boolean newStream;
+    private int framedMessages, messagesSinceReset;
+
+    // RX state, only touched by the reading thread
+    private final DataInputStream inStream;
+    private final FrameBuffer rxBuffer, inflateBuffer;
+    private final FrameInputStream frameInputStream;
+    private final Inflater inflater;
+    private ObjectInputStream objectInputStream;
+    private int unreadMessages;
+
+    public FramedTransport(final InputStream inStream,
+                           final OutputStream outStream,
+                           final ObjectStreamFactory streamFactory,
+                           final int compressionThreshold,
+                           final int maxFrameSize,
+                           final int resetInterval) throws IOException
+    {
+        this(inStream, outStream, streamFactory, compressionThreshold, maxFrameSize, resetInterval,
+                DEFAULT_FRAME_SIZE_LIMIT);
+    }
+
+    public FramedTransport(final InputStream inStream,
+                           final OutputStream outStream,
+                           final ObjectStreamFactory streamFactory,
+                           final int compressionThreshold,
+                           final int maxFrameSize,
+                           final int resetInterval,
+                           final int frameSizeLimit) throws IOException
+    {
+        this.streamFactory = streamFactory;
+        this.compressionThreshold = compressionThreshold;
+        this.maxFrameSize = maxFrameSize;
+        this.resetInterval = Math.max(1, resetInterval);
+        this.frameSizeLimit = frameSizeLimit;
+        connected = new AtomicBoolean(true);
+
+        this.outStream = new DataOutputStream(new BufferedOutputStream(outStream));
+        txBuffer = new FrameBuffer(8192);
+        deflateBuffer = new FrameBuffer(0);
+        deflater = new Deflater(Deflater.BEST_SPEED);
+        framedMessages = 0;
+        startStream();
+
+        this.inStream = new DataInputStream(new BufferedInputStream(inStream));
+        rxBuffer = new FrameBuffer(0);
+        inflateBuffer = new FrameBuffer(0);
+        frameInputStream = new FrameInputStream();
+        inflater = new Inflater();
+        objectInputStream = null;
+        unreadMessages = 0;
+    }
+
+    /**
+     * Begin a new object stream at the start of the next frame.
+     */
+    private void startStream() throws IOException
+    {
+        txBuffer.reset();
+        objectOutputStream = streamFactory.createOutputStream(txBuffer);
+        objectOutputStream.flush();
+        newStream = true;
+        messagesSinceReset = 0;
+    }
+
+    public void write(final ClusterMessage message) throws IOException
+    {
+        final int mark;
+
+        if (framedMessages == 0 && messagesSinceReset >= resetInterval)
+        {
+            objectOutputStream.reset();
+            messagesSinceReset = 0;
+        }
+
+        mark = txBuffer.size();
+
+        try
+        {
+            objectOutputStream.writeObject(message);
+            objectOutputStream.flush();
+        }
+        catch (IOException ioe)
+        {
+            recover(mark);
+            throw ioe;
+        }
+        catch (RuntimeException re)
+        {
+            recover(mark);
+            throw re;
+        }
+
+        ++framedMessages;
+        ++messagesSinceReset;
+
+        if (txBuffer.size() >= maxFrameSize)
+        {
+            flush();
+        }
+    }
+
+    /**
+     * Drop the partially written message, send the ones before it, and start over with a new
+     * object stream.
+     */
+    private void recover(final int mark) throws IOException
+    {
+        txBuffer.truncate(mark);
+        flush();
+        startStream();
+    }
+
+    public void flush() throws IOException
+    {
+        try
+        {
+            if (framedMessages > 0)
+            {
+                final int length = txBuffer.size();
+                byte[] payload = txBuffer.buffer();
+                int wireLength = length;
+                byte flags = newStream ? FLAG_NEW_STREAM : 0;
+
+                if (length >= compressionThreshold)
+                {
+                    final byte[] deflated = deflateBuffer.ensureCapacity(length);
+                    int deflatedLength;
+
+                    deflater.reset();
+                    deflater.setInput(payload, 0, length);
+                    deflater.finish();
+                    deflatedLength = deflater.deflate(deflated, 0, deflated.length);
+
+                    // Only use the deflated payload if it fit into fewer bytes
+                    if (deflater.finished() && deflatedLength < length)
+                    {
+                        payload = deflated;
+                        wireLength = deflatedLength;
+                        flags |= FLAG_DEFLATED;
+                    }
+                }
+
+                outStream.writeInt(wireLength);
+                outStream.writeInt(length);
+                outStream.writeByte(flags);
+                outStream.writeInt(framedMessages);
+                outStream.write(payload, 0, wireLength);
+
+                txBuffer.reset();
+                framedMessages = 0;
+                newStream = false;
+            }
+
+            outStream.flush();
+        }
+        catch (IOException ioe)
+        {
+            connected.set(false);
+            throw ioe;
+        }
+    }
+
+    public ClusterMessage read() throws IOException, ClassNotFoundException
+    {
+        while (unreadMessages == 0)
+        {
+            readFrame();
+        }
+
+        --unreadMessages;
+
+        try
+        {
+            return (ClusterMessage)objectInputStream.readObject();
+        }
+        catch (IOException ioe)
+        {
+            // Whatever is left of this frame can't be trusted, skip to the next one.
+            unreadMessages = 0;
+            throw ioe;
+        }
+        catch (RuntimeException re)
+        {
+            unreadMessages = 0;
+            throw re;
+        }
+    }
+
+    private void readFrame() throws IOException
+    {
+        try
+        {
+            final int wireLength = inStream.readInt();
+            final int length = inStream.readInt();
+            final byte flags = inStream.readByte();
+            final int count = inStream.readInt();
+            final byte[] wire;
+            final byte[] payload;
+
+            if (wireLength < 0 || length < 0 || count < 0)
+            {
+                throw new StreamCorruptedException("Bad frame header: " + wireLength + ", " +
+                        length + ", " + count);
+            }
+
+            // Check the lengths before allocating anything for them
+            if (wireLength > frameSizeLimit || length > frameSizeLimit)
+            {
+                throw new StreamCorruptedException("Frame of " + Math.max(wireLength, length) +
+                        " bytes exceeds the limit of " + frameSizeLimit + " bytes");
+            }
+
+            if ((flags & FLAG_DEFLATED) == 0 && length > wireLength)
+            {
+                throw new StreamCorruptedException("Bad frame header: payload length " + length +
+                        " exceeds wire length " + wireLength);
+            }
+
+            wire = rxBuffer.ensureCapacity(wireLength);
+            inStream.readFully(wire, 0, wireLength);
+
+            if ((flags & FLAG_DEFLATED) != 0)
+            {
+                payload = inflateBuffer.ensureCapacity(length);
+                inflater.reset();
+                inflater.setInput(wire, 0, wireLength);
+                try
+                {
+                    if (inflater.inflate(payload, 0, length) != length)
+                    {
+                        throw new StreamCorruptedException("Truncated deflated frame");
+                    }
+                }
+                catch (DataFormatException dfe)
+                {
+                    throw new StreamCorruptedException("Bad deflated frame: " + dfe.getMessage());
+                }
+            }
+            else
+            {
+                payload = wire;
+            }
+
+            frameInputStream.setFrame(payload, length);
+
+            if ((flags & FLAG_NEW_STREAM) != 0)
+            {
+                objectInputStream = streamFactory.createInputStream(frameInputStream);
+            }
+            else if (objectInputStream == null)
+            {
+                throw new StreamCorruptedException("First frame does not start a stream");
+            }
+
+            unreadMessages = count;
+        }
+        catch (IOException ioe)
+        {
+            connected.set(false);
+            throw ioe;
+        }
+    }
+
+    public boolean isConnected()
+    {
+        return connected.get();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ */
+
+package edu.utexas.clm.archipelago.network.transport;
+
+import edu.utexas.clm.archipelago.data.ClusterMessage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Wire format used by a MessageXC to move ClusterMessages over a pair of streams. Both ends of
+ * a connection must use the same kind of transport.
+ *
+ * A MessageTransport is used by exactly one writing and one reading thread. Errors that concern
+ * a single message should be thrown without breaking the transport, so that the following
+ * messages may still be sent or received. Errors that leave the underlying streams in an
+ * unusable state should be thrown after isConnected() has been set to return false.
+ */
+public interface MessageTransport
+{
+    /**
+     * Creates MessageTransports over the streams of a new connection.
+     */
+    public interface Factory
+    {
+        public MessageTransport createTransport(final InputStream is, final OutputStream os,
+                                                final ObjectStreamFactory streamFactory)
+                throws IOException;
+    }
+
+    /**
+     * Queue a message for sending. The message may not be sent until flush() is called.
+     * @param message the message to send
+     * @throws IOException if the message could not be written
+     */
+    public void write(final ClusterMessage message) throws IOException;
+
+    /**
+     * Send all messages that have been written since the last call to flush().
+     * @throws IOException if the messages could not be sent
+     */
+    public void flush() throws IOException;
+
+    /**
+     * Block until the next message is available, then return it.
+     * @return the next message received from the remote end
+     * @throws IOException if the message could not be read
+     * @throws ClassNotFoundException if the class of the message, or of an object it contains,
+     * is not available locally
+     */
+    public ClusterMessage read() throws IOException, ClassNotFoundException;
+
+    /**
+     * Determines whether this transport may still be used.
+     * @return false if the underlying streams are no longer usable, true otherwise.
+     */
+    public boolean isConnected();
+}
@@ -0,0 +1,34 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ */
+
+package edu.utexas.clm.archipelago.network.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Creates the object streams used to serialize messages, so that a MessageTransport may layer
+ * them over its own framing. MessageXC uses this to install its Bottling streams.
+ */
+public interface ObjectStreamFactory
+{
+    public ObjectInputStream createInputStream(final InputStream is) throws IOException;
+
+    public ObjectOutputStream createOutputStream(final OutputStream os) throws IOException;
+}
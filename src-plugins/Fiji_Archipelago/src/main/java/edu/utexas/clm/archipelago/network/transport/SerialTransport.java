@@ -0,0 +1,112 @@
+/*
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ */
+
+package edu.utexas.clm.archipelago.network.transport;
+
+import edu.utexas.clm.archipelago.data.ClusterMessage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The original Archipelago wire format: every message is written by a new ObjectOutputStream
+ * directly to the socket and flushed immediately. This is robust, since no state is kept between
+ * messages, but it repeats the stream header and all class descriptors for every message.
+ */
+public class SerialTransport implements MessageTransport
+{
+    public static class Factory implements MessageTransport.Factory
+    {
+        public MessageTransport createTransport(final InputStream is, final OutputStream os,
+                                                final ObjectStreamFactory streamFactory)
+                throws IOException
+        {
+            return new SerialTransport(is, os, streamFactory);
+        }
+    }
+
+    private final InputStream inStream;
+    private final OutputStream outStream;
+    private final ObjectStreamFactory streamFactory;
+    private final AtomicBoolean connected;
+    private ObjectOutputStream objectOutputStream;
+    private ObjectInputStream objectInputStream;
+
+    public SerialTransport(final InputStream inStream,
+                           final OutputStream outStream,
+                           final ObjectStreamFactory streamFactory) throws IOException
+    {
+        this.inStream = inStream;
+        this.outStream = outStream;
+        this.streamFactory = streamFactory;
+        connected = new AtomicBoolean(true);
+        objectOutputStream = streamFactory.createOutputStream(outStream);
+        objectInputStream = streamFactory.createInputStream(inStream);
+    }
+
+    public void write(final ClusterMessage message) throws IOException
+    {
+        try
+        {
+            objectOutputStream.writeObject(message);
+            objectOutputStream.flush();
+        }
+        finally
+        {
+            try
+            {
+                objectOutputStream = streamFactory.createOutputStream(outStream);
+            }
+            catch (IOException ioe)
+            {
+                connected.set(false);
+            }
+        }
+    }
+
+    public void flush() throws IOException
+    {
+        // Every message is flushed as it is written.
+    }
+
+    public ClusterMessage read() throws IOException, ClassNotFoundException
+    {
+        try
+        {
+            return (ClusterMessage)objectInputStream.readObject();
+        }
+        finally
+        {
+            try
+            {
+                objectInputStream = streamFactory.createInputStream(inStream);
+            }
+            catch (IOException ioe)
+            {
+                connected.set(false);
+            }
+        }
+    }
+
+    public boolean isConnected()
+    {
+        return connected.get();
+    }
+}
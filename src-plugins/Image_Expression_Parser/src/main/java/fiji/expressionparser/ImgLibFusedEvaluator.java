@@ -0,0 +1,414 @@
+package fiji.expressionparser;
+
+import java.util.ArrayList;
+import java.util.Stack;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mpicbg.imglib.algorithm.MultiThreaded;
+import mpicbg.imglib.cursor.Cursor;
+import mpicbg.imglib.cursor.LocalizableByDimCursor;
+import mpicbg.imglib.cursor.LocalizableCursor;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.image.ImageFactory;
+import mpicbg.imglib.multithreading.Chunk;
+import mpicbg.imglib.multithreading.SimpleMultiThreading;
+import mpicbg.imglib.type.numeric.RealType;
+import mpicbg.imglib.type.numeric.real.FloatType;
+
+import org.nfunk.jep.ASTConstant;
+import org.nfunk.jep.ASTFunNode;
+import org.nfunk.jep.ASTVarNode;
+import org.nfunk.jep.Node;
+import org.nfunk.jep.ParseException;
+import org.nfunk.jep.function.CallbackEvaluationI;
+import org.nfunk.jep.function.PostfixMathCommandI;
+import org.nfunk.jep.function.SpecialEvaluationI;
+
+import fiji.expressionparser.function.SingleOperandPixelBasedAbstractFunction;
+import fiji.expressionparser.function.TwoOperandsPixelBasedAbstractFunction;
+
+/**
+ * Evaluates a parsed expression tree in a single pass over the images, instead of
+ * letting each node of the tree create a new image, as {@link ImgLibParser#evaluate(Node)} does.
+ * <p>
+ * Every sub-tree made only of pixel-based functions (those extending
+ * {@link SingleOperandPixelBasedAbstractFunction} or {@link TwoOperandsPixelBasedAbstractFunction}),
+ * variables and numbers is compiled to a kernel that computes the value of one pixel.
+ * The kernel is then run, chunk by chunk in several threads, over the pixels of a single
+ * {@link FloatType} result image. For instance, <code>(A-B)/(A+B)*100</code> creates only one
+ * new image and reads A and B only once, rather than creating four images.
+ * <p>
+ * Other functions, such as the gaussian convolution or the normalization, need a whole image
+ * for their operands. They are evaluated as usual, once their operands have been computed
+ * as above, and their result is then used as an image by the rest of the expression.
+ * Anything else the kernels can not deal with (for instance the <code>pi</code> constant, which
+ * is stored as a {@link Double}) is left to the parser.
+ * <p>
+ * The results are the same as those of {@link ImgLibParser#evaluate(Node)}: the functions are
+ * called on the same values, and the intermediate results are stored as floats, as they are
+ * in the intermediate {@link FloatType} images.
+ */
+public class ImgLibFusedEvaluator <T extends RealType<T>> implements MultiThreaded {
+
+	/** The parser that built the expression tree, used for what can not be fused. */
+	protected final ImgLibParser<T> parser;
+	protected int numThreads;
+
+	public ImgLibFusedEvaluator(final ImgLibParser<T> parser) {
+		this.parser = parser;
+		setNumThreads();
+	}
+
+	/*
+	 * PUBLIC METHODS
+	 */
+
+	/**
+	 * Evaluate the expression tree given. As for {@link ImgLibParser#evaluate(Node)}, the result
+	 * is an {@link Image} of {@link FloatType} if the expression involves images, or a number
+	 * otherwise.
+	 * @param node  the root of the tree, as returned by {@link ImgLibParser#parse(String)}
+	 * @return  the result of the evaluation
+	 * @throws ParseException  if one of the functions can not be evaluated on its operands
+	 */
+	public Object evaluate(final Node node) throws ParseException {
+		if ( !(node instanceof ASTFunNode) ) {
+			return parser.evaluate(node);
+		}
+
+		final PostfixMathCommandI pfmc = ((ASTFunNode)node).getPFMC();
+		if (isPixelBased(pfmc, node)) {
+
+			final Operand operand = compile(node);
+			if (null == operand) {
+				return parser.evaluate(node);
+			}
+			final Image<?> first = operand.firstImage();
+			if (null == first) {
+				return new FloatType(operand.createKernel(null, true).value().getRealFloat());
+			}
+			return run(operand, first);
+
+		} else {
+			return materialize((ASTFunNode) node);
+		}
+	}
+
+	/*
+	 * MULTITHREADED METHODS
+	 */
+
+	@Override
+	public void setNumThreads() {
+		this.numThreads = Runtime.getRuntime().availableProcessors();
+	}
+
+	@Override
+	public void setNumThreads(final int numThreads) {
+		this.numThreads = numThreads;
+	}
+
+	@Override
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	/**
+	 * Evaluate a function that is not pixel-based: evaluate its operands, then let the function
+	 * run on them as the parser would.
+	 */
+	@SuppressWarnings("unchecked")
+	private Object materialize(final ASTFunNode node) throws ParseException {
+		final PostfixMathCommandI pfmc = node.getPFMC();
+		if (null == pfmc || pfmc instanceof SpecialEvaluationI || pfmc instanceof CallbackEvaluationI) {
+			return parser.evaluate(node);
+		}
+		final Stack stack = new Stack();
+		for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+			stack.push(evaluate(node.jjtGetChild(i)));
+		}
+		if (pfmc.getNumberOfParameters() == -1) {
+			pfmc.setCurNumberOfParameters(node.jjtGetNumChildren());
+		}
+		pfmc.run(stack);
+		return stack.pop();
+	}
+
+	private static boolean isPixelBased(final PostfixMathCommandI pfmc, final Node node) {
+		if (pfmc instanceof SingleOperandPixelBasedAbstractFunction<?>) {
+			return node.jjtGetNumChildren() == 1;
+		}
+		if (pfmc instanceof TwoOperandsPixelBasedAbstractFunction<?>) {
+			return node.jjtGetNumChildren() == 2;
+		}
+		return false;
+	}
+
+	/**
+	 * Compile a tree of pixel-based functions to an operand, evaluating the sub-trees that are
+	 * not pixel-based on the way. Return <code>null</code> if the tree contains something
+	 * the kernels can not deal with.
+	 */
+	@SuppressWarnings("unchecked")
+	private Operand compile(final Node node) throws ParseException {
+
+		if (node instanceof ASTConstant) {
+			return constant(((ASTConstant)node).getValue());
+
+		} else if (node instanceof ASTVarNode) {
+			final Object value = ((ASTVarNode)node).getVar() == null ? null : ((ASTVarNode)node).getVar().getValue();
+			return constant(value);
+
+		} else if (node instanceof ASTFunNode) {
+			final PostfixMathCommandI pfmc = ((ASTFunNode)node).getPFMC();
+
+			if (isPixelBased(pfmc, node)) {
+				final Operand[] operands = new Operand[node.jjtGetNumChildren()];
+				for (int i = 0; i < operands.length; i++) {
+					operands[i] = compile(node.jjtGetChild(i));
+					if (null == operands[i]) {
+						return null;
+					}
+				}
+				if (operands.length == 1) {
+					return new SingleOperandFunction((SingleOperandPixelBasedAbstractFunction<T>)pfmc, operands[0]);
+				} else {
+					return new TwoOperandsFunction((TwoOperandsPixelBasedAbstractFunction<T>)pfmc, operands[0], operands[1]);
+				}
+
+			} else {
+				return constant(materialize((ASTFunNode)node));
+			}
+		}
+		return null;
+	}
+
+	private Operand constant(final Object value) {
+		if (value instanceof Image<?>) {
+			return new ImageOperand((Image<?>) value);
+		} else if (value instanceof RealType<?>) {
+			return new NumberOperand((RealType<?>) value);
+		}
+		return null;
+	}
+
+	/**
+	 * Run the kernel of the given operand over all the pixels of a new image, in several threads.
+	 * The new image has the dimensions and the container of the first image of the expression.
+	 */
+	private Image<FloatType> run(final Operand operand, final Image<?> first) throws ParseException {
+		final Image<FloatType> result = new ImageFactory<FloatType>(new FloatType(), first.getContainerFactory())
+			.createImage(first.getDimensions(), "Fused result");
+
+		// Check if all Containers are compatibles, so that we can use simple cursors
+		final ArrayList<Image<?>> images = new ArrayList<Image<?>>();
+		operand.collectImages(images);
+		boolean compatible = true;
+		for (Image<?> img : images) {
+			compatible &= img.getContainer().compareStorageContainerCompatibility(result.getContainer());
+		}
+		final boolean compatible_containers = compatible;
+
+		final Vector<Chunk> chunks = SimpleMultiThreading.divideIntoChunks(result.getNumPixels(), numThreads);
+		final AtomicInteger ai = new AtomicInteger(0);
+		final ParseException[] error = new ParseException[1];
+		final Thread[] threads = SimpleMultiThreading.newThreads(numThreads);
+		for (int ithread = 0; ithread < threads.length; ithread++) {
+			threads[ithread] = new Thread(new Runnable() {
+				public void run() {
+					final Chunk chunk = chunks.get(ai.getAndIncrement());
+					try {
+						if (compatible_containers) {
+							computeSimple(operand, result, chunk.getStartPosition(), chunk.getLoopSize());
+						} else {
+							computeAdvanced(operand, result, chunk.getStartPosition(), chunk.getLoopSize());
+						}
+					} catch (ParseException pe) {
+						synchronized (error) {
+							error[0] = pe;
+						}
+					}
+				}
+			});
+		}
+		SimpleMultiThreading.startAndJoin(threads);
+
+		if (null != error[0]) {
+			throw error[0];
+		}
+		return result;
+	}
+
+	private void computeSimple(final Operand operand, final Image<FloatType> result, final long start, final long size) throws ParseException {
+		final ArrayList<Cursor<?>> cursors = new ArrayList<Cursor<?>>();
+		final Kernel kernel = operand.createKernel(cursors, true);
+		final Cursor<FloatType> rc = result.createCursor();
+		rc.fwd(start);
+		for (Cursor<?> c : cursors) {
+			c.fwd(start);
+		}
+		final int n_cursors = cursors.size();
+		for (long j = 0; j < size; j++) {
+			rc.fwd();
+			for (int i = 0; i < n_cursors; i++) {
+				cursors.get(i).fwd();
+			}
+			rc.getType().set(kernel.value().getRealFloat());
+		}
+		rc.close();
+		for (Cursor<?> c : cursors) {
+			c.close();
+		}
+	}
+
+	private void computeAdvanced(final Operand operand, final Image<FloatType> result, final long start, final long size) throws ParseException {
+		final ArrayList<Cursor<?>> cursors = new ArrayList<Cursor<?>>();
+		final Kernel kernel = operand.createKernel(cursors, false);
+		final LocalizableCursor<FloatType> rc = result.createLocalizableCursor();
+		rc.fwd(start);
+		final int n_cursors = cursors.size();
+		for (long j = 0; j < size; j++) {
+			rc.fwd();
+			for (int i = 0; i < n_cursors; i++) {
+				((LocalizableByDimCursor<?>) cursors.get(i)).setPosition(rc);
+			}
+			rc.getType().set(kernel.value().getRealFloat());
+		}
+		rc.close();
+		for (Cursor<?> c : cursors) {
+			c.close();
+		}
+	}
+
+	/*
+	 * INNER CLASSES
+	 */
+
+	/**
+	 * The compiled form of (part of) an expression, shared by all threads. Each thread
+	 * gets its own {@link Kernel} from it, with its own cursors and intermediate values.
+	 */
+	private abstract static class Operand {
+		/**
+		 * Create a kernel for one thread, adding the cursors it reads from to the list
+		 * so that they can be moved with the result cursor. If the list is <code>null</code>,
+		 * there must be no image in the expression. The cursors are simple ones if
+		 * <code>simple</code> is true, or {@link LocalizableByDimCursor}s otherwise.
+		 */
+		abstract Kernel createKernel(ArrayList<Cursor<?>> cursors, boolean simple);
+		abstract void collectImages(ArrayList<Image<?>> images);
+		final Image<?> firstImage() {
+			final ArrayList<Image<?>> images = new ArrayList<Image<?>>();
+			collectImages(images);
+			return images.isEmpty() ? null : images.get(0);
+		}
+	}
+
+	/**
+	 * Gives the value of an expression for the current pixel.
+	 */
+	private static interface Kernel {
+		@SuppressWarnings("unchecked")
+		RealType value() throws ParseException;
+	}
+
+	private static final class ImageOperand extends Operand {
+		private final Image<?> img;
+		ImageOperand(final Image<?> img) {
+			this.img = img;
+		}
+		@SuppressWarnings("unchecked")
+		@Override
+		Kernel createKernel(final ArrayList<Cursor<?>> cursors, final boolean simple) {
+			final Cursor<?> cursor = simple ? img.createCursor() : img.createLocalizableByDimCursor();
+			cursors.add(cursor);
+			return new Kernel() {
+				public RealType value() {
+					return (RealType) cursor.getType();
+				}
+			};
+		}
+		@Override
+		void collectImages(final ArrayList<Image<?>> images) {
+			images.add(img);
+		}
+	}
+
+	private static final class NumberOperand extends Operand {
+		private final RealType<?> number;
+		NumberOperand(final RealType<?> number) {
+			this.number = number;
+		}
+		@SuppressWarnings("unchecked")
+		@Override
+		Kernel createKernel(final ArrayList<Cursor<?>> cursors, final boolean simple) {
+			final RealType value = number.copy();
+			return new Kernel() {
+				public RealType value() {
+					return value;
+				}
+			};
+		}
+		@Override
+		void collectImages(final ArrayList<Image<?>> images) {}
+	}
+
+	private final class SingleOperandFunction extends Operand {
+		private final SingleOperandPixelBasedAbstractFunction<T> function;
+		private final Operand operand;
+		SingleOperandFunction(final SingleOperandPixelBasedAbstractFunction<T> function, final Operand operand) {
+			this.function = function;
+			this.operand = operand;
+		}
+		@SuppressWarnings("unchecked")
+		@Override
+		Kernel createKernel(final ArrayList<Cursor<?>> cursors, final boolean simple) {
+			final Kernel kernel = operand.createKernel(cursors, simple);
+			final FloatType value = new FloatType();
+			return new Kernel() {
+				public RealType value() throws ParseException {
+					value.set(function.evaluate(kernel.value()));
+					return value;
+				}
+			};
+		}
+		@Override
+		void collectImages(final ArrayList<Image<?>> images) {
+			operand.collectImages(images);
+		}
+	}
+
+	private final class TwoOperandsFunction extends Operand {
+		private final TwoOperandsPixelBasedAbstractFunction<T> function;
+		private final Operand operand1, operand2;
+		TwoOperandsFunction(final TwoOperandsPixelBasedAbstractFunction<T> function, final Operand operand1, final Operand operand2) {
+			this.function = function;
+			this.operand1 = operand1;
+			this.operand2 = operand2;
+		}
+		@SuppressWarnings("unchecked")
+		@Override
+		Kernel createKernel(final ArrayList<Cursor<?>> cursors, final boolean simple) {
+			final Kernel kernel1 = operand1.createKernel(cursors, simple);
+			final Kernel kernel2 = operand2.createKernel(cursors, simple);
+			final FloatType value = new FloatType();
+			return new Kernel() {
+				public RealType value() throws ParseException {
+					value.set(function.evaluate(kernel1.value(), kernel2.value()));
+					return value;
+				}
+			};
+		}
+		@Override
+		void collectImages(final ArrayList<Image<?>> images) {
+			operand1.collectImages(images);
+			operand2.collectImages(images);
+		}
+	}
+
+}
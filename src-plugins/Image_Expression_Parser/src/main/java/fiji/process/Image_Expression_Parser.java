@@ -20,6 +20,7 @@
 import org.nfunk.jep.Node;
 import org.nfunk.jep.ParseException;
 
+import fiji.expressionparser.ImgLibFusedEvaluator;
 import fiji.expressionparser.ImgLibParser;
 
 /**
@@ -99,6 +100,8 @@
  * 			<li> RGB images are processed in a special way by the GUI: each of their channel is processed separately
  * and put back together in a composite image.
  * 		</ul> 
+ * <li>	v2.2 - Pixel-based operations are fused and evaluated in a single multithreaded pass,
+ * without intermediate images (see {@link ImgLibFusedEvaluator}).
  * </ul>
  *   
  * @author Jean-Yves Tinevez <jeanyves.tinevez@gmail.com>, Albert Cardona <acardona@ini.phys.ethz.ch>
@@ -196,7 +199,8 @@ public boolean process() {
 		
 		try {
 			Node root_node = parser.parse(expression);
-			result = (Image<T>) parser.evaluate(root_node);
+			// Evaluate pixel-based operations in one pass, without intermediate images
+			result = (Image<T>) new ImgLibFusedEvaluator<T>(parser).evaluate(root_node);
 			result.setName(expression);
 			error_message = "";
 			return true;
@@ -0,0 +1,91 @@
+package fiji.expressionparser.test;
+
+import static fiji.expressionparser.test.TestUtilities.buildErrorImage;
+import static fiji.expressionparser.test.TestUtilities.checkErrorImage;
+import static fiji.expressionparser.test.TestUtilities.echoImage;
+import static fiji.expressionparser.test.TestUtilities.image_A;
+import static fiji.expressionparser.test.TestUtilities.image_B;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.type.numeric.integer.UnsignedShortType;
+import mpicbg.imglib.type.numeric.real.FloatType;
+
+import org.junit.Test;
+import org.nfunk.jep.Node;
+import org.nfunk.jep.ParseException;
+
+import fiji.expressionparser.ImgLibFusedEvaluator;
+import fiji.expressionparser.ImgLibParser;
+
+/**
+ * Check that the {@link ImgLibFusedEvaluator} gives the same results as the
+ * node-by-node evaluation of the parser.
+ */
+public class TestFusedEvaluator {
+
+	private static final String[] EXPRESSIONS = new String[] {
+		"(A-B)/(A+B)*100",
+		"-A + 2*B^0.5",
+		"sin(A) * cos(B) - atan2(A, B)",
+		"(A > 30) && !(B == 256) || (A % 7 >= 3)",
+		"abs(round(A/3) - floor(B/5)) + ceil(sqrt(A*B))",
+		"log(A+1) + exp(-B/100)",
+		"gauss(A - B, 0.8) * 2 + normalize(B)",
+		"gauss(A, 1) / pi",
+	};
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void sameAsParser() throws ParseException {
+		for (int threads = 1; threads <= 4; threads++) {
+			for (String expression : EXPRESSIONS) {
+				ImgLibParser<UnsignedShortType> parser = createParser();
+				Node node = parser.parse(expression);
+				Image<FloatType> expected = (Image<FloatType>) parser.evaluate(node);
+				ImgLibFusedEvaluator<UnsignedShortType> evaluator = new ImgLibFusedEvaluator<UnsignedShortType>(parser);
+				evaluator.setNumThreads(threads);
+				Image<FloatType> actual = (Image<FloatType>) evaluator.evaluate(node);
+				Image<FloatType> error = buildErrorImage(expected, actual);
+				boolean passed = checkErrorImage(error);
+				try {
+					assertTrue(passed);
+				} catch (AssertionError ae) {
+					System.out.println("\n---");
+					System.out.println("Fused evaluation of "+expression+" with "+threads+" threads failed with error image:");
+					echoImage(error, System.out);
+					throw (ae);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void numbers() throws ParseException {
+		ImgLibParser<UnsignedShortType> parser = createParser();
+		Node node = parser.parse("(3-1)/(3+1)*100");
+		assertEquals(50f, ((FloatType) new ImgLibFusedEvaluator<UnsignedShortType>(parser).evaluate(node)).get(), 0f);
+	}
+
+	@Test
+	public void variableOnly() throws ParseException {
+		ImgLibParser<UnsignedShortType> parser = createParser();
+		Node node = parser.parse("A");
+		assertTrue(image_A == new ImgLibFusedEvaluator<UnsignedShortType>(parser).evaluate(node));
+	}
+
+	/*
+	 * PRIVATE
+	 */
+
+	private static ImgLibParser<UnsignedShortType> createParser() {
+		ImgLibParser<UnsignedShortType> parser = new ImgLibParser<UnsignedShortType>();
+		parser.addStandardConstants();
+		parser.addStandardFunctions();
+		parser.addImgLibAlgorithms();
+		parser.addVariable("A", image_A);
+		parser.addVariable("B", image_B);
+		return parser;
+	}
+}
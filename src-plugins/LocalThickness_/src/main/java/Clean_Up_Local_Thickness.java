@@ -68,6 +68,16 @@ public void run(ImageProcessor ip) {
 		//Create reference to input data
 		s = new float[d][];
 		for (int k = 0; k < d; k++)s[k] = (float[])stack.getPixels(k+1);
+		cleanUp();
+		IJ.showStatus("Clean Up Local Thickness complete");
+		String title = stripExtension(imp.getTitle());
+		ImagePlus impOut = new ImagePlus(title+"_CL",newStack);
+		impOut.getProcessor().setMinAndMax(0,2*imp.getProcessor().getMax());
+		impOut.show();
+		IJ.run("Fire");
+	}
+	//Cleans up the whole stack s into sNew, with w, h and d already set.
+	public void cleanUp(){
 		//First set the output array to flags:
 		// 0 for a background point
 		// -1 for a non-background point that borders a background point
@@ -105,12 +115,47 @@ public void run(ImageProcessor ip) {
 				}//i
 			}//j
 		}//k
-		IJ.showStatus("Clean Up Local Thickness complete");
-		String title = stripExtension(imp.getTitle());
-		ImagePlus impOut = new ImagePlus(title+"_CL",newStack);
-		impOut.getProcessor().setMinAndMax(0,2*imp.getProcessor().getMax());
-		impOut.show();
-		IJ.run("Fire");
+	}
+	//Cleans up slices kStart to kStop-1 of s in place, with w, h and d already set.
+	//Only the flags of three slices are kept at a time, in the three slices of
+	//scratch, rather than a whole new stack.  s must also hold slices kStart-2,
+	//kStart-1, kStop and kStop+1 (where they are in the stack), and they are only
+	//read, so several threads can clean up different parts of a stack at once if
+	//each one is given copies of the slices next to its part.
+	public void cleanUpSlices(int kStart, int kStop, float[][] scratch){
+		int wh = w*h;
+		sNew = new float[d][];
+		for (int k = kStart-1; k <= kStart; k++){
+			if((k >= 0)&&(k < d))setFlags(k,scratch[(k+3)%3]);
+		}
+		for (int k = kStart; k < kStop; k++){
+			//The flags of slice k-2 aren't needed any more, and their scratch
+			//slice is used for slice k+1
+			if(k > 1)sNew[k-2] = null;
+			if(k+1 < d)setFlags(k+1,scratch[(k+4)%3]);
+			//As in run, except that the result can be put straight back in s since
+			//nothing reads slice k of s after the flags of slice k+1 are set.
+			float[] sNewK = sNew[k];
+			float[] sK = s[k];
+			for (int j = 0; j < h; j++){
+				for (int i = 0; i < w; i++){
+					int ind = i + w*j;
+					if(sNewK[ind] == -1){
+						sNewK[ind] = -averageInteriorNeighbors(i,j,k);
+					}
+				}//i
+			}//j
+			for (int ind = 0; ind < wh; ind++)sK[ind] = (float)Math.abs(sNewK[ind]);
+		}//k
+		sNew = null;
+	}
+	void setFlags(int k, float[] flags){
+		sNew[k] = flags;
+		for (int j = 0; j < h; j++){
+			for (int i = 0; i < w; i++){
+				flags[i + w*j] = setFlag(i,j,k);
+			}//i
+		}//j
 	}
 	float setFlag(int i,int j,int k){
 		if(s[k][i+w*j]==0)return 0;
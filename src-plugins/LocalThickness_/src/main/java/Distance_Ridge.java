@@ -57,6 +57,9 @@ public class Distance_Ridge implements  PlugInFilter {
 	private ImagePlus imp;
 	public float[][] data;
 	public int w,h,d;
+	//Set up by prepare
+	int[] distSqIndex;
+	int[][] rSqTemplate;
 
 	public int setup(String arg, ImagePlus imp) {
  		this.imp = imp;
@@ -79,11 +82,23 @@ public void run(ImageProcessor ip) {
 		float[][] s = new float[d][];
 		for (int k = 0; k < d; k++)s[k] = (float[])stack.getPixels(k+1);
 		//Do it
-		int k1,j1,i1,dz,dy,dx;
-		boolean notRidgePoint;
-		float[] sk1;
-		float[] sk, skNew;
-		int sk0Sq,sk0SqInd,sk1Sq;
+		float distMax = prepare(s);
+		for (int k = 0; k < d; k++){
+			IJ.showStatus("Distance Ridge: processing slice "+(k+1)+"/"+(d+1));
+			//IJ.showProgress(k/(1.*d));
+			ridgeSlice((k > 0) ? s[k-1] : null,s[k],(k < d-1) ? s[k+1] : null,sNew[k]);
+		}//k
+		IJ.showStatus("Distance Ridge complete");
+		String title = stripExtension(imp.getTitle());
+		ImagePlus impOut = new ImagePlus(title+"_DR",newStack);
+		impOut.getProcessor().setMinAndMax(0,distMax);
+		impOut.show();
+		IJ.run("Fire");
+	}
+	//Scans the distance map s for the distance-squared values that occur and
+	//builds the search templates used by ridgeSlice.  Returns the largest distance.
+	public float prepare(float[][] s){
+		float[] sk;
 		//Find the largest distance in the data
 		IJ.showStatus("Distance Ridge: scanning the data");
 		float distMax = 0;
@@ -113,7 +128,7 @@ public void run(ImageProcessor ip) {
 			if(occurs[i])numRadii++;
 		}
 		//Make an index of the distance-squared values
-		int[] distSqIndex = new int[rSqMax];
+		distSqIndex = new int[rSqMax];
 		int[] distSqValues = new int[numRadii];
 		int indDS = 0;
 		for (int i = 0; i < rSqMax; i++){
@@ -129,71 +144,70 @@ public void run(ImageProcessor ip) {
 		//is the minimum square radius of the remote point required to cover the
 		//ball of the test point.
 		IJ.showStatus("Distance Ridge: creating search templates");
-		int[][] rSqTemplate = createTemplate(distSqValues);
+		rSqTemplate = createTemplate(distSqValues);
+		return distMax;
+	}
+	//Writes the distance ridge of slice sk to skNew: the distance for ridge points and 0
+	//elsewhere.  skm1 and skp1 are the slices before and after sk, or null at the ends
+	//of the stack.  Only reads its inputs, so slices can be processed in any order and
+	//by several threads at once after prepare has been called.
+	public void ridgeSlice(float[] skm1, float[] sk, float[] skp1, float[] skNew){
+		int j1,i1,dz,dy,dx;
+		boolean notRidgePoint;
+		float[] sk1;
+		int sk0Sq,sk0SqInd,sk1Sq;
 		int numCompZ,numCompY,numCompX,numComp;
-		for (int k = 0; k < d; k++){
-			IJ.showStatus("Distance Ridge: processing slice "+(k+1)+"/"+(d+1));
-			//IJ.showProgress(k/(1.*d));
-			sk = s[k];
-			skNew = sNew[k];
-			for (int j = 0; j < h; j++){
-				for (int i = 0; i < w; i++){
-					int ind = i + w*j;
-					if(sk[ind] > 0){
-						notRidgePoint = false;
-						sk0Sq = (int)(sk[ind]*sk[ind] + 0.5f);
-						sk0SqInd = distSqIndex[sk0Sq];
-						for (dz = -1; dz <= 1; dz++){
-							k1 = k + dz;
-							if((k1 >= 0)&&(k1 < d)){
-								sk1 = s[k1];
-								if(dz == 0){
-									numCompZ = 0;
-								}else{
-									numCompZ = 1;
-								}
-								for (dy = -1; dy <= 1; dy++){
-									j1 = j + dy;
-									if((j1 >= 0)&&(j1 < h)){
-										if(dy == 0){
-											numCompY = 0;
-										}else{
-											numCompY = 1;
-										}
-										for (dx = -1; dx <= 1; dx++){
-											i1 = i + dx;
-											if((i1 >= 0)&&(i1 < w)){
-												if(dx == 0){
-													numCompX = 0;
-												}else{
-													numCompX = 1;
-												}
-												numComp = numCompX + numCompY + numCompZ;
-												if(numComp > 0){
-													sk1Sq = (int)(sk1[i1+w*j1]*sk1[i1+w*j1] + 0.5f);
-														if(sk1Sq >= rSqTemplate[numComp-1][sk0SqInd])
-															notRidgePoint = true;
-												}
-											}//if in grid for i1
-											if(notRidgePoint)break;
-										}//dx
-									}//if in grid for j1
-									if(notRidgePoint)break;
-								}//dy
-							}//if in grid for k1
-							if(notRidgePoint)break;
-						}//dz
-						if(!notRidgePoint)skNew[ind] = sk[ind];
-					}//if not in background
-				}//i
-			}//j
-		}//k
-		IJ.showStatus("Distance Ridge complete");
-		String title = stripExtension(imp.getTitle());
-		ImagePlus impOut = new ImagePlus(title+"_DR",newStack);
-		impOut.getProcessor().setMinAndMax(0,distMax);
-		impOut.show();
-		IJ.run("Fire");
+		for (int j = 0; j < h; j++){
+			for (int i = 0; i < w; i++){
+				int ind = i + w*j;
+				skNew[ind] = 0;
+				if(sk[ind] > 0){
+					notRidgePoint = false;
+					sk0Sq = (int)(sk[ind]*sk[ind] + 0.5f);
+					sk0SqInd = distSqIndex[sk0Sq];
+					for (dz = -1; dz <= 1; dz++){
+						sk1 = (dz < 0) ? skm1 : ((dz == 0) ? sk : skp1);
+						if(sk1 != null){
+							if(dz == 0){
+								numCompZ = 0;
+							}else{
+								numCompZ = 1;
+							}
+							for (dy = -1; dy <= 1; dy++){
+								j1 = j + dy;
+								if((j1 >= 0)&&(j1 < h)){
+									if(dy == 0){
+										numCompY = 0;
+									}else{
+										numCompY = 1;
+									}
+									for (dx = -1; dx <= 1; dx++){
+										i1 = i + dx;
+										if((i1 >= 0)&&(i1 < w)){
+											if(dx == 0){
+												numCompX = 0;
+											}else{
+												numCompX = 1;
+											}
+											numComp = numCompX + numCompY + numCompZ;
+											if(numComp > 0){
+												sk1Sq = (int)(sk1[i1+w*j1]*sk1[i1+w*j1] + 0.5f);
+													if(sk1Sq >= rSqTemplate[numComp-1][sk0SqInd])
+														notRidgePoint = true;
+											}
+										}//if in grid for i1
+										if(notRidgePoint)break;
+									}//dx
+								}//if in grid for j1
+								if(notRidgePoint)break;
+							}//dy
+						}//if in grid for k1
+						if(notRidgePoint)break;
+					}//dz
+					if(!notRidgePoint)skNew[ind] = sk[ind];
+				}//if not in background
+			}//i
+		}//j
 	}
 	//For each offset from the origin, (dx,dy,dz), and each radius-squared,
 	//rSq, find the smallest radius-squared, r1Squared, such that a ball
@@ -80,6 +80,19 @@ public void run(ImageProcessor ip) {
 			sStack.addSlice(null,ipk);
 			s[k] = (float[])ipk.getPixels();
 		}
+		float distMax = edt(s,nThreads);
+
+		IJ.showProgress(1.0);
+		IJ.showStatus("Done");
+		String title = stripExtension(imp.getTitle());
+		ImagePlus impOut = new ImagePlus(title+"EDT",sStack);
+		impOut.getProcessor().setMinAndMax(0,distMax);
+		impOut.show();
+		IJ.run("Fire");
+	}
+	//Computes the distance map of data (with w, h, d, thresh and inverse already
+	//set) into s, which must have d slices of w*h.  Returns the largest distance.
+	public float edt(float[][] s, int nThreads){
 		float[] sk;
 		//Transformation 1.  Use s to store g.
 		IJ.showStatus("EDT transformation 1/3");
@@ -140,14 +153,7 @@ public void run(ImageProcessor ip) {
 				}
 			}
 		}
-
-		IJ.showProgress(1.0);
-		IJ.showStatus("Done");
-		String title = stripExtension(imp.getTitle());
-		ImagePlus impOut = new ImagePlus(title+"EDT",sStack);
-		impOut.getProcessor().setMinAndMax(0,distMax);
-		impOut.show();
-		IJ.run("Fire");
+		return distMax;
 	}
 	//Modified from ImageJ code by Wayne Rasband
     String stripExtension(String name) {
@@ -0,0 +1,200 @@
+import ij.*;
+import ij.process.*;
+
+/* Performs all of the steps of the local thickness calculation (as Local_Thickness_Driver)
+on a single 32-bit stack, which is overwritten by the result of each step in turn.
+The driver makes a new stack for the distance ridge and for the clean up, so that at
+times it holds the 8-bit input and two 32-bit stacks; this holds the input and one
+32-bit stack, plus a few slices for each thread.
+
+The distance ridge and the clean up only look at the neighbors of each voxel, so the
+stack is split into one slab of slices for each thread, and each thread goes through
+its slab in order, putting the result for a slice back into the stack as soon as no
+later slice in the slab needs the old values.  The slices just outside each slab are
+copied first, since the thread that owns them will overwrite them.  The same scratch
+slices are used by both steps.  The last transformation of the distance map needs
+whole columns of the stack, so that step is left to EDT_S1D (which already works in
+its output stack), and the spheres are painted by Local_Thickness_Parallel, which
+shares out the ridge points between the threads by the size of their spheres.
+*/
+public class LocalThicknessPipeline {
+	public int w,h,d;
+	public int thresh;
+	public boolean inverse;
+	int nThreads = Runtime.getRuntime().availableProcessors();
+	//Slab n is slices slabStart[n] to slabStart[n+1]-1
+	int[] slabStart;
+	//Copies of the two slices before and the two slices after each slab
+	float[][][] halo;
+	//Three slices of scratch space for each slab
+	float[][][] scratch;
+
+	public LocalThicknessPipeline(int thresh, boolean inverse){
+		this.thresh = thresh;
+		this.inverse = inverse;
+	}
+	//Sets the number of threads (and so of slabs) to use; by default, one per processor.
+	public void setNumThreads(int nThreads){
+		this.nThreads = nThreads;
+	}
+	//Returns a new image with the cleaned-up local thickness of the 8-bit stack imp.
+	public ImagePlus run(ImagePlus imp){
+		ImageStack stack = imp.getStack();
+		w = stack.getWidth();
+		h = stack.getHeight();
+		d = imp.getStackSize();
+		//Create references to input data
+		byte[][] data = new byte[d][];
+		for (int k = 0; k < d; k++)data[k] = (byte[])stack.getPixels(k+1);
+		//Create the one 32 bit floating point stack used by all of the steps
+		ImageStack sStack = new ImageStack(w,h);
+		float[][] s = new float[d][];
+		for(int k = 0; k < d; k++){
+			ImageProcessor ipk = new FloatProcessor(w,h);
+			sStack.addSlice(null,ipk);
+			s[k] = (float[])ipk.getPixels();
+		}
+		setUpSlabs();
+
+		//Geometry to distance map
+		EDT_S1D edt = new EDT_S1D();
+		edt.w = w;
+		edt.h = h;
+		edt.d = d;
+		edt.thresh = thresh;
+		edt.inverse = inverse;
+		edt.data = data;
+		edt.edt(s,nThreads);
+
+		//Distance map to distance ridge
+		Distance_Ridge dr = new Distance_Ridge();
+		dr.w = w;
+		dr.h = h;
+		dr.d = d;
+		dr.prepare(s);
+		IJ.showStatus("Distance Ridge: processing "+(slabStart.length-1)+" slabs");
+		runSlabs(s,dr,null);
+
+		//Distance ridge to local thickness
+		Local_Thickness_Parallel lt = new Local_Thickness_Parallel();
+		lt.w = w;
+		lt.h = h;
+		lt.d = d;
+		float sMax = lt.localThickness(s,nThreads);
+
+		//Clean up
+		IJ.showStatus("Clean Up Local Thickness: processing "+(slabStart.length-1)+" slabs");
+		runSlabs(s,null,new Clean_Up_Local_Thickness[slabStart.length-1]);
+		halo = null;
+		scratch = null;
+
+		IJ.showStatus("Local Thickness complete");
+		ImagePlus impOut = new ImagePlus(stripExtension(imp.getTitle())+"_LocThk",sStack);
+		impOut.getProcessor().setMinAndMax(0,2*sMax);
+		return impOut;
+	}
+	void setUpSlabs(){
+		int nSlabs = (nThreads < d) ? nThreads : d;
+		slabStart = new int[nSlabs+1];
+		for(int n = 0; n <= nSlabs; n++)slabStart[n] = (int)((long)n*d/nSlabs);
+		int wh = w*h;
+		halo = new float[nSlabs][4][wh];
+		scratch = new float[nSlabs][3][wh];
+	}
+	//Runs the distance ridge (if dr is not null) or the clean up on each slab, in
+	//a thread per slab.
+	void runSlabs(float[][] s, Distance_Ridge dr, Clean_Up_Local_Thickness[] cu){
+		int nSlabs = slabStart.length-1;
+		for(int n = 0; n < nSlabs; n++){
+			copyHalo(s,n);
+		}
+		SlabThread[] st = new SlabThread[nSlabs];
+		for(int n = 0; n < nSlabs; n++){
+			float[][] view = slabView(s,n);
+			if(dr == null){
+				cu[n] = new Clean_Up_Local_Thickness();
+				cu[n].w = w;
+				cu[n].h = h;
+				cu[n].d = d;
+				cu[n].s = view;
+			}
+			st[n] = new SlabThread(slabStart[n],slabStart[n+1],view,scratch[n],dr,
+								(dr == null) ? cu[n] : null);
+			st[n].start();
+		}
+		try{
+			for(int n = 0; n < nSlabs; n++){
+				st[n].join();
+			}
+		}catch(InterruptedException ie){
+			IJ.error("A thread was interrupted .");
+		}
+	}
+	void copyHalo(float[][] s, int n){
+		int wh = w*h;
+		for(int m = 0; m < 2; m++){
+			int kBefore = slabStart[n]-2+m;
+			int kAfter = slabStart[n+1]+m;
+			if(kBefore >= 0)System.arraycopy(s[kBefore],0,halo[n][m],0,wh);
+			if(kAfter < d)System.arraycopy(s[kAfter],0,halo[n][2+m],0,wh);
+		}
+	}
+	//The slices as seen by the thread for slab n: its own slices of s, and the
+	//copies of the slices next to the slab.
+	float[][] slabView(float[][] s, int n){
+		float[][] view = new float[d][];
+		int kStart = slabStart[n];
+		int kStop = slabStart[n+1];
+		for(int k = kStart; k < kStop; k++)view[k] = s[k];
+		for(int m = 0; m < 2; m++){
+			int kBefore = kStart-2+m;
+			int kAfter = kStop+m;
+			if(kBefore >= 0)view[kBefore] = halo[n][m];
+			if(kAfter < d)view[kAfter] = halo[n][2+m];
+		}
+		return view;
+	}
+	//Modified from ImageJ code by Wayne Rasband
+    String stripExtension(String name) {
+        if (name!=null) {
+            int dotIndex = name.lastIndexOf(".");
+            if (dotIndex>=0)
+                name = name.substring(0, dotIndex);
+		}
+		return name;
+    }
+	class SlabThread extends Thread{
+		int kStart,kStop;
+		float[][] s;
+		float[][] scratch;
+		Distance_Ridge dr;
+		Clean_Up_Local_Thickness cu;
+		public SlabThread(int kStart, int kStop, float[][] s, float[][] scratch,
+					Distance_Ridge dr, Clean_Up_Local_Thickness cu){
+			this.kStart = kStart;
+			this.kStop = kStop;
+			this.s = s;
+			this.scratch = scratch;
+			this.dr = dr;
+			this.cu = cu;
+		}
+		public void run(){
+			if(dr != null){
+				ridge();
+			}else{
+				cu.cleanUpSlices(kStart,kStop,scratch);
+			}
+		}
+		//The ridge of slice k goes in scratch until the ridge of slice k+1
+		//has been found, since that needs the distances in slice k.
+		void ridge(){
+			int wh = w*h;
+			for(int k = kStart; k < kStop; k++){
+				dr.ridgeSlice((k > 0) ? s[k-1] : null,s[k],(k < d-1) ? s[k+1] : null,
+							scratch[(k-kStart)%2]);
+				if(k > kStart)System.arraycopy(scratch[(k-1-kStart)%2],0,s[k-1],0,wh);
+			}
+			System.arraycopy(scratch[(kStop-1-kStart)%2],0,s[kStop-1],0,wh);
+		}
+	}
+}
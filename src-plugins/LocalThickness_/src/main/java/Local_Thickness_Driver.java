@@ -42,6 +42,7 @@ public class Local_Thickness_Driver implements  PlugInFilter {
 	private ImagePlus imp;
 	public int thresh;
 	public boolean inverse;
+	public boolean lowMemory;
 
 	public int setup(String arg, ImagePlus imp) {
  		this.imp = imp;
@@ -51,6 +52,14 @@ public void run(ImageProcessor ip) {
 		String title = stripExtension(imp.getTitle());
 		imp.unlock();
 		if(!getScale())return;
+		if(lowMemory){
+			ImagePlus impLTC = new LocalThicknessPipeline(thresh,inverse).run(imp);
+			impLTC.show();
+			IJ.run("Fire");
+			IJ.showProgress(1.0);
+			IJ.showStatus("Done");
+			return;
+		}
 		if(inverse){
 			IJ.run("Geometry to Distance Map", "threshold="+thresh+" inverse");
 		}else{
@@ -84,15 +93,19 @@ String stripExtension(String name) {
 	boolean getScale() {
 		thresh = (int)Prefs.get("edtS1.thresh", 128);
 		inverse = Prefs.get("edtS1.inverse", false);
+		lowMemory = Prefs.get("localThickness.lowMemory", false);
 		GenericDialog gd = new GenericDialog("EDT...", IJ.getInstance());
 		gd.addNumericField("Threshold (1 to 255; value < thresh is background)", thresh, 0);
        	gd.addCheckbox("Inverse case (background when value >= thresh)",inverse);
+		gd.addCheckbox("Low memory (one 32-bit stack for all steps)",lowMemory);
 		gd.showDialog();
 		if (gd.wasCanceled())return false;
 		thresh = (int)gd.getNextNumber();
       	inverse = gd.getNextBoolean();
+		lowMemory = gd.getNextBoolean();
 		Prefs.set("edtS1.thresh", thresh);
 		Prefs.set("edtS1.inverse", inverse);
+		Prefs.set("localThickness.lowMemory", lowMemory);
 		return true;
 	}
 }
\ No newline at end of file
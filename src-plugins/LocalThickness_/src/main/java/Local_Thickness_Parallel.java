@@ -2,6 +2,10 @@
 import ij.plugin.filter.PlugInFilter;
 import ij.process.*;
 import java.awt.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /* Bob Dougherty September 6, 2006
 
@@ -16,6 +20,8 @@
 Version 2.1 Oct. 1, 2006.  Fixed a rounding error that caused some points to be missed.
 Version 3 July 31, 2007.  Parellel processing version.
 Version 3.1  Multiplies the output by 2 to conform with the definition of local thickness
+Version 3.2  The threads share out runs of ridge points by the size of their spheres,
+             instead of taking every nThreads-th slice.
 
 
  License:
@@ -52,6 +58,9 @@ public class Local_Thickness_Parallel implements  PlugInFilter {
 	private ImagePlus imp;
 	public float[][] data;
 	public int w,h,d;
+	//How many runs of ridge points to make for each thread; more runs balance
+	//the load better but take more locking of the shared counter.
+	static final int RUNS_PER_THREAD = 16;
 
 	public int setup(String arg, ImagePlus imp) {
  		this.imp = imp;
@@ -62,10 +71,20 @@ public void run(ImageProcessor ip) {
 		w = stack.getWidth();
 		h = stack.getHeight();
 		d = imp.getStackSize();
-		int wh = w*h;
 		//Create reference to input data
 		float[][] s = new float[d][];
 		for (int k = 0; k < d; k++)s[k] = (float[])stack.getPixels(k+1);
+		float sMax = localThickness(s,Runtime.getRuntime().availableProcessors());
+		IJ.showStatus("Local Thickness complete");
+		String title = stripExtension(imp.getTitle());
+		imp.setTitle(title+"_LT_");
+		imp.getProcessor().setMinAndMax(0,sMax);
+		imp.updateAndDraw();
+	}
+	//Replaces the distance ridge in s (d slices of w*h) by the local thickness,
+	//using nThreads threads.  Returns the largest distance on the ridge.
+	public float localThickness(float[][] s, int nThreads){
+		int wh = w*h;
 		float[] sk;
 		//Count the distance ridge points on each slice
 		int[] nRidge = new int[d];
@@ -112,14 +131,51 @@ public void run(ImageProcessor ip) {
 				}
 			}
 		}
-		int nThreads = Runtime.getRuntime().availableProcessors();
+		//Split the ridge points of each slice into runs of about the same amount
+		//of work, which is roughly the volume of the bounding cube of each sphere.
+		//The threads take the runs in order of decreasing work, as they finish
+		//the previous one, so that a few slices with big spheres don't leave
+		//all of the other threads idle at the end.
+		double totalWork = 0;
+		for (int k = 0; k < d; k++){
+			rRidgeK = rRidge[k];
+			for (iR = 0; iR < nRidge[k]; iR++)totalWork += sphereWork(rRidgeK[iR]);
+		}
+		double workPerRun = totalWork/(RUNS_PER_THREAD*nThreads);
+		ArrayList<int[]> runList = new ArrayList<int[]>();
+		final ArrayList<Double> runWork = new ArrayList<Double>();
+		for (int k = 0; k < d; k++){
+			rRidgeK = rRidge[k];
+			int start = 0;
+			double work = 0;
+			for (iR = 0; iR < nRidge[k]; iR++){
+				work += sphereWork(rRidgeK[iR]);
+				if((work >= workPerRun)||(iR == nRidge[k]-1)){
+					runList.add(new int[]{k,start,iR+1});
+					runWork.add(Double.valueOf(work));
+					start = iR+1;
+					work = 0;
+				}
+			}
+		}
+		Integer[] order = new Integer[runList.size()];
+		for(int run = 0; run < order.length; run++)order[run] = Integer.valueOf(run);
+		Arrays.sort(order,new Comparator<Integer>(){
+			public int compare(Integer a, Integer b){
+				return runWork.get(b.intValue()).compareTo(runWork.get(a.intValue()));
+			}
+		});
+		int[][] runs = new int[order.length][];
+		for(int run = 0; run < order.length; run++)runs[run] = runList.get(order[run].intValue());
 		final Object[] resources = new Object[d];//For synchronization
 		for(int k = 0; k < d; k++){
 			resources[k] = new Object();
 		}
+		AtomicInteger nextRun = new AtomicInteger(0);
+		IJ.showStatus("Local Thickness: processing "+runs.length+" runs of ridge points");
 		LTThread[] ltt = new LTThread[nThreads];
 		for(int thread = 0; thread < nThreads; thread++){
-			ltt[thread] = new LTThread(thread,nThreads,w,h,d,nRidge,
+			ltt[thread] = new LTThread(w,h,d,runs,nextRun,
 					 				s,iRidge,jRidge,rRidge,resources);
 			ltt[thread].start();
 		}
@@ -130,10 +186,7 @@ public void run(ImageProcessor ip) {
 		}catch(InterruptedException ie){
 			IJ.error("A thread was interrupted .");
 		}		
-		
-		
-		
-		
+		IJ.showProgress(1.0);
 
 		//Fix the square values and apply factor of 2
 		IJ.showStatus("Local Thickness: square root ");
@@ -146,11 +199,12 @@ public void run(ImageProcessor ip) {
 				}
 			}
 		}
-		IJ.showStatus("Local Thickness complete");
-		String title = stripExtension(imp.getTitle());
-		imp.setTitle(title+"_LT_");
-		imp.getProcessor().setMinAndMax(0,sMax);
-		imp.updateAndDraw();
+		return sMax;
+	}
+	//The number of voxels that are looked at for a sphere of radius r
+	static double sphereWork(float r){
+		double side = 2*Math.ceil(r)+1;
+		return side*side*side;
 	}
 	//Modified from ImageJ code by Wayne Rasband
     String stripExtension(String name) {
@@ -162,22 +216,22 @@ String stripExtension(String name) {
 		return name;
     }
 	class LTThread extends Thread{
-		int thread,nThreads,w,h,d,nR;
+		int w,h,d;
 		float[][] s;
-		int[] nRidge;
+		int[][] runs;
+		AtomicInteger nextRun;
 		int[][] iRidge, jRidge;
 		float[][] rRidge;
 		Object[] resources;
-		public LTThread(int thread, int nThreads, int w, int h, int d, int[] nRidge,
+		public LTThread(int w, int h, int d, int[][] runs, AtomicInteger nextRun,
 					float[][] s,int[][] iRidge, int[][] jRidge, float[][] rRidge,
 					Object[] resources){
-			this.thread = thread;
-			this.nThreads = nThreads;
 			this.w = w;
 			this.h = h;
 			this.d = d;
 			this.s = s;
-			this.nRidge = nRidge;
+			this.runs = runs;
+			this.nextRun = nextRun;
 			this.iRidge = iRidge;
 			this.jRidge = jRidge;
 			this.rRidge = rRidge;
@@ -195,14 +249,14 @@ public void run(){
 			int rSquared;
 			int[] iRidgeK,jRidgeK;
 			float[] rRidgeK;
-			for(int k = thread; k < d; k+=nThreads){
-				IJ.showStatus("Local Thickness: processing slice "+(k+1)+"/"+(d+1));
-				int nR = nRidge[k];
+			for(int run = nextRun.getAndIncrement(); run < runs.length; run = nextRun.getAndIncrement()){
+				IJ.showProgress(run,runs.length);
+				int k = runs[run][0];
 				iRidgeK = iRidge[k];
 				jRidgeK = jRidge[k];
 				rRidgeK = rRidge[k];
 				//sk = s[k];
-				for (int iR = 0; iR < nR; iR++){
+				for (int iR = runs[run][1]; iR < runs[run][2]; iR++){
 					i = iRidgeK[iR];
 					j = jRidgeK[iR];
 					r = rRidgeK[iR];
@@ -250,7 +304,7 @@ public void run(){
 						}//j1
 					}//k1
 				}//iR
-			}//k
+			}//run
 		}//run
 	}//Step1Thread
 }
\ No newline at end of file
@@ -0,0 +1,111 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link LocalThicknessPipeline} gives exactly the same result as
+ * running the individual plugins one after the other, whatever the number of
+ * threads (and so of slabs).
+ */
+public class TestLocalThicknessPipeline {
+	final static int w = 41, h = 33, d = 11;
+	final static int thresh = 128;
+
+	/** Some overlapping balls of different sizes, plus isolated voxels */
+	static ImagePlus createInput() {
+		final Random random = new Random(17);
+		final ImageStack stack = new ImageStack(w, h);
+		final byte[][] data = new byte[d][];
+		for (int k = 0; k < d; k++) {
+			final ByteProcessor ip = new ByteProcessor(w, h);
+			stack.addSlice(null, ip);
+			data[k] = (byte[])ip.getPixels();
+		}
+		for (int n = 0; n < 15; n++) {
+			final double cx = random.nextDouble() * w, cy = random.nextDouble() * h, cz = random.nextDouble() * d;
+			final double r = 1 + random.nextDouble() * 7;
+			for (int k = 0; k < d; k++)
+				for (int j = 0; j < h; j++)
+					for (int i = 0; i < w; i++) {
+						final double dx = i - cx, dy = j - cy, dz = k - cz;
+						if (dx * dx + dy * dy + dz * dz <= r * r)
+							data[k][i + w * j] = (byte)200;
+					}
+		}
+		for (int n = 0; n < 100; n++)
+			data[random.nextInt(d)][random.nextInt(w * h)] = (byte)255;
+		return new ImagePlus("input", stack);
+	}
+
+	/** EDT, distance ridge, local thickness and clean up, each into its own stack as the plugins do */
+	static float[][] runChain(final ImagePlus imp, final int nThreads) {
+		final byte[][] data = new byte[d][];
+		for (int k = 0; k < d; k++)
+			data[k] = (byte[])imp.getStack().getPixels(k + 1);
+
+		final float[][] distance = new float[d][w * h];
+		final EDT_S1D edt = new EDT_S1D();
+		edt.w = w;
+		edt.h = h;
+		edt.d = d;
+		edt.thresh = thresh;
+		edt.inverse = false;
+		edt.data = data;
+		edt.edt(distance, nThreads);
+
+		final float[][] ridge = new float[d][w * h];
+		final Distance_Ridge dr = new Distance_Ridge();
+		dr.w = w;
+		dr.h = h;
+		dr.d = d;
+		dr.prepare(distance);
+		for (int k = 0; k < d; k++)
+			dr.ridgeSlice(k > 0 ? distance[k - 1] : null, distance[k], k < d - 1 ? distance[k + 1] : null, ridge[k]);
+
+		final Local_Thickness_Parallel lt = new Local_Thickness_Parallel();
+		lt.w = w;
+		lt.h = h;
+		lt.d = d;
+		lt.localThickness(ridge, nThreads);
+
+		final Clean_Up_Local_Thickness cu = new Clean_Up_Local_Thickness();
+		cu.w = w;
+		cu.h = h;
+		cu.d = d;
+		cu.s = ridge;
+		cu.sNew = new float[d][w * h];
+		cu.cleanUp();
+		return cu.sNew;
+	}
+
+	@Test
+	public void testSameAsChain() {
+		final float[][] expected = runChain(createInput(), 1);
+
+		boolean nonZero = false;
+		for (int k = 0; k < d; k++)
+			for (final float value : expected[k])
+				nonZero |= value > 0;
+		assertTrue(nonZero);
+
+		// more threads than slices gives one slab per slice
+		for (final int nThreads : new int[] { 1, 2, 3, 4, 7, d, 16 }) {
+			assertArrayEquals("chain, " + nThreads + " threads", expected, runChain(createInput(), nThreads));
+
+			final LocalThicknessPipeline pipeline = new LocalThicknessPipeline(thresh, false);
+			pipeline.setNumThreads(nThreads);
+			final ImagePlus result = pipeline.run(createInput());
+			final float[][] actual = new float[d][];
+			for (int k = 0; k < d; k++)
+				actual[k] = (float[])result.getStack().getPixels(k + 1);
+			assertArrayEquals("pipeline, " + nThreads + " threads", expected, actual);
+		}
+	}
+}
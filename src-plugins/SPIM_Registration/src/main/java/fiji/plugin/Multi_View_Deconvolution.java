@@ -14,6 +14,7 @@
 
 import mpicbg.imglib.container.array.ArrayContainerFactory;
 import mpicbg.imglib.container.cell.CellContainerFactory;
+import mpicbg.imglib.container.cell.DiskCellContainerFactory;
 import mpicbg.imglib.image.Image;
 import mpicbg.imglib.image.display.imagej.ImageJFunctions;
 import mpicbg.imglib.type.numeric.real.FloatType;
@@ -26,6 +27,7 @@
 import mpicbg.spim.io.SPIMConfiguration;
 import mpicbg.spim.postprocessing.deconvolution.ExtractPSF;
 import mpicbg.spim.postprocessing.deconvolution2.BayesMVDeconvolution;
+import mpicbg.spim.postprocessing.deconvolution2.BayesMVDeconvolutionBlockwise;
 import mpicbg.spim.postprocessing.deconvolution2.CUDAConvolution;
 import mpicbg.spim.postprocessing.deconvolution2.LRFFT;
 import mpicbg.spim.postprocessing.deconvolution2.LRFFT.PSFTYPE;
@@ -229,7 +231,22 @@ else if ( conf.deconvolutionDisplayPSF == 5 )
 			deconvolved = LucyRichardsonMultiViewDeconvolution.lucyRichardsonMultiView( deconvolutionData, minNumIterations, maxNumIterations, multiplicative, 0, paralellViews );
 		*/
 		
-		if ( useTikhonovRegularization )
+		if ( container == 2 )
+		{
+			// the fused views are on disk, so we process psi block by block as well
+			final int[] psiBlockSize = useBlocks ? blockSize : new int[]{ 256, 256, 256 };
+			
+			if ( useCUDA )
+				IJ.log( "Out-of-core deconvolution runs on the CPU only." );
+			
+			IJ.log( "Out-of-core deconvolution in blocks of " + Util.printCoordinates( psiBlockSize ) );
+			
+			if ( useTikhonovRegularization )
+				deconvolved = new BayesMVDeconvolutionBlockwise( deconvolutionData, iterationType, numIterations, lambda, osemspeedup, osemspeedupIndex, psiBlockSize, "deconvolved" ).getPsi();
+			else
+				deconvolved = new BayesMVDeconvolutionBlockwise( deconvolutionData, iterationType, numIterations, 0, osemspeedup, osemspeedupIndex, psiBlockSize, "deconvolved" ).getPsi();
+		}
+		else if ( useTikhonovRegularization )
 			deconvolved = new BayesMVDeconvolution( deconvolutionData, iterationType, numIterations, lambda, osemspeedup, osemspeedupIndex, "deconvolved" ).getPsi();
 		else
 			deconvolved = new BayesMVDeconvolution( deconvolutionData, iterationType, numIterations, 0, osemspeedup, osemspeedupIndex, "deconvolved" ).getPsi();
@@ -299,7 +316,7 @@ else if ( conf.writeOutputImage == 2 )
 		"Efficient Bayesian (less fast, more precise)", 
 		"Independent (slow, very precise)",
 		"Illustrate overlap of views per pixel (do not deconvolve)" };
-	public static String[] imglibContainer = new String[]{ "Array container (input files smaller ~2048x2048x450 px)", "Cell container (input files larger ~2048x2048x450 px)" };
+	public static String[] imglibContainer = new String[]{ "Array container (input files smaller ~2048x2048x450 px)", "Cell container (input files larger ~2048x2048x450 px)", "Disk cell container (input files larger than the RAM, slower)" };
 	public static String[] computationOn = new String[]{ "CPU (Java)", "GPU (Nvidia CUDA via JNA)" };
 	public static String[] osemspeedupChoice = new String[]{ "1 (balanced)", "minimal number of overlapping views", "average number of overlapping views", "specify manually" };
 	public static String[] extractPSFs = new String[]{ "Extract from beads", "Provide file with PSF" };
@@ -1032,6 +1049,11 @@ else if ( osemspeedupIndex == 3 )
 			conf.outputImageFactory = new ArrayContainerFactory();
 			conf.imageFactory = new CellContainerFactory( 256 );
 		}
+		else if ( container == 2 )
+		{
+			conf.outputImageFactory = new ArrayContainerFactory();
+			conf.imageFactory = new DiskCellContainerFactory( 64 );
+		}
 		else
 		{
 			conf.outputImageFactory = new ArrayContainerFactory();
@@ -97,59 +97,70 @@ else if ( osemspeedupindex == 2 )//avg
 		
 		//this.stack = new ImageStack( this.psi.getDimension( 0 ), this.psi.getDimension( 1 ) );
 		
+		// the statistics of the kernel fourier transforms are logged per deconvolution
+		KernelFFTCache.resetStatistics();
+
 		// run the deconvolution
-		while ( i < numIterations )
+		try
 		{
-			runIteration();
-			
-			if ( debug && (i-1) % debugInterval == 0 )
+			while ( i < numIterations )
 			{
-				psi.getDisplay().setMinMax( 0, 1 );
-				final ImagePlus tmp = ImageJFunctions.copyToImagePlus( psi );
-				
-				if ( this.stack == null )
+				runIteration();
+			
+				if ( debug && (i-1) % debugInterval == 0 )
 				{
-					this.stack = tmp.getImageStack();
-					for ( int i = 0; i < this.psi.getDimension( 2 ); ++i )
-						this.stack.setSliceLabel( "Iteration 1", i + 1 );
+					psi.getDisplay().setMinMax( 0, 1 );
+					final ImagePlus tmp = ImageJFunctions.copyToImagePlus( psi );
+				
+					if ( this.stack == null )
+					{
+						this.stack = tmp.getImageStack();
+						for ( int i = 0; i < this.psi.getDimension( 2 ); ++i )
+							this.stack.setSliceLabel( "Iteration 1", i + 1 );
 					
-					tmp.setTitle( "debug view" );
-					this.ci = new CompositeImage( tmp, CompositeImage.COMPOSITE );
-					this.ci.setDimensions( 1, this.psi.getDimension( 2 ), 1 );
-					this.ci.show();
-				}
-				else if ( stack.getSize() == this.psi.getDimension( 2 ) )
-				{
-					IJ.log( "Stack size = " + this.stack.getSize() );
-					final ImageStack t = tmp.getImageStack();
-					for ( int i = 0; i < this.psi.getDimension( 2 ); ++i )
-						this.stack.addSlice( "Iteration 2", t.getProcessor( i + 1 ) );
-					IJ.log( "Stack size = " + this.stack.getSize() );
-					this.ci.hide();
-					IJ.log( "Stack size = " + this.stack.getSize() );
+						tmp.setTitle( "debug view" );
+						this.ci = new CompositeImage( tmp, CompositeImage.COMPOSITE );
+						this.ci.setDimensions( 1, this.psi.getDimension( 2 ), 1 );
+						this.ci.show();
+					}
+					else if ( stack.getSize() == this.psi.getDimension( 2 ) )
+					{
+						IJ.log( "Stack size = " + this.stack.getSize() );
+						final ImageStack t = tmp.getImageStack();
+						for ( int i = 0; i < this.psi.getDimension( 2 ); ++i )
+							this.stack.addSlice( "Iteration 2", t.getProcessor( i + 1 ) );
+						IJ.log( "Stack size = " + this.stack.getSize() );
+						this.ci.hide();
+						IJ.log( "Stack size = " + this.stack.getSize() );
 					
-					this.ci = new CompositeImage( new ImagePlus( "debug view", this.stack ), CompositeImage.COMPOSITE );
-					this.ci.setDimensions( 1, this.psi.getDimension( 2 ), 2 );
-					this.ci.show();
-				}
-				else
-				{
-					final ImageStack t = tmp.getImageStack();
-					for ( int i = 0; i < this.psi.getDimension( 2 ); ++i )
-						this.stack.addSlice( "Iteration " + i, t.getProcessor( i + 1 ) );
+						this.ci = new CompositeImage( new ImagePlus( "debug view", this.stack ), CompositeImage.COMPOSITE );
+						this.ci.setDimensions( 1, this.psi.getDimension( 2 ), 2 );
+						this.ci.show();
+					}
+					else
+					{
+						final ImageStack t = tmp.getImageStack();
+						for ( int i = 0; i < this.psi.getDimension( 2 ); ++i )
+							this.stack.addSlice( "Iteration " + i, t.getProcessor( i + 1 ) );
 
-					this.ci.setStack( this.stack, 1, this.psi.getDimension( 2 ), stack.getSize() / this.psi.getDimension( 2 ) );	
+						this.ci.setStack( this.stack, 1, this.psi.getDimension( 2 ), stack.getSize() / this.psi.getDimension( 2 ) );	
+					}
+					/*
+					Image<FloatType> psiCopy = psi.clone();
+					//ViewDataBeads.normalizeImage( psiCopy );
+					psiCopy.setName( "Iteration " + i + " l=" + lambda );
+					psiCopy.getDisplay().setMinMax( 0, 1 );
+					ImageJFunctions.copyToImagePlus( psiCopy ).show();
+					psiCopy.close();
+					psiCopy = null;*/
 				}
-				/*
-				Image<FloatType> psiCopy = psi.clone();
-				//ViewDataBeads.normalizeImage( psiCopy );
-				psiCopy.setName( "Iteration " + i + " l=" + lambda );
-				psiCopy.getDisplay().setMinMax( 0, 1 );
-				ImageJFunctions.copyToImagePlus( psiCopy ).show();
-				psiCopy.close();
-				psiCopy = null;*/
 			}
 		}
+		finally
+		{
+			// do not keep the block buffers of this deconvolution alive
+			LRFFT.clearBlocks();
+		}
 		
 		IJ.log( "DONE (" + new Date(System.currentTimeMillis()) + ")." );
 	}
@@ -240,6 +251,9 @@ final private static void runIteration( final Image< FloatType> psi, final Array
 	{
 		IJ.log( "iteration: " + iteration + " (" + new Date(System.currentTimeMillis()) + ")" );
 		
+		final long iterationTime = System.currentTimeMillis();
+		long convolutionTime = 0;
+		
 		final int numViews = data.size();
 		final Vector< Chunk > threadChunks = SimpleMultiThreading.divideIntoChunks( psi.getNumPixels(), Runtime.getRuntime().availableProcessors() );
 		final int numThreads = threadChunks.size();
@@ -262,7 +276,9 @@ final private static void runIteration( final Image< FloatType> psi, final Array
 			final Image<FloatType> psiBlurred = processingData.convolve1( psi );
 			
 			//System.out.println( view + " 1: " + fftConvolution.getProcessingTime() + " ms." );
-			System.out.println( view + " a: " + (time - System.currentTimeMillis()) + " ms." );
+			time = System.currentTimeMillis() - time;
+			convolutionTime += time;
+			System.out.println( view + " a: " + time + " ms." );
 			
 			// size = 666, 363, 537
 			
@@ -294,7 +310,9 @@ public void run()
 	        final Image< FloatType > integral = processingData.convolve2( psiBlurred );
 
 			//System.out.println( view + " 2: " + invFFConvolution.getProcessingTime() + " ms." );
-			System.out.println( view + " b: " + (time - System.currentTimeMillis()) + " ms." );
+			time = System.currentTimeMillis() - time;
+			convolutionTime += time;
+			System.out.println( view + " b: " + time + " ms." );
 
 			ai.set( 0 );
 	        for ( int ithread = 0; ithread < threads.length; ++ithread )
@@ -355,7 +373,7 @@ public void run()
 			IJ.log("iteration: " + iteration + " --- sum change: " + sumChange + " --- max change per pixel: " + maxChange );
 		}
 		
-		//System.out.println( "final: " + (time - System.currentTimeMillis()) + " ms." );
+		IJ.log( "iteration: " + iteration + " took " + (System.currentTimeMillis() - iterationTime) + " ms (convolutions: " + convolutionTime + " ms, kernel FFTs reused: " + KernelFFTCache.getHits() + ", computed: " + KernelFFTCache.getMisses() + ")" );
 	}
 	
 	private static final void collectStatistics( final long start, final long loopSize, final Image< FloatType > psi, final Image< FloatType > lastIteration, final double[] sumMax )
@@ -0,0 +1,503 @@
+package mpicbg.spim.postprocessing.deconvolution2;
+
+import ij.IJ;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mpicbg.imglib.algorithm.fft.FourierConvolution;
+import mpicbg.imglib.container.ContainerFactory;
+import mpicbg.imglib.container.array.Array;
+import mpicbg.imglib.container.array.ArrayContainerFactory;
+import mpicbg.imglib.container.basictypecontainer.array.FloatArray;
+import mpicbg.imglib.container.cell.DiskCellContainer;
+import mpicbg.imglib.container.cell.DiskCellContainerFactory;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.image.ImageFactory;
+import mpicbg.imglib.multithreading.Chunk;
+import mpicbg.imglib.multithreading.SimpleMultiThreading;
+import mpicbg.imglib.type.numeric.real.FloatType;
+import mpicbg.imglib.util.Util;
+import mpicbg.spim.postprocessing.deconvolution2.LRFFT.PSFTYPE;
+
+/**
+ * Multi-view deconvolution that never holds more than a few blocks of the data in memory.
+ *
+ * The images, weights and psi are only accessed block by block, so they can live in a
+ * {@link DiskCellContainer}, by default psi is created with a {@link DiskCellContainerFactory} as well.
+ * Every block of psi is extended by the halo both kernels need, for each view the update
+ * of the block is computed from the last psi and written into a second psi, which is
+ * swapped in once all blocks of the view are done. This gives the same result as
+ * {@link BayesMVDeconvolution} up to the treatment of the image borders.
+ *
+ * While a block is processed, a second thread already loads the next one into the
+ * other one of two buffers, so the memory needed grows with the block size times the
+ * number of views (the kernels are transformed at block size for each view) and not
+ * with the size of the dataset.
+ *
+ * Only CPU computation is supported.
+ */
+public class BayesMVDeconvolutionBlockwise implements Deconvolver
+{
+	final static float minValue = 0.0001f;
+
+	final int numViews, numDimensions;
+	final float avg;
+	final double lambda;
+
+	boolean collectStatistics = true;
+
+	// current iteration
+	int i = 0;
+
+	// the multi-view deconvolved image, and the one the next view is written to
+	Image<FloatType> psi, psiNext;
+
+	// the input data
+	final LRInput views;
+	final ArrayList<LRFFT> data;
+	final String name;
+
+	// the blocks (including the halo) and one convolution per view and kernel
+	final Block[] blocks;
+	final int[] blockSize;
+	final ArrayList< FourierConvolution< FloatType, FloatType > > fftConvolution1, fftConvolution2;
+
+	// the two buffers, one is processed while the other one is loaded
+	final BlockData[] buffers = new BlockData[ 2 ];
+
+	final Vector< Chunk > threadChunks;
+	final int numThreads;
+
+	public BayesMVDeconvolutionBlockwise( final LRInput views, final PSFTYPE iterationType, final int numIterations, final double lambda, final double osemspeedup, final int osemspeedupindex,
+			final int[] blockSize, final String name )
+	{
+		this( views, iterationType, numIterations, lambda, osemspeedup, osemspeedupindex, blockSize, new DiskCellContainerFactory( 64 ), name );
+	}
+
+	/**
+	 * @param blockSize - the size of the blocks including the halo, this is what determines the memory requirements
+	 * @param psiFactory - the container for psi, e.g. a {@link DiskCellContainerFactory}
+	 */
+	public BayesMVDeconvolutionBlockwise( final LRInput views, final PSFTYPE iterationType, final int numIterations, final double lambda, double osemspeedup, final int osemspeedupindex,
+			final int[] blockSize, final ContainerFactory psiFactory, final String name )
+	{
+		this.name = name;
+		this.data = views.getViews();
+		this.views = views;
+		this.numViews = data.size();
+		this.numDimensions = data.get( 0 ).getImage().getNumDimensions();
+		this.lambda = lambda;
+
+		final ImageFactory< FloatType > imageFactory = new ImageFactory< FloatType >( new FloatType(), psiFactory );
+		final int[] imgSize = data.get( 0 ).getImage().getDimensions();
+
+		if ( BayesMVDeconvolution.initialImage != null )
+			this.psi = BayesMVDeconvolution.loadInitialImage( BayesMVDeconvolution.initialImage, BayesMVDeconvolution.checkNumbers, minValue, imgSize, imageFactory );
+
+		final double[] result = AdjustInput.normAllImages( data );
+		this.avg = (float)result[ 0 ];
+
+		if ( osemspeedupindex == 1 )//min
+			osemspeedup = Math.max( 1, result[ 1 ] );//but not smaller than 1
+		else if ( osemspeedupindex == 2 )//avg
+			osemspeedup = Math.max( 1, result[ 2 ] );//but not smaller than 1
+
+		adjustOSEMspeedup( views, osemspeedup );
+
+		IJ.log( "Average intensity in overlapping area: " + avg );
+		IJ.log( "OSEM acceleration: " + osemspeedup );
+
+		// init all views
+		views.init( iterationType );
+
+		//
+		// the halo around each block has to cover both convolutions, i.e. it
+		// corresponds to a kernel of size kernel1 + kernel2 - 1
+		//
+		final int[] haloKernelSize = new int[ numDimensions ];
+
+		for ( final LRFFT view : data )
+			for ( int d = 0; d < numDimensions; ++d )
+				haloKernelSize[ d ] = Math.max( haloKernelSize[ d ], view.getKernel1().getDimension( d ) + view.getKernel2().getDimension( d ) - 1 );
+
+		this.blockSize = blockSize.clone();
+		this.blocks = Block.divideIntoBlocks( imgSize, this.blockSize, haloKernelSize );
+
+		IJ.log( "Processing psi in " + blocks.length + " blocks of " + Util.printCoordinates( this.blockSize ) + " px (halo kernel " + Util.printCoordinates( haloKernelSize ) + ")" );
+
+		final ImageFactory< FloatType > blockFactory = new ImageFactory< FloatType >( new FloatType(), new ArrayContainerFactory() );
+
+		for ( int b = 0; b < buffers.length; ++b )
+			buffers[ b ] = new BlockData( blockFactory, this.blockSize );
+
+		// the convolutions of the views work on full images, we only need them at block size
+		this.fftConvolution1 = new ArrayList< FourierConvolution< FloatType, FloatType > >();
+		this.fftConvolution2 = new ArrayList< FourierConvolution< FloatType, FloatType > >();
+
+		for ( final LRFFT view : data )
+		{
+			view.fftConvolution1 = null;
+			view.fftConvolution2 = null;
+
+			fftConvolution1.add( createConvolution( buffers[ 0 ].psi, view.getKernel1() ) );
+			fftConvolution2.add( createConvolution( buffers[ 0 ].psi, view.getKernel2() ) );
+		}
+
+		this.threadChunks = SimpleMultiThreading.divideIntoChunks( buffers[ 0 ].psi.getNumPixels(), Runtime.getRuntime().availableProcessors() );
+		this.numThreads = threadChunks.size();
+
+		//
+		// the real data image psi is initialized with the average
+		// if there was no initial guess loaded
+		//
+		if ( this.psi == null )
+		{
+			this.psi = imageFactory.createImage( imgSize, "psi (deconvolved image)" );
+
+			for ( final FloatType f : psi )
+				f.set( avg );
+		}
+
+		this.psiNext = imageFactory.createImage( imgSize, "psi (deconvolved image)" );
+
+		// run the deconvolution
+		while ( i < numIterations )
+			runIteration();
+
+		psiNext.close();
+		psiNext = null;
+
+		IJ.log( "DONE (" + new Date(System.currentTimeMillis()) + ")." );
+	}
+
+	private static FourierConvolution< FloatType, FloatType > createConvolution( final Image< FloatType > block, final Image< FloatType > kernel )
+	{
+		final FourierConvolution< FloatType, FloatType > fftConvolution = new FourierConvolution< FloatType, FloatType >( block, kernel );
+		fftConvolution.setNumThreads();
+		fftConvolution.setKeepImgFFT( false );
+
+		// the halo of the blocks is large enough that the wrap-around never reaches the part we use
+		fftConvolution.setExtendImageByKernelSize( false );
+
+		return fftConvolution;
+	}
+
+	private void adjustOSEMspeedup( final LRInput views, final double osemspeedup )
+	{
+		if ( osemspeedup == 1.0 )
+			return;
+
+		for ( final LRFFT view : views.getViews() )
+		{
+			for ( final FloatType f : view.getWeight() )
+				f.set( Math.min( 1, f.get() * (float)osemspeedup ) ); // individual contribution never higher than 1
+		}
+	}
+
+	public LRInput getData() { return views; }
+	public String getName() { return name; }
+	public double getAvg() { return avg; }
+
+	public Image<FloatType> getPsi() { return psi; }
+	public int getCurrentIteration() { return i; }
+
+	public void runIteration()
+	{
+		IJ.log( "iteration: " + i + " (" + new Date(System.currentTimeMillis()) + ")" );
+
+		double sumChange = 0;
+		double maxChange = -1;
+
+		for ( int view = 0; view < numViews; ++view )
+		{
+			final long time = System.currentTimeMillis();
+
+			final double[] sumMax = processView( view );
+
+			sumChange += sumMax[ 0 ];
+			maxChange = Math.max( maxChange, sumMax[ 1 ] );
+
+			// the updated psi is the input for the next view
+			final Image< FloatType > tmp = psi;
+			psi = psiNext;
+			psiNext = tmp;
+
+			System.out.println( view + ": " + (System.currentTimeMillis() - time) + " ms." );
+		}
+
+		if ( collectStatistics )
+			IJ.log("iteration: " + i + " --- sum change (all views): " + sumChange + " --- max change per pixel and view: " + maxChange );
+
+		++i;
+	}
+
+	/**
+	 * Updates all blocks of psi for one view and writes the result to psiNext. The blocks
+	 * are loaded by a second thread while the previous one is processed.
+	 *
+	 * @return - the sum and the maximum of the changes of psi
+	 */
+	protected double[] processView( final int view )
+	{
+		final LRFFT processingData = data.get( view );
+		final FourierConvolution< FloatType, FloatType > conv1 = fftConvolution1.get( view );
+		final FourierConvolution< FloatType, FloatType > conv2 = fftConvolution2.get( view );
+
+		final ArrayBlockingQueue< BlockData > free = new ArrayBlockingQueue< BlockData >( buffers.length );
+		final ArrayBlockingQueue< BlockData > loaded = new ArrayBlockingQueue< BlockData >( buffers.length );
+
+		for ( final BlockData buffer : buffers )
+			free.add( buffer );
+
+		final BlockData failed = new BlockData();
+		final Thread prefetch = new Thread( new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					for ( int b = 0; b < blocks.length; ++b )
+					{
+						final BlockData buffer = free.take();
+
+						buffer.block = blocks[ b ];
+						buffer.block.copyBlock( psi, buffer.psi );
+						buffer.block.copyBlock( processingData.getImage(), buffer.image );
+						buffer.block.copyBlock( processingData.getWeight(), buffer.weight );
+
+						loaded.put( buffer );
+					}
+				}
+				catch ( InterruptedException e ) {}
+				catch ( RuntimeException e )
+				{
+					failed.error = e;
+					loaded.offer( failed );
+				}
+			}
+		}, "prefetch view " + view );
+
+		prefetch.start();
+
+		final double[] sumMax = new double[]{ 0, -1 };
+
+		try
+		{
+			for ( int b = 0; b < blocks.length; ++b )
+			{
+				final BlockData buffer = loaded.take();
+
+				if ( buffer == failed )
+					throw new RuntimeException( "Could not load block " + b + " of view " + view + ": " + failed.error, failed.error );
+
+				// convolve psi (current guess of the image) with the PSF of the current view
+				conv1.replaceImage( buffer.psi );
+				KernelFFTCache.process( conv1 );
+				final Image< FloatType > psiBlurred = conv1.getResult();
+
+				// compute quotient img/psiBlurred
+				computeQuotient( array( psiBlurred ), array( buffer.image ) );
+
+				// blur the residuals image with the kernel
+				conv2.replaceImage( psiBlurred );
+				KernelFFTCache.process( conv2 );
+				final Image< FloatType > integral = conv2.getResult();
+				psiBlurred.close();
+
+				// compute the new psi, in place of the integral
+				final double[] blockSumMax = computeFinalValues( array( buffer.psi ), array( integral ), array( buffer.weight ), buffer.block );
+
+				sumMax[ 0 ] += blockSumMax[ 0 ];
+				sumMax[ 1 ] = Math.max( sumMax[ 1 ], blockSumMax[ 1 ] );
+
+				buffer.block.pasteBlock( psiNext, integral );
+				integral.close();
+
+				free.put( buffer );
+			}
+		}
+		catch ( InterruptedException e )
+		{
+			prefetch.interrupt();
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( "Interrupted while processing view " + view, e );
+		}
+		finally
+		{
+			prefetch.interrupt();
+		}
+
+		return sumMax;
+	}
+
+	private static final float[] array( final Image< FloatType > block )
+	{
+		return ((FloatArray)((Array)block.getContainer()).update( null )).getCurrentStorageArray();
+	}
+
+	private void computeQuotient( final float[] psiBlurred, final float[] image )
+	{
+		final AtomicInteger ai = new AtomicInteger(0);
+		final Thread[] threads = SimpleMultiThreading.newThreads( numThreads );
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ithread] = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					// get chunk of pixels to process
+					final Chunk myChunk = threadChunks.get( ai.getAndIncrement() );
+					final int start = (int)myChunk.getStartPosition();
+					final int end = start + (int)myChunk.getLoopSize();
+
+					for ( int j = start; j < end; ++j )
+						psiBlurred[ j ] = image[ j ] / psiBlurred[ j ];
+				}
+			});
+
+		SimpleMultiThreading.startAndJoin( threads );
+	}
+
+	/**
+	 * Computes the new psi for the whole block, but collects statistics only where it is used.
+	 */
+	private double[] computeFinalValues( final float[] psi, final float[] integral, final float[] weight, final Block block )
+	{
+		final int[] min = block.effectiveLocalOffset;
+		final int[] max = new int[ numDimensions ];
+
+		for ( int d = 0; d < numDimensions; ++d )
+			max[ d ] = min[ d ] + block.effectiveSize[ d ];
+
+		final double[][] sumMax = new double[ numThreads ][ 2 ];
+
+		final AtomicInteger ai = new AtomicInteger(0);
+		final Thread[] threads = SimpleMultiThreading.newThreads( numThreads );
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ithread] = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					// Thread ID
+					final int myNumber = ai.getAndIncrement();
+
+					// get chunk of pixels to process
+					final Chunk myChunk = threadChunks.get( myNumber );
+					final int start = (int)myChunk.getStartPosition();
+					final int end = start + (int)myChunk.getLoopSize();
+
+					final int[] position = new int[ numDimensions ];
+					double sumChange = 0;
+					double maxChange = -1;
+
+					for ( int j = start; j < end; ++j )
+					{
+						final float lastPsiValue = psi[ j ];
+						final float nextPsiValue = computeFinalValue( lastPsiValue, integral[ j ], weight[ j ], lambda );
+
+						integral[ j ] = nextPsiValue;
+
+						if ( collectStatistics )
+						{
+							getPosition( j, blockSize, position );
+
+							boolean inside = true;
+							for ( int d = 0; d < numDimensions && inside; ++d )
+								if ( position[ d ] < min[ d ] || position[ d ] >= max[ d ] )
+									inside = false;
+
+							if ( inside )
+							{
+								final float change = Math.abs( nextPsiValue - lastPsiValue );
+								sumChange += change;
+								maxChange = Math.max( maxChange, change );
+							}
+						}
+					}
+
+					sumMax[ myNumber ][ 0 ] = sumChange;
+					sumMax[ myNumber ][ 1 ] = maxChange;
+				}
+			});
+
+		SimpleMultiThreading.startAndJoin( threads );
+
+		final double[] result = new double[]{ 0, -1 };
+
+		for ( int t = 0; t < numThreads; ++t )
+		{
+			result[ 0 ] += sumMax[ t ][ 0 ];
+			result[ 1 ] = Math.max( result[ 1 ], sumMax[ t ][ 1 ] );
+		}
+
+		return result;
+	}
+
+	private static final void getPosition( int index, final int[] size, final int[] position )
+	{
+		for ( int d = 0; d < size.length; ++d )
+		{
+			position[ d ] = index % size[ d ];
+			index /= size[ d ];
+		}
+	}
+
+	/**
+	 * The same update as in {@link BayesMVDeconvolution}.
+	 */
+	private static final float computeFinalValue( final float lastPsiValue, final float integral, final float weight, final double lambda )
+	{
+		float value = lastPsiValue * integral;
+
+		if ( value > 0 )
+		{
+			//
+			// perform Tikhonov regularization if desired
+			//
+			if ( lambda > 0 )
+				value = ( (float)( (Math.sqrt( 1.0 + 2.0*lambda*value ) - 1.0) / lambda ) );
+		}
+		else
+		{
+			value = minValue;
+		}
+
+		float nextPsiValue;
+
+		if ( Double.isNaN( value ) )
+			nextPsiValue = minValue;
+		else
+			nextPsiValue = Math.max( minValue, value );
+
+		// apply the apropriate amount
+		return lastPsiValue + ( nextPsiValue - lastPsiValue ) * weight;
+	}
+
+	/**
+	 * The data of one block that is needed to update it for one view.
+	 */
+	protected static class BlockData
+	{
+		Block block;
+		final Image< FloatType > psi, image, weight;
+		RuntimeException error = null;
+
+		public BlockData( final ImageFactory< FloatType > factory, final int[] blockSize )
+		{
+			this.psi = factory.createImage( blockSize );
+			this.image = factory.createImage( blockSize );
+			this.weight = factory.createImage( blockSize );
+		}
+
+		/**
+		 * Only used to signal that loading failed
+		 */
+		protected BlockData()
+		{
+			this.psi = this.image = this.weight = null;
+		}
+	}
+}
@@ -101,7 +101,7 @@ public void run()
                 	// get chunk of pixels to process
                 	final Chunk myChunk = threadChunks.get( threadIdx );
                 	
-                	if ( source.getNumDimensions() == 3 && Array.class.isInstance( block.getContainer() ) )
+                	if ( source.getNumDimensions() == 3 && Array.class.isInstance( block.getContainer() ) && Array.class.isInstance( source.getContainer() ) )
                 		copy3d( threadIdx, numThreads, source, block, offset, inside, factory );
                 	else
                 		copy( myChunk.getStartPosition(), myChunk.getLoopSize(), source, block, offset, inside, factory );
@@ -183,6 +183,14 @@ private static final void copy3d( final int threadIdx, final int numThreads, fin
 
 	public void pasteBlock( final Image< FloatType > target, final Image< FloatType > block )
 	{	
+		// only the effective part of the block is pasted
+		long n = effectiveSize[ 0 ];
+		for ( int d = 1; d < numDimensions; ++d )
+			n *= effectiveSize[ d ];
+
+		final Vector< Chunk > threadChunks = SimpleMultiThreading.divideIntoChunks( n, numThreads );
+		final int numThreads = threadChunks.size();
+
 		final AtomicInteger ai = new AtomicInteger(0);					
         final Thread[] threads = SimpleMultiThreading.newThreads( numThreads );
         for ( int ithread = 0; ithread < threads.length; ++ithread )
@@ -0,0 +1,126 @@
+package mpicbg.spim.postprocessing.deconvolution2;
+
+import java.util.HashMap;
+import java.util.WeakHashMap;
+
+import mpicbg.imglib.algorithm.fft.FourierConvolution;
+import mpicbg.imglib.container.Container;
+import mpicbg.imglib.container.cell.CellContainer;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.type.numeric.complex.ComplexFloatType;
+import mpicbg.imglib.type.numeric.real.FloatType;
+import mpicbg.imglib.util.Util;
+
+/**
+ * Shares the fourier transforms of the kernels between all {@link FourierConvolution}s
+ * that convolve images (or blocks) of the same size with the same kernel, so that each
+ * kernel is only transformed once per padded size, no matter how many convolutions are
+ * created for it (e.g. when cloning an {@link LRFFT} or processing blocks).
+ *
+ * The kernels are identified by the instance, they must not be changed once they have been
+ * used for a convolution. The shared transforms are never closed, do not call
+ * {@link FourierConvolution#close()} on convolutions that are run through this cache.
+ */
+public class KernelFFTCache
+{
+	// kernel -> size and container of the image and whether it is extended -> fft of the kernel
+	final static WeakHashMap< Image< FloatType >, HashMap< String, Image< ComplexFloatType > > > cache = new WeakHashMap< Image< FloatType >, HashMap< String, Image< ComplexFloatType > > >();
+
+	static long hits = 0, misses = 0;
+
+	/**
+	 * Runs the convolution, using the cached fourier transform of the kernel if there
+	 * is one, and adding it to the cache otherwise.
+	 *
+	 * @param fftConvolution - the convolution to run
+	 * @return - the result of {@link FourierConvolution#process()}
+	 */
+	public static boolean process( final FourierConvolution< FloatType, FloatType > fftConvolution )
+	{
+		final Image< FloatType > kernel = fftConvolution.getKernel();
+		final String key = getKey( fftConvolution );
+
+		if ( fftConvolution.getKernelFFT() == null )
+		{
+			final Image< ComplexFloatType > kernelFFT = get( kernel, key );
+
+			if ( kernelFFT != null )
+				fftConvolution.setKernelFFT( kernelFFT );
+		}
+
+		final boolean result = fftConvolution.process();
+
+		if ( result )
+			put( kernel, key, fftConvolution.getKernelFFT() );
+
+		return result;
+	}
+
+	synchronized protected static Image< ComplexFloatType > get( final Image< FloatType > kernel, final String key )
+	{
+		final HashMap< String, Image< ComplexFloatType > > kernelFFTs = cache.get( kernel );
+		final Image< ComplexFloatType > kernelFFT = kernelFFTs == null ? null : kernelFFTs.get( key );
+
+		if ( kernelFFT == null )
+			++misses;
+		else
+			++hits;
+
+		return kernelFFT;
+	}
+
+	synchronized protected static void put( final Image< FloatType > kernel, final String key, final Image< ComplexFloatType > kernelFFT )
+	{
+		HashMap< String, Image< ComplexFloatType > > kernelFFTs = cache.get( kernel );
+
+		if ( kernelFFTs == null )
+		{
+			kernelFFTs = new HashMap< String, Image< ComplexFloatType > >();
+			cache.put( kernel, kernelFFTs );
+		}
+
+		if ( !kernelFFTs.containsKey( key ) )
+			kernelFFTs.put( key, kernelFFT );
+	}
+
+	/**
+	 * The size of the fourier transform only depends on the size of the image and
+	 * whether it is extended by the kernel. Its container is created by the container
+	 * factory of the image, and has to match the container of the image's transform
+	 * when they are multiplied, so the container type (and the cell size of cell
+	 * containers) is part of the key as well
+	 */
+	protected static String getKey( final FourierConvolution< FloatType, FloatType > fftConvolution )
+	{
+		final Image< FloatType > image = fftConvolution.getImage();
+		final Container< FloatType > container = image.getContainer();
+
+		String key = Util.printCoordinates( image.getDimensions() ) + fftConvolution.getExtendImageByKernelSize() + container.getFactory().getClass().getName();
+
+		if ( container instanceof CellContainer )
+			key += Util.printCoordinates( ( ( CellContainer< ?, ? > ) container ).getCellSize() );
+
+		return key;
+	}
+
+	synchronized public static long getHits() { return hits; }
+	synchronized public static long getMisses() { return misses; }
+
+	/**
+	 * Resets the number of reused and computed fourier transforms, e.g. when a new
+	 * deconvolution starts
+	 */
+	synchronized public static void resetStatistics()
+	{
+		hits = misses = 0;
+	}
+
+	/**
+	 * Removes all fourier transforms from the cache
+	 */
+	synchronized public static void clear()
+	{
+		cache.clear();
+		hits = misses = 0;
+	}
+}
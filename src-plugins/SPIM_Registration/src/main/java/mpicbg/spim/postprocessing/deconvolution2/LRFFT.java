@@ -3,6 +3,7 @@
 import ij.IJ;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import mpicbg.imglib.algorithm.fft.FourierConvolution;
@@ -19,6 +20,7 @@
 import mpicbg.imglib.multithreading.SimpleMultiThreading;
 import mpicbg.imglib.outofbounds.OutOfBoundsStrategyValueFactory;
 import mpicbg.imglib.type.numeric.real.FloatType;
+import mpicbg.imglib.util.Util;
 
 public class LRFFT 
 {
@@ -43,6 +45,12 @@ public static enum PSFTYPE { OPTIMIZATION_II, OPTIMIZATION_I, EFFICIENT_BAYESIAN
 	 * Used to determine if the Convolutions already have been computed for the current iteration
 	 */
 	int i = -1;
+
+	/**
+	 * Block images that are not in use, by size. They are shared by all views and threads, so each
+	 * thread convolving blocks does not need to allocate a new one for every convolution.
+	 */
+	final static HashMap< String, ArrayList< Image< FloatType > > > freeBlocks = new HashMap< String, ArrayList< Image< FloatType > > >();
 	
 	public LRFFT( final Image<FloatType> image, final Image<FloatType> weight, final Image<FloatType> kernel, final int[] deviceList, final boolean useBlocks, final int[] blockSize )
 	{
@@ -268,6 +276,57 @@ else if ( iterationType == PSFTYPE.OPTIMIZATION_I )
 		}
 	}
 	
+	/**
+	 * @return - a block image that is not in use, it has to be given back with {@link #returnBlock(Image)}
+	 */
+	protected static Image< FloatType > takeBlock( final ImageFactory< FloatType > factory, final int[] blockSize )
+	{
+		synchronized ( freeBlocks )
+		{
+			final ArrayList< Image< FloatType > > blocks = freeBlocks.get( Util.printCoordinates( blockSize ) );
+			
+			if ( blocks != null && blocks.size() > 0 )
+				return blocks.remove( blocks.size() - 1 );
+		}
+		
+		return factory.createImage( blockSize );
+	}
+	
+	/**
+	 * Makes a block image taken with {@link #takeBlock(ImageFactory, int[])} available again
+	 */
+	protected static void returnBlock( final Image< FloatType > block )
+	{
+		synchronized ( freeBlocks )
+		{
+			final String key = Util.printCoordinates( block.getDimensions() );
+			ArrayList< Image< FloatType > > blocks = freeBlocks.get( key );
+			
+			if ( blocks == null )
+			{
+				blocks = new ArrayList< Image< FloatType > >();
+				freeBlocks.put( key, blocks );
+			}
+			
+			blocks.add( block );
+		}
+	}
+	
+	/**
+	 * Frees all block images that are not in use
+	 */
+	public static void clearBlocks()
+	{
+		synchronized ( freeBlocks )
+		{
+			for ( final ArrayList< Image< FloatType > > blocks : freeBlocks.values() )
+				for ( final Image< FloatType > block : blocks )
+					block.close();
+			
+			freeBlocks.clear();
+		}
+	}
+	
 	public static Image<FloatType> computeExponentialKernel( final Image<FloatType> kernel, final int numViews )
 	{
 		final Image<FloatType> exponentialKernel = kernel.clone();
@@ -339,7 +398,7 @@ public Image< FloatType > convolve1( final Image< FloatType > image )
 				//IJ.log( "Using CPU only on blocks ... " );
 				
 				final Image< FloatType > result = image.createNewImage();
-				final Image< FloatType > block = factory.createImage( blockSize );
+				final Image< FloatType > block = takeBlock( factory, blockSize );
 				
 				for ( int i = 0; i < blocks.length; ++i )
 				{
@@ -360,7 +419,7 @@ public Image< FloatType > convolve1( final Image< FloatType > image )
 					LRFFTThreads.convolve1BlockCPU( blocks[ i ], i, image, result, block, fftConvolution1 );
 				}
 				
-				block.close();
+				returnBlock( block );
 				
 				return result;
 			}
@@ -371,7 +430,7 @@ public Image< FloatType > convolve1( final Image< FloatType > image )
 				long time = System.currentTimeMillis();
 				final FourierConvolution<FloatType, FloatType> fftConv = fftConvolution1;
 				fftConv.replaceImage( image );
-				fftConv.process();
+				KernelFFTCache.process( fftConv );
 				System.out.println( " block " + i + ": compute " + (System.currentTimeMillis() - time) );
 				
 				return fftConv.getResult();				
@@ -385,7 +444,7 @@ else if ( useCUDA && !useCPU && numDevices == 1 )
 			//	IJ.log( "Using CUDA only to compute as one block ... " );
 			
 			final Image< FloatType > result = image.createNewImage();
-			final Image< FloatType > block = factory.createImage( blockSize );
+			final Image< FloatType > block = takeBlock( factory, blockSize );
 			
 			for ( int i = 0; i < blocks.length; ++i )
 			{
@@ -407,7 +466,7 @@ else if ( useCUDA && !useCPU && numDevices == 1 )
 				LRFFTThreads.convolve1BlockCUDA( blocks[ i ], i, device0, image, result, block, kernel1, blockSize );
 			}
 			
-			block.close();
+			returnBlock( block );
 
 			return result;
 		}
@@ -464,7 +523,7 @@ public Image< FloatType > convolve2( final Image< FloatType > image )
 			if ( useBlocks )
 			{
 				final Image< FloatType > result = image.createNewImage();
-				final Image< FloatType > block = factory.createImage( blockSize );
+				final Image< FloatType > block = takeBlock( factory, blockSize );
 				
 				for ( int i = 0; i < blocks.length; ++i )
 				{
@@ -479,7 +538,7 @@ public Image< FloatType > convolve2( final Image< FloatType > image )
 					LRFFTThreads.convolve2BlockCPU( blocks[ i ], image, result, block, fftConvolution2 );
 				}
 				
-				block.close();
+				returnBlock( block );
 				
 				return result;
 			}
@@ -487,14 +546,14 @@ public Image< FloatType > convolve2( final Image< FloatType > image )
 			{
 				final FourierConvolution<FloatType, FloatType> fftConv = fftConvolution2;
 				fftConv.replaceImage( image );
-				fftConv.process();			
+				KernelFFTCache.process( fftConv );			
 				return fftConv.getResult();				
 			}			
 		}
 		else if ( useCUDA && !useCPU && numDevices == 1 )
 		{
 			final Image< FloatType > result = image.createNewImage();
-			final Image< FloatType > block = factory.createImage( blockSize );
+			final Image< FloatType > block = takeBlock( factory, blockSize );
 			
 			for ( int i = 0; i < blocks.length; ++i )
 			{
@@ -510,7 +569,7 @@ else if ( useCUDA && !useCPU && numDevices == 1 )
 				LRFFTThreads.convolve2BlockCUDA( blocks[ i ], device0, image, result, block, kernel2, blockSize );
 			}
 			
-			block.close();
+			returnBlock( block );
 
 			return result;
 		}
@@ -554,13 +613,13 @@ public LRFFT clone()
 		if ( this.fftConvolution1 != null )
 		{
 			viewClone.fftConvolution1 = new FourierConvolution<FloatType, FloatType>( fftConvolution1.getImage(), fftConvolution1.getKernel() );
-			viewClone.fftConvolution1.process();
+			KernelFFTCache.process( viewClone.fftConvolution1 );
 		}
 
 		if ( this.fftConvolution2 != null )
 		{
 			viewClone.fftConvolution2 = new FourierConvolution<FloatType, FloatType>( fftConvolution2.getImage(), fftConvolution2.getKernel() );
-			viewClone.fftConvolution2.process();
+			KernelFFTCache.process( viewClone.fftConvolution2 );
 		}
 
 		return viewClone;
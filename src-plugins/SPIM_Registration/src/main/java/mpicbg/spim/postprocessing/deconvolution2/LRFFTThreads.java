@@ -19,7 +19,7 @@ final protected static void convolve1BlockCPU( final Block blockStruct, final in
 
 		time = System.currentTimeMillis();				
 		fftConvolution1.replaceImage( block );
-		fftConvolution1.process();
+		KernelFFTCache.process( fftConvolution1 );
 		System.out.println( " block " + i + "(CPU): compute " + (System.currentTimeMillis() - time) );
 		
 		time = System.currentTimeMillis();				
@@ -32,7 +32,7 @@ final protected static void convolve2BlockCPU( final Block blockStruct, final Im
 		blockStruct.copyBlock( image, block );
 
 		fftConvolution2.replaceImage( block );
-		fftConvolution2.process();
+		KernelFFTCache.process( fftConvolution2 );
 		
 		blockStruct.pasteBlock( result, fftConvolution2.getResult() );
 	}
@@ -74,7 +74,7 @@ final protected static Thread getCPUThread1( final AtomicInteger ai, final Block
 		{
 			public void run()
 			{
-				final Image< FloatType > block = factory.createImage( blockSize );
+				final Image< FloatType > block = LRFFT.takeBlock( factory, blockSize );
 
 				int i;
 
@@ -83,7 +83,7 @@ public void run()
 					convolve1BlockCPU( blocks[ i ], i, image, result, block, fftConvolution1 );					
 				}
 				
-				block.close();
+				LRFFT.returnBlock( block );
 			}
 		});
 		
@@ -97,7 +97,7 @@ final protected static Thread getCPUThread2( final AtomicInteger ai, final Block
 		{
 			public void run()
 			{
-				final Image< FloatType > block = factory.createImage( blockSize );
+				final Image< FloatType > block = LRFFT.takeBlock( factory, blockSize );
 
 				int i;
 
@@ -106,7 +106,7 @@ public void run()
 					convolve2BlockCPU( blocks[ i ], image, result, block, fftConvolution2 );					
 				}
 				
-				block.close();
+				LRFFT.returnBlock( block );
 			}
 		});
 		
@@ -120,7 +120,7 @@ final protected static Thread getCUDAThread1( final AtomicInteger ai, final Bloc
 		{
 			public void run()
 			{
-				final Image< FloatType > block = factory.createImage( blockSize );
+				final Image< FloatType > block = LRFFT.takeBlock( factory, blockSize );
 
 				int i;
 
@@ -129,7 +129,7 @@ public void run()
 					convolve1BlockCUDA( blocks[ i ], i, deviceId, image, result, block, kernel1, blockSize );					
 				}
 				
-				block.close();
+				LRFFT.returnBlock( block );
 			}
 		});
 		
@@ -143,7 +143,7 @@ final protected static Thread getCUDAThread2( final AtomicInteger ai, final Bloc
 		{
 			public void run()
 			{
-				final Image< FloatType > block = factory.createImage( blockSize );
+				final Image< FloatType > block = LRFFT.takeBlock( factory, blockSize );
 
 				int i;
 
@@ -152,7 +152,7 @@ public void run()
 					convolve2BlockCUDA( blocks[ i ], deviceId, image, result, block, kernel2, blockSize );					
 				}
 				
-				block.close();
+				LRFFT.returnBlock( block );
 			}
 		});
 		
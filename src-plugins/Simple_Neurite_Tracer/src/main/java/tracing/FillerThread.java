@@ -52,6 +52,9 @@ public float getDistanceAtPoint( double xd, double yd, double zd ) {
 		int y = (int)Math.round( yd );
 		int z = (int)Math.round( zd );
 
+		if( useArrays )
+			return arrays_from_start.getG( x, y, z );
+
                 SearchNode [] slice = nodes_as_image_from_start[z];
                 if( slice == null )
 			return -1.0f;
@@ -67,6 +70,9 @@ public float getDistanceAtPoint( double xd, double yd, double zd ) {
 
         Fill getFill( ) {
 
+		if( useArrays )
+			return getFillFromArrays( );
+
                 Hashtable< SearchNode, Integer > h =
                         new Hashtable< SearchNode, Integer >();
 
@@ -135,6 +141,73 @@ Fill getFill( ) {
                 return fill;
         }
 
+	/* The same as getFill(), when the search is kept in
+	   SearchArrays: the closed voxels come first, then the open
+	   ones. */
+
+	Fill getFillFromArrays( ) {
+
+		SearchArrays arrays = arrays_from_start;
+		int planeSize = width * height;
+
+		// The index of each reached voxel in the Fill:
+
+		int [][] indices = new int[depth][];
+		int n = 0;
+		for( int pass = 0; pass < 2; ++pass ) {
+			byte wanted = (pass == 0) ? CLOSED_FROM_START : OPEN_FROM_START;
+			for( int z = 0; z < depth; ++z ) {
+				byte [] statusPlane = arrays.status[z];
+				if( statusPlane == null )
+					continue;
+				if( indices[z] == null )
+					indices[z] = new int[planeSize];
+				for( int i = 0; i < planeSize; ++i )
+					if( statusPlane[i] == wanted )
+						indices[z][i] = n++;
+			}
+		}
+
+		if (verbose) System.out.println("... out of "+n+" entries");
+
+                Fill fill = new Fill();
+
+                fill.setThreshold( threshold );
+                if( reciprocal )
+                        fill.setMetric( "reciprocal-intensity-scaled" );
+                else
+                        fill.setMetric( "256-minus-intensity-scaled" );
+
+                fill.setSpacing( x_spacing,
+                                 y_spacing,
+                                 z_spacing,
+                                 spacing_units );
+
+		for( int pass = 0; pass < 2; ++pass ) {
+			byte wanted = (pass == 0) ? CLOSED_FROM_START : OPEN_FROM_START;
+			for( int z = 0; z < depth; ++z ) {
+				byte [] statusPlane = arrays.status[z];
+				if( statusPlane == null )
+					continue;
+				for( int i = 0; i < planeSize; ++i ) {
+					if( statusPlane[i] != wanted )
+						continue;
+					int previousIndex = -1;
+					int previous = arrays.getPredecessor( z * planeSize + i );
+					if( previous >= 0 )
+						previousIndex = indices[previous / planeSize][previous % planeSize];
+					fill.add( i % width, i / width, z, arrays.g[z][i], previousIndex, pass == 1 );
+				}
+			}
+		}
+
+                if( sourcePaths != null ) {
+                        fill.setSourcePaths( sourcePaths );
+                }
+
+                return fill;
+        }
+
         Set< Path > sourcePaths;
 
 	public static FillerThread fromFill( ImagePlus imagePlus,
@@ -224,7 +297,8 @@ public FillerThread( ImagePlus imagePlus,
 		       false, // definedGoal
 		       startPaused,
 		       0,
-		       reportEveryMilliseconds );
+		       reportEveryMilliseconds,
+		       true ); // useArrays
 
                 this.reciprocal = reciprocal;
                 setThreshold( initialThreshold );
@@ -275,12 +349,12 @@ public ImagePlus fillAsImagePlus( boolean realData ) {
                 ImageStack stack = new ImageStack(width,height);
 
                 for( int z = 0; z < depth; ++z ) {
-			SearchNode [] nodes_this_slice=nodes_as_image_from_start[z];
-			if( nodes_this_slice != null )
+			boolean any_this_slice = useArrays ? arrays_from_start.status[z] != null : nodes_as_image_from_start[z] != null;
+			if( any_this_slice )
 				for( int y = 0; y < height; ++y ) {
 					for( int x = 0; x < width; ++x ) {
-						SearchNode s = nodes_as_image_from_start[z][y*width+x];
-						if( (s != null) && (s.g <= threshold) ) {
+						float g = getDistanceAtPoint( x, y, z );
+						if( (g >= 0) && (g <= threshold) ) {
 							switch( imageType ) {
 							case ImagePlus.GRAY8:
 							case ImagePlus.COLOR_256:
@@ -334,12 +408,19 @@ protected void reportPointsInSearch() {
 
 		super.reportPointsInSearch();
 
-		// Find the minimum distance in the open list.
-		SearchNode p = open_from_start.peek();
-		if( p == null )
-			return;
-
-		float minimumDistanceInOpen = p.g;
+		// Find the minimum distance in the open list.  (There's no
+		// heuristic, so f is the same as g.)
+		float minimumDistanceInOpen;
+		if( useArrays ) {
+			if( arrays_from_start.open.isEmpty() )
+				return;
+			minimumDistanceInOpen = arrays_from_start.open.peekPriority();
+		} else {
+			SearchNode p = open_from_start.peek();
+			if( p == null )
+				return;
+			minimumDistanceInOpen = p.g;
+		}
 
 		for( SearchProgressCallback progress : progressListeners ) {
 			if( progress instanceof FillerProgressCallback ) {
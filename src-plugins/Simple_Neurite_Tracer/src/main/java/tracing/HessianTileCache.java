@@ -0,0 +1,295 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import features.ComputeCurvatures;
+
+/* Calculating the Gaussian of a whole stack before Hessian-based
+   tracing can start takes a long time and a lot of memory, but a
+   search only ever looks at a thin corridor of the image.  This
+   class instead calculates the measure of how tube-like each voxel
+   is (as used by TracerThread) one tile at a time, when a search
+   first asks for a voxel in that tile.  The Gaussian is only
+   calculated for the tile and a margin around it.
+
+   The tiles are kept in a cache of bounded size, discarding the
+   least recently used tiles first, so that they can be shared by
+   all the searches on the same image with the same sigma.
+
+   The measure for each voxel is sqrt(e1*e2), where e1 and e2 are
+   the two eigenvalues of the Hessian that are largest in absolute
+   value, if they are both negative, or -1 otherwise.  This is only
+   for stacks - for single images it's quick enough to use
+   ComputeCurvatures directly. */
+
+public class HessianTileCache {
+
+	public static final int DEFAULT_TILE_SIZE = 32;
+
+	public static final long DEFAULT_MAX_BYTES = 128L * 1024 * 1024;
+
+	public static class Tile {
+
+		final int x0, y0, z0;
+		final int width, height, depth;
+
+		final float [] measure;
+
+		Tile( int x0, int y0, int z0, int width, int height, int depth ) {
+			this.x0 = x0;
+			this.y0 = y0;
+			this.z0 = z0;
+			this.width = width;
+			this.height = height;
+			this.depth = depth;
+			measure = new float[width*height*depth];
+		}
+
+		public boolean contains( int x, int y, int z ) {
+			return x >= x0 && x < x0 + width &&
+				y >= y0 && y < y0 + height &&
+				z >= z0 && z < z0 + depth;
+		}
+
+		public float get( int x, int y, int z ) {
+			return measure[ ((z - z0) * height + (y - y0)) * width + (x - x0) ];
+		}
+	}
+
+	final ImageStack stack;
+	final int width, height, depth;
+	final int tileSize;
+	final int tilesX, tilesY, tilesZ;
+	final int maxTiles;
+
+	final double sigma;
+	final Calibration calibration;
+	final float sepX, sepY, sepZ;
+
+	/* The number of voxels on each side needed by the Gaussian
+	   kernel in each dimension */
+	final int radiusX, radiusY, radiusZ;
+
+	/* This is just used for its methods for calculating the
+	   Gaussian and the eigenvalues; setup() is never called. */
+	final ComputeCurvatures curvatures;
+
+	final LinkedHashMap< Long, Tile > tiles = new LinkedHashMap< Long, Tile >( 16, 0.75f, true );
+
+	long hits = 0, misses = 0;
+
+	public HessianTileCache( ImagePlus imagePlus, double sigma, boolean useCalibration ) {
+		this( imagePlus, sigma, useCalibration, DEFAULT_TILE_SIZE, DEFAULT_MAX_BYTES );
+	}
+
+	public HessianTileCache( ImagePlus imagePlus, double sigma, boolean useCalibration, int tileSize, long maxBytes ) {
+
+		this.stack = imagePlus.getStack();
+		this.width = imagePlus.getWidth();
+		this.height = imagePlus.getHeight();
+		this.depth = imagePlus.getStackSize();
+
+		if( depth < 3 )
+			throw new IllegalArgumentException( "HessianTileCache is only for stacks of at least 3 slices" );
+		if( stack.getPixels(1) instanceof int[] )
+			throw new IllegalArgumentException( "HessianTileCache does not support RGB images" );
+
+		this.tileSize = tileSize;
+		tilesX = (width + tileSize - 1) / tileSize;
+		tilesY = (height + tileSize - 1) / tileSize;
+		tilesZ = (depth + tileSize - 1) / tileSize;
+		maxTiles = (int)Math.max( 1, maxBytes / (4L * tileSize * tileSize * tileSize) );
+
+		this.sigma = sigma;
+		Calibration c = imagePlus.getCalibration();
+		this.calibration = useCalibration ? c : null;
+		if( calibration != null ) {
+			sepX = (float)calibration.pixelWidth;
+			sepY = (float)calibration.pixelHeight;
+			sepZ = (float)calibration.pixelDepth;
+		} else {
+			sepX = sepY = sepZ = 1;
+		}
+
+		radiusX = ComputeCurvatures.createGaussianKernel1D( (float)sigma / sepX, true ).length / 2;
+		radiusY = ComputeCurvatures.createGaussianKernel1D( (float)sigma / sepY, true ).length / 2;
+		radiusZ = ComputeCurvatures.createGaussianKernel1D( (float)sigma / sepZ, true ).length / 2;
+
+		curvatures = new ComputeCurvatures( imagePlus, sigma, null, useCalibration );
+	}
+
+	public double getSigma( ) {
+		return sigma;
+	}
+
+	/* Returns the measure at (x,y,z), calculating the tile that
+	   contains it if necessary */
+
+	public float get( int x, int y, int z ) {
+		return getTile( x, y, z ).get( x, y, z );
+	}
+
+	/* Returns the tile containing (x,y,z).  Callers that look up
+	   many nearby points (like a search) should keep the last tile
+	   and use it while it contains the point they want. */
+
+	public Tile getTile( int x, int y, int z ) {
+		int tx = x / tileSize;
+		int ty = y / tileSize;
+		int tz = z / tileSize;
+		Long key = new Long( ((long)tz * tilesY + ty) * tilesX + tx );
+
+		synchronized( this ) {
+			Tile tile = tiles.get( key );
+			if( tile != null ) {
+				++ hits;
+				return tile;
+			}
+			++ misses;
+		}
+
+		/* Calculate the tile without holding the lock, so that
+		   other searches aren't held up.  If two threads want
+		   the same tile at once it's calculated twice, but
+		   that's harmless. */
+
+		Tile tile = calculateTile( tx, ty, tz );
+
+		synchronized( this ) {
+			tiles.put( key, tile );
+			Iterator< Tile > i = tiles.values().iterator();
+			while( tiles.size() > maxTiles && i.hasNext() ) {
+				Tile t = i.next();
+				if( t != tile )
+					i.remove();
+			}
+		}
+
+		return tile;
+	}
+
+	Tile calculateTile( int tx, int ty, int tz ) {
+
+		int x0 = tx * tileSize;
+		int y0 = ty * tileSize;
+		int z0 = tz * tileSize;
+
+		Tile tile = new Tile( x0, y0, z0,
+				      Math.min( tileSize, width - x0 ),
+				      Math.min( tileSize, height - y0 ),
+				      Math.min( tileSize, depth - z0 ) );
+
+		/* The Hessian needs the Gaussian one voxel either side
+		   of the tile, and the Gaussian of those needs the
+		   radius of the kernel either side of them.  Where the
+		   region meets the edge of the image, the Gaussian
+		   mirrors at the edge just as it would for the whole
+		   image, so the values in the tile are the same as
+		   those from ComputeCurvatures. */
+
+		int rx0 = Math.max( 0, x0 - 1 - radiusX );
+		int ry0 = Math.max( 0, y0 - 1 - radiusY );
+		int rz0 = Math.max( 0, z0 - 1 - radiusZ );
+		int rx1 = Math.min( width, x0 + tile.width + 1 + radiusX );
+		int ry1 = Math.min( height, y0 + tile.height + 1 + radiusY );
+		int rz1 = Math.min( depth, z0 + tile.depth + 1 + radiusZ );
+
+		ComputeCurvatures.FloatArray3D region = curvatures.new FloatArray3D( rx1 - rx0, ry1 - ry0, rz1 - rz0 );
+
+		int i = 0;
+		for( int z = rz0; z < rz1; ++z ) {
+			Object pixels = stack.getPixels( z + 1 );
+			for( int y = ry0; y < ry1; ++y ) {
+				int offset = y * width;
+				if( pixels instanceof byte[] ) {
+					byte [] b = (byte[])pixels;
+					for( int x = rx0; x < rx1; ++x )
+						region.data[i++] = b[offset+x] & 0xff;
+				} else if( pixels instanceof short[] ) {
+					short [] s = (short[])pixels;
+					for( int x = rx0; x < rx1; ++x )
+						region.data[i++] = s[offset+x] & 0xffff;
+				} else {
+					float [] f = (float[])pixels;
+					for( int x = rx0; x < rx1; ++x )
+						region.data[i++] = f[offset+x];
+				}
+			}
+		}
+
+		ComputeCurvatures.FloatArray3D gaussian = curvatures.computeGaussianFastMirror( region, (float)sigma, null, calibration );
+
+		double [] hessianEigenValues = new double[3];
+
+		i = 0;
+		for( int z = z0; z < z0 + tile.depth; ++z ) {
+			// The same as the fixUp option of hessianEigenvaluesAtPoint3D:
+			int hz = Math.min( Math.max( z, 1 ), depth - 2 ) - rz0;
+			for( int y = y0; y < y0 + tile.height; ++y ) {
+				int hy = Math.min( Math.max( y, 1 ), height - 2 ) - ry0;
+				for( int x = x0; x < x0 + tile.width; ++x ) {
+					int hx = Math.min( Math.max( x, 1 ), width - 2 ) - rx0;
+
+					boolean real = curvatures.hessianEigenvaluesAtPoint3D( gaussian, hx, hy, hz,
+											       true, hessianEigenValues, false, false, sepX, sepY, sepZ );
+
+					double e1 = hessianEigenValues[1];
+					double e2 = hessianEigenValues[2];
+
+					if( real && (e1 < 0) && (e2 < 0) )
+						tile.measure[i++] = (float)Math.sqrt( e1 * e2 );
+					else
+						tile.measure[i++] = -1;
+				}
+			}
+		}
+
+		return tile;
+	}
+
+	public synchronized long getHits( ) {
+		return hits;
+	}
+
+	public synchronized long getMisses( ) {
+		return misses;
+	}
+
+	public synchronized int getTilesInCache( ) {
+		return tiles.size();
+	}
+
+	public synchronized void clear( ) {
+		tiles.clear();
+	}
+}
@@ -0,0 +1,216 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+/* A d-ary min-heap of voxel indices (z * width * height + y *
+   width + x) with float priorities.  The position of each voxel in
+   the heap is kept in planes indexed like the image, so that a
+   voxel's priority can be decreased (or increased) in O(log n)
+   rather than having to search the queue for it.  Voxels with the
+   same priority come out in order of their index. */
+
+public class IndexedHeap {
+
+	public static final int DEFAULT_ARITY = 4;
+
+	final int arity;
+	final int planeSize;
+
+	int [] voxels;
+	float [] priorities;
+	int size;
+
+	/* The position in the heap plus one, so that 0 means that
+	   the voxel is not in the heap.  Planes are only allocated
+	   once a voxel in them is added. */
+
+	final int [][] positions;
+
+	public IndexedHeap( int width, int height, int depth ) {
+		this( width, height, depth, DEFAULT_ARITY );
+	}
+
+	public IndexedHeap( int width, int height, int depth, int arity ) {
+		if( arity < 2 )
+			throw new IllegalArgumentException( "The arity of the heap must be at least 2, not "+arity );
+		this.arity = arity;
+		this.planeSize = width * height;
+		this.positions = new int[depth][];
+		this.voxels = new int[1024];
+		this.priorities = new float[1024];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean contains( int voxel ) {
+		int [] plane = positions[voxel / planeSize];
+		return plane != null && plane[voxel % planeSize] != 0;
+	}
+
+	public float getPriority( int voxel ) {
+		return priorities[ position(voxel) ];
+	}
+
+	/* The voxel with the lowest priority; the heap must not be
+	   empty. */
+
+	public int peek() {
+		return voxels[0];
+	}
+
+	public float peekPriority() {
+		return priorities[0];
+	}
+
+	/* Adds the voxel, or changes its priority if it is already in
+	   the heap. */
+
+	public void add( int voxel, float priority ) {
+		int z = voxel / planeSize;
+		if( positions[z] == null )
+			positions[z] = new int[planeSize];
+		int i = positions[z][voxel % planeSize] - 1;
+		if( i >= 0 ) {
+			float old = priorities[i];
+			priorities[i] = priority;
+			if( priority < old )
+				siftUp( i );
+			else
+				siftDown( i );
+			return;
+		}
+		if( size == voxels.length ) {
+			int [] newVoxels = new int[ 2 * size ];
+			float [] newPriorities = new float[ 2 * size ];
+			System.arraycopy( voxels, 0, newVoxels, 0, size );
+			System.arraycopy( priorities, 0, newPriorities, 0, size );
+			voxels = newVoxels;
+			priorities = newPriorities;
+		}
+		voxels[size] = voxel;
+		priorities[size] = priority;
+		positions[z][voxel % planeSize] = size + 1;
+		siftUp( size++ );
+	}
+
+	/* Removes and returns the voxel with the lowest priority; the
+	   heap must not be empty. */
+
+	public int poll() {
+		int result = voxels[0];
+		positions[result / planeSize][result % planeSize] = 0;
+		--size;
+		if( size > 0 ) {
+			move( size, 0 );
+			siftDown( 0 );
+		}
+		return result;
+	}
+
+	public void remove( int voxel ) {
+		int i = position( voxel );
+		positions[voxel / planeSize][voxel % planeSize] = 0;
+		--size;
+		if( i < size ) {
+			float removed = priorities[i];
+			move( size, i );
+			if( priorities[i] < removed )
+				siftUp( i );
+			else
+				siftDown( i );
+		}
+	}
+
+	/* Fills the array (which must have at least size() entries)
+	   with the voxels in the heap, in no particular order */
+
+	public void getVoxels( int [] result ) {
+		System.arraycopy( voxels, 0, result, 0, size );
+	}
+
+	int position( int voxel ) {
+		int [] plane = positions[voxel / planeSize];
+		int i = plane == null ? -1 : plane[voxel % planeSize] - 1;
+		if( i < 0 )
+			throw new IllegalArgumentException( "Voxel "+voxel+" is not in the heap" );
+		return i;
+	}
+
+	boolean less( int i, int j ) {
+		return priorities[i] < priorities[j] ||
+			( priorities[i] == priorities[j] && voxels[i] < voxels[j] );
+	}
+
+	void move( int from, int to ) {
+		voxels[to] = voxels[from];
+		priorities[to] = priorities[from];
+		positions[voxels[to] / planeSize][voxels[to] % planeSize] = to + 1;
+	}
+
+	void swap( int i, int j ) {
+		int voxel = voxels[i];
+		float priority = priorities[i];
+		voxels[i] = voxels[j];
+		priorities[i] = priorities[j];
+		voxels[j] = voxel;
+		priorities[j] = priority;
+		positions[voxels[i] / planeSize][voxels[i] % planeSize] = i + 1;
+		positions[voxels[j] / planeSize][voxels[j] % planeSize] = j + 1;
+	}
+
+	void siftUp( int i ) {
+		while( i > 0 ) {
+			int parent = (i - 1) / arity;
+			if( ! less( i, parent ) )
+				break;
+			swap( i, parent );
+			i = parent;
+		}
+	}
+
+	void siftDown( int i ) {
+		while( true ) {
+			int first = arity * i + 1;
+			if( first >= size )
+				break;
+			int last = Math.min( first + arity, size );
+			int smallest = first;
+			for( int c = first + 1; c < last; ++c )
+				if( less( c, smallest ) )
+					smallest = c;
+			if( ! less( smallest, i ) )
+				break;
+			swap( i, smallest );
+			i = smallest;
+		}
+	}
+}
@@ -0,0 +1,160 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/*
+  This file is part of the ImageJ plugin "Simple Neurite Tracer".
+
+  The ImageJ plugin "Simple Neurite Tracer" is free software; you
+  can redistribute it and/or modify it under the terms of the GNU
+  General Public License as published by the Free Software
+  Foundation; either version 3 of the License, or (at your option)
+  any later version.
+
+  The ImageJ plugin "Simple Neurite Tracer" is distributed in the
+  hope that it will be useful, but WITHOUT ANY WARRANTY; without
+  even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+  PARTICULAR PURPOSE.  See the GNU General Public License for more
+  details.
+
+  In addition, as a special exception, the copyright holders give
+  you permission to combine this program with free software programs or
+  libraries that are released under the Apache Public License.
+
+  You should have received a copy of the GNU General Public License
+  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package tracing;
+
+/* The state of one direction of a search (from the start or from
+   the goal) in planes of primitive values indexed like the image,
+   rather than as a SearchNode object per voxel.  For each voxel
+   that has been reached we keep the cost of the path so far (g),
+   the status (one of the SearchThread constants, or 0 if the
+   voxel hasn't been reached) and the direction to the predecessor
+   as an index into the 3x3x3 neighbourhood.  The open list is an
+   IndexedHeap of voxels sorted by f = g + h.
+
+   A plane is only allocated once a voxel in it is reached, and
+   uses 10 bytes per voxel. */
+
+public class SearchArrays {
+
+	/* The neighbourhood index of (0,0,0), i.e. no predecessor */
+
+	public static final byte NO_PREDECESSOR = 13;
+
+	final int width, height, depth, planeSize;
+
+	final float [][] g;
+	final byte [][] status;
+	final byte [][] predecessor;
+
+	final IndexedHeap open;
+	int closed;
+
+	public SearchArrays( int width, int height, int depth ) {
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.planeSize = width * height;
+		g = new float[depth][];
+		status = new byte[depth][];
+		predecessor = new byte[depth][];
+		open = new IndexedHeap( width, height, depth );
+	}
+
+	/* Returns true if the number of voxels is small enough for
+	   them to be indexed with an int. */
+
+	public static boolean canIndex( int width, int height, int depth ) {
+		return (long)width * height * depth < Integer.MAX_VALUE;
+	}
+
+	void allocatePlane( int z ) {
+		if( status[z] == null ) {
+			g[z] = new float[planeSize];
+			predecessor[z] = new byte[planeSize];
+			status[z] = new byte[planeSize];
+		}
+	}
+
+	public byte getStatus( int x, int y, int z ) {
+		byte [] plane = status[z];
+		return plane == null ? 0 : plane[y*width+x];
+	}
+
+	/* Returns the cost of the path so far to this voxel, or -1 if
+	   it hasn't been reached. */
+
+	public float getG( int x, int y, int z ) {
+		byte [] plane = status[z];
+		if( plane == null || plane[y*width+x] == 0 )
+			return -1;
+		return g[z][y*width+x];
+	}
+
+	public int openSize() {
+		return open.size();
+	}
+
+	public int closedSize() {
+		return closed;
+	}
+
+	/* Adds a voxel as open or closed, as for SearchThread.addNode
+	   ignoring voxels that have already been reached. */
+
+	public void add( int x, int y, int z, float g, float h, byte predecessorIndex, boolean isOpen, byte openStatus, byte closedStatus ) {
+		allocatePlane( z );
+		int i = y*width+x;
+		if( status[z][i] != 0 )
+			return;
+		this.g[z][i] = g;
+		predecessor[z][i] = predecessorIndex;
+		if( isOpen ) {
+			status[z][i] = openStatus;
+			open.add( z*planeSize+i, g + h );
+		} else {
+			status[z][i] = closedStatus;
+			++closed;
+		}
+	}
+
+	/* The index in the 3x3x3 neighbourhood of the voxel at offset
+	   (xdiff,ydiff,zdiff), each in [-1,1]. */
+
+	public static byte neighbourIndex( int xdiff, int ydiff, int zdiff ) {
+		return (byte)( (zdiff + 1) * 9 + (ydiff + 1) * 3 + xdiff + 1 );
+	}
+
+	/* Returns the voxel index of the predecessor, or -1 if there
+	   is none */
+
+	public int getPredecessor( int voxel ) {
+		int z = voxel / planeSize;
+		int i = voxel % planeSize;
+		int p = predecessor[z][i];
+		if( p == NO_PREDECESSOR )
+			return -1;
+		int xdiff = p % 3 - 1;
+		int ydiff = (p / 3) % 3 - 1;
+		int zdiff = p / 9 - 1;
+		return voxel + zdiff * planeSize + ydiff * width + xdiff;
+	}
+
+	/* The path from the start of this search to the voxel, or from
+	   the voxel to the start if reversed is true */
+
+	public Path asPath( int voxel, boolean reversed, double x_spacing, double y_spacing, double z_spacing, String spacing_units ) {
+		Path result = new Path(x_spacing, y_spacing, z_spacing, spacing_units);
+		int v = voxel;
+		do {
+			int z = v / planeSize;
+			int y = (v % planeSize) / width;
+			int x = v % width;
+			result.addPointDouble( x * x_spacing, y * y_spacing, z * z_spacing );
+			v = getPredecessor( v );
+		} while( v >= 0 );
+		return reversed ? result : result.reversed();
+	}
+}
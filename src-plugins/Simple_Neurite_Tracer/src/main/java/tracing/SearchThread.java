@@ -96,14 +96,28 @@ protected double costMovingTo( int new_x, int new_y, int new_z ) {
 
 	protected void reportPointsInSearch( ) {
 		for( SearchProgressCallback progress : progressListeners )
-			progress.pointsInSearch(this, open_from_start.size() + (bidirectional ? open_from_goal.size() : 0), closed_from_start.size() + (bidirectional ? closed_from_goal.size() : 0));
+			progress.pointsInSearch(this, openSize(true) + (bidirectional ? openSize(false) : 0), closedSize(true) + (bidirectional ? closedSize(false) : 0));
 	}
 
 	public int pointsConsideredInSearch( ) {
-		return open_from_start.size() +
-			(bidirectional ? open_from_goal.size() : 0) +
-			closed_from_start.size() +
-			(bidirectional ? closed_from_goal.size() : 0);
+		return openSize(true) +
+			(bidirectional ? openSize(false) : 0) +
+			closedSize(true) +
+			(bidirectional ? closedSize(false) : 0);
+	}
+
+	int openSize( boolean fromStart ) {
+		if( useArrays )
+			return (fromStart ? arrays_from_start : arrays_from_goal).openSize();
+		else
+			return (fromStart ? open_from_start : open_from_goal).size();
+	}
+
+	int closedSize( boolean fromStart ) {
+		if( useArrays )
+			return (fromStart ? arrays_from_start : arrays_from_goal).closedSize();
+		else
+			return (fromStart ? closed_from_start : closed_from_goal).size();
 	}
 
 	/* This is a factory method for creating specialized search
@@ -282,6 +296,25 @@ public SearchThread( ImagePlus imagePlus,
 			     boolean startPaused,
 			     int timeoutSeconds,
 			     long reportEveryMilliseconds ) {
+		this( imagePlus, stackMin, stackMax, bidirectional, definedGoal, startPaused, timeoutSeconds, reportEveryMilliseconds, false );
+	}
+
+	/* If useArrays is true, the search keeps its state in
+	   SearchArrays rather than creating a SearchNode for every
+	   voxel it reaches, which is much faster and uses much less
+	   memory.  In that case createNewNode() and addingNode() are
+	   not used during the search, and the nodes_as_image and
+	   open / closed queues are null. */
+
+	public SearchThread( ImagePlus imagePlus,
+			     float stackMin,
+			     float stackMax,
+			     boolean bidirectional,
+			     boolean definedGoal,
+			     boolean startPaused,
+			     int timeoutSeconds,
+			     long reportEveryMilliseconds,
+			     boolean useArrays ) {
 
 		this.imagePlus = imagePlus;
 
@@ -298,6 +331,8 @@ public SearchThread( ImagePlus imagePlus,
 		height = imagePlus.getHeight();
 		depth = imagePlus.getStackSize();
 
+		this.useArrays = useArrays && SearchArrays.canIndex( width, height, depth );
+
 		{
 			ImageStack s = imagePlus.getStack();
 			switch(imageType) {
@@ -340,16 +375,22 @@ public SearchThread( ImagePlus imagePlus,
 		this.timeoutSeconds = timeoutSeconds;
 		this.reportEveryMilliseconds = reportEveryMilliseconds;
 
-		closed_from_start = new PriorityQueue<SearchNode>();
-		open_from_start = new PriorityQueue<SearchNode>();
-		if( bidirectional ) {
-			closed_from_goal = new PriorityQueue<SearchNode>();
-			open_from_goal = new PriorityQueue<SearchNode>();
-		}
+		if( this.useArrays ) {
+			arrays_from_start = new SearchArrays( width, height, depth );
+			if( bidirectional )
+				arrays_from_goal = new SearchArrays( width, height, depth );
+		} else {
+			closed_from_start = new PriorityQueue<SearchNode>();
+			open_from_start = new PriorityQueue<SearchNode>();
+			if( bidirectional ) {
+				closed_from_goal = new PriorityQueue<SearchNode>();
+				open_from_goal = new PriorityQueue<SearchNode>();
+			}
 
-		nodes_as_image_from_start = new SearchNode[depth][];
-		if( bidirectional )
-			nodes_as_image_from_goal = new SearchNode[depth][];
+			nodes_as_image_from_start = new SearchNode[depth][];
+			if( bidirectional )
+				nodes_as_image_from_goal = new SearchNode[depth][];
+		}
 
 		minimum_cost_per_unit_distance = minimumCostPerUnitDistance();
 
@@ -366,12 +407,19 @@ public SearchThread( ImagePlus imagePlus,
 	SearchNode [][] nodes_as_image_from_start;
 	SearchNode [][] nodes_as_image_from_goal;
 
+	boolean useArrays;
+
+	// These are only used if useArrays is true (and the second
+	// one only if the search is bidirectional)
+	SearchArrays arrays_from_start;
+	SearchArrays arrays_from_goal;
+
 	public void printStatus() {
-		System.out.println("... with " + open_from_start.size() + " open nodes at the start" );
-		System.out.println(" ... and " + closed_from_start.size() + " closed nodes at the start" );
+		System.out.println("... with " + openSize(true) + " open nodes at the start" );
+		System.out.println(" ... and " + closedSize(true) + " closed nodes at the start" );
 		if( bidirectional ) {
-			System.out.println("... with " + open_from_goal.size() + " open nodes at the goal" );
-			System.out.println(" ... and " + closed_from_goal.size() + " closed nodes at the goal" );
+			System.out.println("... with " + openSize(false) + " open nodes at the goal" );
+			System.out.println(" ... and " + closedSize(false) + " closed nodes at the goal" );
 		} else
 			System.out.println(" ... unidirectional search");
 	}
@@ -406,8 +454,8 @@ public void run( ) {
 			  same way as voxels in the image.
 			*/
 
-			while( (open_from_start.size() > 0) ||
-			       (bidirectional && (open_from_goal.size() > 0)) ) {
+			while( (openSize(true) > 0) ||
+			       (bidirectional && (openSize(false) > 0)) ) {
 
 				if( threadStatus == STOPPING ) {
 					reportThreadStatus();
@@ -456,7 +504,14 @@ public void run( ) {
 
 				boolean fromStart = true;
 				if( bidirectional )
-					fromStart = open_from_goal.size() > open_from_start.size();
+					fromStart = openSize(false) > openSize(true);
+
+				if( useArrays ) {
+					if( expandFromArrays( fromStart ) )
+						return;
+					++ loops;
+					continue;
+				}
 
 				PriorityQueue<SearchNode> open_queue = fromStart ? open_from_start : open_from_goal;
 				PriorityQueue<SearchNode> closed_queue = fromStart ? closed_from_start : closed_from_goal;
@@ -642,6 +697,133 @@ public void run( ) {
 
 	}
 
+	/* One step of the search when useArrays is true: the same as
+	   the body of the loop in run(), but with the state kept in
+	   SearchArrays.  Returns true if the search has finished. */
+
+	boolean expandFromArrays( boolean fromStart ) {
+
+		SearchArrays thisSearch = fromStart ? arrays_from_start : arrays_from_goal;
+		SearchArrays otherSearch = fromStart ? arrays_from_goal : arrays_from_start;
+
+		byte openStatus = fromStart ? OPEN_FROM_START : OPEN_FROM_GOAL;
+		byte closedStatus = fromStart ? CLOSED_FROM_START : CLOSED_FROM_GOAL;
+
+		if( thisSearch.open.isEmpty() )
+			return false;
+
+		int planeSize = width * height;
+
+		int p = thisSearch.open.poll();
+		int p_z = p / planeSize;
+		int p_i = p % planeSize;
+		int p_y = p_i / width;
+		int p_x = p_i % width;
+
+		// Has the route from the start found the goal?
+		if( definedGoal && atGoal( p_x, p_y, p_z, fromStart ) ) {
+			if (verbose) System.out.println( "Found the goal!" );
+			foundGoal( thisSearch.asPath( p, ! fromStart, x_spacing, y_spacing, z_spacing, spacing_units ) );
+			setExitReason(SUCCESS);
+			reportFinished( true );
+			return true;
+		}
+
+		thisSearch.status[p_z][p_i] = closedStatus;
+		++ thisSearch.closed;
+
+		float p_g = thisSearch.g[p_z][p_i];
+
+		// Now look at the 26 neighbours of p in 3D:
+
+		for( int zdiff = -1; zdiff <= 1; zdiff++ ) {
+
+			int new_z = p_z + zdiff;
+			if( new_z < 0 || new_z >= depth )
+				continue;
+
+			thisSearch.allocatePlane( new_z );
+			byte [] statusPlane = thisSearch.status[new_z];
+			float [] gPlane = thisSearch.g[new_z];
+			byte [] predecessorPlane = thisSearch.predecessor[new_z];
+
+			for( int xdiff = -1; xdiff <= 1; xdiff++ )
+				for( int ydiff = -1; ydiff <= 1; ydiff++ ) {
+
+					if( (xdiff == 0) && (ydiff == 0) && (zdiff == 0) )
+						continue;
+
+					int new_x = p_x + xdiff;
+					int new_y = p_y + ydiff;
+
+					if( new_x < 0 || new_x >= width )
+						continue;
+
+					if( new_y < 0 || new_y >= height )
+						continue;
+
+					double xdiffsq = (xdiff * x_spacing) * (xdiff * x_spacing);
+					double ydiffsq = (ydiff * y_spacing) * (ydiff * y_spacing);
+					double zdiffsq = (zdiff * z_spacing) * (zdiff * z_spacing);
+
+					float h_for_new_point = estimateCostToGoal( new_x, new_y, new_z, fromStart );
+
+					double cost_moving_to_new_point = costMovingTo( new_x, new_y, new_z );
+					if( cost_moving_to_new_point < minimum_cost_per_unit_distance ) {
+						cost_moving_to_new_point = minimum_cost_per_unit_distance;
+					}
+
+					float g_for_new_point = (float) ( p_g + Math.sqrt( xdiffsq + ydiffsq + zdiffsq ) * cost_moving_to_new_point );
+
+					float f_for_new_point = h_for_new_point + g_for_new_point;
+
+					int i = new_y * width + new_x;
+					int voxel = new_z * planeSize + i;
+					byte status = statusPlane[i];
+
+					if( status == 0 || gPlane[i] > g_for_new_point ) {
+
+						// Either the voxel is new, or this is a
+						// better way of getting to it; if it was
+						// closed it has to be looked at again:
+
+						if( status == closedStatus )
+							-- thisSearch.closed;
+
+						statusPlane[i] = openStatus;
+						gPlane[i] = g_for_new_point;
+						predecessorPlane[i] = SearchArrays.neighbourIndex( -xdiff, -ydiff, -zdiff );
+						thisSearch.open.add( voxel, f_for_new_point );
+					}
+
+					if( bidirectional ) {
+
+						byte otherStatus = otherSearch.getStatus( new_x, new_y, new_z );
+
+						if( otherStatus == CLOSED_FROM_START || otherStatus == CLOSED_FROM_GOAL ) {
+
+							Path result = null;
+
+							if( fromStart ) {
+								result = thisSearch.asPath( p, false, x_spacing, y_spacing, z_spacing, spacing_units );
+								result.add( otherSearch.asPath( voxel, true, x_spacing, y_spacing, z_spacing, spacing_units ) );
+							} else {
+								result = otherSearch.asPath( voxel, false, x_spacing, y_spacing, z_spacing, spacing_units );
+								result.add( thisSearch.asPath( p, true, x_spacing, y_spacing, z_spacing, spacing_units ) );
+							}
+							if (verbose) System.out.println("Searches met!");
+							foundGoal( result );
+							setExitReason(SUCCESS);
+							reportFinished( true );
+							return true;
+						}
+					}
+				}
+		}
+
+		return false;
+	}
+
 	/* This is the heuristic value for the A* search.  There's no
 	 * defined goal in this default superclass implementation, so
 	 * always return 0 so we end up with Dijkstra's algorithm. */
@@ -695,6 +877,25 @@ SearchNode anyNodeUnderThreshold( int x, int y, int z, double threshold ) {
 		return n;
 	}
 
+	/* The status of the voxel in either search if its cost is at
+	   most threshold (or threshold is negative), 0 otherwise */
+
+	byte statusUnderThreshold( int x, int y, int z, double threshold ) {
+		if( ! useArrays ) {
+			SearchNode n = anyNodeUnderThreshold( x, y, z, threshold );
+			return n == null ? 0 : n.searchStatus;
+		}
+		for( int i = 0; i < 2; ++i ) {
+			SearchArrays arrays = (i == 0) ? arrays_from_start : arrays_from_goal;
+			if( arrays == null )
+				continue;
+			float g = arrays.getG( x, y, z );
+			if( g >= 0 && (threshold < 0 || g <= threshold) )
+				return arrays.getStatus( x, y, z );
+		}
+		return 0;
+	}
+
 	/* This draws over the Graphics object the current progress of
 	   the search at this slice.  If openColor or closedColor are
 	   null then that means "don't bother to draw that list". */
@@ -726,10 +927,9 @@ public void drawProgressOnSlice( int plane,
 				int z = currentSliceInPlane;
 				for( int y = 0; y < height; ++y )
 					for( int x = 0; x < width; ++x ) {
-						SearchNode n = anyNodeUnderThreshold(x,y,z,drawingThreshold);
-						if (n == null)
+						byte status = statusUnderThreshold(x,y,z,drawingThreshold);
+						if (status == 0)
 							continue;
-						byte status = n.searchStatus;
 						if( status == start_status || status == goal_status )
 							g.fillRect( canvas.myScreenX(x) - pixel_size / 2, canvas.myScreenY(y) - pixel_size / 2, pixel_size, pixel_size );
 					}
@@ -737,10 +937,9 @@ public void drawProgressOnSlice( int plane,
 				int y = currentSliceInPlane;
 				for( int z = 0; z < depth; ++ z )
 					for( int x = 0; x < width; ++x ) {
-						SearchNode n = anyNodeUnderThreshold(x,y,z,drawingThreshold);
-						if (n == null)
+						byte status = statusUnderThreshold(x,y,z,drawingThreshold);
+						if (status == 0)
 							continue;
-						byte status = n.searchStatus;
 						if( status == start_status || status == goal_status )
 							g.fillRect( canvas.myScreenX(x) - pixel_size / 2, canvas.myScreenY(z) - pixel_size / 2, pixel_size, pixel_size );
 					}
@@ -748,10 +947,9 @@ public void drawProgressOnSlice( int plane,
 				int x = currentSliceInPlane;
 				for( int y = 0; y < height; ++y )
 					for( int z = 0; z < depth; ++z ) {
-						SearchNode n = anyNodeUnderThreshold(x,y,z,drawingThreshold);
-						if (n == null)
+						byte status = statusUnderThreshold(x,y,z,drawingThreshold);
+						if (status == 0)
 							continue;
-						byte status = n.searchStatus;
 						if( status == start_status || status == goal_status )
 							g.fillRect( canvas.myScreenX(z) - pixel_size / 2, canvas.myScreenY(y) - pixel_size / 2, pixel_size, pixel_size );
 					}
@@ -763,6 +961,24 @@ public void drawProgressOnSlice( int plane,
 
 	public void addNode( SearchNode n, boolean fromStart ) {
 
+		if( useArrays ) {
+			SearchArrays arrays = fromStart ? arrays_from_start : arrays_from_goal;
+			byte predecessorIndex = SearchArrays.NO_PREDECESSOR;
+			SearchNode p = n.getPredecessor();
+			if( p != null &&
+			    Math.abs( p.x - n.x ) <= 1 &&
+			    Math.abs( p.y - n.y ) <= 1 &&
+			    Math.abs( p.z - n.z ) <= 1 )
+				predecessorIndex = SearchArrays.neighbourIndex( p.x - n.x, p.y - n.y, p.z - n.z );
+			boolean open = (n.searchStatus == OPEN_FROM_START) || (n.searchStatus == OPEN_FROM_GOAL);
+			boolean closed = (n.searchStatus == CLOSED_FROM_START) || (n.searchStatus == CLOSED_FROM_GOAL);
+			if( open || closed )
+				arrays.add( n.x, n.y, n.z, n.g, n.h, predecessorIndex, open,
+					    fromStart ? OPEN_FROM_START : OPEN_FROM_GOAL,
+					    fromStart ? CLOSED_FROM_START : CLOSED_FROM_GOAL );
+			return;
+		}
+
 		SearchNode [][] nodes_as_image = fromStart ? nodes_as_image_from_start : nodes_as_image_from_goal;
 
 		if( nodes_as_image[n.z] == null ) {
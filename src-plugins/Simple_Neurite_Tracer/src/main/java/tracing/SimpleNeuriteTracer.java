@@ -821,6 +821,7 @@ synchronized void testPathTo( double world_x, double world_y, double world_z, Po
 				true, // reciprocal
 				singleSlice,
 				(hessianEnabled ? hessian : null),
+				(hessianEnabled ? hessianTiles : null),
 				resultsDialog.getMultiplier(),
 				tubeness,
 				hessianEnabled );
@@ -1281,7 +1282,25 @@ public double getMinimumSeparation() {
 	   (or -1 if 'hessian' is null) ... */
 	volatile double hessianSigma = -1;
 
+	/* For stacks, the Hessian-based measure is calculated for
+	   tiles of the image as the searches reach them, rather than
+	   calculating the Gaussian of the whole stack first.  The same
+	   tiles are used by every search until sigma is changed. */
+	HessianTileCache hessianTiles = null;
+
+	protected boolean useHessianTiles( ) {
+		return ! singleSlice && depth >= 3;
+	}
+
 	public void startHessian() {
+		if( useHessianTiles() ) {
+			double newSigma = resultsDialog.getSigma();
+			if( hessianTiles == null || newSigma != hessianSigma ) {
+				hessianSigma = newSigma;
+				hessianTiles = new HessianTileCache( xy, hessianSigma, true );
+			}
+			return;
+		}
 		if( hessian == null ) {
 			resultsDialog.changeState(NeuriteTracerResultsDialog.CALCULATING_GAUSSIAN);
 			hessianSigma = resultsDialog.getSigma();
@@ -1345,6 +1364,7 @@ public void proportionDone( double proportion ) {
 		if( proportion < 0 ) {
 			hessianEnabled = false;
 			hessian = null;
+			hessianTiles = null;
 			hessianSigma = -1;
 			resultsDialog.gaussianCalculated(false);
 			IJ.showProgress(1.0);
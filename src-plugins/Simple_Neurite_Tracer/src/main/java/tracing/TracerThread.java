@@ -48,6 +48,13 @@ public class TracerThread extends SearchThread {
         ComputeCurvatures hessian;
 	double multiplier;
 
+	/* If this is set it is used instead of hessian, calculating
+	   the tubeness measure for tiles of the image on demand; the
+	   last tile used is kept since neighbouring points are nearly
+	   always in the same tile. */
+	HessianTileCache hessianTiles;
+	HessianTileCache.Tile lastTile;
+
         Path result;
 
 	@Override
@@ -63,7 +70,7 @@ protected double minimumCostPerUnitDistance( ) {
 
 		double minimum_cost;
 
-                if( hessian == null ) {
+                if( hessian == null && hessianTiles == null ) {
 
                         minimum_cost = reciprocal ? ( 1 / 255.0 ) : 1;
 
@@ -103,6 +110,32 @@ public TracerThread( ImagePlus imagePlus,
 			     double multiplier,
 			     float [][] tubeness,
 			     boolean useHessian ) {
+		this( imagePlus, stackMin, stackMax, timeoutSeconds, reportEveryMilliseconds,
+		      start_x, start_y, start_z, goal_x, goal_y, goal_z,
+		      reciprocal, singleSlice, hessian, null, multiplier, tubeness, useHessian );
+	}
+
+	/* If hessianTiles is non-null, it is used for the Hessian-based
+	   cost instead of hessian (which may then be null). */
+
+        public TracerThread( ImagePlus imagePlus,
+			     float stackMin,
+			     float stackMax,
+			     int timeoutSeconds,
+			     long reportEveryMilliseconds,
+			     int start_x,
+			     int start_y,
+			     int start_z,
+			     int goal_x,
+			     int goal_y,
+			     int goal_z,
+			     boolean reciprocal,
+			     boolean singleSlice,
+			     ComputeCurvatures hessian,
+			     HessianTileCache hessianTiles,
+			     double multiplier,
+			     float [][] tubeness,
+			     boolean useHessian ) {
 
 		super( imagePlus,
 		       stackMin,
@@ -111,11 +144,13 @@ public TracerThread( ImagePlus imagePlus,
 		       true, // definedGoal
 		       false, // startPaused,
 		       timeoutSeconds,
-		       reportEveryMilliseconds );
+		       reportEveryMilliseconds,
+		       true ); // useArrays
 
                 this.reciprocal = reciprocal;
 		this.singleSlice = singleSlice;
                 this.hessian = hessian;
+		this.hessianTiles = hessianTiles;
 		this.tubeness = tubeness;
 		this.multiplier = multiplier;
 		// need to do this again since it needs to know if hessian is set...
@@ -230,6 +265,32 @@ protected double costMovingTo( int new_x, int new_y, int new_z ) {
 
 					}
 
+				} else if( hessianTiles != null ) {
+
+					if( lastTile == null || ! lastTile.contains( new_x, new_y, new_z ) )
+						lastTile = hessianTiles.getTile( new_x, new_y, new_z );
+
+					// This is the same measure as below, or
+					// negative if it doesn't apply:
+					double measure = lastTile.get( new_x, new_y, new_z );
+
+					if( measure >= 0 ) {
+
+						if( measure == 0 ) // This should never happen in practice...
+							measure = 0.2;
+
+						measure *= multiplier;
+						if( measure > 256 )
+							measure = 256;
+
+						cost = 1 / measure;
+
+					} else {
+
+						cost = 1 / 0.2;
+
+					}
+
 				} else {
 
 					double [] hessianEigenValues = new double[3];
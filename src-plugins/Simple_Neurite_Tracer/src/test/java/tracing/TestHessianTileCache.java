@@ -0,0 +1,69 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Check that the tubeness calculated tile by tile is the same as
+   from the Gaussian of the whole stack */
+
+package tracing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import features.ComputeCurvatures;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestHessianTileCache {
+
+	@Test
+	public void testSameAsWholeImage() {
+
+		int width = 37, height = 29, depth = 23;
+
+		// A noisy image with a bright tube running diagonally through it:
+		Random random = new Random( 42 );
+		ImageStack stack = new ImageStack( width, height );
+		for( int z = 0; z < depth; ++z ) {
+			float [] pixels = new float[width*height];
+			for( int y = 0; y < height; ++y )
+				for( int x = 0; x < width; ++x ) {
+					double dy = y - x * height / (double)width;
+					double dz = z - x * depth / (double)width;
+					pixels[y*width+x] = (float)( 200 * Math.exp( -(dy*dy + dz*dz) / 8 ) + 20 * random.nextDouble() );
+				}
+			stack.addSlice( null, new FloatProcessor( width, height, pixels, null ) );
+		}
+		ImagePlus imagePlus = new ImagePlus( "tube", stack );
+
+		double sigma = 1.5;
+
+		ComputeCurvatures hessian = new ComputeCurvatures( imagePlus, sigma, null, true );
+		hessian.run();
+
+		// Small tiles, so that lots of them are on the edges of the image:
+		HessianTileCache tiles = new HessianTileCache( imagePlus, sigma, true, 8, 4 * 8 * 8 * 8 * 10 );
+
+		double [] hessianEigenValues = new double[3];
+		int tubular = 0;
+		for( int z = 0; z < depth; ++z )
+			for( int y = 0; y < height; ++y )
+				for( int x = 0; x < width; ++x ) {
+					boolean real = hessian.hessianEigenvaluesAtPoint3D( x, y, z,
+											    true, hessianEigenValues, false, true, 1, 1, 1 );
+					double e1 = hessianEigenValues[1];
+					double e2 = hessianEigenValues[2];
+					double expected = -1;
+					if( real && (e1 < 0) && (e2 < 0) ) {
+						expected = Math.sqrt( e1 * e2 );
+						++ tubular;
+					}
+					assertEquals( "at ("+x+","+y+","+z+")", expected, tiles.get( x, y, z ), 1e-3 );
+				}
+
+		assertTrue( tubular > 0 );
+		assertTrue( tiles.getTilesInCache() <= 10 );
+	}
+}
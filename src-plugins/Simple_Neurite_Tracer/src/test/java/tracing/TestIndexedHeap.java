@@ -0,0 +1,64 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+/* Unit tests for the heap used as the open list of the searches */
+
+package tracing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestIndexedHeap {
+
+	@Test
+	public void testOrdering() {
+		int width = 7, height = 5, depth = 3;
+		IndexedHeap heap = new IndexedHeap( width, height, depth );
+		Random random = new Random( 17 );
+		float [] priorities = new float[width*height*depth];
+		for( int v = 0; v < priorities.length; ++v ) {
+			priorities[v] = random.nextInt( 20 );
+			heap.add( v, priorities[v] );
+		}
+		assertEquals( priorities.length, heap.size() );
+
+		float lastPriority = -1;
+		int lastVoxel = -1;
+		while( ! heap.isEmpty() ) {
+			float priority = heap.peekPriority();
+			int voxel = heap.poll();
+			assertFalse( heap.contains( voxel ) );
+			assertEquals( priorities[voxel], priority, 0 );
+			assertTrue( priority > lastPriority || (priority == lastPriority && voxel > lastVoxel) );
+			lastPriority = priority;
+			lastVoxel = voxel;
+		}
+	}
+
+	@Test
+	public void testChangingPriorities() {
+		IndexedHeap heap = new IndexedHeap( 10, 10, 10, 2 );
+		heap.add( 5, 5 );
+		heap.add( 999, 3 );
+		heap.add( 123, 4 );
+		assertEquals( 999, heap.peek() );
+
+		// Decrease the key of an entry that's already there:
+		heap.add( 5, 1 );
+		assertEquals( 3, heap.size() );
+		assertEquals( 5, heap.peek() );
+
+		// ... and increase it again:
+		heap.add( 5, 10 );
+		assertEquals( 999, heap.poll() );
+
+		heap.remove( 123 );
+		assertFalse( heap.contains( 123 ) );
+		assertEquals( 5, heap.poll() );
+		assertTrue( heap.isEmpty() );
+	}
+}
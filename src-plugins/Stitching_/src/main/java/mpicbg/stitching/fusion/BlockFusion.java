@@ -0,0 +1,375 @@
+package mpicbg.stitching.fusion;
+
+import ij.CompositeImage;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.io.FileSaver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mpicbg.imglib.container.imageplus.ImagePlusContainer;
+import mpicbg.imglib.container.imageplus.ImagePlusContainerFactory;
+import mpicbg.imglib.cursor.LocalizableByDimCursor;
+import mpicbg.imglib.exception.ImgLibException;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.image.ImageFactory;
+import mpicbg.imglib.interpolation.Interpolator;
+import mpicbg.imglib.multithreading.SimpleMultiThreading;
+import mpicbg.imglib.type.numeric.RealType;
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.NoninvertibleModelException;
+
+/**
+ * Fuses the output image block by block, so that it never has to be held in memory as a whole.
+ *
+ * The output bounding box is cut into slabs of {@link #slabDepth} planes, and each slab into blocks of
+ * {@link #blockSize}x{@link #blockSize} pixels. For each block, only the input tiles whose transformed bounding
+ * box intersects the block are considered, instead of testing all tiles for every output pixel. The blocks of a
+ * slab are processed by all threads, each thread taking the next unprocessed block when done with its current one,
+ * so that blocks covered by many tiles do not stall the others. Each slab is then written plane by plane to disk,
+ * and only one slab of the output is kept in memory at a time.
+ *
+ * If no output directory is given, the planes are written to a temporary directory and returned as a
+ * {@link VirtualStack}. All {@link PixelFusion} strategies are supported, the result is the same as
+ * {@link Fusion#fuse(RealType, ArrayList, ArrayList, int, boolean, int, String, boolean, boolean)}.
+ */
+public class BlockFusion
+{
+	/**
+	 * The size of the blocks in x and y
+	 */
+	public static int blockSize = 256;
+
+	/**
+	 * How many planes are fused at once for 3d images
+	 */
+	public static int slabDepth = 1;
+
+	/**
+	 *
+	 * @param targetType
+	 * @param images
+	 * @param models
+	 * @param dimensionality
+	 * @param subpixelResolution - if there is no subpixel resolution, we do not need to convert to float as no interpolation is necessary, we can compute everything with RealType
+	 * @param fusionType - 0 = blending, 1 = average, 2 = median, 3 = max, 4 = min
+	 * @param outputDirectory - where to write the planes, or null to return a virtual stack backed by a temporary directory
+	 * @param ignoreZeroValues
+	 * @return - the fused virtual stack, or null if it was written to the output directory or if fusion failed
+	 */
+	public static < T extends RealType< T > > ImagePlus fuse( final T targetType, final ArrayList< ImagePlus > images, final ArrayList< InvertibleBoundable > models,
+			final int dimensionality, final boolean subpixelResolution, final int fusionType, final String outputDirectory, final boolean ignoreZeroValues )
+	{
+		// first we need to estimate the boundaries of the new image
+		final float[] offset = new float[ dimensionality ];
+		final int[] size = new int[ dimensionality ];
+		final int numTimePoints = images.get( 0 ).getNFrames();
+		final int numChannels = images.get( 0 ).getNChannels();
+
+		Fusion.estimateBounds( offset, size, images, models, dimensionality );
+
+		if ( subpixelResolution )
+			for ( int d = 0; d < size.length; ++d )
+				++size[ d ];
+
+		final int numSlices;
+
+		if ( dimensionality == 2 )
+			numSlices = 1;
+		else
+			numSlices = size[ 2 ];
+
+		// where the planes go
+		final File directory;
+
+		if ( outputDirectory == null )
+		{
+			try
+			{
+				directory = createTempDirectory();
+			}
+			catch ( IOException e )
+			{
+				IJ.log( "Cannot create a temporary directory for the fused planes: " + e );
+				return null;
+			}
+		}
+		else
+		{
+			directory = new File( outputDirectory );
+		}
+
+		// for output
+		final ImageFactory<T> f = new ImageFactory<T>( targetType, new ImagePlusContainerFactory() );
+
+		for ( int t = 1; t <= numTimePoints; ++t )
+		{
+			for ( int c = 1; c <= numChannels; ++c )
+			{
+				// extract the complete blockdata and init the fusion
+				final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > blockData = Fusion.createBlockData( images, c, t, subpixelResolution );
+				final PixelFusion fusion = Fusion.createPixelFusion( fusionType, ignoreZeroValues, blockData );
+
+				if ( fusion == null )
+				{
+					IJ.log( "Unknown fusion type for block fusion: " + fusionType );
+					return null;
+				}
+
+				// the bounding boxes of all tiles in output coordinates
+				final int[][] tileMin = new int[ blockData.size() ][ dimensionality ];
+				final int[][] tileMax = new int[ blockData.size() ][ dimensionality ];
+				computeTileBounds( blockData, models, offset, tileMin, tileMax );
+
+				for ( int z = 0; z < numSlices; z += slabDepth )
+				{
+					IJ.showStatus( "Fusing time point: " + t + " of " + numTimePoints + ", " +
+							"channel: " + c + " of " + numChannels + ", slice: " + (z + 1) + " of " + numSlices + "..." );
+					IJ.showProgress( z, numSlices );
+
+					final int depth = Math.min( slabDepth, numSlices - z );
+					final Image< T > slab;
+
+					if ( dimensionality == 2 )
+						slab = f.createImage( new int[] { size[ 0 ], size[ 1 ] } );
+					else
+						slab = f.createImage( new int[] { size[ 0 ], size[ 1 ], depth } );
+
+					if ( !fuseSlab( slab, z, blockData, offset, models, tileMin, tileMax, fusion ) )
+					{
+						slab.close();
+						return null;
+					}
+
+					// write the planes
+					try
+					{
+						final ImagePlus slabImp = ((ImagePlusContainer<?,?>)slab.getContainer()).getImagePlus();
+
+						for ( int plane = 0; plane < depth; ++plane )
+						{
+							final FileSaver fs = new FileSaver( new ImagePlus( "", slabImp.getStack().getProcessor( plane + 1 ) ) );
+							fs.saveAsTiff( new File( directory, planeName( t, numTimePoints, z + plane + 1, numSlices, c, numChannels ) ).getAbsolutePath() );
+						}
+					}
+					catch ( ImgLibException e )
+					{
+						IJ.log( "Output image has no ImageJ type: " + e );
+						return null;
+					}
+
+					slab.close();
+				}
+			}
+		}
+
+		IJ.showProgress( 1.0 );
+		IJ.showStatus( "Fusion complete." );
+
+		// has been written to disk ...
+		if ( outputDirectory != null )
+			return null;
+
+		// open as virtual stack, in the CZT order of ImageJ hyperstacks
+		final VirtualStack stack = new VirtualStack( size[ 0 ], size[ 1 ], null, directory.getAbsolutePath() + File.separator );
+
+		for ( int t = 1; t <= numTimePoints; ++t )
+			for ( int z = 1; z <= numSlices; ++z )
+				for ( int c = 1; c <= numChannels; ++c )
+				{
+					final String name = planeName( t, numTimePoints, z, numSlices, c, numChannels );
+					new File( directory, name ).deleteOnExit();
+					stack.addSlice( name );
+				}
+
+		final ImagePlus result = new ImagePlus( "", stack );
+		result.setDimensions( numChannels, numSlices, numTimePoints );
+
+		if ( numChannels > 1 )
+			return new CompositeImage( result, CompositeImage.COMPOSITE );
+		else
+			return result;
+	}
+
+	/**
+	 * Computes the bounding box of each input tile in output pixel coordinates, enlarged by one pixel on each
+	 * side to account for rounding.
+	 */
+	protected static void computeTileBounds( final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > input,
+			final ArrayList< InvertibleBoundable > transform, final float[] offset, final int[][] tileMin, final int[][] tileMax )
+	{
+		final int numDimensions = offset.length;
+		final float[] min = new float[ numDimensions ];
+		final float[] max = new float[ numDimensions ];
+
+		for ( int i = 0; i < input.size(); ++i )
+		{
+			for ( int d = 0; d < numDimensions; ++d )
+			{
+				min[ d ] = 0;
+				max[ d ] = input.get( i ).getImage().getDimension( d ) - 1;
+			}
+
+			transform.get( i ).estimateBounds( min, max );
+
+			// the image might be rotated so that min is actually max
+			for ( int d = 0; d < numDimensions; ++d )
+			{
+				tileMin[ i ][ d ] = (int)Math.floor( Math.min( min[ d ], max[ d ] ) - offset[ d ] ) - 1;
+				tileMax[ i ][ d ] = (int)Math.ceil( Math.max( min[ d ], max[ d ] ) - offset[ d ] ) + 1;
+			}
+		}
+	}
+
+	/**
+	 * Fuses one slab of the output image, block by block and multithreaded.
+	 *
+	 * @param slab - the output slab, 2d or 3d
+	 * @param zOffset - the index of the first plane of the slab in the output image
+	 * @return - false if a model could not be inverted
+	 */
+	protected static < T extends RealType< T > > boolean fuseSlab( final Image< T > slab, final int zOffset,
+			final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > input, final float[] offset,
+			final ArrayList< InvertibleBoundable > transform, final int[][] tileMin, final int[][] tileMax, final PixelFusion fusion )
+	{
+		final int numDimensions = offset.length;
+		final int numImages = input.size();
+		final int width = slab.getDimension( 0 );
+		final int height = slab.getDimension( 1 );
+		final int depth = numDimensions == 3 ? slab.getDimension( 2 ) : 1;
+		final int numBlocksX = ( width + blockSize - 1 ) / blockSize;
+		final int numBlocksY = ( height + blockSize - 1 ) / blockSize;
+		final int numBlocks = numBlocksX * numBlocksY;
+
+		// the maximal dimensions of each image
+		final int[][] max = new int[ numImages ][ numDimensions ];
+		for ( int i = 0; i < numImages; ++i )
+			for ( int d = 0; d < numDimensions; ++d )
+				max[ i ][ d ] = input.get( i ).getImage().getDimension( d ) - 1;
+
+		// the next block to process, shared by all threads
+		final AtomicInteger nextBlock = new AtomicInteger( 0 );
+		final AtomicInteger failed = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( Math.min( numBlocks, Runtime.getRuntime().availableProcessors() ) );
+
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
+			{
+				public void run()
+				{
+					final LocalizableByDimCursor< T > out = slab.createLocalizableByDimCursor();
+					final ArrayList< Interpolator< ? extends RealType< ? > > > in = new ArrayList< Interpolator< ? extends RealType< ? > > >();
+
+					for ( int i = 0; i < numImages; ++i )
+						in.add( input.get( i ).createInterpolator() );
+
+					final PixelFusion myFusion = fusion.copy();
+					final float[] tmp = new float[ numDimensions ];
+					final int[] pos = new int[ slab.getNumDimensions() ];
+					final int[] candidates = new int[ numImages ];
+
+					try
+					{
+						for ( int block = nextBlock.getAndIncrement(); block < numBlocks; block = nextBlock.getAndIncrement() )
+						{
+							final int x0 = ( block % numBlocksX ) * blockSize;
+							final int y0 = ( block / numBlocksX ) * blockSize;
+							final int x1 = Math.min( width, x0 + blockSize ) - 1;
+							final int y1 = Math.min( height, y0 + blockSize ) - 1;
+							final int z0 = zOffset;
+							final int z1 = zOffset + depth - 1;
+
+							// which tiles contribute to this block
+							int numCandidates = 0;
+							for ( int i = 0; i < numImages; ++i )
+							{
+								if ( tileMax[ i ][ 0 ] < x0 || tileMin[ i ][ 0 ] > x1 || tileMax[ i ][ 1 ] < y0 || tileMin[ i ][ 1 ] > y1 )
+									continue;
+								if ( numDimensions == 3 && ( tileMax[ i ][ 2 ] < z0 || tileMin[ i ][ 2 ] > z1 ) )
+									continue;
+								candidates[ numCandidates++ ] = i;
+							}
+
+							for ( int z = 0; z < depth; ++z )
+							{
+								for ( int y = y0; y <= y1; ++y )
+								{
+									pos[ 0 ] = x0;
+									pos[ 1 ] = y;
+									if ( pos.length > 2 )
+										pos[ 2 ] = z;
+									out.setPosition( pos );
+
+									for ( int x = x0; x <= x1; ++x )
+									{
+										if ( x > x0 )
+											out.fwd( 0 );
+
+										myFusion.clear();
+
+										// loop over all candidate images for this output location
+A:										for ( int k = 0; k < numCandidates; ++k )
+										{
+											final int i = candidates[ k ];
+
+											tmp[ 0 ] = x + offset[ 0 ];
+											tmp[ 1 ] = y + offset[ 1 ];
+											if ( numDimensions == 3 )
+												tmp[ 2 ] = z + zOffset + offset[ 2 ];
+
+											transform.get( i ).applyInverseInPlace( tmp );
+
+											// test if inside
+											for ( int d = 0; d < numDimensions; ++d )
+												if ( tmp[ d ] < 0 || tmp[ d ] > max[ i ][ d ] )
+													continue A;
+
+											in.get( i ).setPosition( tmp );
+											myFusion.addValue( in.get( i ).getType().getRealFloat(), i, tmp );
+										}
+
+										// set value
+										out.getType().setReal( myFusion.getValue() );
+									}
+								}
+							}
+						}
+					}
+					catch ( NoninvertibleModelException e )
+					{
+						IJ.log( "Cannot invert model, qutting." );
+						failed.incrementAndGet();
+					}
+					finally
+					{
+						out.close();
+					}
+				}
+			});
+
+		SimpleMultiThreading.startAndJoin( threads );
+
+		return failed.get() == 0;
+	}
+
+	protected static String planeName( final int t, final int numTimePoints, final int z, final int numSlices, final int c, final int numChannels )
+	{
+		return "img_t" + Fusion.lz( t, numTimePoints ) + "_z" + Fusion.lz( z, numSlices ) + "_c" + Fusion.lz( c, numChannels );
+	}
+
+	protected static File createTempDirectory() throws IOException
+	{
+		final File directory = File.createTempFile( "fused", "" );
+
+		if ( !directory.delete() || !directory.mkdir() )
+			throw new IOException( "Could not create " + directory );
+
+		directory.deleteOnExit();
+
+		return directory;
+	}
+}
@@ -97,122 +97,29 @@ public static < T extends RealType< T > > ImagePlus fuse( final T targetType, fi
 				else
 					out = f.createImage( new int[] { size[ 0 ], size[ 1 ] } ); // just create a slice
 
-				// init the fusion
-				PixelFusion fusion = null;
-				
-				if ( fusionType == 1 )
-				{
-					if ( ignoreZeroValues )
-						fusion = new AveragePixelFusionIgnoreZero();
-					else
-						fusion = new AveragePixelFusion();
-				}
-				else if ( fusionType == 2 )
-				{
-					if ( ignoreZeroValues )
-						fusion = new MedianPixelFusionIgnoreZero();
-					else
-						fusion = new MedianPixelFusion();
-				}
-				else if ( fusionType == 3 )
-				{
-					if ( ignoreZeroValues )
-						fusion = new MaxPixelFusionIgnoreZero();
-					else
-						fusion = new MaxPixelFusion();
-				}
-				else if ( fusionType == 4 )
+				// extract the complete blockdata and init the fusion
+				final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > blockData = createBlockData( images, c, t, subpixelResolution );
+				final PixelFusion fusion = createPixelFusion( fusionType, ignoreZeroValues, blockData );
+
+				if ( outputDirectory == null )
 				{
-					if ( ignoreZeroValues )
-						fusion = new MinPixelFusionIgnoreZero();
+					// the fast fusion is only possible without interpolation
+					if ( noOverlap && !subpixelResolution )
+						fuseBlockNoOverlap( out, blockData, offset, models );
 					else
-						fusion = new MinPixelFusion();	
-				}
-				
-				// extract the complete blockdata
-				if ( subpixelResolution )
-				{
-					final ArrayList< ImageInterpolation< FloatType > > blockData = new ArrayList< ImageInterpolation< FloatType > >();
-
-					// for linear interpolation we want to mirror, otherwise we get black areas at the first and last pixel of each image
-					final InterpolatorFactory< FloatType > interpolatorFactory = new LinearInterpolatorFactory<FloatType>( new OutOfBoundsStrategyMirrorFactory<FloatType>() );
-					
-					for ( final ImagePlus imp : images )
-						blockData.add( new ImageInterpolation<FloatType>( ImageJFunctions.convertFloat( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), interpolatorFactory ) );
-					
-					// init blending with the images
-					if ( fusionType == 0 )
-					{
-						if ( ignoreZeroValues )
-							fusion = new BlendingPixelFusionIgnoreZero( blockData );
-						else
-							fusion = new BlendingPixelFusion( blockData );
-					}
-					
-					if ( outputDirectory == null )
-					{
 						fuseBlock( out, blockData, offset, models, fusion );
-					}
-					else
-					{
-						final int numSlices;
-						
-						if ( dimensionality == 2 )
-							numSlices = 1;
-						else
-							numSlices = size[ 2 ];
-						
-						writeBlock( out, numSlices, t, numTimePoints, c, numChannels, blockData, offset, models, fusion, outputDirectory );
-						out.close();
-					}
 				}
 				else
 				{
-					// can be a mixture of different RealTypes
-					final ArrayList< ImageInterpolation< ? extends RealType< ? > > > blockData = new ArrayList< ImageInterpolation< ? extends RealType< ? > > >();
-
-					final InterpolatorFactory< FloatType > interpolatorFactoryFloat = new NearestNeighborInterpolatorFactory< FloatType >( new OutOfBoundsStrategyValueFactory<FloatType>() );
-					final InterpolatorFactory< UnsignedShortType > interpolatorFactoryShort = new NearestNeighborInterpolatorFactory< UnsignedShortType >( new OutOfBoundsStrategyValueFactory<UnsignedShortType>() );
-					final InterpolatorFactory< UnsignedByteType > interpolatorFactoryByte = new NearestNeighborInterpolatorFactory< UnsignedByteType >( new OutOfBoundsStrategyValueFactory<UnsignedByteType>() );
-
-					for ( final ImagePlus imp : images )
-					{
-						if ( imp.getType() == ImagePlus.GRAY32 )
-							blockData.add( new ImageInterpolation<FloatType>( ImageJFunctions.wrapFloat( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), interpolatorFactoryFloat ) );
-						else if ( imp.getType() == ImagePlus.GRAY16 )
-							blockData.add( new ImageInterpolation<UnsignedShortType>( ImageJFunctions.wrapShort( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), interpolatorFactoryShort ) );
-						else
-							blockData.add( new ImageInterpolation<UnsignedByteType>( ImageJFunctions.wrapByte( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), interpolatorFactoryByte ) );
-					}
+					final int numSlices;
 					
-					// init blending with the images
-					if ( fusionType == 0 )
-					{
-						if ( ignoreZeroValues )
-							fusion = new BlendingPixelFusionIgnoreZero( blockData );
-						else
-							fusion = new BlendingPixelFusion( blockData );					
-					}
-					
-					if ( outputDirectory == null )
-					{
-						if ( noOverlap )
-							fuseBlockNoOverlap( out, blockData, offset, models );
-						else
-							fuseBlock( out, blockData, offset, models, fusion );
-					}
+					if ( dimensionality == 2 )
+						numSlices = 1;
 					else
-					{
-						final int numSlices;
-						
-						if ( dimensionality == 2 )
-							numSlices = 1;
-						else
-							numSlices = size[ 2 ];
-						
-						writeBlock( out, numSlices, t, numTimePoints, c, numChannels, blockData, offset, models, fusion, outputDirectory );
-						out.close();
-					}
+						numSlices = size[ 2 ];
+					
+					writeBlock( out, numSlices, t, numTimePoints, c, numChannels, blockData, offset, models, fusion, outputDirectory );
+					out.close();
 				}
 				
 				// add to stack
@@ -262,6 +169,102 @@ else if ( imp.getType() == ImagePlus.GRAY16 )
 		}
 	}
 	
+	/**
+	 * Instantiates the {@link PixelFusion} for the given fusion type
+	 * 
+	 * @param fusionType - 0 = blending, 1 = average, 2 = median, 3 = max, 4 = min
+	 * @param ignoreZeroValues - if zero values should be ignored by the fusion
+	 * @param blockData - all input images, required for blending
+	 * @return - the {@link PixelFusion}, or null if the fusion type is unknown
+	 */
+	protected static PixelFusion createPixelFusion( final int fusionType, final boolean ignoreZeroValues, final ArrayList< ? extends ImageInterpolation< ? > > blockData )
+	{
+		if ( fusionType == 0 )
+		{
+			if ( ignoreZeroValues )
+				return new BlendingPixelFusionIgnoreZero( blockData );
+			else
+				return new BlendingPixelFusion( blockData );
+		}
+		else if ( fusionType == 1 )
+		{
+			if ( ignoreZeroValues )
+				return new AveragePixelFusionIgnoreZero();
+			else
+				return new AveragePixelFusion();
+		}
+		else if ( fusionType == 2 )
+		{
+			if ( ignoreZeroValues )
+				return new MedianPixelFusionIgnoreZero();
+			else
+				return new MedianPixelFusion();
+		}
+		else if ( fusionType == 3 )
+		{
+			if ( ignoreZeroValues )
+				return new MaxPixelFusionIgnoreZero();
+			else
+				return new MaxPixelFusion();
+		}
+		else if ( fusionType == 4 )
+		{
+			if ( ignoreZeroValues )
+				return new MinPixelFusionIgnoreZero();
+			else
+				return new MinPixelFusion();	
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Wraps one channel and timepoint of all input images for interpolation
+	 * 
+	 * @param images - all input images
+	 * @param c - the channel (1-based)
+	 * @param t - the timepoint (1-based)
+	 * @param subpixelResolution - if true, all images are converted to FloatType and linearly interpolated, 
+	 * otherwise they are wrapped in their own type with nearest neighbor interpolation
+	 * @return - one {@link ImageInterpolation} per input image
+	 */
+	protected static ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > createBlockData( final ArrayList< ImagePlus > images, final int c, final int t, final boolean subpixelResolution )
+	{
+		if ( subpixelResolution )
+		{
+			final ArrayList< ImageInterpolation< FloatType > > blockData = new ArrayList< ImageInterpolation< FloatType > >();
+
+			// for linear interpolation we want to mirror, otherwise we get black areas at the first and last pixel of each image
+			final InterpolatorFactory< FloatType > interpolatorFactory = new LinearInterpolatorFactory<FloatType>( new OutOfBoundsStrategyMirrorFactory<FloatType>() );
+			
+			for ( final ImagePlus imp : images )
+				blockData.add( new ImageInterpolation<FloatType>( ImageJFunctions.convertFloat( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), interpolatorFactory ) );
+			
+			return blockData;
+		}
+		else
+		{
+			// can be a mixture of different RealTypes
+			final ArrayList< ImageInterpolation< ? extends RealType< ? > > > blockData = new ArrayList< ImageInterpolation< ? extends RealType< ? > > >();
+
+			final InterpolatorFactory< FloatType > interpolatorFactoryFloat = new NearestNeighborInterpolatorFactory< FloatType >( new OutOfBoundsStrategyValueFactory<FloatType>() );
+			final InterpolatorFactory< UnsignedShortType > interpolatorFactoryShort = new NearestNeighborInterpolatorFactory< UnsignedShortType >( new OutOfBoundsStrategyValueFactory<UnsignedShortType>() );
+			final InterpolatorFactory< UnsignedByteType > interpolatorFactoryByte = new NearestNeighborInterpolatorFactory< UnsignedByteType >( new OutOfBoundsStrategyValueFactory<UnsignedByteType>() );
+
+			for ( final ImagePlus imp : images )
+			{
+				if ( imp.getType() == ImagePlus.GRAY32 )
+					blockData.add( new ImageInterpolation<FloatType>( ImageJFunctions.wrapFloat( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), interpolatorFactoryFloat ) );
+				else if ( imp.getType() == ImagePlus.GRAY16 )
+					blockData.add( new ImageInterpolation<UnsignedShortType>( ImageJFunctions.wrapShort( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), interpolatorFactoryShort ) );
+				else
+					blockData.add( new ImageInterpolation<UnsignedByteType>( ImageJFunctions.wrapByte( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), interpolatorFactoryByte ) );
+			}
+			
+			return blockData;
+		}
+	}
+
 	/**
 	 * Fuse one slice/volume (one channel)
 	 * 
@@ -573,7 +576,7 @@ protected static <T extends RealType<T>> void writeBlock( final Image<T> outputS
 		}
 	}
 
-	private static final String lz( final int num, final int max )
+	static final String lz( final int num, final int max )
 	{
 		String out = "" + num;
 		String outMax = "" + max;
@@ -43,6 +43,7 @@
 import mpicbg.stitching.ImagePlusTimePoint;
 import mpicbg.stitching.StitchingParameters;
 import mpicbg.stitching.TextFileAccess;
+import mpicbg.stitching.fusion.BlockFusion;
 import mpicbg.stitching.fusion.Fusion;
 import ome.xml.model.primitives.PositiveFloat;
 import stitching.CommonFunctions;
@@ -101,7 +102,7 @@ public class Stitching_Grid implements PlugIn
 	
 	public static boolean defaultQuickFusion = true;
 	
-	public static String[] resultChoices = { "Fuse and display", "Write to disk" };
+	public static String[] resultChoices = { "Fuse and display", "Write to disk", "Write to disk (block-wise, multithreaded)", "Fuse into virtual stack (block-wise, multithreaded)" };
 	public static int defaultResult = 0;
 	public static String defaultOutputDirectory = "";
 	
@@ -329,7 +330,7 @@ else if ( gridType == 6 && gridOrder == 1 )
 			}
 		}
 		
-		if ( params.fusionMethod != CommonFunctions.fusionMethodListGrid.length - 1 && params.outputVariant == 1 )
+		if ( params.fusionMethod != CommonFunctions.fusionMethodListGrid.length - 1 && ( params.outputVariant == 1 || params.outputVariant == 2 ) )
 		{
 			if ( defaultOutputDirectory == null || defaultOutputDirectory.length() == 0 )
 				defaultOutputDirectory = defaultDirectory;
@@ -559,7 +560,7 @@ else if ( imp.getType() == ImagePlus.GRAY8 )
 			// test if there is no overlap between any of the tiles
 			// if so fusion can be much faster
 			boolean noOverlap = false;
-			if ( overlapX == 0 && overlapY == 0 && params.computeOverlap == false && params.subpixelAccuracy == false && grid.getType() < 4 )
+			if ( overlapX == 0 && overlapY == 0 && params.computeOverlap == false && params.subpixelAccuracy == false && grid.getType() < 4 && params.outputVariant < 2 )
 			{
 				final GenericDialogPlus gd3 = new GenericDialogPlus( "Use fast fusion algorithm" );
 				gd3.addMessage( "There seems to be no overlap between any of the tiles." );
@@ -576,7 +577,19 @@ else if ( imp.getType() == ImagePlus.GRAY8 )
 					IJ.log( "There is no overlap between any of the tiles, using faster fusion algorithm." );
 			}
 			
-			if ( is32bit )
+			if ( params.outputVariant >= 2 )
+			{
+				// fuse block by block, only the current slab of the output is kept in memory
+				if ( is32bit )
+					imp = BlockFusion.fuse( new FloatType(), images, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, params.outputDirectory, false );
+				else if ( is16bit )
+					imp = BlockFusion.fuse( new UnsignedShortType(), images, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, params.outputDirectory, false );
+				else if ( is8bit )
+					imp = BlockFusion.fuse( new UnsignedByteType(), images, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, params.outputDirectory, false );
+				else
+					IJ.log( "Unknown image type for fusion." );
+			}
+			else if ( is32bit )
 				imp = Fusion.fuse( new FloatType(), images, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, params.outputDirectory, noOverlap, false );
 			else if ( is16bit )
 				imp = Fusion.fuse( new UnsignedShortType(), images, models, params.dimensionality, params.subpixelAccuracy, params.fusionMethod, params.outputDirectory, noOverlap, false );
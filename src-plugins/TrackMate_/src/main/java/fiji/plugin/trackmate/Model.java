@@ -522,6 +522,10 @@ public synchronized Spot removeSpot(final Spot spotToRemove) {
 	 */
 	public synchronized void updateFeatures(final Spot spotToUpdate) {
 		spotsUpdated.add(spotToUpdate); // Enlist for feature update when transaction is marked as finished
+		final Double frame = spotToUpdate.getFeature(Spot.FRAME);
+		if (null != frame) {
+			spots.invalidateIndex(frame.intValue()); // The spot might have moved
+		}
 		Set<DefaultWeightedEdge> touchingEdges = trackModel.edgesOf(spotToUpdate);
 		if (null != touchingEdges) {
 			trackModel.edgesModified.addAll(touchingEdges);
@@ -73,6 +73,12 @@ public class Settings {
 
 	public Map<String, Object> detectorSettings = new HashMap<String, Object>();
 	public Map<String, Object> trackerSettings = new HashMap<String, Object>();
+	/**
+	 * If <code>true</code>, the features of the spots found by detection are
+	 * stored in columns of primitive doubles instead of one map per spot. See
+	 * {@link SpotCollection#SpotCollection(boolean)}.
+	 */
+	public boolean columnarFeatureStorage = false;
 
 	// Filters
 
@@ -251,6 +257,9 @@ public String toString() {
 				str.append('\n');
 			}
 		}
+		if (columnarFeatureStorage) {
+			str.append("Spot features stored in columns.\n");
+		}
 
 		str.append('\n');
 		str.append(toStringFeatureAnalyzersInfo());
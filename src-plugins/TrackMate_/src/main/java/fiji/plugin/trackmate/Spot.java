@@ -26,8 +26,16 @@ public class Spot extends AbstractEuclideanSpace implements RealLocalizable {
 
 	public static AtomicInteger IDcounter = new AtomicInteger(-1);
 
-	/** Store the individual features, and their values. */
-	private final ConcurrentHashMap<String, Double> features = new ConcurrentHashMap<String, Double>();
+	/**
+	 * Store the individual features, and their values. Set to
+	 * <code>null</code> once this spot is attached to a
+	 * {@link SpotFeatureColumns} storage.
+	 */
+	private volatile Map<String, Double> features = new ConcurrentHashMap<String, Double>();
+	/** The columnar feature storage this spot is attached to, if any. */
+	private volatile SpotFeatureColumns columns;
+	/** The row of this spot in the columnar storage. */
+	private volatile int row = -1;
 	/** A user-supplied name for this spot. */
 	private String name;
 	/** This spot ID */
@@ -142,6 +150,7 @@ public String echo() {
 		s.append("Position: "+Util.printCoordinates(coordinates)+"\n");
 
 		// Feature list
+		final Map<String, Double> features = getFeatures();
 		if (null == features || features.size() < 1)
 			s.append("No features calculated\n");
 		else {
@@ -165,10 +174,20 @@ public String echo() {
 	 */
 
 	/**
-	 * @return and exposes the storage Map of features for this spot.
+	 * @return and exposes the storage Map of features for this spot. If this
+	 * spot is attached to a {@link SpotFeatureColumns} storage, the map
+	 * returned is a view over it.
 	 */
 	public Map<String,Double> getFeatures() {
-		return features;
+		while (true) {
+			final SpotFeatureColumns store = columns;
+			if (null != store)
+				return store.asMap(this);
+			final Map<String, Double> map = features;
+			if (null != map)
+				return map;
+			// We were attached in the meantime
+		}
 	}
 
 	/**
@@ -177,14 +196,98 @@ public Map<String,Double> getFeatures() {
 	 * <code>null</code> if it has not been set.
 	 */
 	public final Double getFeature(final String feature) {
-		return features.get(feature);
+		while (true) {
+			final SpotFeatureColumns store = columns;
+			if (null != store) {
+				final int r = row;
+				final Double val = store.get(r, feature);
+				// The row may have been given to another spot if we were
+				// detached in the meantime
+				if (store == columns && r == row)
+					return val;
+				continue;
+			}
+			final Map<String, Double> map = features;
+			if (null != map)
+				return map.get(feature);
+			// We were attached in the meantime
+		}
 	}
 
 	/**
 	 * Store the specified feature value for this spot.
 	 */
 	public final void putFeature(final String feature, final Double value) {
-		features.put(feature, value);
+		// The storage may change under us: writes go under the same lock as
+		// attachTo() and detachFrom(), so that none is lost
+		synchronized (this) {
+			if (null != columns)
+				columns.put(row, feature, value);
+			else
+				features.put(feature, value);
+		}
+	}
+
+	/**
+	 * Removes the specified feature value from this spot.
+	 * 
+	 * @return the previous value, or <code>null</code> if it was not set.
+	 */
+	synchronized Double removeFeature(final String feature) {
+		if (null != columns)
+			return columns.remove(row, feature);
+		return features.remove(feature);
+	}
+
+	/**
+	 * Moves the features of this spot to the specified columnar storage, and
+	 * make it the storage of this spot from now on. Does nothing if this spot
+	 * is already attached to a columnar storage.
+	 * 
+	 * @param store  the columnar storage to attach to.
+	 */
+	synchronized void attachTo(final SpotFeatureColumns store) {
+		if (null != columns)
+			return;
+		final int newRow = store.newRow();
+		for (final Map.Entry<String, Double> entry : features.entrySet())
+			store.put(newRow, entry.getKey(), entry.getValue());
+		row = newRow;
+		columns = store; // volatile write publishes the row
+		features = null;
+	}
+
+	/**
+	 * Moves the features of this spot back to its own feature map, and
+	 * gives its row back to the specified columnar storage so that it can be
+	 * reused. Does nothing if this spot is not attached to this storage.
+	 * 
+	 * @param store  the columnar storage to detach from.
+	 */
+	synchronized void detachFrom(final SpotFeatureColumns store) {
+		if (columns != store)
+			return;
+		final Map<String, Double> map = new ConcurrentHashMap<String, Double>();
+		store.copyRow(row, map);
+		features = map;
+		columns = null; // readers now use the map
+		store.freeRow(row);
+	}
+
+	/**
+	 * @return the columnar storage this spot is attached to, or <code>null</code>
+	 * if it uses its own feature map.
+	 */
+	SpotFeatureColumns getColumns() {
+		return columns;
+	}
+
+	/**
+	 * @return the row of this spot in its columnar storage, or -1 if it is not
+	 * attached to one.
+	 */
+	int getRow() {
+		return row;
 	}
 
 	/**
@@ -192,7 +295,7 @@ public final void putFeature(final String feature, final Double value) {
 	 * By construction, this operation is anti-symmetric (A.diffTo(B) = - B.diffTo(A)).
 	 */
 	public double diffTo(Spot s, String feature) {
-		double f1 = features.get(feature).doubleValue();
+		double f1 = getFeature(feature).doubleValue();
 		double f2 = s.getFeature(feature).doubleValue();
 		return f1 - f2;
 	}
@@ -207,7 +310,7 @@ public double diffTo(Spot s, String feature) {
 	 * By construction, this operation is symmetric (A.normalizeDiffTo(B) = B.normalizeDiffTo(A)).
 	 */
 	public double normalizeDiffTo(Spot s, String feature) {
-		final double a = features.get(feature).doubleValue();
+		final double a = getFeature(feature).doubleValue();
 		final double b = s.getFeature(feature).doubleValue();
 		if (a == -b)
 			return 0d;
@@ -223,7 +326,7 @@ public double squareDistanceTo(Spot s) {
 		double thisVal, otherVal;
 
 		for (String f : POSITION_FEATURES) {
-			thisVal = features.get(f).doubleValue();
+			thisVal = getFeature(f).doubleValue();
 			otherVal = s.getFeature(f).doubleValue();
 			sumSquared += ( otherVal - thisVal ) * ( otherVal - thisVal );
 		}
@@ -1,7 +1,9 @@
 package fiji.plugin.trackmate;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -9,12 +11,12 @@
 import java.util.NavigableSet;
 import java.util.Set;
 import java.util.SortedMap;
-import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.imglib2.algorithm.MultiThreaded;
 import fiji.plugin.trackmate.features.FeatureFilter;
@@ -29,6 +31,15 @@
  * This class is {@link MultiThreaded}. There are a few processes that can
  * benefit from multithreaded computation ({@link #filter(Collection)},
  * {@link #filter(FeatureFilter)}
+ * <p>
+ * Nearest-spot queries ({@link #getClosestSpot(Spot, int, boolean)},
+ * {@link #getSpotAt(Spot, int, boolean)} and
+ * {@link #getNClosestSpots(Spot, int, int, boolean)}) are served by a k-d tree
+ * per frame, built lazily on the first query and discarded when the frame
+ * content changes. Since spots can be moved in place, a frame index must be
+ * invalidated by calling {@link #invalidateIndex(int)} after its spots
+ * positions or radius are changed. {@link Model#updateFeatures(Spot)} does
+ * this.
  * 
  * @author Jean-Yves Tinevez <jeanyves.tinevez@gmail.com> - Feb 2011 - 2013
  * 
@@ -53,6 +64,20 @@ public class SpotCollection implements MultiThreaded {
 
 	/** The frame by frame list of spot this object wrap. */
 	private ConcurrentSkipListMap<Integer, Set<Spot>> content = new ConcurrentSkipListMap<Integer, Set<Spot>>();
+	/** The frame by frame spatial indices, built lazily upon query. */
+	private final ConcurrentHashMap<Integer, SpotKDTree> indices = new ConcurrentHashMap<Integer, SpotKDTree>();
+	/**
+	 * The frame by frame modification stamps, incremented each time the
+	 * content of a frame changes, so that an index built while its frame was
+	 * modified is not kept.
+	 */
+	private final ConcurrentHashMap<Integer, AtomicInteger> stamps = new ConcurrentHashMap<Integer, AtomicInteger>();
+	/**
+	 * The columnar feature storage spots are attached to when they are added
+	 * to this collection. If <code>null</code>, spots keep their own feature
+	 * map.
+	 */
+	private SpotFeatureColumns featureColumns;
 	private int numThreads;
 
 	/*
@@ -66,6 +91,30 @@ public SpotCollection() {
 		setNumThreads();
 	}
 
+	/**
+	 * Construct a new empty spot collection, possibly using a columnar storage
+	 * for the features of its spots.
+	 * <p>
+	 * In columnar mode, the features of spots added to this collection are
+	 * moved to a {@link SpotFeatureColumns} storage owned by this collection,
+	 * where each feature is stored as a column of primitive
+	 * <code>double</code>s. This uses an order of magnitude less memory than
+	 * the default per-spot feature maps, and lets {@link #filter(Collection)}
+	 * and {@link #collectValues(String, boolean)} run without unboxing.
+	 * {@link Spot#getFeature(String)} and {@link Spot#putFeature(String, Double)}
+	 * keep working as views over the storage.
+	 * 
+	 * @param columnarFeatureStorage
+	 *            if <code>true</code>, the features of the spots added to this
+	 *            collection will be stored in columns.
+	 */
+	public SpotCollection(final boolean columnarFeatureStorage) {
+		this();
+		if (columnarFeatureStorage) {
+			featureColumns = new SpotFeatureColumns();
+		}
+	}
+
 	/*
 	 * METHODS
 	 */
@@ -115,9 +164,13 @@ public void add(final Spot spot, final Integer frame) {
 			spots = new HashSet<Spot>();
 			content.put(frame, spots);
 		}
+		if (null != featureColumns) {
+			spot.attachTo(featureColumns);
+		}
 		spots.add(spot);
 		spot.putFeature(Spot.FRAME, Double.valueOf(frame));
 		spot.putFeature(VISIBLITY, ONE);
+		frameChanged(frame);
 	}
 
 	/**
@@ -132,7 +185,26 @@ public boolean remove(final Spot spot, final Integer frame) {
 		if (null == spots) {
 			return false;
 		}
-		return spots.remove(spot);
+		final boolean removed = spots.remove(spot);
+		if (removed) {
+			frameChanged(frame);
+			if (null != featureColumns) {
+				spot.detachFrom(featureColumns);
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Discards the spatial index of the specified frame, so that it is rebuilt
+	 * upon the next nearest-spot query. This must be called when the position
+	 * or the radius of a spot of this frame is changed in place.
+	 * 
+	 * @param frame
+	 *            the frame whose index should be discarded.
+	 */
+	public void invalidateIndex(final int frame) {
+		frameChanged(frame);
 	}
 
 	/**
@@ -184,9 +256,12 @@ public final void filter(final FeatureFilter featurefilter) {
 				@Override
 				public void run() {
 
-					Double val, tval;
-
 					final Set<Spot> spots = content.get(frame);
+					if (filterColumns(spots, Collections.singletonList(featurefilter))) {
+						return;
+					}
+
+					Double val, tval;
 					tval = featurefilter.value;
 
 					if (featurefilter.isAbove) {
@@ -237,6 +312,9 @@ public final void filter(final Collection<FeatureFilter> filters) {
 				@Override
 				public void run() {
 					final Set<Spot> spots = content.get(frame);
+					if (filterColumns(spots, filters)) {
+						return;
+					}
 
 					Double val, tval;
 					boolean isAbove, shouldNotBeVisible;
@@ -279,6 +357,55 @@ public void run() {
 		}
 	}
 
+	/**
+	 * Filters the specified frame content by scanning the primitive feature
+	 * columns directly. Returns <code>false</code> without doing anything if
+	 * this collection does not use columnar storage, or if some of the spots
+	 * are not attached to it, in which case the caller must filter spot by
+	 * spot.
+	 * <p>
+	 * Values are compared as {@link Double#compareTo(Double)} does. Spots
+	 * missing a filtered feature are made invisible.
+	 */
+	private boolean filterColumns(final Set<Spot> spots, final Collection<FeatureFilter> filters) {
+		final SpotFeatureColumns store = featureColumns;
+		if (null == store) {
+			return false;
+		}
+		final int[] rows = new int[spots.size()];
+		int n = 0;
+		for (final Spot spot : spots) {
+			if (spot.getColumns() != store) {
+				return false;
+			}
+			rows[n++] = spot.getRow();
+		}
+
+		final boolean[] visible = new boolean[n];
+		Arrays.fill(visible, true);
+		for (final FeatureFilter featureFilter : filters) {
+			final SpotFeatureColumns.Column column = store.getColumnIfExists(featureFilter.feature);
+			if (null == column) {
+				Arrays.fill(visible, false);
+				break;
+			}
+			final double tval = featureFilter.value.doubleValue();
+			final int sign = featureFilter.isAbove ? -1 : 1;
+			for (int i = 0; i < n; i++) {
+				final double val = column.get(rows[i]);
+				if (SpotFeatureColumns.isUnset(val) || sign * Double.compare(val, tval) > 0) {
+					visible[i] = false;
+				}
+			}
+		}
+
+		final SpotFeatureColumns.Column visibility = store.getColumn(VISIBLITY);
+		for (int i = 0; i < n; i++) {
+			visibility.set(rows[i], visible[i] ? 1d : 0d);
+		}
+		return true;
+	}
+
 	/**
 	 * Returns the closest {@link Spot} to the given location (encoded as a
 	 * Spot), contained in the frame <code>frame</code>. If the frame has no
@@ -295,26 +422,10 @@ public void run() {
 	 *         collection.
 	 */
 	public final Spot getClosestSpot(final Spot location, final int frame, final boolean visibleSpotsOnly) {
-		final Set<Spot> spots = content.get(frame);
-		if (null == spots)
+		final SpotKDTree index = getIndex(frame);
+		if (null == index)
 			return null;
-		double d2;
-		double minDist = Double.POSITIVE_INFINITY;
-		Spot target = null;
-		for (final Spot s : spots) {
-
-			if (visibleSpotsOnly && (s.getFeature(VISIBLITY).compareTo(ZERO) <= 0)) {
-				continue;
-			}
-
-			d2 = s.squareDistanceTo(location);
-			if (d2 < minDist) {
-				minDist = d2;
-				target = s;
-			}
-
-		}
-		return target;
+		return index.getClosestSpot(location.getFeature(Spot.POSITION_X), location.getFeature(Spot.POSITION_Y), location.getFeature(Spot.POSITION_Z), visibleSpotsOnly);
 	}
 
 	/**
@@ -335,29 +446,10 @@ public final Spot getClosestSpot(final Spot location, final int frame, final boo
 	 *         spots cannot be found.
 	 */
 	public final Spot getSpotAt(final Spot location, final int frame, final boolean visibleSpotsOnly) {
-		final Set<Spot> spots = content.get(frame);
-		if (null == spots || spots.isEmpty()) {
+		final SpotKDTree index = getIndex(frame);
+		if (null == index)
 			return null;
-		}
-
-		final TreeMap<Double, Spot> distanceToSpot = new TreeMap<Double, Spot>();
-		double d2;
-		for (final Spot s : spots) {
-
-			if (visibleSpotsOnly && (s.getFeature(VISIBLITY).compareTo(ZERO) <= 0)) {
-				continue;
-			}
-
-			d2 = s.squareDistanceTo(location);
-			if (d2 < s.getFeature(Spot.RADIUS) * s.getFeature(Spot.RADIUS)) {
-				distanceToSpot.put(d2, s);
-			}
-		}
-		if (distanceToSpot.isEmpty()) {
-			return null;
-		} else {
-			return distanceToSpot.firstEntry().getValue();
-		}
+		return index.getSpotAt(location.getFeature(Spot.POSITION_X), location.getFeature(Spot.POSITION_Y), location.getFeature(Spot.POSITION_Z), visibleSpotsOnly);
 	}
 
 	/**
@@ -379,28 +471,62 @@ public final Spot getSpotAt(final Spot location, final int frame, final boolean
 	 * @return a new list, with of at most <code>n</code> spots, ordered by
 	 *         increasing distance from the specified location.
 	 */
-	public final List<Spot> getNClosestSpots(final Spot location, final int frame, int n, final boolean visibleSpotsOnly) {
-		final Set<Spot> spots = content.get(frame);
-		final TreeMap<Double, Spot> distanceToSpot = new TreeMap<Double, Spot>();
-
-		double d2;
-		for (final Spot s : spots) {
+	public final List<Spot> getNClosestSpots(final Spot location, final int frame, final int n, final boolean visibleSpotsOnly) {
+		final SpotKDTree index = getIndex(frame);
+		if (null == index)
+			return new ArrayList<Spot>(0);
+		return index.getNClosestSpots(location.getFeature(Spot.POSITION_X), location.getFeature(Spot.POSITION_Y), location.getFeature(Spot.POSITION_Z), n, visibleSpotsOnly);
+	}
 
-			if (visibleSpotsOnly && (s.getFeature(VISIBLITY).compareTo(ZERO) <= 0)) {
-				continue;
+	/**
+	 * Returns the spatial index of the specified frame, building it if needed.
+	 * Returns <code>null</code> if the frame has no spot.
+	 */
+	private SpotKDTree getIndex(final int frame) {
+		SpotKDTree index = indices.get(frame);
+		if (null == index) {
+			final AtomicInteger stamp = getStamp(frame);
+			final int before = stamp.get();
+			final Set<Spot> spots = content.get(frame);
+			if (null == spots || spots.isEmpty()) {
+				return null;
 			}
-
-			d2 = s.squareDistanceTo(location);
-			distanceToSpot.put(d2, s);
+			index = new SpotKDTree(spots);
+			// Another thread may have built the index meanwhile: all callers
+			// must share the same instance
+			final SpotKDTree previous = indices.putIfAbsent(frame, index);
+			if (null != previous)
+				return previous;
+			// If the frame was modified while the index was built, the
+			// invalidation may have happened before it was stored
+			if (stamp.get() != before)
+				indices.remove(frame, index);
 		}
+		return index;
+	}
 
-		final List<Spot> selectedSpots = new ArrayList<Spot>(n);
-		final Iterator<Double> it = distanceToSpot.keySet().iterator();
-		while (n > 0 && it.hasNext()) {
-			selectedSpots.add(distanceToSpot.get(it.next()));
-			n--;
+	/**
+	 * Returns the modification stamp of the specified frame, creating it if
+	 * needed.
+	 */
+	private AtomicInteger getStamp(final int frame) {
+		AtomicInteger stamp = stamps.get(frame);
+		if (null == stamp) {
+			stamp = new AtomicInteger();
+			final AtomicInteger previous = stamps.putIfAbsent(frame, stamp);
+			if (null != previous)
+				return previous;
 		}
-		return selectedSpots;
+		return stamp;
+	}
+
+	/**
+	 * Records that the content of the specified frame changed, and discards
+	 * its spatial index.
+	 */
+	private void frameChanged(final int frame) {
+		getStamp(frame).incrementAndGet();
+		indices.remove(frame);
 	}
 
 	/**
@@ -514,14 +640,31 @@ public void run() {
 	 */
 	public final double[] collectValues(final String feature, final boolean visibleOnly) {
 		final double[] values = new double[getNSpots(visibleOnly)];
+		final SpotFeatureColumns.Column column = null == featureColumns ? null : featureColumns.getColumnIfExists(feature);
 		int index = 0;
 		for (final Spot spot : iterable(visibleOnly)) {
-			values[index] = spot.getFeature(feature);
+			final double val = (null != column && spot.getColumns() == featureColumns) ? column.get(spot.getRow()) : SpotFeatureColumns.UNSET;
+			if (SpotFeatureColumns.isUnset(val)) {
+				values[index] = spot.getFeature(feature);
+			} else {
+				values[index] = val;
+			}
 			index++;
 		}
 		return values;
 	}
 
+	/**
+	 * Returns the columnar feature storage used by this collection, or
+	 * <code>null</code> if its spots use their own feature map.
+	 * 
+	 * @return the columnar feature storage of this collection.
+	 * @see #SpotCollection(boolean)
+	 */
+	public SpotFeatureColumns getFeatureColumns() {
+		return featureColumns;
+	}
+
 	/*
 	 * ITERABLE & co
 	 */
@@ -619,10 +762,21 @@ public Iterable<Spot> iterable(final int frame, final boolean visibleSpotsOnly)
 	public void put(final int frame, final Collection<Spot> spots) {
 		final Set<Spot> value = new HashSet<Spot>(spots);
 		for (final Spot spot : value) {
+			if (null != featureColumns) {
+				spot.attachTo(featureColumns);
+			}
 			spot.putFeature(Spot.FRAME, Double.valueOf(frame));
 			spot.putFeature(VISIBLITY, ZERO);
 		}
-		content.put(frame, value);
+		final Set<Spot> previous = content.put(frame, value);
+		frameChanged(frame);
+		if (null != previous && null != featureColumns) {
+			for (final Spot spot : previous) {
+				if (!value.contains(spot)) {
+					spot.detachFrom(featureColumns);
+				}
+			}
+		}
 	}
 
 	/**
@@ -872,11 +1026,14 @@ public void remove() {
 	/**
 	 * Returns a new {@link SpotCollection}, made of only the spots marked as
 	 * visible. All the spots will then be marked as not-visible.
+	 * <p>
+	 * If this collection uses a columnar feature storage, the new collection
+	 * gets its own, and the features of the spots it keeps are moved there.
 	 * 
 	 * @return a new spot collection, made of only the spots marked as visible.
 	 */
 	public SpotCollection crop() {
-		final SpotCollection ns = new SpotCollection();
+		final SpotCollection ns = new SpotCollection(null != featureColumns);
 		ns.setNumThreads(numThreads);
 
 		final Collection<Integer> frames = content.keySet();
@@ -893,6 +1050,10 @@ public void run() {
 						if (spot.getFeature(VISIBLITY).compareTo(ZERO) > 0) {
 							nfc.add(spot);
 							spot.putFeature(VISIBLITY, ZERO);
+							if (null != featureColumns) {
+								spot.detachFrom(featureColumns);
+								spot.attachTo(ns.featureColumns);
+							}
 						}
 					}
 					ns.content.put(frame, nfc);
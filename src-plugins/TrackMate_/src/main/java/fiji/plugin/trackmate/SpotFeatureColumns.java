@@ -0,0 +1,344 @@
+package fiji.plugin.trackmate;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A columnar storage for spot features. Each feature is stored in its own
+ * column of primitive <code>double</code>s, and each spot attached to this
+ * storage is given a row in all columns.
+ * <p>
+ * This avoids storing one boxed {@link Double} and one hash entry per feature
+ * and per spot, which is what the default {@link Spot} storage does. It is
+ * meant to be used by {@link SpotCollection}s that hold millions of spots.
+ * Spots attached to this storage still expose their features through
+ * {@link Spot#getFeature(String)} and {@link Spot#putFeature(String, Double)},
+ * which become views over the columns.
+ * <p>
+ * Columns are made of fixed-size blocks that are allocated lazily and never
+ * moved, so that concurrent writes to different rows are safe. When a spot is
+ * removed from the collection that attached it, its features are moved back
+ * to its own map, since it might be referenced elsewhere, and its row is
+ * freed to be given to the next spot attached.
+ */
+public class SpotFeatureColumns {
+
+	private static final int BLOCK_BITS = 12;
+	private static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+	private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+
+	/**
+	 * The raw bits of the value marking a feature that has not been set. This
+	 * is a quiet NaN with a payload, that cannot be confused with
+	 * {@link Double#NaN}.
+	 */
+	private static final long UNSET_BITS = 0x7ffdeadbeef00001L;
+	static final double UNSET = Double.longBitsToDouble(UNSET_BITS);
+
+	private final ConcurrentHashMap<String, Column> columns = new ConcurrentHashMap<String, Column>();
+	private final AtomicInteger nRows = new AtomicInteger(0);
+	/** The rows freed by detached spots, to be reused. Guarded by this. */
+	private int[] freeRows = new int[16];
+	private int nFreeRows = 0;
+
+	/*
+	 * METHODS
+	 */
+
+	/**
+	 * Reserves and returns a new row in this storage, reusing a freed row if
+	 * there is one.
+	 */
+	int newRow() {
+		synchronized (this) {
+			if (nFreeRows > 0) {
+				return freeRows[--nFreeRows];
+			}
+		}
+		return nRows.getAndIncrement();
+	}
+
+	/**
+	 * Clears the specified row and makes it available to {@link #newRow()}.
+	 */
+	void freeRow(final int row) {
+		for (final Column column : columns.values()) {
+			if (!isUnset(column.get(row))) {
+				column.set(row, UNSET);
+			}
+		}
+		synchronized (this) {
+			if (nFreeRows == freeRows.length) {
+				freeRows = Arrays.copyOf(freeRows, 2 * nFreeRows);
+			}
+			freeRows[nFreeRows++] = row;
+		}
+	}
+
+	/**
+	 * Copies the feature values set at the specified row into a map.
+	 */
+	void copyRow(final int row, final Map<String, Double> target) {
+		for (final Map.Entry<String, Column> entry : columns.entrySet()) {
+			final double val = entry.getValue().get(row);
+			if (!isUnset(val)) {
+				target.put(entry.getKey(), Double.valueOf(val));
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of rows reserved in this storage so far, including
+	 * the freed rows not reused yet.
+	 */
+	public int getNRows() {
+		return nRows.get();
+	}
+
+	/**
+	 * Returns the feature value stored at the specified row, or
+	 * <code>null</code> if it has not been set.
+	 */
+	Double get(final int row, final String feature) {
+		final Column column = columns.get(feature);
+		if (null == column) {
+			return null;
+		}
+		final double val = column.get(row);
+		if (isUnset(val)) {
+			return null;
+		}
+		return Double.valueOf(val);
+	}
+
+	/**
+	 * Stores the feature value at the specified row. As for the default spot
+	 * storage, <code>null</code> values are not permitted.
+	 */
+	void put(final int row, final String feature, final Double value) {
+		if (null == value) {
+			throw new NullPointerException("Feature values cannot be null.");
+		}
+		double val = value.doubleValue();
+		if (isUnset(val)) {
+			val = Double.NaN;
+		}
+		getColumn(feature).set(row, val);
+	}
+
+	/**
+	 * Removes the feature value stored at the specified row, and returns the
+	 * previous value, or <code>null</code> if there was none.
+	 */
+	Double remove(final int row, final String feature) {
+		final Double previous = get(row, feature);
+		if (null != previous) {
+			columns.get(feature).set(row, UNSET);
+		}
+		return previous;
+	}
+
+	/**
+	 * Returns the column of the specified feature, creating it if required.
+	 */
+	Column getColumn(final String feature) {
+		Column column = columns.get(feature);
+		if (null == column) {
+			final Column newColumn = new Column();
+			column = columns.putIfAbsent(feature, newColumn);
+			if (null == column) {
+				column = newColumn;
+			}
+		}
+		return column;
+	}
+
+	/**
+	 * Returns the column of the specified feature, or <code>null</code> if no
+	 * value was ever stored for this feature.
+	 */
+	Column getColumnIfExists(final String feature) {
+		return columns.get(feature);
+	}
+
+	/**
+	 * Returns a map view over the features of the specified spot. The view
+	 * goes through the spot, so it stays valid if the spot is detached.
+	 */
+	Map<String, Double> asMap(final Spot spot) {
+		return new SpotMap(spot);
+	}
+
+	static final boolean isUnset(final double val) {
+		return Double.doubleToRawLongBits(val) == UNSET_BITS;
+	}
+
+	/*
+	 * INNER CLASSES
+	 */
+
+	/**
+	 * A column of primitive values for a single feature.
+	 */
+	static final class Column {
+
+		private volatile double[][] blocks = new double[0][];
+
+		/**
+		 * Returns the raw value stored at the specified row. Test it with
+		 * {@link SpotFeatureColumns#isUnset(double)} before using it.
+		 */
+		final double get(final int row) {
+			final double[][] b = blocks;
+			final int bi = row >>> BLOCK_BITS;
+			if (bi >= b.length || null == b[bi]) {
+				return UNSET;
+			}
+			return b[bi][row & BLOCK_MASK];
+		}
+
+		final void set(final int row, final double val) {
+			block(row >>> BLOCK_BITS)[row & BLOCK_MASK] = val;
+		}
+
+		private double[] block(final int bi) {
+			double[][] b = blocks;
+			if (bi < b.length && null != b[bi]) {
+				return b[bi];
+			}
+			synchronized (this) {
+				b = blocks;
+				if (bi >= b.length) {
+					b = Arrays.copyOf(b, Math.max(bi + 1, 2 * b.length));
+				}
+				if (null == b[bi]) {
+					final double[] block = new double[BLOCK_SIZE];
+					Arrays.fill(block, UNSET);
+					b[bi] = block;
+				}
+				blocks = b;
+				return b[bi];
+			}
+		}
+	}
+
+	/**
+	 * A {@link Map} view over the features of a single spot. Features are
+	 * listed from the columns of this storage.
+	 */
+	private final class SpotMap extends AbstractMap<String, Double> {
+
+		private final Spot spot;
+
+		public SpotMap(final Spot spot) {
+			this.spot = spot;
+		}
+
+		@Override
+		public Double get(final Object key) {
+			if (!(key instanceof String)) {
+				return null;
+			}
+			return spot.getFeature((String) key);
+		}
+
+		@Override
+		public boolean containsKey(final Object key) {
+			return null != get(key);
+		}
+
+		@Override
+		public Double put(final String key, final Double value) {
+			final Double previous = spot.getFeature(key);
+			spot.putFeature(key, value);
+			return previous;
+		}
+
+		@Override
+		public Double remove(final Object key) {
+			if (!(key instanceof String)) {
+				return null;
+			}
+			return spot.removeFeature((String) key);
+		}
+
+		@Override
+		public Set<Map.Entry<String, Double>> entrySet() {
+			return new AbstractSet<Map.Entry<String, Double>>() {
+
+				@Override
+				public Iterator<Map.Entry<String, Double>> iterator() {
+					return new SpotIterator(spot);
+				}
+
+				@Override
+				public int size() {
+					int size = 0;
+					for (final String feature : columns.keySet()) {
+						if (null != spot.getFeature(feature)) {
+							size++;
+						}
+					}
+					return size;
+				}
+			};
+		}
+	}
+
+	private final class SpotIterator implements Iterator<Map.Entry<String, Double>> {
+
+		private final Spot spot;
+		private final Iterator<String> it = columns.keySet().iterator();
+		private Map.Entry<String, Double> next;
+		private String current;
+
+		public SpotIterator(final Spot spot) {
+			this.spot = spot;
+			iterate();
+		}
+
+		private void iterate() {
+			next = null;
+			while (it.hasNext()) {
+				final String feature = it.next();
+				final Double val = spot.getFeature(feature);
+				if (null != val) {
+					next = new AbstractMap.SimpleImmutableEntry<String, Double>(feature, val);
+					return;
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return null != next;
+		}
+
+		@Override
+		public Map.Entry<String, Double> next() {
+			if (null == next) {
+				throw new NoSuchElementException();
+			}
+			final Map.Entry<String, Double> toReturn = next;
+			current = toReturn.getKey();
+			iterate();
+			return toReturn;
+		}
+
+		@Override
+		public void remove() {
+			if (null == current) {
+				throw new IllegalStateException();
+			}
+			spot.removeFeature(current);
+			current = null;
+		}
+	}
+}
@@ -0,0 +1,355 @@
+package fiji.plugin.trackmate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A static, balanced k-d tree over the spots of a single frame of a
+ * {@link SpotCollection}, used to answer nearest-spot queries in logarithmic
+ * time.
+ * <p>
+ * The tree is stored implicitly in flat arrays: the node of a range
+ * <code>[lo, hi[</code> is the element at its middle index, its left subtree
+ * is <code>[lo, mid[</code> and its right subtree <code>]mid, hi[</code>. Spot
+ * positions are copied in a primitive array when the tree is built, so it
+ * must be rebuilt when spots are added, removed or moved. This is taken care
+ * of by the {@link SpotCollection} that owns it.
+ * <p>
+ * Visibility and radius are <b>not</b> cached: they are read from the spot
+ * features at query time, so that filtering a collection does not require
+ * rebuilding the tree. The largest radius found at build time is used to
+ * prune the search in {@link #getSpotAt(double, double, double, boolean)}.
+ * <p>
+ * Spots at the same distance from the query location are told apart by the
+ * order in which they were iterated when the tree was built, so that queries
+ * return the same spots as a linear scan over the frame content would.
+ * <p>
+ * Queries are <code>synchronized</code>, so that they can reuse the search
+ * state stored in this instance without allocating anything per call.
+ */
+class SpotKDTree {
+
+	private final Spot[] spots;
+
+	/** The spot coordinates, X, Y, Z interleaved. */
+	private final double[] pos;
+
+	/** The rank of each spot in the iteration order of the frame content. */
+	private final int[] order;
+
+	/** The largest radius of the spots in this tree, at build time. */
+	private final double maxRadius;
+
+	/*
+	 * SEARCH STATE
+	 */
+
+	private double qx;
+	private double qy;
+	private double qz;
+	private boolean visibleOnly;
+	private double bestD2;
+	private int bestIndex;
+
+	/*
+	 * CONSTRUCTOR
+	 */
+
+	SpotKDTree(final Collection<Spot> content) {
+		final int n = content.size();
+		this.spots = new Spot[n];
+		this.pos = new double[3 * n];
+		this.order = new int[n];
+		double mr = 0d;
+		int index = 0;
+		for (final Spot spot : content) {
+			spots[index] = spot;
+			order[index] = index;
+			pos[3 * index] = spot.getFeature(Spot.POSITION_X).doubleValue();
+			pos[3 * index + 1] = spot.getFeature(Spot.POSITION_Y).doubleValue();
+			pos[3 * index + 2] = spot.getFeature(Spot.POSITION_Z).doubleValue();
+			final Double radius = spot.getFeature(Spot.RADIUS);
+			if (null != radius && radius.doubleValue() > mr) {
+				mr = radius.doubleValue();
+			}
+			index++;
+		}
+		this.maxRadius = mr;
+		build(0, n, 0);
+	}
+
+	/*
+	 * QUERIES
+	 */
+
+	/**
+	 * Returns the spot closest to the specified location, or <code>null</code>
+	 * if there is no candidate spot.
+	 */
+	synchronized Spot getClosestSpot(final double x, final double y, final double z, final boolean visibleSpotsOnly) {
+		initSearch(x, y, z, visibleSpotsOnly);
+		searchClosest(0, spots.length, 0);
+		return bestIndex < 0 ? null : spots[bestIndex];
+	}
+
+	/**
+	 * Returns the spot closest to the specified location such that the
+	 * location lies within the spot radius, or <code>null</code> if there is
+	 * no such spot.
+	 */
+	synchronized Spot getSpotAt(final double x, final double y, final double z, final boolean visibleSpotsOnly) {
+		initSearch(x, y, z, visibleSpotsOnly);
+		bestD2 = maxRadius * maxRadius;
+		searchAt(0, spots.length, 0);
+		return bestIndex < 0 ? null : spots[bestIndex];
+	}
+
+	/**
+	 * Returns a new list of at most <code>n</code> spots, ordered by
+	 * increasing distance to the specified location.
+	 */
+	synchronized List<Spot> getNClosestSpots(final double x, final double y, final double z, final int n, final boolean visibleSpotsOnly) {
+		if (n <= 0) {
+			return new ArrayList<Spot>(0);
+		}
+		initSearch(x, y, z, visibleSpotsOnly);
+		final int capacity = Math.min(n, spots.length);
+		final double[] heapD2 = new double[capacity];
+		final int[] heapIndex = new int[capacity];
+		final int size = searchNClosest(0, spots.length, 0, heapD2, heapIndex, 0);
+
+		// Pop the max-heap from the farthest to the closest
+		final Spot[] sorted = new Spot[size];
+		for (int i = size - 1; i >= 0; i--) {
+			sorted[i] = spots[heapIndex[0]];
+			heapD2[0] = heapD2[i];
+			heapIndex[0] = heapIndex[i];
+			siftDown(heapD2, heapIndex, 0, i);
+		}
+		final List<Spot> selectedSpots = new ArrayList<Spot>(size);
+		for (final Spot spot : sorted) {
+			selectedSpots.add(spot);
+		}
+		return selectedSpots;
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	private void initSearch(final double x, final double y, final double z, final boolean visibleSpotsOnly) {
+		this.qx = x;
+		this.qy = y;
+		this.qz = z;
+		this.visibleOnly = visibleSpotsOnly;
+		this.bestD2 = Double.POSITIVE_INFINITY;
+		this.bestIndex = -1;
+	}
+
+	private final double squareDistanceTo(final int index) {
+		final double dx = pos[3 * index] - qx;
+		final double dy = pos[3 * index + 1] - qy;
+		final double dz = pos[3 * index + 2] - qz;
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	private final double axisDelta(final int index, final int axis) {
+		final double q = axis == 0 ? qx : (axis == 1 ? qy : qz);
+		return q - pos[3 * index + axis];
+	}
+
+	private final boolean accept(final int index) {
+		return !visibleOnly || spots[index].getFeature(SpotCollection.VISIBLITY).compareTo(SpotCollection.ZERO) > 0;
+	}
+
+	private void searchClosest(final int lo, final int hi, final int depth) {
+		if (lo >= hi) {
+			return;
+		}
+		final int mid = (lo + hi) >>> 1;
+		final double d2 = squareDistanceTo(mid);
+		// On ties, the first spot in iteration order wins
+		if ((d2 < bestD2 || (d2 == bestD2 && bestIndex >= 0 && order[mid] < order[bestIndex])) && accept(mid)) {
+			bestD2 = d2;
+			bestIndex = mid;
+		}
+		final double delta = axisDelta(mid, depth % 3);
+		if (delta < 0) {
+			searchClosest(lo, mid, depth + 1);
+			if (delta * delta <= bestD2) {
+				searchClosest(mid + 1, hi, depth + 1);
+			}
+		} else {
+			searchClosest(mid + 1, hi, depth + 1);
+			if (delta * delta <= bestD2) {
+				searchClosest(lo, mid, depth + 1);
+			}
+		}
+	}
+
+	private void searchAt(final int lo, final int hi, final int depth) {
+		if (lo >= hi) {
+			return;
+		}
+		final int mid = (lo + hi) >>> 1;
+		final double d2 = squareDistanceTo(mid);
+		// On ties, the last spot in iteration order wins
+		if ((d2 < bestD2 || (d2 == bestD2 && bestIndex >= 0 && order[mid] > order[bestIndex])) && accept(mid)) {
+			final double radius = spots[mid].getFeature(Spot.RADIUS).doubleValue();
+			if (d2 < radius * radius) {
+				bestD2 = d2;
+				bestIndex = mid;
+			}
+		}
+		final double delta = axisDelta(mid, depth % 3);
+		if (delta < 0) {
+			searchAt(lo, mid, depth + 1);
+			if (delta * delta <= bestD2) {
+				searchAt(mid + 1, hi, depth + 1);
+			}
+		} else {
+			searchAt(mid + 1, hi, depth + 1);
+			if (delta * delta <= bestD2) {
+				searchAt(lo, mid, depth + 1);
+			}
+		}
+	}
+
+	/**
+	 * Collects the closest spots in a bounded max-heap, and returns the new
+	 * heap size. Like a map keyed by distance, the heap holds at most one
+	 * spot per distance: the last one in iteration order.
+	 */
+	private int searchNClosest(final int lo, final int hi, final int depth, final double[] heapD2, final int[] heapIndex, int size) {
+		if (lo >= hi) {
+			return size;
+		}
+		final int mid = (lo + hi) >>> 1;
+		final int capacity = heapD2.length;
+		final double d2 = squareDistanceTo(mid);
+		if ((size < capacity || d2 <= heapD2[0]) && accept(mid)) {
+			int same = -1;
+			for (int i = 0; i < size; i++) {
+				if (heapD2[i] == d2) {
+					same = i;
+					break;
+				}
+			}
+			if (same >= 0) {
+				if (order[mid] > order[heapIndex[same]]) {
+					heapIndex[same] = mid;
+				}
+			} else if (size < capacity) {
+				// Sift up
+				int child = size++;
+				while (child > 0) {
+					final int parent = (child - 1) >>> 1;
+					if (heapD2[parent] >= d2) {
+						break;
+					}
+					heapD2[child] = heapD2[parent];
+					heapIndex[child] = heapIndex[parent];
+					child = parent;
+				}
+				heapD2[child] = d2;
+				heapIndex[child] = mid;
+			} else if (d2 < heapD2[0]) {
+				// Replace the farthest
+				heapD2[0] = d2;
+				heapIndex[0] = mid;
+				siftDown(heapD2, heapIndex, 0, size);
+			}
+		}
+		final double delta = axisDelta(mid, depth % 3);
+		final boolean leftFirst = delta < 0;
+		size = leftFirst ? searchNClosest(lo, mid, depth + 1, heapD2, heapIndex, size) : searchNClosest(mid + 1, hi, depth + 1, heapD2, heapIndex, size);
+		if (size < capacity || delta * delta <= heapD2[0]) {
+			size = leftFirst ? searchNClosest(mid + 1, hi, depth + 1, heapD2, heapIndex, size) : searchNClosest(lo, mid, depth + 1, heapD2, heapIndex, size);
+		}
+		return size;
+	}
+
+	private static void siftDown(final double[] heapD2, final int[] heapIndex, int parent, final int size) {
+		final double d2 = heapD2[parent];
+		final int index = heapIndex[parent];
+		while (true) {
+			int child = 2 * parent + 1;
+			if (child >= size) {
+				break;
+			}
+			if (child + 1 < size && heapD2[child + 1] > heapD2[child]) {
+				child++;
+			}
+			if (heapD2[child] <= d2) {
+				break;
+			}
+			heapD2[parent] = heapD2[child];
+			heapIndex[parent] = heapIndex[child];
+			parent = child;
+		}
+		heapD2[parent] = d2;
+		heapIndex[parent] = index;
+	}
+
+	/*
+	 * BUILDING
+	 */
+
+	private void build(final int lo, final int hi, final int depth) {
+		if (hi - lo <= 1) {
+			return;
+		}
+		final int mid = (lo + hi) >>> 1;
+		select(lo, hi - 1, mid, depth % 3);
+		build(lo, mid, depth + 1);
+		build(mid + 1, hi, depth + 1);
+	}
+
+	/**
+	 * Quick-select: reorders the range <code>[left, right]</code> so that
+	 * element <code>k</code> is in its sorted position along the specified
+	 * axis, with smaller elements before it and larger ones after it.
+	 */
+	private void select(int left, int right, final int k, final int axis) {
+		while (right > left) {
+			final double pivot = pos[3 * ((left + right) >>> 1) + axis];
+			int i = left;
+			int j = right;
+			while (i <= j) {
+				while (pos[3 * i + axis] < pivot) {
+					i++;
+				}
+				while (pos[3 * j + axis] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					swap(i, j);
+					i++;
+					j--;
+				}
+			}
+			if (k <= j) {
+				right = j;
+			} else if (k >= i) {
+				left = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	private void swap(final int i, final int j) {
+		final Spot tmp = spots[i];
+		spots[i] = spots[j];
+		spots[j] = tmp;
+		final int o = order[i];
+		order[i] = order[j];
+		order[j] = o;
+		for (int d = 0; d < 3; d++) {
+			final double t = pos[3 * i + d];
+			pos[3 * i + d] = pos[3 * j + d];
+			pos[3 * j + d] = t;
+		}
+	}
+}
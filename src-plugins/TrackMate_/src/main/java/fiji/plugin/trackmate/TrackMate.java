@@ -304,7 +304,7 @@ public boolean execDetection() {
 
 		final int numFrames = settings.tend - settings.tstart + 1;
 		// Final results holder, for all frames
-		final SpotCollection spots = new SpotCollection();
+		final SpotCollection spots = new SpotCollection(settings.columnarFeatureStorage);
 		spots.setNumThreads(numThreads);
 		// To report progress
 		final AtomicInteger spotFound = new AtomicInteger(0);
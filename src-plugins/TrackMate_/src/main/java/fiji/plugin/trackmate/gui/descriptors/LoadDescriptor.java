@@ -12,6 +12,7 @@
 import fiji.plugin.trackmate.gui.TrackMateGUIController;
 import fiji.plugin.trackmate.io.IOUtils;
 import fiji.plugin.trackmate.io.TmXmlReader;
+import fiji.plugin.trackmate.io.TmXmlStreamReader;
 import fiji.plugin.trackmate.io.TmXmlReader_v12;
 import fiji.plugin.trackmate.io.TmXmlReader_v20;
 import fiji.plugin.trackmate.providers.DetectorProvider;
@@ -61,14 +62,22 @@ public void displayingPanel() {
 		file = tmpFile;
 
 		// Read the file content
-		TmXmlReader reader = new TmXmlReader(file);
-		final Version version = new Version(reader.getVersion());
-		if (version.compareTo(new Version("2.0.0")) < 0) {
-			logger.log("Detecting a file version " + version +". Using the right reader.\n", Logger.GREEN_COLOR);
-			reader = new TmXmlReader_v12(file);
-		} else if (version.compareTo(new Version("2.1.0")) < 0) {
-			logger.log("Detecting a file version " + version +". Using the right reader.\n", Logger.GREEN_COLOR);
-			reader = new TmXmlReader_v20(file);
+		TmXmlReader reader;
+		final String versionStr = TmXmlStreamReader.readVersion(file);
+		if (null == versionStr) {
+			// Not a TrackMate file we can stream, let the DOM reader report the problem.
+			reader = new TmXmlReader(file);
+		} else {
+			final Version version = new Version(versionStr);
+			if (version.compareTo(new Version("2.0.0")) < 0) {
+				logger.log("Detecting a file version " + version +". Using the right reader.\n", Logger.GREEN_COLOR);
+				reader = new TmXmlReader_v12(file);
+			} else if (version.compareTo(new Version("2.1.0")) < 0) {
+				logger.log("Detecting a file version " + version +". Using the right reader.\n", Logger.GREEN_COLOR);
+				reader = new TmXmlReader_v20(file);
+			} else {
+				reader = new TmXmlStreamReader(file);
+			}
 		}
 		if (!reader.isReadingOk()) {
 			logger.error(reader.getErrorMessage());
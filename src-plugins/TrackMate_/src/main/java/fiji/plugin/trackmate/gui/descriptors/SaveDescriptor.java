@@ -8,6 +8,7 @@
 import fiji.plugin.trackmate.TrackMate;
 import fiji.plugin.trackmate.gui.TrackMateGUIController;
 import fiji.plugin.trackmate.io.IOUtils;
+import fiji.plugin.trackmate.io.TmXmlStreamWriter;
 import fiji.plugin.trackmate.io.TmXmlWriter;
 import fiji.plugin.trackmate.providers.DetectorProvider;
 import fiji.plugin.trackmate.providers.TrackerProvider;
@@ -59,7 +60,7 @@ public void displayingPanel() {
 		 * Write model, settings and GUI state
 		 */
 
-		TmXmlWriter writer = new TmXmlWriter(file);
+		TmXmlWriter writer = new TmXmlStreamWriter(file);
 
 		writer.appendLog(logPanel.getTextContent());
 		writer.appendModel(trackmate.getModel());
@@ -169,6 +169,15 @@ public TmXmlReader(final File file) {
 		this.root = r;
 	}
 
+	/**
+	 * Initialize this reader with a root element that was built elsewhere,
+	 * for subclasses that do not parse the file as a whole JDOM document.
+	 */
+	protected TmXmlReader(final File file, final Element root) {
+		this.file = file;
+		this.root = root;
+	}
+
 	/*
 	 * PUBLIC METHODS
 	 */
@@ -0,0 +1,691 @@
+package fiji.plugin.trackmate.io;
+
+import static fiji.plugin.trackmate.io.TmXmlKeys.EDGE_FEATURES_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_ATTRIBUTE;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_DECLARATIONS_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_DIMENSION_ATTRIBUTE;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_NAME_ATTRIBUTE;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_SHORT_NAME_ATTRIBUTE;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FILTERED_TRACK_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FRAME_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.MODEL_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.PLUGIN_VERSION_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.ROOT_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPATIAL_UNITS_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_COLLECTION_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_COLLECTION_NSPOTS_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_FEATURES_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_FRAME_COLLECTION_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_ID_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_NAME_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TIME_UNITS_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_COLLECTION_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_EDGE_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_FEATURES_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_ID_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_NAME_ATTRIBUTE_NAME;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.jdom2.Element;
+import org.jgrapht.graph.DefaultWeightedEdge;
+import org.jgrapht.graph.SimpleWeightedGraph;
+
+import fiji.plugin.trackmate.Dimension;
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Logger.StringBuilderLogger;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.features.edges.EdgeTargetAnalyzer;
+import fiji.plugin.trackmate.features.track.TrackIndexAnalyzer;
+
+/**
+ * A {@link TmXmlReader} that reads the file in a single StAX pass, instead of
+ * parsing it as a whole JDOM document first.
+ * <p>
+ * The model content is consumed incrementally: spots, edges and tracks are
+ * added to a new {@link Model} as they are read, optionally in a
+ * {@link SpotCollection} with columnar feature storage. The peak memory used to
+ * load a file is then bounded by the model itself, not by a DOM copy of the
+ * file. The settings, log and GUI state elements are small, and are still
+ * built as JDOM elements so that the methods of the super class can read them.
+ * <p>
+ * Since the file is read once, at construction, {@link #getModel()} always
+ * returns the same {@link Model} instance. This reader only supports the
+ * current file format; use {@link #readVersion(File)} to check the version of
+ * a file before picking a reader.
+ */
+public class TmXmlStreamReader extends TmXmlReader {
+
+	private final Model model;
+
+	/*
+	 * CONSTRUCTORS
+	 */
+
+	/**
+	 * Initialize this reader to read the file given in argument. The whole
+	 * file is read by this constructor.
+	 */
+	public TmXmlStreamReader(final File file) {
+		this(file, false);
+	}
+
+	/**
+	 * Initialize this reader to read the file given in argument. The whole
+	 * file is read by this constructor.
+	 * 
+	 * @param columnarFeatureStorage
+	 *            if <code>true</code>, the spots of the model are stored in a
+	 *            {@link SpotCollection} with columnar feature storage.
+	 */
+	public TmXmlStreamReader(final File file, final boolean columnarFeatureStorage) {
+		this(file, new Parser(file, columnarFeatureStorage));
+	}
+
+	private TmXmlStreamReader(final File file, final Parser parser) {
+		super(file, parser.root);
+		this.model = parser.model;
+		this.logger = parser.logger;
+		this.ok = parser.ok;
+	}
+
+	/*
+	 * PUBLIC METHODS
+	 */
+
+	/**
+	 * Returns the model saved in the file, or <code>null</code> if a saved
+	 * model cannot be found in the xml file. The model is built when the file
+	 * is read, so this method returns the same instance at each call.
+	 */
+	@Override
+	public Model getModel() {
+		return model;
+	}
+
+	/*
+	 * STATIC METHODS
+	 */
+
+	/**
+	 * Returns the version string stored in the specified TrackMate file, or
+	 * <code>null</code> if it cannot be read. Only the root element of the file
+	 * is parsed.
+	 */
+	public static String readVersion(final File file) {
+		try {
+			final InputStream is = new BufferedInputStream(new FileInputStream(file));
+			try {
+				final XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(is);
+				try {
+					reader.nextTag();
+					return reader.getAttributeValue(null, PLUGIN_VERSION_ATTRIBUTE_NAME);
+				} finally {
+					reader.close();
+				}
+			} finally {
+				is.close();
+			}
+		} catch (final XMLStreamException e) {
+			return null;
+		} catch (final IOException e) {
+			return null;
+		}
+	}
+
+	/*
+	 * INNER CLASSES
+	 */
+
+	/**
+	 * Reads the file at construction, before the super class can be
+	 * initialized with the root element.
+	 */
+	private static final class Parser {
+
+		private final StringBuilderLogger logger = new StringBuilderLogger();
+		private boolean ok = true;
+		private Element root;
+		private Model model;
+		/** The spots loaded so far, mapped by ID, to build the edges from. */
+		private Map<Integer, Spot> cache;
+		private final boolean columnarFeatureStorage;
+
+		private Parser(final File file, final boolean columnarFeatureStorage) {
+			this.columnarFeatureStorage = columnarFeatureStorage;
+			try {
+				final InputStream is = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+				try {
+					final XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(is);
+					try {
+						readRoot(reader);
+					} finally {
+						reader.close();
+					}
+				} finally {
+					is.close();
+				}
+			} catch (final XMLStreamException e) {
+				ok = false;
+				logger.error("Problem parsing " + file.getName() + ", it is not a valid TrackMate XML file.\nError message is:\n"
+						+ e.getLocalizedMessage() + '\n');
+			} catch (final IOException e) {
+				ok = false;
+				logger.error("Problem reading " + file.getName()
+						+ ".\nError message is:\n" + e.getLocalizedMessage() + '\n');
+			}
+			cache = null;
+		}
+
+		private void readRoot(final XMLStreamReader reader) throws XMLStreamException {
+			reader.nextTag();
+			if (!ROOT_ELEMENT_KEY.equals(reader.getLocalName())) {
+				throw new XMLStreamException("Expected a " + ROOT_ELEMENT_KEY + " root element, got " + reader.getLocalName() + ".");
+			}
+			final Element r = new Element(ROOT_ELEMENT_KEY);
+			copyAttributes(reader, r);
+
+			while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+				if (MODEL_ELEMENT_KEY.equals(reader.getLocalName())) {
+					model = readModel(reader);
+				} else {
+					r.addContent(readElement(reader));
+				}
+			}
+			root = r;
+		}
+
+		/**
+		 * Builds a JDOM element from the current start element and its content.
+		 * On return, the reader is on the matching end element.
+		 */
+		private static Element readElement(final XMLStreamReader reader) throws XMLStreamException {
+			final Element element = new Element(reader.getLocalName());
+			copyAttributes(reader, element);
+			while (true) {
+				switch (reader.next()) {
+				case XMLStreamConstants.START_ELEMENT:
+					element.addContent(readElement(reader));
+					break;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+				case XMLStreamConstants.SPACE:
+					element.addContent(reader.getText());
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					return element;
+				default:
+					break;
+				}
+			}
+		}
+
+		private static void copyAttributes(final XMLStreamReader reader, final Element element) {
+			for (int i = 0; i < reader.getAttributeCount(); i++) {
+				element.setAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+			}
+		}
+
+		/**
+		 * Skips the current element and its content. On return, the reader is
+		 * on the matching end element.
+		 */
+		private static void skipElement(final XMLStreamReader reader) throws XMLStreamException {
+			int depth = 1;
+			while (depth > 0) {
+				switch (reader.next()) {
+				case XMLStreamConstants.START_ELEMENT:
+					depth++;
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					depth--;
+					break;
+				default:
+					break;
+				}
+			}
+		}
+
+		/*
+		 * MODEL
+		 */
+
+		private Model readModel(final XMLStreamReader reader) throws XMLStreamException {
+			final Model m = new Model();
+			m.setPhysicalUnits(reader.getAttributeValue(null, SPATIAL_UNITS_ATTRIBUTE_NAME), reader.getAttributeValue(null, TIME_UNITS_ATTRIBUTE_NAME));
+
+			final SimpleWeightedGraph<Spot, DefaultWeightedEdge> graph = new SimpleWeightedGraph<Spot, DefaultWeightedEdge>(DefaultWeightedEdge.class);
+			final Map<Integer, Set<Spot>> connectedVertexSet = new HashMap<Integer, Set<Spot>>();
+			final Map<Integer, Set<DefaultWeightedEdge>> connectedEdgeSet = new HashMap<Integer, Set<DefaultWeightedEdge>>();
+			final Map<Integer, String> savedTrackNames = new HashMap<Integer, String>();
+			final Map<Integer, Map<String, Double>> savedTrackFeatures = new HashMap<Integer, Map<String, Double>>();
+			Set<Integer> savedFilteredTrackIDs = null;
+			boolean foundDeclarations = false;
+			boolean foundSpots = false;
+			boolean foundTracks = false;
+			boolean tracksOk = true;
+
+			while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+				final String name = reader.getLocalName();
+				if (FEATURE_DECLARATIONS_ELEMENT_KEY.equals(name)) {
+					readFeatureDeclarations(reader, m.getFeatureModel());
+					foundDeclarations = true;
+
+				} else if (SPOT_COLLECTION_ELEMENT_KEY.equals(name)) {
+					m.setSpots(readSpots(reader), false);
+					foundSpots = true;
+
+				} else if (TRACK_COLLECTION_ELEMENT_KEY.equals(name)) {
+					if (!foundSpots) {
+						logger.error("Found the track collection before the spot collection in file.\n");
+						ok = false;
+						skipElement(reader);
+						continue;
+					}
+					tracksOk = readTracks(reader, m.getFeatureModel(), graph, connectedVertexSet, connectedEdgeSet, savedTrackNames, savedTrackFeatures);
+					foundTracks = true;
+
+				} else if (FILTERED_TRACK_ELEMENT_KEY.equals(name)) {
+					savedFilteredTrackIDs = readFilteredTrackIDs(reader);
+
+				} else {
+					skipElement(reader);
+				}
+			}
+
+			if (!foundDeclarations) {
+				logger.error("Could not find feature declarations in file.\n");
+				ok = false;
+			}
+			if (!foundSpots) {
+				logger.error("Could not find the spot collection in file.\n");
+				ok = false;
+				return m;
+			}
+			if (!foundTracks) {
+				logger.error("Could not find the track collection in file.\n");
+				ok = false;
+				return m;
+			}
+			if (!tracksOk) {
+				ok = false;
+				return m;
+			}
+
+			/*
+			 * Now on to the visibility.
+			 */
+
+			if (null == savedFilteredTrackIDs) {
+				logger.error("Could not find the filtered track IDs in file.\n");
+				ok = false;
+				savedFilteredTrackIDs = new HashSet<Integer>();
+			}
+			final Map<Integer, Boolean> visibility = new HashMap<Integer, Boolean>(connectedEdgeSet.size());
+			for (final Integer id : connectedEdgeSet.keySet()) {
+				visibility.put(id, Boolean.FALSE);
+			}
+			for (final Integer id : savedFilteredTrackIDs) {
+				if (!connectedEdgeSet.containsKey(id)) {
+					logger.error("Invalid filtered track index: " + id + ". Track ID does not exist.\n");
+					ok = false;
+				} else {
+					visibility.put(id, Boolean.TRUE);
+				}
+			}
+
+			/*
+			 * Pass read results to model.
+			 */
+
+			m.getTrackModel().from(graph, connectedVertexSet, connectedEdgeSet, visibility, savedTrackNames);
+
+			// Track features
+			for (final Integer trackID : savedTrackFeatures.keySet()) {
+				final Map<String, Double> savedFeatures = savedTrackFeatures.get(trackID);
+				for (final String feature : savedFeatures.keySet()) {
+					m.getFeatureModel().putTrackFeature(trackID, feature, savedFeatures.get(feature));
+				}
+			}
+			return m;
+		}
+
+		private void readFeatureDeclarations(final XMLStreamReader reader, final FeatureModel fm) throws XMLStreamException {
+			boolean foundSpots = false;
+			boolean foundEdges = false;
+			boolean foundTracks = false;
+			while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+				final String name = reader.getLocalName();
+				if (!SPOT_FEATURES_ELEMENT_KEY.equals(name) && !EDGE_FEATURES_ELEMENT_KEY.equals(name) && !TRACK_FEATURES_ELEMENT_KEY.equals(name)) {
+					skipElement(reader);
+					continue;
+				}
+
+				final Collection<String> features = new ArrayList<String>();
+				final Map<String, String> featureNames = new HashMap<String, String>();
+				final Map<String, String> featureShortNames = new HashMap<String, String>();
+				final Map<String, Dimension> featureDimensions = new HashMap<String, Dimension>();
+				while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+					if (FEATURE_ELEMENT_KEY.equals(reader.getLocalName())) {
+						readSingleFeatureDeclaration(reader, features, featureNames, featureShortNames, featureDimensions);
+					}
+					skipElement(reader);
+				}
+
+				if (SPOT_FEATURES_ELEMENT_KEY.equals(name)) {
+					fm.declareSpotFeatures(features, featureNames, featureShortNames, featureDimensions);
+					foundSpots = true;
+				} else if (EDGE_FEATURES_ELEMENT_KEY.equals(name)) {
+					fm.declareEdgeFeatures(features, featureNames, featureShortNames, featureDimensions);
+					foundEdges = true;
+				} else {
+					fm.declareTrackFeatures(features, featureNames, featureShortNames, featureDimensions);
+					foundTracks = true;
+				}
+			}
+
+			if (!foundSpots) {
+				logger.error("Could not find spot feature declarations in file.\n");
+				ok = false;
+			}
+			if (!foundEdges) {
+				logger.error("Could not find edge feature declarations in file.\n");
+				ok = false;
+			}
+			if (!foundTracks) {
+				logger.error("Could not find track feature declarations in file.\n");
+				ok = false;
+			}
+		}
+
+		private void readSingleFeatureDeclaration(final XMLStreamReader reader, final Collection<String> features,
+				final Map<String, String> featureNames, final Map<String, String> featureShortNames, final Map<String, Dimension> featureDimensions) {
+
+			final String feature = reader.getAttributeValue(null, FEATURE_ATTRIBUTE);
+			if (null == feature) {
+				logger.error("Could not find feature declaration for element " + reader.getLocalName() + ".\n");
+				ok = false;
+				return;
+			}
+			final String featureName = reader.getAttributeValue(null, FEATURE_NAME_ATTRIBUTE);
+			if (null == featureName) {
+				logger.error("Could not find name for feature " + feature + ".\n");
+				ok = false;
+				return;
+			}
+			final String featureShortName = reader.getAttributeValue(null, FEATURE_SHORT_NAME_ATTRIBUTE);
+			if (null == featureShortName) {
+				logger.error("Could not find short name for feature " + feature + ".\n");
+				ok = false;
+				return;
+			}
+			final String dimension = reader.getAttributeValue(null, FEATURE_DIMENSION_ATTRIBUTE);
+			if (null == dimension) {
+				logger.error("Could not find dimension for feature " + feature + ".\n");
+				ok = false;
+				return;
+			}
+
+			features.add(feature);
+			featureNames.put(feature, featureName);
+			featureShortNames.put(feature, featureShortName);
+			featureDimensions.put(feature, Dimension.valueOf(dimension));
+		}
+
+		/*
+		 * SPOTS
+		 */
+
+		private SpotCollection readSpots(final XMLStreamReader reader) throws XMLStreamException {
+			final int nspots = readIntAttribute(reader, SPOT_COLLECTION_NSPOTS_ATTRIBUTE_NAME, 0, false);
+			cache = new HashMap<Integer, Spot>(Math.max(16, 4 * nspots / 3 + 1));
+			final SpotCollection spots = new SpotCollection(columnarFeatureStorage);
+
+			while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+				if (!SPOT_FRAME_COLLECTION_ELEMENT_KEY.equals(reader.getLocalName())) {
+					skipElement(reader);
+					continue;
+				}
+				final int frame = readIntAttribute(reader, FRAME_ATTRIBUTE_NAME, 0, true);
+				final List<Spot> spotsInFrame = new ArrayList<Spot>();
+				while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+					if (SPOT_ELEMENT_KEY.equals(reader.getLocalName())) {
+						final Spot spot = createSpotFrom(reader);
+						spotsInFrame.add(spot);
+						cache.put(spot.ID(), spot);
+					}
+					skipElement(reader);
+				}
+				// Adding spots resets their visibility, so we restore the saved one.
+				final Double[] visibilities = new Double[spotsInFrame.size()];
+				for (int i = 0; i < visibilities.length; i++) {
+					visibilities[i] = spotsInFrame.get(i).getFeature(SpotCollection.VISIBLITY);
+				}
+				spots.put(frame, spotsInFrame);
+				for (int i = 0; i < visibilities.length; i++) {
+					if (null != visibilities[i]) {
+						spotsInFrame.get(i).putFeature(SpotCollection.VISIBLITY, visibilities[i]);
+					}
+				}
+			}
+			return spots;
+		}
+
+		private Spot createSpotFrom(final XMLStreamReader reader) {
+			final int ID = readIntAttribute(reader, SPOT_ID_ATTRIBUTE_NAME, 0, true);
+			final Spot spot = new Spot(ID);
+
+			String name = null;
+			for (int i = 0; i < reader.getAttributeCount(); i++) {
+				final String attName = reader.getAttributeLocalName(i);
+				if (attName.equals(SPOT_ID_ATTRIBUTE_NAME)) {
+					continue;
+				}
+				if (attName.equals(SPOT_NAME_ATTRIBUTE_NAME)) {
+					name = reader.getAttributeValue(i);
+					continue;
+				}
+				try {
+					spot.putFeature(attName, Double.valueOf(reader.getAttributeValue(i)));
+				} catch (final NumberFormatException e) {
+					logger.error("Spot " + ID + ": Cannot read the feature " + attName + " value. Skipping.\n");
+					ok = false;
+				}
+			}
+			if (null == name || name.equals("")) {
+				name = "ID" + ID;
+			}
+			spot.setName(name);
+			return spot;
+		}
+
+		/*
+		 * TRACKS
+		 */
+
+		/**
+		 * Reads the track collection element.
+		 * @return <code>true</code> if reading tracks was successful.
+		 */
+		private boolean readTracks(final XMLStreamReader reader, final FeatureModel fm,
+				final SimpleWeightedGraph<Spot, DefaultWeightedEdge> graph,
+				final Map<Integer, Set<Spot>> connectedVertexSet, final Map<Integer, Set<DefaultWeightedEdge>> connectedEdgeSet,
+				final Map<Integer, String> savedTrackNames, final Map<Integer, Map<String, Double>> savedTrackFeatures) throws XMLStreamException {
+
+			// The list of edge features that we will set.
+			final List<String> edgeIntFeatures = new ArrayList<String>();
+			edgeIntFeatures.add(EdgeTargetAnalyzer.SPOT_SOURCE_ID);
+			edgeIntFeatures.add(EdgeTargetAnalyzer.SPOT_TARGET_ID);
+			final List<String> edgeDoubleFeatures = new ArrayList<String>(fm.getEdgeFeatures());
+			edgeDoubleFeatures.removeAll(edgeIntFeatures);
+
+			while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+				if (!TRACK_ELEMENT_KEY.equals(reader.getLocalName())) {
+					skipElement(reader);
+					continue;
+				}
+
+				// Track attributes: ID, name and features
+				final int trackID = readIntAttribute(reader, TrackIndexAnalyzer.TRACK_ID, -1, true);
+				String trackName = "Unnamed";
+				final Map<String, Double> trackFeatures = new HashMap<String, Double>();
+				for (int i = 0; i < reader.getAttributeCount(); i++) {
+					final String attName = reader.getAttributeLocalName(i);
+					if (attName.equals(TRACK_NAME_ATTRIBUTE_NAME)) {
+						trackName = reader.getAttributeValue(i);
+						continue;
+					}
+					try {
+						trackFeatures.put(attName, Double.valueOf(reader.getAttributeValue(i)));
+					} catch (final NumberFormatException e) {
+						logger.error("Track " + trackID + ": Cannot read the feature " + attName + " value. Skipping.\n");
+						ok = false;
+					}
+				}
+
+				// Iterate over edges & spots
+				final Set<DefaultWeightedEdge> edges = new HashSet<DefaultWeightedEdge>();
+				final Set<Spot> spots = new HashSet<Spot>();
+				while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+					if (!TRACK_EDGE_ELEMENT_KEY.equals(reader.getLocalName())) {
+						skipElement(reader);
+						continue;
+					}
+
+					// Get source and target ID for this edge
+					final int sourceID = readIntAttribute(reader, EdgeTargetAnalyzer.SPOT_SOURCE_ID, 0, true);
+					final int targetID = readIntAttribute(reader, EdgeTargetAnalyzer.SPOT_TARGET_ID, 0, true);
+
+					// Get matching spots from the cache
+					final Spot sourceSpot = cache.get(sourceID);
+					final Spot targetSpot = cache.get(targetID);
+
+					// Error check
+					if (null == sourceSpot) {
+						logger.error("Unknown spot ID: " + sourceID + "\n");
+						skipTrackCollection(reader);
+						return false;
+					}
+					if (null == targetSpot) {
+						logger.error("Unknown spot ID: " + targetID + "\n");
+						skipTrackCollection(reader);
+						return false;
+					}
+					if (sourceSpot.equals(targetSpot)) {
+						logger.error("Bad link for track " + trackID + ". Source = Target with ID: " + sourceID + "\n");
+						skipTrackCollection(reader);
+						return false;
+					}
+
+					// Add spots to graph and build edge
+					spots.add(sourceSpot);
+					spots.add(targetSpot);
+					graph.addVertex(sourceSpot);
+					graph.addVertex(targetSpot);
+					final DefaultWeightedEdge edge = graph.addEdge(sourceSpot, targetSpot);
+					if (edge == null) {
+						logger.error("Bad edge found for track " + trackID + "\n");
+						skipTrackCollection(reader);
+						return false;
+					}
+
+					// Weight and edge features
+					graph.setEdgeWeight(edge, readDoubleAttribute(reader, EdgeTargetAnalyzer.EDGE_COST, 0, false));
+					for (final String feature : edgeDoubleFeatures) {
+						fm.putEdgeFeature(edge, feature, readDoubleAttribute(reader, feature, 0, true));
+					}
+					for (final String feature : edgeIntFeatures) {
+						fm.putEdgeFeature(edge, feature, Double.valueOf(readIntAttribute(reader, feature, 0, true)));
+					}
+					edges.add(edge);
+
+					skipElement(reader);
+				}
+
+				connectedVertexSet.put(trackID, spots);
+				connectedEdgeSet.put(trackID, edges);
+				savedTrackNames.put(trackID, trackName);
+				savedTrackFeatures.put(trackID, trackFeatures);
+			}
+			return true;
+		}
+
+		/**
+		 * Skips the rest of the track collection, when reading is aborted
+		 * while the reader is on an edge start element.
+		 */
+		private static void skipTrackCollection(final XMLStreamReader reader) throws XMLStreamException {
+			skipElement(reader); // edge
+			skipElement(reader); // track
+			skipElement(reader); // track collection
+		}
+
+		private Set<Integer> readFilteredTrackIDs(final XMLStreamReader reader) throws XMLStreamException {
+			final Set<Integer> filteredTrackIDs = new HashSet<Integer>();
+			while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+				if (TRACK_ID_ELEMENT_KEY.equals(reader.getLocalName())) {
+					filteredTrackIDs.add(readIntAttribute(reader, TrackIndexAnalyzer.TRACK_ID, -1, true));
+				}
+				skipElement(reader);
+			}
+			return filteredTrackIDs;
+		}
+
+		/*
+		 * ATTRIBUTES
+		 */
+
+		private int readIntAttribute(final XMLStreamReader reader, final String name, final int defaultValue, final boolean required) {
+			final String str = reader.getAttributeValue(null, name);
+			if (null == str) {
+				if (required) {
+					logger.error("Could not find attribute " + name + " for element " + reader.getLocalName() + ", substituting default value.\n");
+				}
+				return defaultValue;
+			}
+			try {
+				return Integer.parseInt(str);
+			} catch (final NumberFormatException e) {
+				logger.error("Could not read " + name + " attribute as integer value for element " + reader.getLocalName() + ", got " + str + ".\n");
+				return defaultValue;
+			}
+		}
+
+		private double readDoubleAttribute(final XMLStreamReader reader, final String name, final double defaultValue, final boolean required) {
+			final String str = reader.getAttributeValue(null, name);
+			if (null == str) {
+				if (required) {
+					logger.error("Could not find attribute " + name + " for element " + reader.getLocalName() + ", substituting default value.\n");
+				}
+				return defaultValue;
+			}
+			try {
+				return Double.parseDouble(str);
+			} catch (final NumberFormatException e) {
+				logger.error("Could not read " + name + " attribute as double value for element " + reader.getLocalName() + ", got " + str + ".\n");
+				return defaultValue;
+			}
+		}
+	}
+}
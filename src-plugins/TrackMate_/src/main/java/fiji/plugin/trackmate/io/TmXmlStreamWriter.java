@@ -0,0 +1,365 @@
+package fiji.plugin.trackmate.io;
+
+import static fiji.plugin.trackmate.io.TmXmlKeys.EDGE_FEATURES_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_ATTRIBUTE;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_DECLARATIONS_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_DIMENSION_ATTRIBUTE;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_NAME_ATTRIBUTE;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FEATURE_SHORT_NAME_ATTRIBUTE;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FILTERED_TRACK_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.FRAME_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.MODEL_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPATIAL_UNITS_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_COLLECTION_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_COLLECTION_NSPOTS_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_FEATURES_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_FRAME_COLLECTION_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_ID_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.SPOT_NAME_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TIME_UNITS_ATTRIBUTE_NAME;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_COLLECTION_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_EDGE_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_FEATURES_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_ID_ELEMENT_KEY;
+import static fiji.plugin.trackmate.io.TmXmlKeys.TRACK_NAME_ATTRIBUTE_NAME;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.jdom2.Attribute;
+import org.jdom2.Content;
+import org.jdom2.Element;
+import org.jdom2.Text;
+import org.jgrapht.graph.DefaultWeightedEdge;
+
+import fiji.plugin.trackmate.Dimension;
+import fiji.plugin.trackmate.FeatureModel;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.features.edges.EdgeTargetAnalyzer;
+import fiji.plugin.trackmate.features.track.TrackIndexAnalyzer;
+
+/**
+ * A {@link TmXmlWriter} that streams the model content to the file with StAX,
+ * instead of building a JDOM document of it first.
+ * <p>
+ * The settings, log and GUI state are small and are still built as JDOM
+ * elements by the super class. But {@link #appendModel(Model)} only records the
+ * model, and its spots, edges and tracks are written one by one when
+ * {@link #writeToFile()} is called. The peak memory used to save a model is
+ * then bounded by the model itself, not by a DOM copy of it. The file written
+ * follows the same {@link TmXmlKeys} schema than the {@link TmXmlWriter}, and
+ * can be read by both the {@link TmXmlReader} and the {@link TmXmlStreamReader}.
+ */
+public class TmXmlStreamWriter extends TmXmlWriter {
+
+	private static final String INDENT = "  ";
+
+	/** The models to stream, stored against their place-holder element in the root. */
+	private final Map<Element, Model> models = new HashMap<Element, Model>();
+
+	/** Cache for indentation strings, indexed by depth. */
+	private final List<String> indents = new ArrayList<String>();
+
+	/*
+	 * CONSTRUCTOR
+	 */
+
+	/**
+	 * Creates a new streaming XML file writer for TrackMate.
+	 *
+	 * @param file the xml file to write to, will be overwritten.
+	 */
+	public TmXmlStreamWriter(final File file) {
+		super(file);
+	}
+
+	/*
+	 * PUBLIC METHODS
+	 */
+
+	/**
+	 * Registers the {@link Model} to be written in the file generated by this
+	 * writer. Its content is not copied: it is read when
+	 * {@link #writeToFile()} is called, and must not be modified before.
+	 *
+	 * @param model the {@link Model} to write.
+	 */
+	@Override
+	public void appendModel(final Model model) {
+		final Element modelElement = new Element(MODEL_ELEMENT_KEY);
+		modelElement.setAttribute(SPATIAL_UNITS_ATTRIBUTE_NAME, model.getSpaceUnits());
+		modelElement.setAttribute(TIME_UNITS_ATTRIBUTE_NAME, model.getTimeUnits());
+		root.addContent(modelElement);
+		models.put(modelElement, model);
+		logger.log("  Added model.\n");
+	}
+
+	@Override
+	public void writeToFile() throws FileNotFoundException, IOException {
+		logger.log("  Writing to file.\n");
+		final OutputStream os = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+		try {
+			final XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(os, "UTF-8");
+			writer.writeStartDocument("UTF-8", "1.0");
+			write(writer);
+			writer.writeEndDocument();
+			writer.close();
+		} catch (final XMLStreamException e) {
+			throw new IOException("Problem writing to " + file + ":\n" + e.getMessage(), e);
+		} finally {
+			os.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		final StringWriter sw = new StringWriter();
+		try {
+			final XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(sw);
+			writer.writeStartDocument();
+			write(writer);
+			writer.writeEndDocument();
+			writer.close();
+		} catch (final XMLStreamException e) {
+			e.printStackTrace();
+		}
+		return sw.toString();
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	private void write(final XMLStreamWriter writer) throws XMLStreamException {
+		writeElement(writer, root, 0);
+		newLine(writer, 0);
+	}
+
+	/**
+	 * Writes a JDOM element and its content, or streams the model it stands
+	 * for if it is a model place-holder.
+	 */
+	private void writeElement(final XMLStreamWriter writer, final Element element, final int depth) throws XMLStreamException {
+		newLine(writer, depth);
+		final Model model = models.get(element);
+		final List<Content> content = element.getContent();
+		if (null == model && content.isEmpty()) {
+			writer.writeEmptyElement(element.getName());
+			writeAttributes(writer, element);
+			return;
+		}
+
+		writer.writeStartElement(element.getName());
+		writeAttributes(writer, element);
+		boolean hasChildren = false;
+		if (null != model) {
+			writeModel(writer, model, depth + 1);
+			hasChildren = true;
+		}
+		for (final Content c : content) {
+			if (c instanceof Element) {
+				writeElement(writer, (Element) c, depth + 1);
+				hasChildren = true;
+			} else if (c instanceof Text) {
+				writer.writeCharacters(((Text) c).getText());
+			}
+		}
+		if (hasChildren) {
+			newLine(writer, depth);
+		}
+		writer.writeEndElement();
+	}
+
+	private static void writeAttributes(final XMLStreamWriter writer, final Element element) throws XMLStreamException {
+		for (final Attribute attribute : element.getAttributes()) {
+			writer.writeAttribute(attribute.getName(), attribute.getValue());
+		}
+	}
+
+	private void writeModel(final XMLStreamWriter writer, final Model model, final int depth) throws XMLStreamException {
+		writeFeatureDeclarations(writer, model.getFeatureModel(), depth);
+		writeSpots(writer, model.getSpots(), depth);
+		writeTracks(writer, model, depth);
+		writeFilteredTracks(writer, model, depth);
+	}
+
+	private void writeFeatureDeclarations(final XMLStreamWriter writer, final FeatureModel fm, final int depth) throws XMLStreamException {
+		newLine(writer, depth);
+		writer.writeStartElement(FEATURE_DECLARATIONS_ELEMENT_KEY);
+		writeFeatureDeclaration(writer, SPOT_FEATURES_ELEMENT_KEY, fm.getSpotFeatures(), fm.getSpotFeatureNames(),
+				fm.getSpotFeatureShortNames(), fm.getSpotFeatureDimensions(), depth + 1);
+		writeFeatureDeclaration(writer, EDGE_FEATURES_ELEMENT_KEY, fm.getEdgeFeatures(), fm.getEdgeFeatureNames(),
+				fm.getEdgeFeatureShortNames(), fm.getEdgeFeatureDimensions(), depth + 1);
+		writeFeatureDeclaration(writer, TRACK_FEATURES_ELEMENT_KEY, fm.getTrackFeatures(), fm.getTrackFeatureNames(),
+				fm.getTrackFeatureShortNames(), fm.getTrackFeatureDimensions(), depth + 1);
+		newLine(writer, depth);
+		writer.writeEndElement();
+		logger.log("  Added spot, edge and track feature declarations.\n");
+	}
+
+	private void writeFeatureDeclaration(final XMLStreamWriter writer, final String elementKey, final Collection<String> features,
+			final Map<String, String> featureNames, final Map<String, String> featureShortNames, final Map<String, Dimension> featureDimensions,
+			final int depth) throws XMLStreamException {
+		newLine(writer, depth);
+		if (features.isEmpty()) {
+			writer.writeEmptyElement(elementKey);
+			return;
+		}
+		writer.writeStartElement(elementKey);
+		for (final String feature : features) {
+			newLine(writer, depth + 1);
+			writer.writeEmptyElement(FEATURE_ELEMENT_KEY);
+			writer.writeAttribute(FEATURE_ATTRIBUTE, feature);
+			writer.writeAttribute(FEATURE_NAME_ATTRIBUTE, featureNames.get(feature));
+			writer.writeAttribute(FEATURE_SHORT_NAME_ATTRIBUTE, featureShortNames.get(feature));
+			writer.writeAttribute(FEATURE_DIMENSION_ATTRIBUTE, featureDimensions.get(feature).name());
+		}
+		newLine(writer, depth);
+		writer.writeEndElement();
+	}
+
+	private void writeSpots(final XMLStreamWriter writer, final SpotCollection spots, final int depth) throws XMLStreamException {
+		final int nspots = spots.getNSpots(false);
+		newLine(writer, depth);
+		writer.writeStartElement(SPOT_COLLECTION_ELEMENT_KEY);
+		writer.writeAttribute(SPOT_COLLECTION_NSPOTS_ATTRIBUTE_NAME, "" + nspots);
+
+		for (final int frame : spots.keySet()) {
+			newLine(writer, depth + 1);
+			final Iterator<Spot> it = spots.iterator(frame, false);
+			if (!it.hasNext()) {
+				writer.writeEmptyElement(SPOT_FRAME_COLLECTION_ELEMENT_KEY);
+				writer.writeAttribute(FRAME_ATTRIBUTE_NAME, "" + frame);
+				continue;
+			}
+			writer.writeStartElement(SPOT_FRAME_COLLECTION_ELEMENT_KEY);
+			writer.writeAttribute(FRAME_ATTRIBUTE_NAME, "" + frame);
+			while (it.hasNext()) {
+				final Spot spot = it.next();
+				newLine(writer, depth + 2);
+				writer.writeEmptyElement(SPOT_ELEMENT_KEY);
+				writer.writeAttribute(SPOT_ID_ATTRIBUTE_NAME, "" + spot.ID());
+				writer.writeAttribute(SPOT_NAME_ATTRIBUTE_NAME, spot.getName());
+				for (final Map.Entry<String, Double> entry : spot.getFeatures().entrySet()) {
+					final Double val = entry.getValue();
+					if (null == val) {
+						continue;
+					}
+					writer.writeAttribute(entry.getKey(), val.toString());
+				}
+			}
+			newLine(writer, depth + 1);
+			writer.writeEndElement();
+		}
+
+		newLine(writer, depth);
+		writer.writeEndElement();
+		logger.log("  Added " + nspots + " spots.\n");
+	}
+
+	private void writeTracks(final XMLStreamWriter writer, final Model model, final int depth) throws XMLStreamException {
+		final FeatureModel fm = model.getFeatureModel();
+
+		// Prepare track features for writing: we separate ints from doubles
+		final List<String> trackIntFeatures = new ArrayList<String>();
+		trackIntFeatures.add(TrackIndexAnalyzer.TRACK_ID);
+		trackIntFeatures.add(TrackIndexAnalyzer.TRACK_INDEX);
+		final List<String> trackDoubleFeatures = new ArrayList<String>(fm.getTrackFeatures());
+		trackDoubleFeatures.removeAll(trackIntFeatures);
+
+		// Same thing for edge features
+		final List<String> edgeIntFeatures = new ArrayList<String>();
+		edgeIntFeatures.add(EdgeTargetAnalyzer.SPOT_SOURCE_ID);
+		edgeIntFeatures.add(EdgeTargetAnalyzer.SPOT_TARGET_ID);
+		final List<String> edgeDoubleFeatures = new ArrayList<String>(fm.getEdgeFeatures());
+		edgeDoubleFeatures.removeAll(edgeIntFeatures);
+
+		newLine(writer, depth);
+		writer.writeStartElement(TRACK_COLLECTION_ELEMENT_KEY);
+
+		for (final int trackID : model.getTrackModel().trackIDs(false)) {
+			final Set<DefaultWeightedEdge> track = model.getTrackModel().trackEdges(trackID);
+			if (track.size() == 0) {
+				// Tracks without edges are not written, as in the TmXmlWriter.
+				continue;
+			}
+
+			newLine(writer, depth + 1);
+			writer.writeStartElement(TRACK_ELEMENT_KEY);
+			writer.writeAttribute(TRACK_NAME_ATTRIBUTE_NAME, model.getTrackModel().name(trackID));
+			for (final String feature : trackDoubleFeatures) {
+				final Double val = fm.getTrackFeature(trackID, feature);
+				writer.writeAttribute(feature, val.toString());
+			}
+			for (final String feature : trackIntFeatures) {
+				final int val = fm.getTrackFeature(trackID, feature).intValue();
+				writer.writeAttribute(feature, "" + val);
+			}
+
+			for (final DefaultWeightedEdge edge : track) {
+				newLine(writer, depth + 2);
+				writer.writeEmptyElement(TRACK_EDGE_ELEMENT_KEY);
+				for (final String feature : edgeDoubleFeatures) {
+					final Double val = fm.getEdgeFeature(edge, feature);
+					writer.writeAttribute(feature, val.toString());
+				}
+				for (final String feature : edgeIntFeatures) {
+					final int val = fm.getEdgeFeature(edge, feature).intValue();
+					writer.writeAttribute(feature, "" + val);
+				}
+			}
+
+			newLine(writer, depth + 1);
+			writer.writeEndElement();
+		}
+
+		newLine(writer, depth);
+		writer.writeEndElement();
+		logger.log("  Added tracks.\n");
+	}
+
+	private void writeFilteredTracks(final XMLStreamWriter writer, final Model model, final int depth) throws XMLStreamException {
+		newLine(writer, depth);
+		writer.writeStartElement(FILTERED_TRACK_ELEMENT_KEY);
+		for (final int trackID : model.getTrackModel().trackIDs(true)) {
+			newLine(writer, depth + 1);
+			writer.writeEmptyElement(TRACK_ID_ELEMENT_KEY);
+			writer.writeAttribute(TrackIndexAnalyzer.TRACK_ID, "" + trackID);
+		}
+		newLine(writer, depth);
+		writer.writeEndElement();
+		logger.log("  Added filtered tracks.\n");
+	}
+
+	private void newLine(final XMLStreamWriter writer, final int depth) throws XMLStreamException {
+		while (indents.size() <= depth) {
+			final StringBuilder str = new StringBuilder("\n");
+			for (int i = 0; i < indents.size(); i++) {
+				str.append(INDENT);
+			}
+			indents.add(str.toString());
+		}
+		writer.writeCharacters(indents.get(depth));
+	}
+}
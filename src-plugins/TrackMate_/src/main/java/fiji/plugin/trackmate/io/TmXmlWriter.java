@@ -112,7 +112,7 @@ public class TmXmlWriter {
 
 	protected final Element root;
 	protected final Logger logger;
-	private final File file;
+	protected final File file;
 
 	/*
 	 * CONSTRUCTORS
@@ -38,6 +38,7 @@
 import fiji.plugin.trackmate.tracking.LAPUtils;
 import fiji.plugin.trackmate.tracking.ManualTracker;
 import fiji.plugin.trackmate.tracking.SimpleFastLAPTracker;
+import fiji.plugin.trackmate.tracking.SparseLAPTracker;
 import fiji.plugin.trackmate.tracking.SpotTracker;
 import fiji.plugin.trackmate.tracking.TrackerKeys;
 import fiji.plugin.trackmate.tracking.kdtree.NearestNeighborTracker;
@@ -90,18 +91,21 @@ protected void registerTrackers() {
 		keys = new ArrayList<String>();
 		keys.add(SimpleFastLAPTracker.TRACKER_KEY);
 		keys.add(FastLAPTracker.TRACKER_KEY);
+		keys.add(SparseLAPTracker.TRACKER_KEY);
 		keys.add(NearestNeighborTracker.TRACKER_KEY);
 		keys.add(ManualTracker.TRACKER_KEY);
 		// infoTexts
 		infoTexts = new ArrayList<String>();
 		infoTexts.add(SimpleFastLAPTracker.INFO_TEXT);
 		infoTexts.add(FastLAPTracker.INFO_TEXT);
+		infoTexts.add(SparseLAPTracker.INFO_TEXT);
 		infoTexts.add(NearestNeighborTracker.INFO_TEXT);
 		infoTexts.add(ManualTracker.INFO_TEXT);
 		// Names
 		names = new ArrayList<String>();
 		names.add(SimpleFastLAPTracker.NAME);
 		names.add(FastLAPTracker.NAME);
+		names.add(SparseLAPTracker.NAME);
 		names.add(NearestNeighborTracker.NAME);
 		names.add(ManualTracker.NAME);
 	}
@@ -122,6 +126,9 @@ public SpotTracker getTracker() {
 		} else if (currentKey.equals(FastLAPTracker.TRACKER_KEY)) {
 			tracker = new FastLAPTracker(logger);
 
+		} else if (currentKey.equals(SparseLAPTracker.TRACKER_KEY)) {
+			tracker = new SparseLAPTracker(logger);
+
 		} else if (currentKey.equals(NearestNeighborTracker.TRACKER_KEY)) {
 			tracker = new NearestNeighborTracker(logger);
 
@@ -145,6 +152,9 @@ public String getInfoText() {
 		} else if (currentKey.equals(FastLAPTracker.TRACKER_KEY)) {
 			return FastLAPTracker.INFO_TEXT;
 
+		} else if (currentKey.equals(SparseLAPTracker.TRACKER_KEY)) {
+			return SparseLAPTracker.INFO_TEXT;
+
 		} else if (currentKey.equals(NearestNeighborTracker.TRACKER_KEY)) {
 			return NearestNeighborTracker.INFO_TEXT;
 
@@ -168,6 +178,9 @@ public String getName() {
 		} else if (currentKey.equals(FastLAPTracker.TRACKER_KEY)) {
 			return FastLAPTracker.NAME;
 
+		} else if (currentKey.equals(SparseLAPTracker.TRACKER_KEY)) {
+			return SparseLAPTracker.NAME;
+
 		} else if (currentKey.equals(NearestNeighborTracker.TRACKER_KEY)) {
 			return NearestNeighborTracker.NAME;
 
@@ -194,7 +207,7 @@ public ConfigurationPanel getTrackerConfigurationPanel() 	{
 		if (currentKey.equals(SimpleFastLAPTracker.TRACKER_KEY)) {
 			return new SimpleLAPTrackerSettingsPanel(trackerName, SimpleFastLAPTracker.INFO_TEXT, spaceUnits);
 
-		} else if (currentKey.equals(FastLAPTracker.TRACKER_KEY)) {
+		} else if (currentKey.equals(FastLAPTracker.TRACKER_KEY) || currentKey.equals(SparseLAPTracker.TRACKER_KEY)) {
 			return new LAPTrackerSettingsPanel(trackerName, spaceUnits, features, featureNames);
 
 		} else if (currentKey.equals(NearestNeighborTracker.TRACKER_KEY)) {
@@ -213,7 +226,7 @@ public ConfigurationPanel getTrackerConfigurationPanel() 	{
 	public Map<String, Object> getDefaultSettings() {
 		Map<String, Object> settings;
 
-		if (currentKey.equals(SimpleFastLAPTracker.TRACKER_KEY) || currentKey.equals(FastLAPTracker.TRACKER_KEY)) {
+		if (currentKey.equals(SimpleFastLAPTracker.TRACKER_KEY) || currentKey.equals(FastLAPTracker.TRACKER_KEY) || currentKey.equals(SparseLAPTracker.TRACKER_KEY)) {
 			settings = LAPUtils.getDefaultLAPSettingsMap();
 
 		} else if (currentKey.equals(NearestNeighborTracker.TRACKER_KEY)) {
@@ -240,7 +253,7 @@ public Map<String, Object> getDefaultSettings() {
 	public boolean marshall(final Map<String, Object> settings, final Element element) {
 
 		element.setAttribute(XML_ATTRIBUTE_TRACKER_NAME, currentKey);
-		if (currentKey.equals(SimpleFastLAPTracker.TRACKER_KEY) || currentKey.equals(FastLAPTracker.TRACKER_KEY)) {
+		if (currentKey.equals(SimpleFastLAPTracker.TRACKER_KEY) || currentKey.equals(FastLAPTracker.TRACKER_KEY) || currentKey.equals(SparseLAPTracker.TRACKER_KEY)) {
 
 			boolean ok = true;
 
@@ -342,7 +355,7 @@ public boolean unmarshall(final Element element, final Map<String, Object> setti
 			return false;
 		}
 
-		if (currentKey.equals(SimpleFastLAPTracker.TRACKER_KEY) || currentKey.equals(FastLAPTracker.TRACKER_KEY)) {
+		if (currentKey.equals(SimpleFastLAPTracker.TRACKER_KEY) || currentKey.equals(FastLAPTracker.TRACKER_KEY) || currentKey.equals(SparseLAPTracker.TRACKER_KEY)) {
 			final StringBuilder errorHolder = new StringBuilder();
 
 			// Linking
@@ -490,7 +503,8 @@ public boolean checkSettingsValidity(final Map<String, Object> settings) {
 		boolean ok = true;
 
 		if (currentKey.equals(FastLAPTracker.TRACKER_KEY)
-				|| currentKey.equals(SimpleFastLAPTracker.TRACKER_KEY)) {
+				|| currentKey.equals(SimpleFastLAPTracker.TRACKER_KEY)
+				|| currentKey.equals(SparseLAPTracker.TRACKER_KEY)) {
 
 			ok = LAPUtils.checkSettingsValidity(settings, str);
 			if (!ok) {
@@ -530,7 +544,7 @@ public String toString(final Map<String, Object> sm) {
 		}
 
 		final StringBuilder str = new StringBuilder();
-		if (currentKey.equals(FastLAPTracker.TRACKER_KEY) || currentKey.equals(SimpleFastLAPTracker.TRACKER_KEY)) {
+		if (currentKey.equals(FastLAPTracker.TRACKER_KEY) || currentKey.equals(SimpleFastLAPTracker.TRACKER_KEY) || currentKey.equals(SparseLAPTracker.TRACKER_KEY)) {
 
 			str.append("  Linking conditions:\n");
 			str.append(String.format("    - max distance: %.1f\n", (Double) sm.get(KEY_LINKING_MAX_DISTANCE)));
@@ -0,0 +1,82 @@
+package fiji.plugin.trackmate.tests;
+
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_BLOCKING_VALUE;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.tracking.LAPUtils;
+import fiji.plugin.trackmate.tracking.costmatrix.LinkingCostMatrixCreator;
+import fiji.plugin.trackmate.tracking.costmatrix.SparseLinkingCostMatrixCreator;
+import fiji.plugin.trackmate.tracking.hungarian.JonkerVolgenantAlgorithm;
+import fiji.plugin.trackmate.tracking.hungarian.MunkresKuhnAlgorithm;
+import fiji.plugin.trackmate.tracking.hungarian.SparseCostMatrix;
+
+/**
+ * Compares the dense Munkres-Kuhn solver with the sparse Jonker-Volgenant
+ * solver on the frame to frame linking problem, for increasing numbers of
+ * spots moving randomly in a square.
+ */
+public class LAPSolversPerformance_TestDrive {
+
+	public static void main(final String[] args) {
+
+		final Map<String, Object> settings = LAPUtils.getDefaultLAPSettingsMap();
+		final double blockingValue = (Double) settings.get(KEY_BLOCKING_VALUE);
+		final Random ran = new Random(1l);
+
+		for (final int nSpots : new int[] { 100, 200, 500, 1000, 2000 }) {
+
+			// Spot density is kept constant: ~ 1 spot per 10x10 square.
+			final double width = 10 * Math.sqrt(nSpots);
+			final List<Spot> t0 = new ArrayList<Spot>(nSpots);
+			final List<Spot> t1 = new ArrayList<Spot>(nSpots);
+			for (int i = 0; i < nSpots; i++) {
+				final double x = width * ran.nextDouble();
+				final double y = width * ran.nextDouble();
+				t0.add(new Spot(new double[] { x, y, 0 }));
+				t1.add(new Spot(new double[] { x + 2 * ran.nextGaussian(), y + 2 * ran.nextGaussian(), 0 }));
+			}
+
+			// Dense
+			long start = System.currentTimeMillis();
+			final LinkingCostMatrixCreator denseCreator = new LinkingCostMatrixCreator(t0, t1, settings);
+			if (!denseCreator.checkInput() || !denseCreator.process()) {
+				System.err.println(denseCreator.getErrorMessage());
+				return;
+			}
+			final double[][] dense = denseCreator.getResult();
+			final double[][] copy = new double[dense.length][];
+			for (int i = 0; i < dense.length; i++) {
+				copy[i] = dense[i].clone();
+			}
+			final int[][] denseSolutions = new MunkresKuhnAlgorithm().computeAssignments(copy);
+			final long denseTime = System.currentTimeMillis() - start;
+			double denseCost = 0;
+			for (final int[] solution : denseSolutions) {
+				denseCost += dense[solution[0]][solution[1]];
+			}
+
+			// Sparse
+			start = System.currentTimeMillis();
+			final SparseLinkingCostMatrixCreator sparseCreator = new SparseLinkingCostMatrixCreator(t0, t1, settings);
+			if (!sparseCreator.checkInput() || !sparseCreator.process()) {
+				System.err.println(sparseCreator.getErrorMessage());
+				return;
+			}
+			final SparseCostMatrix sparse = sparseCreator.getResult();
+			final int[][] sparseSolutions = new JonkerVolgenantAlgorithm(blockingValue).computeAssignments(sparse);
+			final long sparseTime = System.currentTimeMillis() - start;
+			double sparseCost = 0;
+			for (final int[] solution : sparseSolutions) {
+				sparseCost += sparse.get(solution[0], solution[1], blockingValue);
+			}
+
+			System.out.println(String.format("%5d spots - dense Munkres-Kuhn: %6d ms, cost %10.1f - sparse Jonker-Volgenant: %5d ms, cost %10.1f - %s",
+					nSpots, denseTime, denseCost, sparseTime, sparseCost, sparse));
+		}
+	}
+}
@@ -12,6 +12,7 @@
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.imglib2.algorithm.MultiThreadedBenchmarkAlgorithm;
@@ -411,7 +412,7 @@ public boolean linkTrackSegmentsToFinalTracks() {
 		}
 
 		// Check that the cost matrix for this step exists.
-		if (null == segmentCosts) {
+		if (!hasSegmentCosts()) {
 			errorMessage = "The segment cost matrix (step 2) does not exists.";
 			return false;
 		}
@@ -419,7 +420,7 @@ public boolean linkTrackSegmentsToFinalTracks() {
 		// Solve LAP
 		final int[][] finalTrackSolutions = solveLAPForFinalTracks();
 
-		if (DEBUG) {
+		if (DEBUG && null != segmentCosts) {
 			if (trackSegments.size() > 100) {
 				System.out.println("Final cost matrix is "+segmentCosts.length+" x " + segmentCosts[0].length+".\n" +
 						"Too big to display.");
@@ -445,8 +446,6 @@ public boolean linkTrackSegmentsToFinalTracks() {
 	 * @see LAPTracker#createFrameToFrameLinkingCostMatrix(List, List, TrackerSettings)
 	 */
 	public boolean solveLAPForTrackSegments() {
-		final double blockingValue = (Double) settings.get(KEY_BLOCKING_VALUE);
-
 		// Prepare frame pairs in order, not necessarily separated by 1.
 		final ArrayList<int[]> framePairs = new ArrayList<int[]>(spots.keySet().size()-1);
 		final Iterator<Integer> frameIterator = spots.keySet().iterator();
@@ -464,6 +463,7 @@ public boolean solveLAPForTrackSegments() {
 		// Prepare the thread array
 		final AtomicInteger ai = new AtomicInteger(0);
 		final AtomicInteger progress = new AtomicInteger(0);
+		final AtomicBoolean ok = new AtomicBoolean(true);
 		for (int ithread = 0; ithread < threads.length; ithread++) {
 
 			threads[ithread] = new Thread("LAPTracker track segment linking thread "+(1+ithread)+"/"+threads.length) {
@@ -471,7 +471,7 @@ public boolean solveLAPForTrackSegments() {
 				@Override
 				public void run() {
 
-					for (int i = ai.getAndIncrement(); i < framePairs.size(); i = ai.getAndIncrement()) {
+					for (int i = ai.getAndIncrement(); i < framePairs.size() && ok.get(); i = ai.getAndIncrement()) {
 
 						// Get frame pairs
 						final int frame0 = framePairs.get(i)[0];
@@ -488,50 +488,12 @@ public void run() {
 							t1.add(iterator.next());
 						}
 
-						// Create cost matrix
-						final double[][] costMatrix = createFrameToFrameLinkingCostMatrix(t0, t1, settings);
-
-						// Special case: top-left corner of the cost matrix is all blocked: we do nothing for this pair
-						// We handle this special case here, because some solvers might hang with this.
-						boolean allBlocked = true;
-						for (int j = 0; j < t0.size(); j++) {
-							for (int k = 0; k < t1.size(); k++) {
-								if (costMatrix[j][k] != blockingValue) {
-									allBlocked = false;
-									break;
-								}
-								if (!allBlocked)
-									break;
-							}
+						// Link them
+						if (!linkFrameToFrame(t0, t1)) {
+							ok.set(false);
+							return;
 						}
 
-						if (!allBlocked) {
-							// Find solution
-							final AssignmentProblem problem = new AssignmentProblem(costMatrix);
-							final AssignmentAlgorithm solver = createAssignmentProblemSolver();
-							final int[][] solutions = problem.solve(solver);
-
-							// Extend track segments using solutions: we update the graph edges
-							for (int j = 0; j < solutions.length; j++) {
-								if (solutions[j].length == 0)
-									continue;
-								final int i0 = solutions[j][0];
-								final int i1 = solutions[j][1];
-
-								if (i0 < t0.size() && i1 < t1.size() ) {
-									// Solution belong to the upper-left quadrant: we can connect the spots
-									final Spot s0 = t0.get(i0);
-									final Spot s1 = t1.get(i1);
-									// We set the edge weight to be the linking cost, for future reference.
-									// This is NOT used in further tracking steps
-									final double weight = costMatrix[i0][i1];
-									synchronized (graph) { // To avoid concurrent access, sad but true
-										final DefaultWeightedEdge edge = graph.addEdge(s0, s1);
-										graph.setEdgeWeight(edge, weight);
-									}
-								} // otherwise we do not create any connection
-							}
-						}
 						logger.setProgress(0.5f * progress.incrementAndGet() / framePairs.size());
 
 					}
@@ -544,10 +506,76 @@ public void run() {
 		SimpleMultiThreading.startAndJoin(threads);
 		logger.setProgress(0.5f);
 		logger.setStatus("");
-		return true;
+		return ok.get();
 	}
 
 
+	/**
+	 * Hook for subclassers.
+	 * <p>
+	 * Links the spots of two successive frames: creates the frame to frame
+	 * cost matrix, solves the LAP and adds the resulting links to the
+	 * {@link #graph}. This method is called concurrently for different frame
+	 * pairs.
+	 *
+	 * @param t0  the list of spots in the first frame
+	 * @param t1  the list of spots in the second frame
+	 * @return  false if the linking failed, in which case {@link #errorMessage}
+	 * is set.
+	 */
+	protected boolean linkFrameToFrame(final List<Spot> t0, final List<Spot> t1) {
+		final double blockingValue = (Double) settings.get(KEY_BLOCKING_VALUE);
+
+		// Create cost matrix
+		final double[][] costMatrix = createFrameToFrameLinkingCostMatrix(t0, t1, settings);
+		if (null == costMatrix) {
+			return false;
+		}
+
+		// Special case: top-left corner of the cost matrix is all blocked: we do nothing for this pair
+		// We handle this special case here, because some solvers might hang with this.
+		boolean allBlocked = true;
+		for (int j = 0; j < t0.size(); j++) {
+			for (int k = 0; k < t1.size(); k++) {
+				if (costMatrix[j][k] != blockingValue) {
+					allBlocked = false;
+					break;
+				}
+				if (!allBlocked)
+					break;
+			}
+		}
+
+		if (!allBlocked) {
+			// Find solution
+			final AssignmentProblem problem = new AssignmentProblem(costMatrix);
+			final AssignmentAlgorithm solver = createAssignmentProblemSolver();
+			final int[][] solutions = problem.solve(solver);
+
+			// Extend track segments using solutions: we update the graph edges
+			for (int j = 0; j < solutions.length; j++) {
+				if (solutions[j].length == 0)
+					continue;
+				final int i0 = solutions[j][0];
+				final int i1 = solutions[j][1];
+
+				if (i0 < t0.size() && i1 < t1.size() ) {
+					// Solution belong to the upper-left quadrant: we can connect the spots
+					final Spot s0 = t0.get(i0);
+					final Spot s1 = t1.get(i1);
+					// We set the edge weight to be the linking cost, for future reference.
+					// This is NOT used in further tracking steps
+					final double weight = costMatrix[i0][i1];
+					synchronized (graph) { // To avoid concurrent access, sad but true
+						final DefaultWeightedEdge edge = graph.addEdge(s0, s1);
+						graph.setEdgeWeight(edge, weight);
+					}
+				} // otherwise we do not create any connection
+			}
+		}
+		return true;
+	}
+
 	/**
 	 * Hook for subclassers.
 	 * <p>
@@ -571,6 +599,21 @@ protected double[][] createFrameToFrameLinkingCostMatrix(final List<Spot> t0, fi
 
 
 
+	/**
+	 * Returns whether the cost matrix used to link track segments (step 2) exists.
+	 */
+	protected boolean hasSegmentCosts() {
+		return null != segmentCosts;
+	}
+
+	/**
+	 * Returns the cost of the specified assignment in the cost matrix used to
+	 * link track segments (step 2).
+	 */
+	protected double getSegmentCost(final int i, final int j) {
+		return segmentCosts[i][j];
+	}
+
 	/**
 	 * Compute the optimal final track using the cost matrix
 	 * {@link LAPTracker#segmentCosts}.
@@ -640,7 +683,7 @@ private void compileFinalTracks(final int[][] finalTrackSolutions) {
 					final SortedSet<Spot> segmentStart = trackSegments.get(j);
 					final Spot end = segmentEnd.last();
 					final Spot start = segmentStart.first();
-					weight = segmentCosts[i][j];
+					weight = getSegmentCost(i, j);
 					final DefaultWeightedEdge edge = graph.addEdge(end, start);
 					graph.setEdgeWeight(edge, weight);
 
@@ -653,7 +696,7 @@ private void compileFinalTracks(final int[][] finalTrackSolutions) {
 					final SortedSet<Spot> segmentEnd = trackSegments.get(i);
 					final Spot end =  segmentEnd.last();
 					final Spot middle = mergingMiddlePoints.get(j - numTrackSegments);
-					weight = segmentCosts[i][j];
+					weight = getSegmentCost(i, j);
 					final DefaultWeightedEdge edge = graph.addEdge(end, middle);
 					graph.setEdgeWeight(edge, weight);
 
@@ -684,7 +727,7 @@ private void compileFinalTracks(final int[][] finalTrackSolutions) {
 					final SortedSet<Spot> segmentStart = trackSegments.get(j);
 					final Spot start = segmentStart.first();
 					final Spot mother = splittingMiddlePoints.get(i - numTrackSegments);
-					weight = segmentCosts[i][j];
+					weight = getSegmentCost(i, j);
 					final DefaultWeightedEdge edge = graph.addEdge(mother, start);
 					graph.setEdgeWeight(edge, weight);
 
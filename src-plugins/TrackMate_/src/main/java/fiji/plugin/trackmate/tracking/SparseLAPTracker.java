@@ -0,0 +1,172 @@
+package fiji.plugin.trackmate.tracking;
+
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_BLOCKING_VALUE;
+
+import java.util.List;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.tracking.costmatrix.SparseLinkingCostMatrixCreator;
+import fiji.plugin.trackmate.tracking.costmatrix.SparseTrackSegmentCostMatrixCreator;
+import fiji.plugin.trackmate.tracking.hungarian.AssignmentAlgorithm;
+import fiji.plugin.trackmate.tracking.hungarian.JonkerVolgenantAlgorithm;
+import fiji.plugin.trackmate.tracking.hungarian.SparseCostMatrix;
+
+/**
+ * A {@link LAPTracker} that relies on sparse cost matrices and on the sparse
+ * Jonker-Volgenant solver.
+ * <p>
+ * The frame to frame linking cost matrices are built directly in the sparse
+ * format by {@link SparseLinkingCostMatrixCreator}, so that only the spot pairs
+ * closer than the max linking distance are stored. Likewise, the track segment
+ * cost matrix is built by {@link SparseTrackSegmentCostMatrixCreator}, so that
+ * only the possible gap closing, merging and splitting events are stored. A
+ * dense segment cost matrix set with {@link #setSegmentCosts(double[][])} is
+ * converted to a sparse matrix before being solved.
+ * <p>
+ * It accepts the same settings than the {@link FastLAPTracker}, and yields the
+ * same tracks, up to the choice between assignments of equal costs.
+ */
+public class SparseLAPTracker extends LAPTracker {
+
+	public static final String TRACKER_KEY = "SPARSE_LAP_TRACKER";
+	public static final String NAME = "Sparse LAP Tracker";
+	public static final String INFO_TEXT = "<html>" +
+			"This tracker is identical to the LAP tracker, except that it relies on <br>" +
+			"sparse cost matrices and on the Jonker-Volgenant solver. <br>" +
+			"<p>" +
+			"Only the costs of links below the max distances are stored, and solving <br>" +
+			"the LAP takes a time and memory proportional to their number. This makes <br>" +
+			"this tracker suitable for large problems, with several thousands of spots <br>" +
+			"per frame or tens of thousands of track segments." +
+			" </html>";
+
+	private final static String BASE_ERROR_MESSAGE = "SparseLAPTracker: ";
+
+	/** The sparse cost matrix for step 2, or <code>null</code> if it was set densely. */
+	protected SparseCostMatrix sparseSegmentCosts = null;
+
+	public SparseLAPTracker(final Logger logger) {
+		super(logger);
+	}
+
+	public SparseLAPTracker() {
+		this(Logger.VOID_LOGGER);
+	}
+
+	@Override
+	protected AssignmentAlgorithm createAssignmentProblemSolver() {
+		final double blockingValue = (Double) settings.get(KEY_BLOCKING_VALUE);
+		return new JonkerVolgenantAlgorithm(blockingValue);
+	}
+
+	@Override
+	protected boolean linkFrameToFrame(final List<Spot> t0, final List<Spot> t1) {
+		final SparseLinkingCostMatrixCreator creator = new SparseLinkingCostMatrixCreator(t0, t1, settings);
+		if (!creator.checkInput() || !creator.process()) {
+			errorMessage = BASE_ERROR_MESSAGE + creator.getErrorMessage();
+			return false;
+		}
+		// Special case: no possible link, we do nothing for this pair
+		if (creator.getNLinkingCosts() == 0) {
+			return true;
+		}
+
+		final SparseCostMatrix costMatrix = creator.getResult();
+		final double blockingValue = (Double) settings.get(KEY_BLOCKING_VALUE);
+		final int[][] solutions = new JonkerVolgenantAlgorithm(blockingValue).computeAssignments(costMatrix);
+
+		// Extend track segments using solutions: we update the graph edges
+		for (final int[] solution : solutions) {
+			final int i0 = solution[0];
+			final int i1 = solution[1];
+			if (i0 < t0.size() && i1 < t1.size()) {
+				// Solution belong to the upper-left quadrant: we can connect the spots
+				final Spot s0 = t0.get(i0);
+				final Spot s1 = t1.get(i1);
+				// We set the edge weight to be the linking cost, for future reference.
+				final double weight = costMatrix.get(i0, i1, blockingValue);
+				synchronized (graph) {
+					final DefaultWeightedEdge edge = graph.addEdge(s0, s1);
+					graph.setEdgeWeight(edge, weight);
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Creates the cost matrix used to link track segments (step 2), directly in
+	 * the sparse format.
+	 * @return True if executes successfully, false otherwise.
+	 */
+	@Override
+	public boolean createTrackSegmentCostMatrix() {
+		final SparseTrackSegmentCostMatrixCreator creator = new SparseTrackSegmentCostMatrixCreator(trackSegments, settings);
+		creator.setLogger(logger);
+		if (!creator.checkInput() || !creator.process()) {
+			errorMessage = BASE_ERROR_MESSAGE + creator.getErrorMessage();
+			return false;
+		}
+		segmentCosts = null;
+		sparseSegmentCosts = creator.getResult();
+		splittingMiddlePoints = creator.getSplittingMiddlePoints();
+		mergingMiddlePoints = creator.getMergingMiddlePoints();
+		return true;
+	}
+
+	@Override
+	public void setSegmentCosts(final double[][] segmentCosts) {
+		super.setSegmentCosts(segmentCosts);
+		sparseSegmentCosts = null;
+	}
+
+	/**
+	 * Returns the cost matrix used for step 2. If it was created sparsely, a
+	 * dense copy of it is returned.
+	 */
+	@Override
+	public double[][] getSegmentCosts() {
+		if (null != sparseSegmentCosts) {
+			return sparseSegmentCosts.toFullMatrix((Double) settings.get(KEY_BLOCKING_VALUE));
+		}
+		return super.getSegmentCosts();
+	}
+
+	@Override
+	protected boolean hasSegmentCosts() {
+		return null != sparseSegmentCosts || super.hasSegmentCosts();
+	}
+
+	@Override
+	protected double getSegmentCost(final int i, final int j) {
+		if (null != sparseSegmentCosts) {
+			return sparseSegmentCosts.get(i, j, (Double) settings.get(KEY_BLOCKING_VALUE));
+		}
+		return super.getSegmentCost(i, j);
+	}
+
+	/**
+	 * Solves the track segment LAP on the sparse segment cost matrix. A dense
+	 * matrix is converted first, without copying it to a square matrix.
+	 */
+	@Override
+	public int[][] solveLAPForFinalTracks() {
+		logger.setStatus("Solving for final tracks...");
+		final double blockingValue = (Double) settings.get(KEY_BLOCKING_VALUE);
+		final SparseCostMatrix costMatrix = null != sparseSegmentCosts ? sparseSegmentCosts : SparseCostMatrix.fromFullMatrix(segmentCosts, blockingValue);
+		return new JonkerVolgenantAlgorithm(blockingValue).computeAssignments(costMatrix);
+	}
+
+	@Override
+	public String toString() {
+		return NAME;
+	}
+
+	@Override
+	public String getKey() {
+		return TRACKER_KEY;
+	}
+}
@@ -0,0 +1,287 @@
+package fiji.plugin.trackmate.tracking.costmatrix;
+
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_ALTERNATIVE_LINKING_COST_FACTOR;
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_BLOCKING_VALUE;
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_CUTOFF_PERCENTILE;
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_LINKING_FEATURE_PENALTIES;
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_LINKING_MAX_DISTANCE;
+import static fiji.plugin.trackmate.util.TMUtils.checkParameter;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import net.imglib2.algorithm.MultiThreadedBenchmarkAlgorithm;
+import net.imglib2.algorithm.OutputAlgorithm;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.tracking.LAPUtils;
+import fiji.plugin.trackmate.tracking.hungarian.SparseCostMatrix;
+
+/**
+ * Creates the frame to frame linking cost matrix of {@link LinkingCostMatrixCreator},
+ * directly in the sparse {@link SparseCostMatrix} format. Blocked costs are
+ * never stored, so memory scales with the number of spot pairs closer than the
+ * max linking distance instead of with the square of the number of spots.
+ * <p>
+ * Spots of the second frame are sorted by X position, so that only pairs
+ * within the max linking distance along X are examined. Costs themselves are
+ * computed with {@link LAPUtils#computeLinkingCostFor(Spot, Spot, double, double, Map)},
+ * so that the non-blocked costs are identical to the dense version.
+ * <p>
+ * The matrix has the same 4-quadrant structure than the dense one, for
+ * <code>n0</code> spots in the first frame and <code>n1</code> in the second:
+ * <ul>
+ * <li>top left (<code>n0 x n1</code>): linking costs;
+ * <li>top right (<code>n0 x n0</code>): alternative costs on the diagonal
+ * (track termination);
+ * <li>bottom left (<code>n1 x n1</code>): alternative costs on the diagonal
+ * (track initiation);
+ * <li>bottom right (<code>n1 x n0</code>): the transpose of the top left
+ * quadrant, where non-blocked costs are replaced by the alternative cost.
+ * </ul>
+ * If one of the frame is empty, the result is a diagonal matrix of zeros, as
+ * for the dense version.
+ */
+public class SparseLinkingCostMatrixCreator extends MultiThreadedBenchmarkAlgorithm implements OutputAlgorithm<SparseCostMatrix> {
+
+	/** The Spots belonging to time frame t. */
+	protected final List<Spot> t0;
+	/** The Spots belonging to time frame t+1. */
+	protected final List<Spot> t1;
+	/** The settings to comply to create a cost matrix. */
+	protected final Map<String, Object> settings;
+	/** The cost matrix created by this class. */
+	private SparseCostMatrix costs;
+	/** The number of non-blocked costs in the linking quadrant. */
+	private int nLinkingCosts;
+
+	/*
+	 * CONSTRUCTOR
+	 */
+
+	public SparseLinkingCostMatrixCreator(final List<Spot> t0, final List<Spot> t1, final Map<String, Object> settings) {
+		this.t0 = t0;
+		this.t1 = t1;
+		this.settings = settings;
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	@Override
+	public boolean checkInput() {
+		boolean ok = true;
+		final StringBuilder errorHolder = new StringBuilder();
+		ok = ok & checkParameter(settings, KEY_LINKING_MAX_DISTANCE, Double.class, errorHolder);
+		ok = ok & checkParameter(settings, KEY_LINKING_FEATURE_PENALTIES, Map.class, errorHolder);
+		ok = ok & checkParameter(settings, KEY_BLOCKING_VALUE, Double.class, errorHolder);
+		ok = ok & checkParameter(settings, KEY_ALTERNATIVE_LINKING_COST_FACTOR, Double.class, errorHolder);
+		ok = ok & checkParameter(settings, KEY_CUTOFF_PERCENTILE, Double.class, errorHolder);
+		if (!ok) {
+			errorMessage = errorHolder.toString();
+		}
+		return ok;
+	}
+
+	@Override
+	public boolean process() {
+		final long start = System.currentTimeMillis();
+
+		final int n0 = t0.size();
+		final int n1 = t1.size();
+		nLinkingCosts = 0;
+
+		// Deal with special cases
+		if (n0 == 0 || n1 == 0) {
+			// No spots in one frame -> termination or initiation only.
+			costs = diagonal(n0 + n1, 0d);
+			processingTime = System.currentTimeMillis() - start;
+			return true;
+		}
+
+		@SuppressWarnings("unchecked")
+		final Map<String, Double> featurePenalties = (Map<String, Double>) settings.get(KEY_LINKING_FEATURE_PENALTIES);
+		final double maxDist = (Double) settings.get(KEY_LINKING_MAX_DISTANCE);
+		final double blockingValue = (Double) settings.get(KEY_BLOCKING_VALUE);
+		final double alternativeLinkingCostFactor = (Double) settings.get(KEY_ALTERNATIVE_LINKING_COST_FACTOR);
+
+		// Sort the target spots by X
+		final double[] x1 = new double[n1];
+		final Integer[] order = new Integer[n1];
+		for (int j = 0; j < n1; j++) {
+			order[j] = j;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(final Integer o1, final Integer o2) {
+				return Double.compare(t1.get(o1).getFeature(Spot.POSITION_X), t1.get(o2).getFeature(Spot.POSITION_X));
+			}
+		});
+		for (int j = 0; j < n1; j++) {
+			x1[j] = t1.get(order[j]).getFeature(Spot.POSITION_X);
+		}
+
+		// 1 - Top left quadrant: linking costs, row by row
+		final int[] tlStart = new int[n0 + 1];
+		int[] tlCols = new int[Math.max(16, 2 * n0)];
+		double[] tlCosts = new double[tlCols.length];
+		double max = Double.NEGATIVE_INFINITY;
+		int nnz = 0;
+		for (int i = 0; i < n0; i++) {
+			tlStart[i] = nnz;
+			final Spot s0 = t0.get(i);
+			final double x = s0.getFeature(Spot.POSITION_X);
+			for (int o = lowerBound(x1, x - maxDist); o < n1 && x1[o] <= x + maxDist; o++) {
+				final int j = order[o];
+				final double cost = LAPUtils.computeLinkingCostFor(s0, t1.get(j), maxDist, blockingValue, featurePenalties);
+				if (!(cost < blockingValue)) {
+					continue;
+				}
+				if (nnz == tlCols.length) {
+					tlCols = Arrays.copyOf(tlCols, 2 * nnz);
+					tlCosts = Arrays.copyOf(tlCosts, 2 * nnz);
+				}
+				tlCols[nnz] = j;
+				tlCosts[nnz] = cost;
+				nnz++;
+				if (cost > max) {
+					max = cost;
+				}
+			}
+		}
+		tlStart[n0] = nnz;
+		nLinkingCosts = nnz;
+		final double cutoff = alternativeLinkingCostFactor * max;
+
+		// 2 - Assemble the 4 quadrants
+		costs = assemble(n0, n1, tlStart, tlCols, tlCosts, cutoff);
+		processingTime = System.currentTimeMillis() - start;
+		return true;
+	}
+
+	@Override
+	public SparseCostMatrix getResult() {
+		return costs;
+	}
+
+	/**
+	 * Returns the number of non-blocked costs in the linking quadrant (top
+	 * left) of the matrix created. If 0, there is no possible link between the
+	 * two frames.
+	 */
+	public int getNLinkingCosts() {
+		return nLinkingCosts;
+	}
+
+	@Override
+	public String getErrorMessage() {
+		return errorMessage;
+	}
+
+	/*
+	 * PRIVATE METHODS
+	 */
+
+	/**
+	 * Assembles the 4 quadrants of a LAP cost matrix from its top left
+	 * quadrant, given in CSR format.
+	 * <ul>
+	 * <li>top left (<code>n0 x n1</code>): the specified costs;
+	 * <li>top right (<code>n0 x n0</code>): the cutoff on the diagonal;
+	 * <li>bottom left (<code>n1 x n1</code>): the cutoff on the diagonal;
+	 * <li>bottom right (<code>n1 x n0</code>): the transpose of the top left
+	 * quadrant, where costs are replaced by the cutoff.
+	 * </ul>
+	 *
+	 * @param n0  the number of rows of the top left quadrant.
+	 * @param n1  the number of columns of the top left quadrant.
+	 * @param tlStart  the index of the first cost of each row of the top left
+	 * quadrant, plus a last element equal to the number of costs.
+	 * @param tlCols  the column index of each cost of the top left quadrant.
+	 * @param tlCosts  the costs of the top left quadrant.
+	 * @param cutoff  the alternative cost.
+	 * @return a new <code>(n0+n1) x (n0+n1)</code> sparse cost matrix.
+	 */
+	static SparseCostMatrix assemble(final int n0, final int n1, final int[] tlStart, final int[] tlCols, final double[] tlCosts, final double cutoff) {
+		final int nnz = tlStart[n0];
+		final int[] colCounts = new int[n1];
+		for (int k = 0; k < nnz; k++) {
+			colCounts[tlCols[k]]++;
+		}
+
+		final int n = n0 + n1;
+		final int total = 2 * nnz + n;
+		final double[] cc = new double[total];
+		final int[] kk = new int[total];
+		final int[] rowStart = new int[n + 1];
+		int index = 0;
+
+		// Top rows: top left costs and termination alternative
+		for (int i = 0; i < n0; i++) {
+			rowStart[i] = index;
+			for (int k = tlStart[i]; k < tlStart[i + 1]; k++) {
+				cc[index] = tlCosts[k];
+				kk[index] = tlCols[k];
+				index++;
+			}
+			cc[index] = cutoff;
+			kk[index] = n1 + i;
+			index++;
+		}
+
+		// Bottom rows: initiation alternative and transposed top left
+		final int[] bottomStart = new int[n1];
+		for (int j = 0; j < n1; j++) {
+			rowStart[n0 + j] = index;
+			cc[index] = cutoff;
+			kk[index] = j;
+			index++;
+			bottomStart[j] = index;
+			index += colCounts[j];
+		}
+		rowStart[n] = index;
+		for (int i = 0; i < n0; i++) {
+			for (int k = tlStart[i]; k < tlStart[i + 1]; k++) {
+				final int j = tlCols[k];
+				final int pos = bottomStart[j]++;
+				cc[pos] = cutoff;
+				kk[pos] = n1 + i;
+			}
+		}
+
+		return new SparseCostMatrix(cc, kk, rowStart, n);
+	}
+
+	/**
+	 * Returns the index of the first element of the sorted array that is
+	 * greater than or equal to the specified value.
+	 */
+	private static int lowerBound(final double[] sorted, final double value) {
+		int lo = 0;
+		int hi = sorted.length;
+		while (lo < hi) {
+			final int mid = (lo + hi) >>> 1;
+			if (sorted[mid] < value) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	private static SparseCostMatrix diagonal(final int n, final double value) {
+		final double[] cc = new double[n];
+		final int[] kk = new int[n];
+		final int[] start = new int[n + 1];
+		for (int i = 0; i < n; i++) {
+			cc[i] = value;
+			kk[i] = i;
+			start[i] = i;
+		}
+		start[n] = n;
+		return new SparseCostMatrix(cc, kk, start, n);
+	}
+}
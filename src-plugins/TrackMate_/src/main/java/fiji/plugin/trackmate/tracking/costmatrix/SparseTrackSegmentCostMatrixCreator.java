@@ -0,0 +1,421 @@
+package fiji.plugin.trackmate.tracking.costmatrix;
+
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_ALLOW_GAP_CLOSING;
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_ALLOW_TRACK_MERGING;
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_ALLOW_TRACK_SPLITTING;
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_ALTERNATIVE_LINKING_COST_FACTOR;
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_BLOCKING_VALUE;
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_CUTOFF_PERCENTILE;
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_GAP_CLOSING_FEATURE_PENALTIES;
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_GAP_CLOSING_MAX_DISTANCE;
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_GAP_CLOSING_MAX_FRAME_GAP;
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_MERGING_FEATURE_PENALTIES;
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_MERGING_MAX_DISTANCE;
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_SPLITTING_FEATURE_PENALTIES;
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_SPLITTING_MAX_DISTANCE;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+
+import net.imglib2.algorithm.MultiThreadedBenchmarkAlgorithm;
+import net.imglib2.algorithm.OutputAlgorithm;
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.tracking.LAPUtils;
+import fiji.plugin.trackmate.tracking.hungarian.SparseCostMatrix;
+import fiji.plugin.trackmate.util.TMUtils;
+
+/**
+ * Creates the track segment cost matrix of {@link TrackSegmentCostMatrixCreator},
+ * directly in the sparse {@link SparseCostMatrix} format. Blocked costs are
+ * never stored nor computed, so time and memory scale with the number of
+ * possible gap closing, merging and splitting events instead of with the
+ * square of the number of track segments.
+ * <p>
+ * Segment starts and middle points are sorted by frame then by X position,
+ * so that only the candidates in the right frames and within the max distance
+ * along X are examined. Costs themselves are computed with
+ * {@link LAPUtils#computeLinkingCostFor(Spot, Spot, double, double, Map)}, and
+ * the merging and splitting middle points are pruned the same way, so that the
+ * result is the dense matrix of {@link TrackSegmentCostMatrixCreator} without
+ * its blocked costs.
+ */
+public class SparseTrackSegmentCostMatrixCreator extends MultiThreadedBenchmarkAlgorithm implements OutputAlgorithm<SparseCostMatrix> {
+
+	/** The track segments. */
+	protected final List<SortedSet<Spot>> trackSegments;
+	/** The settings to comply to create a cost matrix. */
+	protected final Map<String, Object> settings;
+	/** The list of middle Spots which can participate in merge events. */
+	protected List<Spot> mergingMiddlePoints;
+	/** The list of middle Spots which can participate in splitting events. */
+	protected List<Spot> splittingMiddlePoints;
+	/** The cost matrix created by this class. */
+	private SparseCostMatrix costs;
+
+	private Logger logger = Logger.VOID_LOGGER;
+
+	/*
+	 * CONSTRUCTOR
+	 */
+
+	public SparseTrackSegmentCostMatrixCreator(final List<SortedSet<Spot>> trackSegments, final Map<String, Object> settings) {
+		this.trackSegments = trackSegments;
+		this.settings = settings;
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	public void setLogger(final Logger logger) {
+		this.logger = logger;
+	}
+
+	@Override
+	public boolean checkInput() {
+		if (trackSegments.isEmpty()) {
+			errorMessage = "There are no track segments.";
+			return false;
+		}
+		final StringBuilder errorHolder = new StringBuilder();
+		if (!LAPUtils.checkSettingsValidity(settings, errorHolder)) {
+			errorMessage = errorHolder.toString();
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean process() {
+		final long start = System.currentTimeMillis();
+
+		final boolean allowGapClosing = (Boolean) settings.get(KEY_ALLOW_GAP_CLOSING);
+		final boolean allowSplitting = (Boolean) settings.get(KEY_ALLOW_TRACK_SPLITTING);
+		final boolean allowMerging = (Boolean) settings.get(KEY_ALLOW_TRACK_MERGING);
+		final double blockingValue = (Double) settings.get(KEY_BLOCKING_VALUE);
+		final double cutoffPercentile = (Double) settings.get(KEY_CUTOFF_PERCENTILE);
+		final double alternativeLinkingCostFactor = (Double) settings.get(KEY_ALTERNATIVE_LINKING_COST_FACTOR);
+
+		try {
+			final int nSegments = trackSegments.size();
+			final List<Spot> segmentEnds = new ArrayList<Spot>(nSegments);
+			final List<Spot> segmentStarts = new ArrayList<Spot>(nSegments);
+			for (final SortedSet<Spot> segment : trackSegments) {
+				segmentEnds.add(segment.last());
+				segmentStarts.add(segment.first());
+			}
+
+			// Middle points: all the spots of the segments with at least 2 spots
+			final List<Spot> middlePoints = new ArrayList<Spot>();
+			if (allowMerging || allowSplitting) {
+				for (final SortedSet<Spot> segment : trackSegments) {
+					if (segment.size() > 1) {
+						middlePoints.addAll(segment);
+					}
+				}
+			}
+			final SpotIndex starts = new SpotIndex(segmentStarts);
+
+			// 1 - Gap closing and merging rows
+			logger.setStatus("Computing gap-closing costs...");
+			logger.setProgress(0.55f);
+			final CostList gapClosing = new CostList(nSegments);
+			if (allowGapClosing) {
+				@SuppressWarnings("unchecked")
+				final Map<String, Double> featurePenalties = (Map<String, Double>) settings.get(KEY_GAP_CLOSING_FEATURE_PENALTIES);
+				final double maxDist = (Double) settings.get(KEY_GAP_CLOSING_MAX_DISTANCE);
+				final int frameCutoff = (Integer) settings.get(KEY_GAP_CLOSING_MAX_FRAME_GAP);
+				for (int i = 0; i < nSegments; i++) {
+					gapClosing.startRow();
+					final Spot end = segmentEnds.get(i);
+					final int endFrame = end.getFeature(Spot.FRAME).intValue();
+					// A max gap of 1 means that the start can be up to 2 frames after the end
+					final long lastFrame = (long) endFrame + frameCutoff + 1;
+					final double x = end.getFeature(Spot.POSITION_X);
+					for (int o = starts.lowerBound(endFrame + 1, x - maxDist); o < starts.size() && starts.frames[o] <= lastFrame;) {
+						if (starts.xs[o] < x - maxDist) {
+							// Skip to the first candidate of this frame
+							o = starts.lowerBound(starts.frames[o], x - maxDist);
+							continue;
+						}
+						if (starts.xs[o] > x + maxDist) {
+							// Skip to the next frame
+							o = starts.lowerBound((long) starts.frames[o] + 1, x - maxDist);
+							continue;
+						}
+						final int j = starts.order[o++];
+						if (i == j) {
+							continue;
+						}
+						final double cost = LAPUtils.computeLinkingCostFor(end, segmentStarts.get(j), maxDist, blockingValue, featurePenalties);
+						if (cost < blockingValue) {
+							gapClosing.add(j, cost);
+						}
+					}
+				}
+			}
+			gapClosing.endRows(nSegments);
+
+			logger.setStatus("Computing merging costs...");
+			logger.setProgress(0.6f);
+			final CostList merging = new CostList(nSegments);
+			mergingMiddlePoints = new ArrayList<Spot>();
+			if (allowMerging) {
+				@SuppressWarnings("unchecked")
+				final Map<String, Double> featurePenalties = (Map<String, Double>) settings.get(KEY_MERGING_FEATURE_PENALTIES);
+				final double maxDist = (Double) settings.get(KEY_MERGING_MAX_DISTANCE);
+				final SpotIndex middles = new SpotIndex(middlePoints);
+				for (int i = 0; i < nSegments; i++) {
+					merging.startRow();
+					final Spot end = segmentEnds.get(i);
+					final int endFrame = end.getFeature(Spot.FRAME).intValue();
+					final double x = end.getFeature(Spot.POSITION_X);
+					// We only merge from one frame to the next one, no more
+					for (int o = middles.lowerBound(endFrame + 1, x - maxDist); o < middles.size() && middles.frames[o] == endFrame + 1 && middles.xs[o] <= x + maxDist; o++) {
+						final int m = middles.order[o];
+						final double cost = LAPUtils.computeLinkingCostFor(end, middlePoints.get(m), maxDist, blockingValue, featurePenalties);
+						if (cost < blockingValue) {
+							merging.add(m, cost);
+						}
+					}
+				}
+				// Prune the middle points that cannot be merged to
+				final int[] column = new int[middlePoints.size()];
+				Arrays.fill(column, -1);
+				for (int k = 0; k < merging.size; k++) {
+					column[merging.cols[k]] = 0;
+				}
+				for (int m = 0; m < middlePoints.size(); m++) {
+					if (column[m] == 0) {
+						column[m] = nSegments + mergingMiddlePoints.size();
+						mergingMiddlePoints.add(middlePoints.get(m));
+					}
+				}
+				for (int k = 0; k < merging.size; k++) {
+					merging.cols[k] = column[merging.cols[k]];
+				}
+			}
+			merging.endRows(nSegments);
+
+			// 2 - Splitting rows
+			logger.setStatus("Computing splitting costs...");
+			logger.setProgress(0.65f);
+			final CostList splitting = new CostList(middlePoints.size());
+			splittingMiddlePoints = new ArrayList<Spot>();
+			if (allowSplitting) {
+				@SuppressWarnings("unchecked")
+				final Map<String, Double> featurePenalties = (Map<String, Double>) settings.get(KEY_SPLITTING_FEATURE_PENALTIES);
+				final double maxDist = (Double) settings.get(KEY_SPLITTING_MAX_DISTANCE);
+				for (int m = 0; m < middlePoints.size(); m++) {
+					final Spot middle = middlePoints.get(m);
+					final int middleFrame = middle.getFeature(Spot.FRAME).intValue();
+					final double x = middle.getFeature(Spot.POSITION_X);
+					final int rowStart = splitting.size;
+					splitting.startRow();
+					// The start must be one frame after the middle Spot, so it is never
+					// the start of the segment of the middle Spot
+					for (int o = starts.lowerBound(middleFrame + 1, x - maxDist); o < starts.size() && starts.frames[o] == middleFrame + 1 && starts.xs[o] <= x + maxDist; o++) {
+						final int j = starts.order[o];
+						final double cost = LAPUtils.computeLinkingCostFor(segmentStarts.get(j), middle, maxDist, blockingValue, featurePenalties);
+						if (cost < blockingValue) {
+							splitting.add(j, cost);
+						}
+					}
+					// Prune the middle points that cannot split
+					if (splitting.size == rowStart) {
+						splitting.rows--;
+					} else {
+						splittingMiddlePoints.add(middle);
+					}
+				}
+			}
+			splitting.endRows(splittingMiddlePoints.size());
+
+			// 3 - Top left quadrant: gap closing and merging, then splitting rows
+			logger.setStatus("Completing cost matrix...");
+			logger.setProgress(0.7f);
+			final int nRows = nSegments + splittingMiddlePoints.size();
+			final int nCols = nSegments + mergingMiddlePoints.size();
+			final int nnz = gapClosing.size + merging.size + splitting.size;
+			final int[] tlStart = new int[nRows + 1];
+			final int[] tlCols = new int[nnz];
+			final double[] tlCosts = new double[nnz];
+			int index = 0;
+			for (int i = 0; i < nSegments; i++) {
+				tlStart[i] = index;
+				index = gapClosing.copyRow(i, tlCols, tlCosts, index);
+				index = merging.copyRow(i, tlCols, tlCosts, index);
+			}
+			for (int i = 0; i < splittingMiddlePoints.size(); i++) {
+				tlStart[nSegments + i] = index;
+				index = splitting.copyRow(i, tlCols, tlCosts, index);
+			}
+			tlStart[nRows] = index;
+
+			// Cutoff: a percentile of all the non-blocked costs
+			double cutoff = TMUtils.getPercentile(tlCosts, cutoffPercentile);
+			if (!(cutoff < blockingValue)) {
+				cutoff = 10.0d; // same fallback as the dense version, when there are no costs
+			}
+			cutoff *= alternativeLinkingCostFactor;
+
+			costs = SparseLinkingCostMatrixCreator.assemble(nRows, nCols, tlStart, tlCols, tlCosts, cutoff);
+			processingTime = System.currentTimeMillis() - start;
+			return true;
+
+		} catch (final OutOfMemoryError ome) {
+			errorMessage = "Not enough memory.";
+			costs = null;
+			return false;
+		}
+	}
+
+	@Override
+	public SparseCostMatrix getResult() {
+		return costs;
+	}
+
+	/**
+	 * Returns the middle points that can participate in splitting events, in
+	 * the order of the splitting rows of the cost matrix.
+	 */
+	public List<Spot> getSplittingMiddlePoints() {
+		return splittingMiddlePoints;
+	}
+
+	/**
+	 * Returns the middle points that can participate in merging events, in
+	 * the order of the merging columns of the cost matrix.
+	 */
+	public List<Spot> getMergingMiddlePoints() {
+		return mergingMiddlePoints;
+	}
+
+	@Override
+	public String getErrorMessage() {
+		return errorMessage;
+	}
+
+	/*
+	 * INNER CLASSES
+	 */
+
+	/**
+	 * Spots sorted by frame, then by X position.
+	 */
+	private static final class SpotIndex {
+
+		/** The index of the spots in the original list, in sorted order. */
+		final int[] order;
+		final int[] frames;
+		final double[] xs;
+
+		SpotIndex(final List<Spot> spots) {
+			final int n = spots.size();
+			final Integer[] sorted = new Integer[n];
+			for (int i = 0; i < n; i++) {
+				sorted[i] = i;
+			}
+			Arrays.sort(sorted, new Comparator<Integer>() {
+				@Override
+				public int compare(final Integer o1, final Integer o2) {
+					final Spot s1 = spots.get(o1);
+					final Spot s2 = spots.get(o2);
+					final int f1 = s1.getFeature(Spot.FRAME).intValue();
+					final int f2 = s2.getFeature(Spot.FRAME).intValue();
+					if (f1 != f2) {
+						return f1 < f2 ? -1 : 1;
+					}
+					return Double.compare(s1.getFeature(Spot.POSITION_X), s2.getFeature(Spot.POSITION_X));
+				}
+			});
+			order = new int[n];
+			frames = new int[n];
+			xs = new double[n];
+			for (int o = 0; o < n; o++) {
+				order[o] = sorted[o];
+				frames[o] = spots.get(order[o]).getFeature(Spot.FRAME).intValue();
+				xs[o] = spots.get(order[o]).getFeature(Spot.POSITION_X);
+			}
+		}
+
+		int size() {
+			return order.length;
+		}
+
+		/**
+		 * Returns the sorted position of the first spot that is in a later
+		 * frame, or in the same frame with a greater or equal X.
+		 */
+		int lowerBound(final long frame, final double x) {
+			int lo = 0;
+			int hi = order.length;
+			while (lo < hi) {
+				final int mid = (lo + hi) >>> 1;
+				if (frames[mid] < frame || (frames[mid] == frame && xs[mid] < x)) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+	}
+
+	/**
+	 * Non-blocked costs, row by row, in CSR format.
+	 */
+	private static final class CostList {
+
+		int[] start;
+		int[] cols = new int[16];
+		double[] costs = new double[16];
+		int rows = 0;
+		int size = 0;
+
+		CostList(final int maxRows) {
+			start = new int[maxRows + 1];
+		}
+
+		void startRow() {
+			start[rows++] = size;
+		}
+
+		void add(final int col, final double cost) {
+			if (size == cols.length) {
+				cols = Arrays.copyOf(cols, 2 * size);
+				costs = Arrays.copyOf(costs, 2 * size);
+			}
+			cols[size] = col;
+			costs[size] = cost;
+			size++;
+		}
+
+		/**
+		 * Closes the specified number of rows. Rows that were not started are
+		 * empty.
+		 */
+		void endRows(final int nRows) {
+			while (rows < nRows) {
+				start[rows++] = size;
+			}
+			start[nRows] = size;
+		}
+
+		/**
+		 * Copies the costs of the specified row at the specified position of
+		 * the target arrays, and returns the position after them.
+		 */
+		int copyRow(final int row, final int[] targetCols, final double[] targetCosts, final int index) {
+			final int n = start[row + 1] - start[row];
+			System.arraycopy(cols, start[row], targetCols, index, n);
+			System.arraycopy(costs, start[row], targetCosts, index, n);
+			return index + n;
+		}
+	}
+}
@@ -0,0 +1,296 @@
+package fiji.plugin.trackmate.tracking.hungarian;
+
+import java.util.Arrays;
+
+/**
+ * A sparse implementation of the Jonker-Volgenant algorithm for the linear
+ * assignment problem.
+ * <p>
+ * R. Jonker and A. Volgenant, "A Shortest Augmenting Path Algorithm for Dense
+ * and Sparse Linear Assignment Problems", Computing 38, 325-340 (1987).
+ * <p>
+ * The solver works on a {@link SparseCostMatrix}, where missing entries are
+ * forbidden assignments. It starts with a column reduction that assigns each
+ * column to its cheapest row when possible, then assigns the remaining free
+ * rows one by one with a Dijkstra search for the shortest augmenting path over
+ * the reduced costs, using an indexed binary heap. Dual variables are updated
+ * after each augmentation so that reduced costs stay non-negative.
+ * <p>
+ * Memory is O(n + nnz) and each augmentation costs O(nnz log n) in the worst
+ * case, which is much less than the O(n^3) time and O(n^2) memory of the
+ * dense solvers on the mostly blocked matrices of the LAP trackers.
+ * <p>
+ * When used through {@link #computeAssignments(double[][])}, the dense matrix
+ * is first converted to a sparse one, dropping every cost greater than or equal
+ * to the blocking value given at construction.
+ * <p>
+ * Rows that cannot be assigned to any column (the problem has no perfect
+ * matching) are left out of the solutions.
+ */
+public class JonkerVolgenantAlgorithm implements AssignmentAlgorithm {
+
+	private final double blockingValue;
+
+	/*
+	 * CONSTRUCTORS
+	 */
+
+	/**
+	 * Creates a new solver that will consider any cost greater than or equal to
+	 * the specified blocking value as forbidden, when solving dense problems.
+	 */
+	public JonkerVolgenantAlgorithm(final double blockingValue) {
+		this.blockingValue = blockingValue;
+	}
+
+	/**
+	 * Creates a new solver that will only consider infinite costs as
+	 * forbidden, when solving dense problems.
+	 */
+	public JonkerVolgenantAlgorithm() {
+		this(Double.POSITIVE_INFINITY);
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	@Override
+	public int[][] computeAssignments(final double[][] costMatrix) {
+		return computeAssignments(SparseCostMatrix.fromFullMatrix(costMatrix, blockingValue));
+	}
+
+	/**
+	 * Solves the assignment problem for the specified sparse cost matrix. The
+	 * matrix is not modified.
+	 *
+	 * @param cm  the sparse cost matrix. It must be square.
+	 * @return an array of solutions, as arrays of 2 ints: the row index and the
+	 * column index.
+	 */
+	public int[][] computeAssignments(final SparseCostMatrix cm) {
+		if (cm.nRows != cm.nCols) {
+			throw new IllegalArgumentException("Only square cost matrices are supported, got " + cm.nRows + " x " + cm.nCols + ".");
+		}
+		final int n = cm.nRows;
+		final double[] cc = cm.cc;
+		final int[] kk = cm.kk;
+		final int[] start = cm.start;
+
+		final int[] x = new int[n]; // column assigned to each row
+		final int[] y = new int[n]; // row assigned to each column
+		Arrays.fill(x, -1);
+		Arrays.fill(y, -1);
+		final double[] u = new double[n];
+		final double[] v = new double[n];
+
+		/*
+		 * 1. Column reduction: v[j] is the min of column j, and column j is
+		 * assigned to the row that realizes it if this row is still free.
+		 */
+
+		Arrays.fill(v, Double.POSITIVE_INFINITY);
+		final int[] argmin = new int[n];
+		Arrays.fill(argmin, -1);
+		for (int i = 0; i < n; i++) {
+			for (int k = start[i]; k < start[i + 1]; k++) {
+				final int j = kk[k];
+				if (cc[k] < v[j]) {
+					v[j] = cc[k];
+					argmin[j] = i;
+				}
+			}
+		}
+		for (int j = n - 1; j >= 0; j--) {
+			if (argmin[j] < 0) {
+				v[j] = 0; // empty column: cannot be assigned
+				continue;
+			}
+			final int i = argmin[j];
+			if (x[i] < 0) {
+				x[i] = j;
+				y[j] = i;
+			}
+		}
+
+		/*
+		 * 2. Augmentation: shortest augmenting paths from each free row.
+		 */
+
+		final double[] d = new double[n];
+		final int[] pred = new int[n];
+		final boolean[] scanned = new boolean[n];
+		final int[] touched = new int[n];
+		final int[] heap = new int[n];
+		final int[] heapPos = new int[n];
+		Arrays.fill(d, Double.POSITIVE_INFINITY);
+		Arrays.fill(heapPos, -1);
+
+		for (int f = 0; f < n; f++) {
+			if (x[f] >= 0) {
+				continue;
+			}
+
+			int nTouched = 0;
+			int heapSize = 0;
+			int endCol = -1;
+			double mu = 0;
+
+			// Initialize distances from the free row
+			for (int k = start[f]; k < start[f + 1]; k++) {
+				final int j = kk[k];
+				final double dist = cc[k] - u[f] - v[j];
+				if (dist < d[j]) {
+					if (Double.isInfinite(d[j])) {
+						touched[nTouched++] = j;
+					}
+					d[j] = dist;
+					pred[j] = f;
+					heapSize = heapPush(heap, heapPos, d, heapSize, j);
+				}
+			}
+
+			// Dijkstra over columns
+			while (heapSize > 0) {
+				final int j = heap[0];
+				heapSize = heapPop(heap, heapPos, d, heapSize);
+				scanned[j] = true;
+				if (y[j] < 0) {
+					endCol = j;
+					mu = d[j];
+					break;
+				}
+				final int i = y[j];
+				final double dj = d[j];
+				for (int k = start[i]; k < start[i + 1]; k++) {
+					final int l = kk[k];
+					if (scanned[l]) {
+						continue;
+					}
+					final double dist = dj + cc[k] - u[i] - v[l];
+					if (dist < d[l]) {
+						if (Double.isInfinite(d[l])) {
+							touched[nTouched++] = l;
+						}
+						d[l] = dist;
+						pred[l] = i;
+						heapSize = heapPush(heap, heapPos, d, heapSize, l);
+					}
+				}
+			}
+
+			if (endCol >= 0) {
+				// Update dual variables of the scanned columns and of their rows
+				for (int t = 0; t < nTouched; t++) {
+					final int j = touched[t];
+					if (scanned[j] && j != endCol) {
+						final double delta = mu - d[j];
+						v[j] -= delta;
+						u[y[j]] += delta;
+					}
+				}
+				u[f] += mu;
+
+				// Augment along the path
+				int j = endCol;
+				while (true) {
+					final int i = pred[j];
+					y[j] = i;
+					final int previous = x[i];
+					x[i] = j;
+					if (i == f) {
+						break;
+					}
+					j = previous;
+				}
+			}
+
+			// Reset the work arrays we touched
+			for (int t = 0; t < nTouched; t++) {
+				final int j = touched[t];
+				d[j] = Double.POSITIVE_INFINITY;
+				scanned[j] = false;
+				heapPos[j] = -1;
+			}
+		}
+
+		/*
+		 * 3. Collect solutions.
+		 */
+
+		int nAssigned = 0;
+		for (int i = 0; i < n; i++) {
+			if (x[i] >= 0) {
+				nAssigned++;
+			}
+		}
+		final int[][] solutions = new int[nAssigned][];
+		int index = 0;
+		for (int i = 0; i < n; i++) {
+			if (x[i] >= 0) {
+				solutions[index++] = new int[] { i, x[i] };
+			}
+		}
+		return solutions;
+	}
+
+	/*
+	 * INDEXED BINARY HEAP, keyed by d, with decrease-key.
+	 */
+
+	/**
+	 * Inserts the column in the heap, or moves it up if it is already in it.
+	 * Returns the new heap size.
+	 */
+	private static int heapPush(final int[] heap, final int[] heapPos, final double[] d, int heapSize, final int j) {
+		int pos = heapPos[j];
+		if (pos < 0) {
+			pos = heapSize++;
+		}
+		final double key = d[j];
+		while (pos > 0) {
+			final int parent = (pos - 1) >>> 1;
+			if (d[heap[parent]] <= key) {
+				break;
+			}
+			heap[pos] = heap[parent];
+			heapPos[heap[pos]] = pos;
+			pos = parent;
+		}
+		heap[pos] = j;
+		heapPos[j] = pos;
+		return heapSize;
+	}
+
+	/**
+	 * Removes the top of the heap. Returns the new heap size.
+	 */
+	private static int heapPop(final int[] heap, final int[] heapPos, final double[] d, int heapSize) {
+		heapPos[heap[0]] = -1;
+		heapSize--;
+		if (heapSize == 0) {
+			return 0;
+		}
+		final int last = heap[heapSize];
+		final double key = d[last];
+		int pos = 0;
+		while (true) {
+			int child = 2 * pos + 1;
+			if (child >= heapSize) {
+				break;
+			}
+			if (child + 1 < heapSize && d[heap[child + 1]] < d[heap[child]]) {
+				child++;
+			}
+			if (d[heap[child]] >= key) {
+				break;
+			}
+			heap[pos] = heap[child];
+			heapPos[heap[pos]] = pos;
+			pos = child;
+		}
+		heap[pos] = last;
+		heapPos[last] = pos;
+		return heapSize;
+	}
+}
@@ -0,0 +1,149 @@
+package fiji.plugin.trackmate.tracking.hungarian;
+
+import java.util.Arrays;
+
+/**
+ * A sparse cost matrix, stored in the compressed sparse row (CSR) format.
+ * <p>
+ * Only the costs that are allowed are stored. Missing entries are forbidden
+ * assignments, that is: they stand for the <code>blockingValue</code> of the
+ * dense cost matrices built by the LAP trackers. In the LAP framework, most of
+ * the cost matrix is blocked, so that this representation uses O(nnz) memory
+ * instead of O(n^2).
+ * <p>
+ * The costs of row <code>i</code> are stored in
+ * <code>cc[start[i] .. start[i+1]-1]</code>, and the column index of each of
+ * these costs is stored at the same position in <code>kk</code>.
+ */
+public class SparseCostMatrix {
+
+	/** The non-blocked costs, row by row. */
+	final double[] cc;
+	/** The column index of each cost in {@link #cc}. */
+	final int[] kk;
+	/** The index in {@link #cc} of the first cost of each row, plus a last element equal to the number of costs. */
+	final int[] start;
+	/** The number of rows. */
+	final int nRows;
+	/** The number of columns. */
+	final int nCols;
+
+	/**
+	 * Creates a new sparse cost matrix from its CSR arrays. The arrays are used
+	 * as is, not copied.
+	 *
+	 * @param cc  the non-blocked costs, row by row.
+	 * @param kk  the column index of each cost.
+	 * @param start  the index of the first cost of each row, with one extra last element
+	 * equal to the total number of costs.
+	 * @param nCols  the number of columns.
+	 */
+	public SparseCostMatrix(final double[] cc, final int[] kk, final int[] start, final int nCols) {
+		if (cc.length != kk.length) {
+			throw new IllegalArgumentException("Cost and column index arrays must have the same length, got " + cc.length + " and " + kk.length + ".");
+		}
+		if (start.length < 1 || start[start.length - 1] != cc.length) {
+			throw new IllegalArgumentException("The last element of the row start array must be the number of costs.");
+		}
+		this.cc = cc;
+		this.kk = kk;
+		this.start = start;
+		this.nRows = start.length - 1;
+		this.nCols = nCols;
+	}
+
+	/*
+	 * METHODS
+	 */
+
+	public int getNRows() {
+		return nRows;
+	}
+
+	public int getNCols() {
+		return nCols;
+	}
+
+	/**
+	 * Returns the number of non-blocked costs stored in this matrix.
+	 */
+	public int getNCosts() {
+		return cc.length;
+	}
+
+	/**
+	 * Returns the cost at the specified position, or the specified blocking
+	 * value if this position is not stored.
+	 */
+	public double get(final int i, final int j, final double blockingValue) {
+		for (int k = start[i]; k < start[i + 1]; k++) {
+			if (kk[k] == j) {
+				return cc[k];
+			}
+		}
+		return blockingValue;
+	}
+
+	/**
+	 * Returns a new dense version of this matrix, where missing costs are set
+	 * to the specified blocking value.
+	 */
+	public double[][] toFullMatrix(final double blockingValue) {
+		final double[][] m = new double[nRows][nCols];
+		for (int i = 0; i < nRows; i++) {
+			Arrays.fill(m[i], blockingValue);
+			for (int k = start[i]; k < start[i + 1]; k++) {
+				m[i][kk[k]] = cc[k];
+			}
+		}
+		return m;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + ": " + nRows + " x " + nCols + ", " + cc.length + " non-blocked costs (" + String.format("%.1f", 100d * cc.length / ((double) nRows * nCols)) + "% filled).";
+	}
+
+	/*
+	 * STATIC METHODS
+	 */
+
+	/**
+	 * Creates a new sparse cost matrix from a dense one, keeping only the costs
+	 * strictly lower than the specified blocking value.
+	 *
+	 * @param costMatrix  the dense cost matrix.
+	 * @param blockingValue  the value of forbidden assignments.
+	 * @return a new sparse cost matrix.
+	 */
+	public static SparseCostMatrix fromFullMatrix(final double[][] costMatrix, final double blockingValue) {
+		final int nRows = costMatrix.length;
+		final int nCols = nRows == 0 ? 0 : costMatrix[0].length;
+		final int[] start = new int[nRows + 1];
+		int nnz = 0;
+		for (int i = 0; i < nRows; i++) {
+			start[i] = nnz;
+			for (final double c : costMatrix[i]) {
+				if (c < blockingValue) {
+					nnz++;
+				}
+			}
+		}
+		start[nRows] = nnz;
+
+		final double[] cc = new double[nnz];
+		final int[] kk = new int[nnz];
+		int index = 0;
+		for (int i = 0; i < nRows; i++) {
+			final double[] row = costMatrix[i];
+			for (int j = 0; j < row.length; j++) {
+				if (row[j] < blockingValue) {
+					cc[index] = row[j];
+					kk[index] = j;
+					index++;
+				}
+			}
+		}
+		return new SparseCostMatrix(cc, kk, start, nCols);
+	}
+}
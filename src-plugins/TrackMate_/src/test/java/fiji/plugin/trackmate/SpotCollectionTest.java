@@ -13,6 +13,7 @@
 import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
+import java.util.TreeMap;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -169,6 +170,107 @@ public void testFilters() {
 		assertEquals(3 * 5, sc.getNSpots(true));
 	}
 
+	@Test
+	public void testColumnarFeatureStorage() {
+		SpotCollection csc = new SpotCollection(true);
+		for (Integer frame : frames) {
+			List<Spot> spots = new ArrayList<Spot>();
+			for (Iterator<Spot> it = sc.iterator(frame, false); it.hasNext();) {
+				Spot source = it.next();
+				Spot spot = new Spot(new double[] { source.getFeature(Spot.POSITION_X), 0, 0 });
+				spot.putFeature(Spot.QUALITY, source.getFeature(Spot.QUALITY));
+				spots.add(spot);
+			}
+			csc.put(frame, spots);
+		}
+		assertNotNull(csc.getFeatureColumns());
+		assertEquals(N_SPOTS * N_FRAMES, csc.getFeatureColumns().getNRows());
+
+		// Features are still accessible and modifiable through the spots
+		Spot spot = csc.iterator(false).next();
+		assertNotNull(spot.getFeature(Spot.QUALITY));
+		assertEquals(spot.getFeature(Spot.QUALITY), spot.getFeatures().get(Spot.QUALITY));
+		assertNull(spot.getFeature("UNKNOWN"));
+		spot.putFeature(Spot.RADIUS, 3.5d);
+		assertEquals(3.5d, spot.getFeature(Spot.RADIUS), Double.MIN_VALUE);
+		spot.putFeature(Spot.RADIUS, Double.NaN);
+		assertTrue(Double.isNaN(spot.getFeature(Spot.RADIUS)));
+
+		// Column scans give the same results than spot per spot filtering
+		FeatureFilter filter1 = new FeatureFilter(Spot.QUALITY, 2d, false);
+		FeatureFilter filter2 = new FeatureFilter(Spot.FRAME, 91d, true);
+		List<FeatureFilter> filters = Arrays.asList(new FeatureFilter[] { filter1, filter2 } );
+		csc.filter(filters);
+		assertEquals(3 * 5, csc.getNSpots(true));
+		csc.filter(filter1);
+		assertEquals(3 * N_FRAMES, csc.getNSpots(true));
+		assertEquals(3 * N_FRAMES, csc.collectValues(Spot.QUALITY, true).length);
+	}
+
+	@Test
+	public void testColumnarRowsAreReused() {
+		SpotCollection csc = new SpotCollection(true);
+		Spot spot1 = new Spot(new double[] { 1, 2, 3 });
+		spot1.putFeature(Spot.QUALITY, 5d);
+		Spot spot2 = new Spot(new double[] { 4, 5, 6 });
+		csc.add(spot1, 0);
+		csc.add(spot2, 0);
+		assertEquals(2, csc.getFeatureColumns().getNRows());
+
+		// Removed spots keep their features, in their own map
+		assertTrue(csc.remove(spot1, 0));
+		assertNull(spot1.getColumns());
+		assertEquals(5d, spot1.getFeature(Spot.QUALITY), Double.MIN_VALUE);
+		assertEquals(1d, spot1.getFeature(Spot.POSITION_X), Double.MIN_VALUE);
+		spot1.putFeature(Spot.RADIUS, 2d);
+		assertEquals(2d, spot1.getFeature(Spot.RADIUS), Double.MIN_VALUE);
+
+		// The freed row is given to the next spot, without the old values
+		Spot spot3 = new Spot(new double[] { 7, 8, 9 });
+		csc.add(spot3, 0);
+		assertEquals(2, csc.getFeatureColumns().getNRows());
+		assertNull(spot3.getFeature(Spot.QUALITY));
+		assertEquals(7d, spot3.getFeature(Spot.POSITION_X), Double.MIN_VALUE);
+		assertEquals(4d, spot2.getFeature(Spot.POSITION_X), Double.MIN_VALUE);
+
+		// Spots replaced by put are detached as well
+		csc.put(0, Arrays.asList(new Spot[] { spot2 }));
+		assertNull(spot3.getColumns());
+		assertEquals(7d, spot3.getFeature(Spot.POSITION_X), Double.MIN_VALUE);
+		assertTrue(spot2.getColumns() == csc.getFeatureColumns());
+	}
+
+	@Test
+	public void testColumnarCrop() {
+		SpotCollection csc = new SpotCollection(true);
+		List<Spot> spots = new ArrayList<Spot>();
+		for (int j = 0; j < N_SPOTS; j++) {
+			Spot spot = new Spot(new double[] { j, j, j });
+			spot.putFeature(Spot.QUALITY, Double.valueOf(j));
+			spots.add(spot);
+		}
+		csc.put(0, spots);
+		csc.filter(new FeatureFilter(Spot.QUALITY, 9d, false));
+		SpotCollection crop = csc.crop();
+
+		// The crop has its own storage, with only the spots it keeps
+		assertNotNull(crop.getFeatureColumns());
+		assertTrue(crop.getFeatureColumns() != csc.getFeatureColumns());
+		assertEquals(10, crop.getFeatureColumns().getNRows());
+		for (Spot spot : crop.iterable(false)) {
+			assertTrue(spot.getColumns() == crop.getFeatureColumns());
+		}
+
+		// Removing a spot from the crop does not touch the other spots
+		Spot removed = crop.iterator(false).next();
+		double quality = removed.getFeature(Spot.QUALITY);
+		assertTrue(crop.remove(removed, 0));
+		assertEquals(quality, removed.getFeature(Spot.QUALITY), Double.MIN_VALUE);
+		for (Spot spot : csc.iterable(false)) {
+			assertEquals(spot.getFeature(Spot.POSITION_X), spot.getFeature(Spot.QUALITY), Double.MIN_VALUE);
+		}
+	}
+
 	@Test
 	public void testGetClosestSpot() {
 		// Filter by QUALITY lower than 20
@@ -253,6 +355,80 @@ public void testGetNClosestSpots() {
 		}
 	}
 
+	@Test
+	public void testIndexIsUpdated() {
+		Spot location = new Spot(new double[] { 50.15, 50.15, 50.15 } );
+		int targetFrame = frames.get(0);
+		// Trigger index creation
+		Spot target = sc.getClosestSpot(location, targetFrame, false);
+		assertEquals(50d, target.getFeature(Spot.QUALITY), Double.MIN_VALUE);
+
+		// Adding a spot must be reflected in queries
+		Spot spot = new Spot(new double[] { 50.2, 50.2, 50.2 });
+		spot.putFeature(Spot.RADIUS, 1d);
+		sc.add(spot, targetFrame);
+		assertEquals(spot, sc.getClosestSpot(location, targetFrame, false));
+		assertEquals(spot, sc.getSpotAt(location, targetFrame, true));
+
+		// Moving it too, provided the index is invalidated
+		spot.putFeature(Spot.POSITION_X, 1000d);
+		sc.invalidateIndex(targetFrame);
+		assertEquals(target, sc.getClosestSpot(location, targetFrame, false));
+
+		// And so does removing it
+		sc.remove(target, targetFrame);
+		target = sc.getClosestSpot(location, targetFrame, false);
+		assertTrue(50d != target.getFeature(Spot.QUALITY));
+		assertEquals(2, sc.getNClosestSpots(location, targetFrame, 2, false).size());
+	}
+
+	@Test
+	public void testQueriesMatchLinearScan() {
+		// Spots on a coarse grid, so that many are at the same distance
+		Random ran = new Random(1);
+		SpotCollection grid = new SpotCollection();
+		List<Spot> spots = new ArrayList<Spot>();
+		for (int i = 0; i < 500; i++) {
+			Spot spot = new Spot(new double[] { ran.nextInt(6), ran.nextInt(6), ran.nextInt(3) });
+			spot.putFeature(Spot.RADIUS, Double.valueOf(1 + ran.nextInt(3)));
+			spots.add(spot);
+		}
+		grid.put(0, spots);
+		for (Spot spot : grid.iterable(0, false)) {
+			spot.putFeature(SpotCollection.VISIBLITY, ran.nextBoolean() ? SpotCollection.ONE : SpotCollection.ZERO);
+		}
+
+		for (int i = 0; i < 200; i++) {
+			Spot location = new Spot(new double[] { 0.5 * ran.nextInt(12), 0.5 * ran.nextInt(12), 0.5 * ran.nextInt(6) });
+			for (boolean visibleOnly : new boolean[] { false, true }) {
+				// Reference: linear scans over the frame content
+				Spot closest = null;
+				double minDist = Double.POSITIVE_INFINITY;
+				TreeMap<Double, Spot> within = new TreeMap<Double, Spot>();
+				TreeMap<Double, Spot> all = new TreeMap<Double, Spot>();
+				for (Spot s : grid.iterable(0, false)) {
+					if (visibleOnly && !isVisible(s)) {
+						continue;
+					}
+					double d2 = s.squareDistanceTo(location);
+					if (d2 < minDist) {
+						minDist = d2;
+						closest = s;
+					}
+					if (d2 < s.getFeature(Spot.RADIUS) * s.getFeature(Spot.RADIUS)) {
+						within.put(d2, s);
+					}
+					all.put(d2, s);
+				}
+				List<Spot> nClosest = new ArrayList<Spot>(all.values()).subList(0, Math.min(10, all.size()));
+
+				assertTrue(closest == grid.getClosestSpot(location, 0, visibleOnly));
+				assertTrue((within.isEmpty() ? null : within.firstEntry().getValue()) == grid.getSpotAt(location, 0, visibleOnly));
+				assertEquals(nClosest, grid.getNClosestSpots(location, 0, 10, visibleOnly));
+			}
+		}
+	}
+
 	@Test
 	public void testGetNSpots() {
 		// Filter by QUALITY lower than 20
@@ -0,0 +1,97 @@
+package fiji.plugin.trackmate.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.features.edges.EdgeTargetAnalyzer;
+import fiji.plugin.trackmate.features.track.TrackIndexAnalyzer;
+
+public class TmXmlStreamWriterTest {
+
+	/**
+	 * Test that a model written by the streaming writer can be read back
+	 * identically by both the DOM and the streaming readers.
+	 */
+	@Test
+	public void testRoundTrip() throws IOException {
+		final Model model = new Model();
+		model.setPhysicalUnits("um", "s");
+
+		// Two tracks of 3 spots, plus a lonely spot
+		final List<Spot> spots = new ArrayList<Spot>();
+		model.beginUpdate();
+		try {
+			for (int track = 0; track < 2; track++) {
+				Spot previous = null;
+				for (int frame = 0; frame < 3; frame++) {
+					final Spot spot = new Spot(new double[] { 10 * track + 0.5 * frame, 1.25 * frame, 0 }, "T" + track + "F" + frame);
+					spot.putFeature(Spot.QUALITY, 100d / (frame + 1));
+					spot.putFeature(Spot.RADIUS, 2.5);
+					model.addSpotTo(spot, frame);
+					if (null != previous) {
+						model.addEdge(previous, spot, frame + 0.125);
+					}
+					previous = spot;
+					spots.add(spot);
+				}
+			}
+			final Spot lonely = new Spot(new double[] { 50, 50, 0 });
+			model.addSpotTo(lonely, 1);
+			spots.add(lonely);
+		} finally {
+			model.endUpdate();
+		}
+		new TrackIndexAnalyzer(model).process(model.getTrackModel().trackIDs(false));
+		new EdgeTargetAnalyzer(model).process(model.getTrackModel().edgeSet());
+
+		final File file = File.createTempFile("TrackMate", ".xml");
+		file.deleteOnExit();
+		final TmXmlStreamWriter writer = new TmXmlStreamWriter(file);
+		writer.appendLog("Some log text.");
+		writer.appendModel(model);
+		writer.writeToFile();
+
+		assertEquals(fiji.plugin.trackmate.TrackMate.PLUGIN_NAME_VERSION, TmXmlStreamReader.readVersion(file));
+
+		for (final TmXmlReader reader : new TmXmlReader[] { new TmXmlReader(file), new TmXmlStreamReader(file) }) {
+			final Model loaded = reader.getModel();
+			assertTrue(reader.getErrorMessage(), reader.isReadingOk());
+			assertNotNull(loaded);
+			assertEquals("Some log text.", reader.getLog());
+			assertEquals("um", loaded.getSpaceUnits());
+			assertEquals("s", loaded.getTimeUnits());
+
+			// Spots
+			assertEquals(spots.size(), loaded.getSpots().getNSpots(false));
+			for (final Spot spot : spots) {
+				final Spot target = loaded.getSpots().search(spot.ID());
+				assertNotNull("Could not find spot " + spot + " in the loaded model.", target);
+				assertEquals(spot.getName(), target.getName());
+				final Map<String, Double> features = spot.getFeatures();
+				for (final String feature : features.keySet()) {
+					assertEquals("Unexpected value for feature " + feature + " of spot " + spot + ".", features.get(feature), target.getFeature(feature));
+				}
+			}
+
+			// Tracks
+			assertEquals(model.getTrackModel().nTracks(false), loaded.getTrackModel().nTracks(false));
+			assertEquals(model.getTrackModel().nTracks(true), loaded.getTrackModel().nTracks(true));
+			assertEquals(model.getTrackModel().edgeSet().size(), loaded.getTrackModel().edgeSet().size());
+			for (final Integer trackID : model.getTrackModel().trackIDs(false)) {
+				assertEquals(model.getTrackModel().trackEdges(trackID).size(), loaded.getTrackModel().trackEdges(trackID).size());
+				assertEquals(model.getTrackModel().name(trackID), loaded.getTrackModel().name(trackID));
+			}
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package fiji.plugin.trackmate.tracking.costmatrix;
+
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_ALLOW_GAP_CLOSING;
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_ALLOW_TRACK_MERGING;
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_ALLOW_TRACK_SPLITTING;
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_BLOCKING_VALUE;
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_GAP_CLOSING_MAX_DISTANCE;
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_GAP_CLOSING_MAX_FRAME_GAP;
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_MERGING_MAX_DISTANCE;
+import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_SPLITTING_MAX_DISTANCE;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.tracking.LAPUtils;
+import fiji.plugin.trackmate.tracking.hungarian.SparseCostMatrix;
+
+public class SparseTrackSegmentCostMatrixCreatorTest {
+
+	/** Random walks starting at random frames, some of them a single spot long. */
+	private static List<SortedSet<Spot>> createTrackSegments(final int nSegments, final long seed) {
+		final Random random = new Random(seed);
+		final List<SortedSet<Spot>> segments = new ArrayList<SortedSet<Spot>>(nSegments);
+		for (int s = 0; s < nSegments; s++) {
+			final SortedSet<Spot> segment = new TreeSet<Spot>(Spot.frameComparator);
+			final int firstFrame = random.nextInt(20);
+			final int length = 1 + random.nextInt(6);
+			double x = 40 * random.nextDouble();
+			double y = 40 * random.nextDouble();
+			for (int t = firstFrame; t < firstFrame + length; t++) {
+				final Spot spot = new Spot(new double[] { x, y, 0 });
+				spot.putFeature(Spot.FRAME, Double.valueOf(t));
+				segment.add(spot);
+				x += random.nextGaussian();
+				y += random.nextGaussian();
+			}
+			segments.add(segment);
+		}
+		return segments;
+	}
+
+	private static void assertSameMatrix(final List<SortedSet<Spot>> segments, final Map<String, Object> settings) {
+		final TrackSegmentCostMatrixCreator dense = new TrackSegmentCostMatrixCreator(segments, settings);
+		assertTrue(dense.getErrorMessage(), dense.checkInput() && dense.process());
+		final SparseTrackSegmentCostMatrixCreator sparse = new SparseTrackSegmentCostMatrixCreator(segments, settings);
+		assertTrue(sparse.getErrorMessage(), sparse.checkInput() && sparse.process());
+
+		assertEquals(dense.getMergingMiddlePoints(), sparse.getMergingMiddlePoints());
+		assertEquals(dense.getSplittingMiddlePoints(), sparse.getSplittingMiddlePoints());
+
+		final double blockingValue = (Double) settings.get(KEY_BLOCKING_VALUE);
+		final double[][] expected = dense.getResult();
+		final SparseCostMatrix result = sparse.getResult();
+		assertEquals(expected.length, result.getNRows());
+		assertEquals(expected.length, result.getNCols());
+		final double[][] actual = result.toFullMatrix(blockingValue);
+		for (int i = 0; i < expected.length; i++) {
+			assertArrayEquals("Row " + i, expected[i], actual[i], 0);
+		}
+	}
+
+	@Test
+	public void testSameAsDense() {
+		final List<SortedSet<Spot>> segments = createTrackSegments(150, 1);
+		final Map<String, Object> settings = LAPUtils.getDefaultLAPSettingsMap();
+		settings.put(KEY_ALLOW_GAP_CLOSING, true);
+		settings.put(KEY_ALLOW_TRACK_MERGING, true);
+		settings.put(KEY_ALLOW_TRACK_SPLITTING, true);
+		settings.put(KEY_GAP_CLOSING_MAX_DISTANCE, 8d);
+		settings.put(KEY_GAP_CLOSING_MAX_FRAME_GAP, 3);
+		settings.put(KEY_MERGING_MAX_DISTANCE, 5d);
+		settings.put(KEY_SPLITTING_MAX_DISTANCE, 5d);
+		assertSameMatrix(segments, settings);
+	}
+
+	@Test
+	public void testSameAsDenseGapClosingOnly() {
+		final List<SortedSet<Spot>> segments = createTrackSegments(150, 2);
+		final Map<String, Object> settings = LAPUtils.getDefaultLAPSettingsMap();
+		settings.put(KEY_ALLOW_GAP_CLOSING, true);
+		settings.put(KEY_ALLOW_TRACK_MERGING, false);
+		settings.put(KEY_ALLOW_TRACK_SPLITTING, false);
+		settings.put(KEY_GAP_CLOSING_MAX_DISTANCE, 8d);
+		settings.put(KEY_GAP_CLOSING_MAX_FRAME_GAP, 2);
+		assertSameMatrix(segments, settings);
+	}
+
+	@Test
+	public void testSameAsDenseNoEvents() {
+		final List<SortedSet<Spot>> segments = createTrackSegments(20, 3);
+		final Map<String, Object> settings = LAPUtils.getDefaultLAPSettingsMap();
+		settings.put(KEY_ALLOW_GAP_CLOSING, false);
+		settings.put(KEY_ALLOW_TRACK_MERGING, true);
+		settings.put(KEY_ALLOW_TRACK_SPLITTING, false);
+		settings.put(KEY_MERGING_MAX_DISTANCE, 0.01d);
+		assertSameMatrix(segments, settings);
+	}
+}
@@ -0,0 +1,434 @@
+package trainableSegmentation;
+
+/**
+ *
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Authors: Ignacio Arganda-Carreras (iarganda@mit.edu), Verena Kaynig (verena.kaynig@inf.ethz.ch),
+ *          Albert Cardona (acardona@ini.phys.ethz.ch)
+ */
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.io.Opener;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class caches the feature images calculated by the feature stacks,
+ * so they do not need to be calculated again when the features of the same
+ * image are updated with partly the same filters and parameters (for example
+ * when retraining after changing the sigmas). The features are identified by
+ * a hash of the input image pixels and a key describing the filter and its
+ * parameters.
+ *
+ * The cached features are kept in memory up to a maximum size, the least
+ * recently used ones are discarded first. If a spill directory is given,
+ * discarded features are saved there (as TIFF) and read back when they are
+ * needed again.
+ */
+public class FeatureCache
+{
+	/** features in memory, in access order */
+	private final LinkedHashMap<String, ImagePlus> memory = new LinkedHashMap<String, ImagePlus>(16, 0.75f, true);
+	/** features saved to disk */
+	private final HashMap<String, File> disk = new HashMap<String, File>();
+	/** titles of the features saved to disk */
+	private final HashMap<String, String> diskTitles = new HashMap<String, String>();
+	/** maximum number of bytes of the features in memory */
+	private long maxBytes;
+	/** current number of bytes of the features in memory */
+	private long usedBytes = 0;
+	/** directory to save the discarded features (null to not save them) */
+	private File spillDirectory = null;
+	/** number of cache hits */
+	private long hits = 0;
+	/** number of cache misses */
+	private long misses = 0;
+	/** number of times the cache was cleared (to drop files saved meanwhile) */
+	private int clears = 0;
+
+	/**
+	 * Create a feature cache that only uses memory
+	 *
+	 * @param maxBytes maximum number of bytes of features to keep in memory
+	 */
+	public FeatureCache(long maxBytes)
+	{
+		this(maxBytes, null);
+	}
+
+	/**
+	 * Create a feature cache
+	 *
+	 * @param maxBytes maximum number of bytes of features to keep in memory
+	 * @param spillDirectory directory to save the features discarded from memory (null to not save them)
+	 */
+	public FeatureCache(long maxBytes, File spillDirectory)
+	{
+		this.maxBytes = maxBytes;
+		this.spillDirectory = spillDirectory;
+	}
+
+	/**
+	 * Get cached features
+	 *
+	 * @param imageKey key of the input image (see {@link #getImageKey(ImageProcessor)})
+	 * @param filterKey key of the filter and its parameters
+	 * @return cached features or null if they are not in the cache
+	 */
+	public ImagePlus get(String imageKey, String filterKey)
+	{
+		final String key = imageKey + "/" + filterKey;
+
+		final File file;
+		final String title;
+		synchronized (this)
+		{
+			final ImagePlus features = memory.get(key);
+			if (null != features)
+			{
+				hits++;
+				return features;
+			}
+			file = disk.get(key);
+			if (null == file)
+			{
+				misses++;
+				return null;
+			}
+			title = diskTitles.get(key);
+		}
+
+		// read the saved features without holding the lock
+		final ImagePlus features = new Opener().openImage(file.getPath());
+
+		final LinkedHashMap<String, ImagePlus> evicted;
+		final File directory;
+		synchronized (this)
+		{
+			if (null == features)
+			{
+				IJ.log("Could not read cached features from " + file);
+				if (file.equals(disk.get(key)))
+				{
+					disk.remove(key);
+					diskTitles.remove(key);
+				}
+				misses++;
+				return null;
+			}
+			hits++;
+
+			// another thread may have read them meanwhile
+			final ImagePlus cached = memory.get(key);
+			if (null != cached)
+				return cached;
+
+			// the title of single feature images is their name
+			features.setTitle(title);
+			add(key, features);
+			evicted = evict(key);
+			directory = spillDirectory;
+		}
+		spill(evicted, directory);
+		return features;
+	}
+
+	/**
+	 * Add features to the cache
+	 *
+	 * @param imageKey key of the input image (see {@link #getImageKey(ImageProcessor)})
+	 * @param filterKey key of the filter and its parameters
+	 * @param features features to cache (they must not be modified afterwards)
+	 */
+	public void put(String imageKey, String filterKey, ImagePlus features)
+	{
+		final String key = imageKey + "/" + filterKey;
+
+		final LinkedHashMap<String, ImagePlus> evicted;
+		final File directory;
+		synchronized (this)
+		{
+			if (memory.containsKey(key))
+				return;
+			add(key, features);
+			evicted = evict(key);
+			directory = spillDirectory;
+		}
+		spill(evicted, directory);
+	}
+
+	/**
+	 * Add features to the memory (the caller must hold the lock)
+	 */
+	private void add(String key, ImagePlus features)
+	{
+		memory.put(key, features);
+		usedBytes += getNumBytes(features);
+	}
+
+	/**
+	 * Discard the least recently used features from memory until they fit
+	 * in the maximum size (the caller must hold the lock)
+	 *
+	 * @param keep key of the features not to discard (null to discard any)
+	 * @return discarded features which are not saved to disk yet
+	 */
+	private LinkedHashMap<String, ImagePlus> evict(String keep)
+	{
+		final LinkedHashMap<String, ImagePlus> evicted = new LinkedHashMap<String, ImagePlus>();
+		final Iterator<Map.Entry<String, ImagePlus>> it = memory.entrySet().iterator();
+		while (usedBytes > maxBytes && it.hasNext())
+		{
+			final Map.Entry<String, ImagePlus> entry = it.next();
+			// do not discard what was just added
+			if (entry.getKey().equals(keep))
+				continue;
+			if (!disk.containsKey(entry.getKey()))
+				evicted.put(entry.getKey(), entry.getValue());
+			usedBytes -= getNumBytes(entry.getValue());
+			it.remove();
+		}
+		return evicted;
+	}
+
+	/**
+	 * Save discarded features to the spill directory (if any). This is
+	 * called without holding the lock, so other threads can use the cache
+	 * while the files are written; until a file is recorded, its features
+	 * are simply missing from the cache.
+	 */
+	private void spill(Map<String, ImagePlus> evicted, File directory)
+	{
+		if (null == directory)
+			return;
+
+		for (final Map.Entry<String, ImagePlus> entry : evicted.entrySet())
+		{
+			final String key = entry.getKey();
+			final ImagePlus features = entry.getValue();
+
+			// save a copy, since saving changes the title of the image (and the
+			// features may still be in use)
+			final String title = features.getTitle();
+			final int generation;
+			synchronized (this)
+			{
+				generation = clears;
+			}
+			try {
+				final File file = File.createTempFile("features-", "-" + sanitize(title) + ".tif", directory);
+				file.deleteOnExit();
+				final FileSaver saver = new FileSaver(new ImagePlus(title, features.getImageStack()));
+				final boolean saved = features.getImageStackSize() > 1 ?
+						saver.saveAsTiffStack(file.getPath()) : saver.saveAsTiff(file.getPath());
+
+				boolean recorded = false;
+				if (saved)
+				{
+					synchronized (this)
+					{
+						// drop the file if the cache was cleared or the
+						// features were saved by another thread meanwhile
+						if (generation == clears && !disk.containsKey(key))
+						{
+							disk.put(key, file);
+							diskTitles.put(key, title);
+							recorded = true;
+						}
+					}
+				}
+				if (!recorded)
+					file.delete();
+			} catch (IOException e) {
+				IJ.log("Could not save features to " + directory + ": " + e);
+			}
+		}
+	}
+
+	/**
+	 * Remove all features from the cache (memory and disk)
+	 */
+	public synchronized void clear()
+	{
+		memory.clear();
+		usedBytes = 0;
+		for (final File file : disk.values())
+			file.delete();
+		disk.clear();
+		diskTitles.clear();
+		clears++;
+	}
+
+	/**
+	 * Set the maximum number of bytes of features to keep in memory
+	 * (features beyond the new limit are discarded)
+	 * @param maxBytes maximum size in bytes
+	 */
+	public void setMaxBytes(long maxBytes)
+	{
+		final LinkedHashMap<String, ImagePlus> evicted;
+		final File directory;
+		synchronized (this)
+		{
+			this.maxBytes = maxBytes;
+			evicted = evict(null);
+			directory = spillDirectory;
+		}
+		spill(evicted, directory);
+	}
+
+	/**
+	 * Get the maximum number of bytes of features to keep in memory
+	 * @return maximum size in bytes
+	 */
+	public synchronized long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	/**
+	 * Get the number of bytes of the features currently in memory
+	 * @return size in bytes
+	 */
+	public synchronized long getUsedBytes()
+	{
+		return usedBytes;
+	}
+
+	/**
+	 * Set the directory to save the features discarded from memory
+	 * @param spillDirectory directory, or null to not save them
+	 */
+	public synchronized void setSpillDirectory(File spillDirectory)
+	{
+		this.spillDirectory = spillDirectory;
+	}
+
+	/**
+	 * Get the directory to save the features discarded from memory
+	 * @return directory, or null if they are not saved
+	 */
+	public synchronized File getSpillDirectory()
+	{
+		return spillDirectory;
+	}
+
+	/**
+	 * Get the number of times cached features were found
+	 * @return number of hits
+	 */
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	/**
+	 * Get the number of times features were not found in the cache
+	 * @return number of misses
+	 */
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	/**
+	 * Calculate the key identifying an input image, based on its
+	 * size, type and pixel values
+	 *
+	 * @param ip input image
+	 * @return hash of the image (as hexadecimal string)
+	 */
+	public static String getImageKey(ImageProcessor ip)
+	{
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+
+		final Object pixels = ip.getPixels();
+		final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+		buffer.putInt(ip.getWidth()).putInt(ip.getHeight()).putInt(ip.getBitDepth());
+		buffer.flip();
+		digest.update(buffer);
+
+		if (pixels instanceof byte[])
+			digest.update((byte[]) pixels);
+		else
+		{
+			// feed the pixels through the buffer, one chunk at a time
+			final int length = Array.getLength(pixels);
+			final int chunk = buffer.capacity() / 4;
+			for (int i = 0; i < length; i += chunk)
+			{
+				final int n = Math.min(chunk, length - i);
+				buffer.clear();
+				if (pixels instanceof float[])
+				{
+					buffer.asFloatBuffer().put((float[]) pixels, i, n);
+					buffer.limit(4 * n);
+				}
+				else if (pixels instanceof short[])
+				{
+					buffer.asShortBuffer().put((short[]) pixels, i, n);
+					buffer.limit(2 * n);
+				}
+				else
+				{
+					buffer.asIntBuffer().put((int[]) pixels, i, n);
+					buffer.limit(4 * n);
+				}
+				digest.update(buffer);
+			}
+		}
+
+		final StringBuilder key = new StringBuilder();
+		for (final byte b : digest.digest())
+			key.append(String.format("%02x", b & 0xff));
+		return key.toString();
+	}
+
+	/**
+	 * Get the number of bytes used by the pixels of an image
+	 */
+	private static long getNumBytes(ImagePlus imp)
+	{
+		final int bytesPerPixel = imp.getBitDepth() == 24 ? 4 : imp.getBitDepth() / 8;
+		return (long) imp.getWidth() * imp.getHeight() * imp.getImageStackSize() * bytesPerPixel;
+	}
+
+	/**
+	 * Make a title usable as part of a file name
+	 */
+	private static String sanitize(String title)
+	{
+		return null == title ? "" : title.replaceAll("[^A-Za-z0-9_.-]", "_");
+	}
+}
@@ -205,6 +205,9 @@
 	/** flag to specify the use of the old color format (using directly the RGB values as float) */
 	private boolean oldColorFormat = false; 
 	
+	/** cache of previously calculated features (null if not used) */
+	private FeatureCache featureCache = null;
+	
 	/** executor service to produce concurrent threads */
 	ExecutorService exe = Executors.newFixedThreadPool( Prefs.getThreads() );
 	
@@ -2768,6 +2771,343 @@ public void addFeaturesMT(final ImagePlus filterList)
 		
 	}
 	
+	/**
+	 * Create the tasks that calculate the enabled features, in the order
+	 * their slices are added to the stack. Each task gets a key that
+	 * identifies its filter and parameters (used by the feature cache).
+	 * 
+	 * @param hsbFirst if true, the HSB features (of color images) come first, otherwise after the anisotropic diffusion
+	 * @param keys list to fill with the key of each task
+	 * @return list of tasks, or null if the thread was interrupted
+	 */
+	private ArrayList< Callable<ImagePlus> > getFeatureTasks( 
+			final boolean hsbFirst, 
+			final ArrayList<String> keys )
+	{
+		final ArrayList< Callable<ImagePlus> > tasks = new ArrayList< Callable<ImagePlus> >();
+		
+		// HSB
+		if( hsbFirst && originalImage.getType() == ImagePlus.COLOR_RGB)
+		{
+			tasks.add( getHSB(originalImage) );
+			keys.add( "HSB" );
+		}
+		
+		// Anisotropic Diffusion
+		if(enableFeatures[ANISOTROPIC_DIFFUSION])
+		{
+			for (float i=minimumSigma; i<= maximumSigma; i *=2)
+				for(float j = 0.10f; j < 0.5f; j+= 0.25f)
+				{
+					tasks.add( getAnisotropicDiffusion(originalImage, 20, 20,(int) i, j, 0.9f, (float) membraneSize) );
+					keys.add( availableFeatures[ANISOTROPIC_DIFFUSION] + "_20_20_" + (int) i + "_" + j + "_0.9_" + membraneSize );
+				}
+		}
+		
+		// HSB
+		if( !hsbFirst && originalImage.getType() == ImagePlus.COLOR_RGB)
+		{
+			tasks.add( getHSB(originalImage) );
+			keys.add( "HSB" );
+		}
+		
+		// Bilateral filter
+		if(enableFeatures[BILATERAL])			
+		{
+			for(double i = 5; i < 20; i *= 2)
+				for(double j = 50; j <= 100; j*= 2)
+				{
+					tasks.add( getBilateralFilter(originalImage, i, j) );
+					keys.add( availableFeatures[BILATERAL] + "_" + i + "_" + j );
+				}
+		}
+		
+		// Lipschitz filter
+		if(enableFeatures[LIPSCHITZ])			
+		{
+			for(double i = 5; i < 30; i += 5)					
+			{
+				tasks.add( getLipschitzFilter(originalImage, true, true, i) );
+				keys.add( availableFeatures[LIPSCHITZ] + "_true_true_" + i );
+			}
+		}
+		
+		// Kuwahara filter
+		if(enableFeatures[KUWAHARA])			
+		{			
+			for(int i = 0; i < 3; i++)
+			{
+				tasks.add( getKuwaharaFeatures(originalImage, membranePatchSize, nAngles, i) );
+				keys.add( availableFeatures[KUWAHARA] + "_" + membranePatchSize + "_" + nAngles + "_" + i );
+			}
+		}
+		
+		// Gabor filters
+		if ( enableFeatures[ GABOR ] )
+		{				
+			// elongated filters in y- axis (sigma = 1.0, gamma = [1.0 - 0.25])
+			for(int i=0; i < 2; i++)
+				for(double gamma = 1; gamma >= 0.25; gamma /= 2)						
+					for(int frequency = 2; frequency<3; frequency ++)
+					{
+						final double psi = Math.PI / 2 * i;
+						tasks.add( getGabor(originalImage, 1.0, gamma, psi, frequency, nAngles) );
+						keys.add( availableFeatures[GABOR] + "_1.0_" + gamma + "_" + psi + "_" + frequency + "_" + nAngles );
+					}
+			// elongated filters in x- axis (sigma = [2.0 - 4.0], gamma = [1.0 - 2.0])
+			for(int i=0; i < 2; i++)
+				for(double sigma = 2.0; sigma <= 4.0; sigma *= 2)					
+					for(double gamma = 1.0; gamma <= 2.0; gamma *= 2)
+						for(int frequency = 2; frequency<=3; frequency ++)
+						{
+							final double psi = Math.PI / 2 * i;
+							tasks.add( getGabor(originalImage, sigma, gamma, psi, frequency, nAngles) );
+							keys.add( availableFeatures[GABOR] + "_" + sigma + "_" + gamma + "_" + psi + "_" + frequency + "_" + nAngles );
+						}								
+		}
+		
+		// Sobel (no blur)
+		if(enableFeatures[SOBEL] && minimumSigma < 2)
+		{
+			tasks.add( getGradient(originalImage, 0) );
+			keys.add( availableFeatures[SOBEL] + "_0.0" );
+		}
+		// Hessian (no blur)
+		if(enableFeatures[HESSIAN] && minimumSigma < 2)
+		{
+			tasks.add( getHessian(originalImage, 0) );
+			keys.add( availableFeatures[HESSIAN] + "_0.0" );
+		}
+		
+		for (float i=minimumSigma; i<= maximumSigma; i *=2)
+		{		
+			// Gaussian blur
+			if(enableFeatures[GAUSSIAN])
+			{
+				tasks.add( getGaussianBlur(originalImage, i) );
+				keys.add( availableFeatures[GAUSSIAN] + "_" + i );
+			}
+			// Sobel
+			if(enableFeatures[SOBEL])
+			{
+				tasks.add( getGradient(originalImage, i) );
+				keys.add( availableFeatures[SOBEL] + "_" + i );
+			}
+			// Hessian
+			if(enableFeatures[HESSIAN])
+			{
+				tasks.add( getHessian(originalImage, i) );
+				keys.add( availableFeatures[HESSIAN] + "_" + i );
+			}
+			// Difference of gaussians
+			if(enableFeatures[DOG])
+			{
+				for (float j=minimumSigma; j<i; j*=2)
+				{
+					tasks.add( getDoG(originalImage, i, j) );
+					keys.add( availableFeatures[DOG] + "_" + i + "_" + j );
+				}
+			}
+			// Variance
+			if(enableFeatures[VARIANCE])
+			{
+				tasks.add( getVariance(originalImage, i) );
+				keys.add( availableFeatures[VARIANCE] + "_" + i );
+			}
+			// Mean
+			if(enableFeatures[MEAN])
+			{
+				tasks.add( getMean(originalImage, i) );
+				keys.add( availableFeatures[MEAN] + "_" + i );
+			}
+			// Min
+			if(enableFeatures[MINIMUM])
+			{
+				tasks.add( getMin(originalImage, i) );
+				keys.add( availableFeatures[MINIMUM] + "_" + i );
+			}
+			// Max
+			if(enableFeatures[MAXIMUM])
+			{
+				tasks.add( getMax(originalImage, i) );
+				keys.add( availableFeatures[MAXIMUM] + "_" + i );
+			}
+			// Median
+			if(enableFeatures[MEDIAN])
+			{
+				tasks.add( getMedian(originalImage, i) );
+				keys.add( availableFeatures[MEDIAN] + "_" + i );
+			}
+			// Derivatives
+			if(enableFeatures[DERIVATIVES])
+			{					
+				for(int order = minDerivativeOrder; order<=maxDerivativeOrder; order++)
+				{
+					tasks.add( getDerivatives(originalImage, i, order, order) );
+					keys.add( availableFeatures[DERIVATIVES] + "_" + i + "_" + order + "_" + order );
+				}
+			}
+			// Laplacian
+			if(enableFeatures[LAPLACIAN])
+			{
+				tasks.add( getLaplacian(originalImage, i) );
+				keys.add( availableFeatures[LAPLACIAN] + "_" + i );
+			}
+			// Structure tensor
+			if(enableFeatures[ STRUCTURE ])
+			{					
+				for(int integrationScale = 1; integrationScale <= 3; integrationScale+=2)
+				{
+					tasks.add( getStructure(originalImage, i, integrationScale) );
+					keys.add( availableFeatures[STRUCTURE] + "_" + i + "_" + integrationScale );
+				}
+			}
+			// Entropy
+			if(enableFeatures[ENTROPY])
+			{
+				for(int nBins = 32; nBins <= 256; nBins *=2)
+				{
+					tasks.add( getEntropy(originalImage, (int) i, nBins) );
+					keys.add( availableFeatures[ENTROPY] + "_" + (int) i + "_" + nBins );
+				}
+			}
+		}
+		// Membrane projections
+		if(enableFeatures[MEMBRANE])
+		{
+			tasks.add( getMembraneFeatures(originalImage, membranePatchSize, membraneSize) );
+			keys.add( availableFeatures[MEMBRANE] + "_" + membranePatchSize + "_" + membraneSize + "_" + nAngles );
+		}
+
+		// Neighbors
+		if( enableFeatures[ NEIGHBORS ])
+		{
+			tasks.add( getNeighbors( originalImage, (int)minimumSigma, (int)maximumSigma ) );
+			keys.add( availableFeatures[NEIGHBORS] + "_" + (int)minimumSigma + "_" + (int)maximumSigma );
+		}
+		
+		// the tasks are null if the thread was interrupted
+		if( tasks.contains( null ) )
+			return null;
+		
+		return tasks;
+	}
+	
+	/**
+	 * Wrap a feature task so its result is taken from the feature cache
+	 * if possible, and added to it otherwise.
+	 * 
+	 * @param imageKey key of the original image
+	 * @param filterKey key of the filter and its parameters
+	 * @param task task calculating the features
+	 * @return task using the cache
+	 */
+	private Callable<ImagePlus> getCachedFeature(
+			final String imageKey,
+			final String filterKey,
+			final Callable<ImagePlus> task)
+	{
+		final FeatureCache cache = featureCache;
+		if( null == cache )
+			return task;
+		
+		return new Callable<ImagePlus>(){
+			public ImagePlus call() throws Exception
+			{
+				ImagePlus result = cache.get( imageKey, filterKey );
+				if( null == result )
+				{
+					result = task.call();
+					if( null != result )
+						cache.put( imageKey, filterKey, result );
+				}
+				return result;
+			}
+		};
+	}
+	
+	/**
+	 * Add the result of a feature task to the stack
+	 * @param res feature image(s)
+	 */
+	private void addFeatureResult( final ImagePlus res )
+	{
+		if(res.getImageStackSize() == 1)
+		{
+			this.wholeStack.addSlice(res.getTitle(), res.getProcessor());
+		}
+		else
+		{
+			final ImageStack slices = res.getImageStack();
+			for(int i = 1; i <= slices.getSize() ; i++)
+				this.wholeStack.addSlice(slices.getSliceLabel(i), slices.getProcessor(i));
+		}
+	}
+	
+	/**
+	 * Set the cache to take already calculated features from (and to
+	 * add newly calculated features to) when updating the features
+	 * 
+	 * @param featureCache feature cache (null to not use any)
+	 */
+	public void setFeatureCache( FeatureCache featureCache )
+	{
+		this.featureCache = featureCache;
+	}
+	
+	/**
+	 * Get the cache used when updating the features
+	 * 
+	 * @return feature cache (null if none is used)
+	 */
+	public FeatureCache getFeatureCache()
+	{
+		return featureCache;
+	}
+	
+	/**
+	 * Update features with current list in a single-thread fashion, taking
+	 * the features from the feature cache if possible
+	 * 
+	 * @return true if the features are correctly updated 
+	 */
+	private boolean updateFeaturesCachedST()
+	{
+		final ArrayList<String> keys = new ArrayList<String>();
+		final ArrayList< Callable<ImagePlus> > tasks = getFeatureTasks( true, keys );
+		if( null == tasks )
+			return false;
+		
+		wholeStack = new ImageStack(width, height);
+		if( originalImage.getType() == ImagePlus.COLOR_RGB)
+			wholeStack.addSlice("original", originalImage.getProcessor().duplicate());
+		else
+			wholeStack.addSlice("original", originalImage.getProcessor().duplicate().convertToFloat());
+		
+		final String imageKey = FeatureCache.getImageKey( originalImage.getProcessor() );
+		try{
+			for(int i = 0; i < tasks.size(); i++)
+			{
+				if (Thread.currentThread().isInterrupted()) 
+					return false;
+				final ImagePlus res = getCachedFeature( imageKey, keys.get( i ), tasks.get( i ) ).call();
+				if( null == res )
+					return false;
+				addFeatureResult( res );
+			}
+		}
+		catch(Exception ex)
+		{
+			IJ.log("Error when updating feature stack.");
+			ex.printStackTrace();
+			return false;
+		}
+		
+		IJ.showProgress(1.0);
+		IJ.showStatus("Features stack is updated now!");
+		return true;
+	}
+	
 	/**
 	 * Update features with current list in a single-thread fashion
 	 * 
@@ -2775,6 +3115,11 @@ public void addFeaturesMT(final ImagePlus filterList)
 	 */
 	public boolean updateFeaturesST()
 	{
+		// With a feature cache, calculate the features in the same way as
+		// updateFeaturesMT (in this thread) so they can be shared with it
+		if( null != featureCache )
+			return updateFeaturesCachedST();
+		
 		wholeStack = new ImageStack(width, height);
 		if( originalImage.getType() == ImagePlus.COLOR_RGB)
 		{		
@@ -3060,214 +3405,18 @@ public boolean updateFeaturesMT()
 		IJ.showStatus("Updating features...");
 		try{
 			
-			// Anisotropic Diffusion
-			if(enableFeatures[ANISOTROPIC_DIFFUSION])
-			{
-				//for(int i = 1; i < 8; i += 3)
-				for (float i=minimumSigma; i<= maximumSigma; i *=2)
-					for(float j = 0.10f; j < 0.5f; j+= 0.25f)
-					{
-						if (Thread.currentThread().isInterrupted()) 
-							return false;
-						//IJ.log( n++ +": Calculating anisotropic diffusion (20, 20, " + i + ", " + j + ", 0.9f" + ", " + membraneSize + ")");
-					//for(float j = 0.10f; j <= 0.5f; j+= 0.2f)
-						//for(float k = 0.5f; k < 6f; k+= 1f)
-							futures.add(exe.submit( getAnisotropicDiffusion(originalImage, 20, 20,(int) i, j, 0.9f, (float) membraneSize) ) );
-							//futures.add(exe.submit( getAnisotropicDiffusion(originalImage, 20, 20, (int) i, j, 0.9f, k) ) );
-					}				
-			}
-			
-			// HSB
-			if( originalImage.getType() == ImagePlus.COLOR_RGB)
-				futures.add(exe.submit( getHSB(originalImage) ) );
-			
-			// Bilateral filter
-			if(enableFeatures[BILATERAL])			
-			{
-				for(double i = 5; i < 20; i *= 2)
-					for(double j = 50; j <= 100; j*= 2)
-					{
-						if (Thread.currentThread().isInterrupted()) 
-							return false;
-						//IJ.log( n++ +": Calculating bilateral filter (" + i + ", " + j + ")");
-						futures.add(exe.submit( getBilateralFilter(originalImage, i, j) ) );
-					}
-			}
-			
-			// Lipschitz filter
-			if(enableFeatures[LIPSCHITZ])			
-			{
-				for(double i = 5; i < 30; i += 5)					
-				{
-					if (Thread.currentThread().isInterrupted()) 
-						return false;
-					//IJ.log( n++ +": Calculating Lipschitz filter (true, true, " + i + ")");
-					futures.add(exe.submit( getLipschitzFilter(originalImage, true, true, i) ) );
-				}
-			}
-			
-			// Kuwahara filter
-			if(enableFeatures[KUWAHARA])			
-			{			
-				for(int i = 0; i < 3; i++)
-				{
-					if (Thread.currentThread().isInterrupted()) 
-						return false;
-					//IJ.log( n++ +": Calculating Kuwahara filter (" + membranePatchSize + ", " + nAngles + ", " + i + ")");
-					futures.add(exe.submit( getKuwaharaFeatures(originalImage, membranePatchSize, nAngles, i) ) );
-				}
-			}
-			
-			// Gabor filters
-			if ( enableFeatures[ GABOR ] )
-			{				
-				// elongated filters in y- axis (sigma = 1.0, gamma = [1.0 - 0.25])
-				for(int i=0; i < 2; i++)
-					for(double gamma = 1; gamma >= 0.25; gamma /= 2)						
-						for(int frequency = 2; frequency<3; frequency ++)
-						{
-							if (Thread.currentThread().isInterrupted()) 
-								return false;
-							final double psi = Math.PI / 2 * i;
-							//System.out.println( " Calculating Gabor filter (1.0, " + gamma + ", " + psi + ", " + frequency + ", " + nAngles + ")");
-							futures.add(exe.submit( getGabor(originalImage, 1.0, gamma, psi, frequency, nAngles) ) );
-						}
-				// elongated filters in x- axis (sigma = [2.0 - 4.0], gamma = [1.0 - 2.0])
-				for(int i=0; i < 2; i++)
-					for(double sigma = 2.0; sigma <= 4.0; sigma *= 2)					
-						for(double gamma = 1.0; gamma <= 2.0; gamma *= 2)
-							for(int frequency = 2; frequency<=3; frequency ++)
-							{
-								if (Thread.currentThread().isInterrupted()) 
-									return false;
-								final double psi = Math.PI / 2 * i;
-								//System.out.println( " Calculating Gabor filter (" + sigma + " , " + gamma + ", " + psi + ", " + frequency + ", " + nAngles + ")");
-								futures.add(exe.submit( getGabor(originalImage, sigma, gamma, psi, frequency, nAngles) ) );
-							}								
-			}
-			
-			// Sobel (no blur)
-			if(enableFeatures[SOBEL] && minimumSigma < 2)
-			{
-				if ( Thread.currentThread().isInterrupted() ) 
-					return false;
-				//IJ.log(n++ + ": Calculating Sobel filter (0.0)");
-				futures.add(exe.submit( getGradient(originalImage, 0)) );
-			}
-			// Hessian (no blur)
-			if(enableFeatures[HESSIAN] && minimumSigma < 2)
-			{
-				if (Thread.currentThread().isInterrupted()) 
-					return false;
-				//IJ.log( n++ +": Calculating Hessian filter (0.0)");
-				futures.add(exe.submit( getHessian(originalImage, 0)) );
-			}
-			
-			
-			for (float i=minimumSigma; i<= maximumSigma; i *=2)
-			{		
-				if (Thread.currentThread().isInterrupted()) 
-					return false;
-				// Gaussian blur
-				if(enableFeatures[GAUSSIAN])
-				{
-					//IJ.log( n++ +": Calculating Gaussian filter ("+ i + ")");
-					futures.add(exe.submit( getGaussianBlur(originalImage, i)) );
-				}
-				// Sobel
-				if(enableFeatures[SOBEL])
-				{
-					//IJ.log( n++ +": Calculating Sobel filter ("+ i + ")");
-					futures.add(exe.submit( getGradient(originalImage, i)) );
-				}
-				// Hessian
-				if(enableFeatures[HESSIAN])
-				{
-					//IJ.log("Calculating Hessian filter ("+ i + ")");
-					futures.add(exe.submit( getHessian(originalImage, i)) );
-				}
-				// Difference of gaussians
-				if(enableFeatures[DOG])
-				{
-					for (float j=minimumSigma; j<i; j*=2)
-					{
-						//IJ.log( n++ +": Calculating DoG filter ("+ i + ", " + j + ")");
-						futures.add(exe.submit( getDoG(originalImage, i, j)) );
-					}
-				}
-				// Variance
-				if(enableFeatures[VARIANCE])
-				{
-					//IJ.log( n++ +": Calculating Variance filter ("+ i + ")");
-					futures.add(exe.submit( getVariance(originalImage, i)) );
-				}
-				// Mean
-				if(enableFeatures[MEAN])
-				{
-					//IJ.log( n++ +": Calculating Mean filter ("+ i + ")");
-					futures.add(exe.submit( getMean(originalImage, i)) );
-				}
-
-				// Min
-				if(enableFeatures[MINIMUM])
-				{
-					//IJ.log( n++ +": Calculating Minimum filter ("+ i + ")");
-					futures.add(exe.submit( getMin(originalImage, i)) );
-				}
-				// Max
-				if(enableFeatures[MAXIMUM])
-				{
-					//IJ.log( n++ +": Calculating Maximum filter ("+ i + ")");
-					futures.add(exe.submit( getMax(originalImage, i)) );
-				}
+			final ArrayList<String> keys = new ArrayList<String>();
+			final ArrayList< Callable<ImagePlus> > tasks = getFeatureTasks( false, keys );
+			if( null == tasks )
+				return false;
 			
-				// Median
-				if(enableFeatures[MEDIAN])
-				{
-					//IJ.log( n++ +": Calculating Median filter ("+ i + ")");
-					futures.add(exe.submit( getMedian(originalImage, i)) );
-				}
-				
-				// Derivatives
-				if(enableFeatures[DERIVATIVES])
-				{					
-					for(int order = minDerivativeOrder; order<=maxDerivativeOrder; order++)
-						futures.add(exe.submit( getDerivatives(originalImage, i, order, order)) );
-				}
-				
-				// Laplacian
-				if(enableFeatures[LAPLACIAN])
-				{
-					futures.add(exe.submit( getLaplacian(originalImage, i)) );
-				}
-				
-				// Structure tensor
-				if(enableFeatures[ STRUCTURE ])
-				{					
-					for(int integrationScale = 1; integrationScale <= 3; integrationScale+=2)
-						futures.add(exe.submit( getStructure(originalImage, i, integrationScale )) );
-				}
-				
-				// Entropy
-				if(enableFeatures[ENTROPY])
-				{
-					for(int nBins = 32; nBins <= 256; nBins *=2)
-						futures.add(exe.submit( getEntropy(originalImage, (int) i, nBins)) );
-				}
-
-			}
-			// Membrane projections
-			if(enableFeatures[MEMBRANE])
+			final String imageKey = null == featureCache ? null : FeatureCache.getImageKey( originalImage.getProcessor() );
+			for(int i = 0; i < tasks.size(); i++)
 			{
 				if (Thread.currentThread().isInterrupted()) 
 					return false;
-				//IJ.log( n++ +": Calculating Membranes projections ("+ membranePatchSize + ", " + membraneSize + ")");
-				futures.add(exe.submit( getMembraneFeatures(originalImage, membranePatchSize, membraneSize) ));
+				futures.add(exe.submit( getCachedFeature( imageKey, keys.get( i ), tasks.get( i ) ) ) );
 			}
-
-			// Neighbors
-			if( enableFeatures[ NEIGHBORS ])
-				futures.add(exe.submit( getNeighbors( originalImage, (int)minimumSigma, (int)maximumSigma ) ) );
 			
 			// Wait for the jobs to be done
 			for(Future<ImagePlus> f : futures)
@@ -3276,16 +3425,7 @@ public boolean updateFeaturesMT()
 				currentIndex ++;
 				IJ.showStatus("Updating features...");
 				IJ.showProgress(currentIndex, finalIndex);
-				if(res.getImageStackSize() == 1)
-				{
-					this.wholeStack.addSlice(res.getTitle(), res.getProcessor());
-				}
-				else
-				{
-					final ImageStack slices = res.getImageStack();
-					for(int i = 1; i <= slices.getSize() ; i++)
-						this.wholeStack.addSlice(slices.getSliceLabel(i), slices.getProcessor(i));
-				}
+				addFeatureResult( res );
 			}
 		
 		}
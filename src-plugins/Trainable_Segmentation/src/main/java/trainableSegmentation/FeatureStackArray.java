@@ -64,6 +64,9 @@ public class FeatureStackArray
 	/** flag to specify the use of the old color format (using directly the RGB values as float) */
 	private boolean oldColorFormat = false;  
 	
+	/** cache of previously calculated features shared by all feature stacks (null if not used) */
+	private FeatureCache featureCache = null;
+	
 	/**
 	 * Initialize a feature stack list of a specific size
 	 * 
@@ -178,6 +181,7 @@ public boolean updateFeaturesMT(boolean[] update)
 						featureStackArray[i].setMaximumSigma(maximumSigma);
 						featureStackArray[i].setMinimumSigma(minimumSigma);
 						featureStackArray[i].setUseNeighbors(useNeighbors);
+						featureStackArray[i].setFeatureCache(featureCache);
 						if ( featureStackArray.length == 1 )
 						{
 							if(false == featureStackArray[i].updateFeaturesMT() )							
@@ -244,6 +248,7 @@ public boolean updateFeaturesMT()
 					featureStackArray[i].setMaximumSigma(maximumSigma);
 					featureStackArray[i].setMinimumSigma(minimumSigma);
 					featureStackArray[i].setUseNeighbors(useNeighbors);
+					featureStackArray[i].setFeatureCache(featureCache);
 					if ( featureStackArray.length == 1 )
 					{
 						if(false == featureStackArray[i].updateFeaturesMT() )						
@@ -314,6 +319,27 @@ public Boolean call(){
 	}
 	
 	
+	/**
+	 * Set the cache to take already calculated features from when
+	 * updating the feature stacks
+	 * 
+	 * @param featureCache feature cache (null to not use any)
+	 */
+	public void setFeatureCache(FeatureCache featureCache)
+	{
+		this.featureCache = featureCache;
+	}
+	
+	/**
+	 * Get the cache used when updating the feature stacks
+	 * 
+	 * @return feature cache (null if none is used)
+	 */
+	public FeatureCache getFeatureCache()
+	{
+		return featureCache;
+	}
+	
 	/**
 	 * Reset the reference index (used when the are 
 	 * changes in the features)
@@ -34,6 +34,7 @@
 import java.util.concurrent.TimeUnit;
 
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
@@ -170,6 +171,11 @@ public class WekaSegmentation {
 	/** maximum sigma to use on the filters */
 	private float maximumSigma = 16f;
 
+	/** width and height of the tiles used by {@link #applyClassifierTiled} */
+	private int tileSize = 512;
+	/** flag to classify images tile by tile instead of slice by slice */
+	private boolean classifyInTiles = false;
+
 	/** flags of filters to be used */
 	private boolean[] enabledFeatures = new boolean[]{
 			true, 	/* Gaussian_blur */
@@ -205,6 +211,9 @@ public class WekaSegmentation {
 	/** Project folder name. It is used to stored temporary data if different from null */
 	private String projectFolder = null;
 	
+	/** cache of the calculated features, so they are not calculated again when retraining (null to not cache them) */
+	private FeatureCache featureCache = null;
+	
 	/** executor service to launch threads for the library operations */
 	private ExecutorService exe = Executors.newFixedThreadPool(  Prefs.getThreads() );
 	
@@ -240,6 +249,7 @@ public WekaSegmentation(ImagePlus trainingImage)
 		featureStackArray = new FeatureStackArray(trainingImage.getImageStackSize(),
 				minimumSigma, maximumSigma, useNeighbors, membraneThickness, membranePatchSize,
 				enabledFeatures);
+		featureStackArray.setFeatureCache(featureCache);
 		
 		featureStackToUpdateTrain = new boolean[trainingImage.getImageStackSize()];
 		featureStackToUpdateTest = new boolean[trainingImage.getImageStackSize()];
@@ -303,6 +313,7 @@ public void setTrainingImage(ImagePlus imp)
 		featureStackArray = new FeatureStackArray(trainingImage.getImageStackSize(),
 				minimumSigma, maximumSigma, useNeighbors, membraneThickness, membranePatchSize,
 				enabledFeatures);
+		featureStackArray.setFeatureCache(featureCache);
 		
 		featureStackToUpdateTrain = new boolean[trainingImage.getImageStackSize()];
 		featureStackToUpdateTest = new boolean[trainingImage.getImageStackSize()];
@@ -1919,6 +1930,7 @@ else if (null == data)
 		featureStackArray = new FeatureStackArray(trainingImage.getImageStackSize(),
 				minimumSigma, maximumSigma, useNeighbors, membraneThickness, membranePatchSize,
 				enabledFeatures);
+		featureStackArray.setFeatureCache(featureCache);
 		
 		// Remove traces from the lists and ROI overlays and initialize each feature stack
 		IJ.log("Removing previous markings...");
@@ -4044,6 +4056,7 @@ public void run()
                     sliceFeatures.setMinimumSigma(minimumSigma);
                     sliceFeatures.setMembranePatchSize(membranePatchSize);
                     sliceFeatures.setMembraneSize(membraneThickness);
+                    sliceFeatures.setFeatureCache(featureCache);
                     sliceFeatures.updateFeaturesST();
                     filterFeatureStackByList(featureNames, sliceFeatures);
  
@@ -4618,6 +4631,320 @@ public ArrayList < ImagePlus > call()
 		};
 	}
 
+	/**
+	 * Apply current classifier to a given image tile by tile. The features
+	 * are only calculated for the tile (plus a border wide enough for the
+	 * filters) that is being classified, so the feature stack of the whole
+	 * image never needs to be in memory, and each thread fills one reused
+	 * instance instead of allocating one per pixel. The tiles of all slices
+	 * are shared among the threads.
+	 *
+	 * @param imp image (2D single image or stack)
+	 * @param numThreads The number of threads to use. Set to zero for
+	 * auto-detection.
+	 * @param probabilityMaps create probability maps for each class instead of
+	 * a classification
+	 * @return result image
+	 */
+	public ImagePlus applyClassifierTiled(
+			final ImagePlus imp, 
+			int numThreads, 
+			final boolean probabilityMaps)
+	{
+		if (numThreads == 0)
+			numThreads = Prefs.getThreads();
+
+		final int width = imp.getWidth();
+		final int height = imp.getHeight();
+		final int numSlices = imp.getImageStackSize();
+		final int tileSize = this.tileSize;
+		final int pad = getTilePadding();
+		final int numTilesX = (width + tileSize - 1) / tileSize;
+		final int numTilesY = (height + tileSize - 1) / tileSize;
+		final int numTiles = numTilesX * numTilesY * numSlices;
+
+		// Set proper class names (skip empty list ones)
+		ArrayList<String> classNames = new ArrayList<String>();
+		if( null == loadedClassNames )
+		{
+			for(int i = 0; i < numOfClasses; i++)
+				for(int j=0; j<trainingImage.getImageStackSize(); j++)
+					if(examples[j].get(i).size() > 0)
+					{
+						classNames.add(getClassLabels()[i]);
+						break;
+					}
+		}
+		else
+			classNames = loadedClassNames;
+
+		// Create instances information (each instance needs a pointer to this)
+		ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+		for (int i=1; i<=featureStackArray.getNumOfFeatures(); i++)
+			attributes.add(new Attribute(featureStackArray.getLabel(i)));
+
+		if(featureStackArray.useNeighborhood())
+			for (int i=0; i<8; i++)
+				attributes.add(new Attribute(new String("original_neighbor_" + (i+1))));
+
+		attributes.add(new Attribute("class", classNames));
+		final Instances dataInfo = new Instances("segment", attributes, 1);
+		dataInfo.setClassIndex(dataInfo.numAttributes()-1);
+
+		final int numClasses = dataInfo.numClasses();
+		final int numChannels = (probabilityMaps ? numClasses : 1);
+
+		IJ.log("Classifying " + imp.getTitle() + " in " + numTiles + " tile(s) of " + tileSize + "x" + tileSize 
+				+ " pixels (border " + pad + ") using " + numThreads + " thread(s)...");
+
+		// create result image, the tiles are written into it directly
+		final ImageStack classified = new ImageStack(width, height);
+		for (int i = 0; i < numSlices; i++)
+			for (int c = 0; c < numChannels; c++)
+			{
+				if (probabilityMaps)
+					classified.addSlice(classNames.get(c), new FloatProcessor(width, height));
+				else
+					classified.addSlice("", new ByteProcessor(width, height));
+			}
+
+		final long start = System.currentTimeMillis();
+
+		final ExecutorService exe = Executors.newFixedThreadPool(numThreads);
+		final AtomicInteger nextTile = new AtomicInteger();
+		final AtomicLong counter = new AtomicLong();
+		final Future<long[]> fu[] = new Future[numThreads];
+
+		for(int i = 0; i < numThreads; i++)
+		{
+			AbstractClassifier classifierCopy = null;
+			try {
+				// The Weka random forest classifiers do not need to be duplicated on each thread 
+				// (that saves much memory)
+				if( classifier instanceof FastRandomForest || classifier instanceof RandomForest )
+					classifierCopy = classifier;
+				else
+					classifierCopy = (AbstractClassifier) (AbstractClassifier.makeCopy( classifier ));
+			} catch (Exception e) {
+				IJ.log("Error: classifier could not be copied to classify in a multi-thread way.");
+				e.printStackTrace();
+				exe.shutdown();
+				return null;
+			}
+
+			fu[i] = exe.submit( classifyTiles( imp, classified, dataInfo, classifierCopy, 
+					nextTile, numTilesX, numTilesY, tileSize, pad, counter, probabilityMaps ) );
+		}
+
+		final long numPixels = (long) width * height * numSlices;
+
+		ScheduledExecutorService monitor = Executors.newScheduledThreadPool(1);
+		ScheduledFuture task = monitor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				IJ.showProgress((double) counter.get() / numPixels);
+			}
+		}, 0, 1, TimeUnit.SECONDS);
+
+		// Join threads, collecting the time spent on features and on classification
+		long featureTime = 0;
+		long classificationTime = 0;
+		try {
+			for(int i = 0; i < numThreads; i++)
+			{
+				final long[] times = fu[i].get();
+				if (null == times)
+					return null;
+				featureTime += times[0];
+				classificationTime += times[1];
+			}
+		} catch (InterruptedException e) {
+			return null;
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+			return null;
+		} finally {
+			exe.shutdownNow();
+			task.cancel(true);
+			monitor.shutdownNow();
+			IJ.showProgress(1);
+		}
+
+		final long end = System.currentTimeMillis();
+		IJ.log("Tiled classification of " + numPixels + " pixels took " + (end-start) + " ms (" 
+				+ (long) (numPixels * 1000.0 / Math.max(1, end-start)) + " pixels/s, " 
+				+ (100 * featureTime / Math.max(1, featureTime + classificationTime)) + "% of the thread time spent on features).");
+
+		ImagePlus result = new ImagePlus(probabilityMaps ? "Probability maps" : "Classification result", classified);
+
+		if (probabilityMaps)
+		{
+			result.setDimensions(numClasses, imp.getNSlices(), imp.getNFrames());
+			if (imp.getNSlices()*imp.getNFrames() > 1)
+				result.setOpenAsHyperStack(true);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Classify tiles of an image until there are no more tiles left. The tiles
+	 * are numbered slice by slice, so that concurrent threads mostly work on the
+	 * same slice.
+	 *
+	 * @param imp image to classify
+	 * @param classified result stack, with one slice per class (probability maps) or one slice (labels) per input slice
+	 * @param dataInfo empty set of instances containing the data structure (attributes and classes)
+	 * @param classifier classifier to use
+	 * @param nextTile counter of the tiles handed out so far (shared by all threads)
+	 * @param numTilesX number of tiles along x
+	 * @param numTilesY number of tiles along y
+	 * @param tileSize width and height of the tiles
+	 * @param pad border around each tile to include when calculating its features
+	 * @param counter counter used to display the progress in the tool bar
+	 * @param probabilityMaps flag to calculate probabilities or binary results
+	 * @return time spent calculating features and classifying (in ms), or null if interrupted
+	 */
+	private Callable<long[]> classifyTiles(
+			final ImagePlus imp,
+			final ImageStack classified,
+			final Instances dataInfo,
+			final AbstractClassifier classifier,
+			final AtomicInteger nextTile,
+			final int numTilesX,
+			final int numTilesY,
+			final int tileSize,
+			final int pad,
+			final AtomicLong counter,
+			final boolean probabilityMaps)
+	{
+		return new Callable<long[]>(){
+			public long[] call()
+			{
+				final int width = imp.getWidth();
+				final int height = imp.getHeight();
+				final int numTiles = numTilesX * numTilesY * imp.getImageStackSize();
+				final int numClasses = dataInfo.numClasses();
+				final int numChannels = probabilityMaps ? numClasses : 1;
+
+				// the instance that is filled for every pixel
+				final DenseInstance ins = new DenseInstance(dataInfo.numAttributes());
+				ins.setDataset(dataInfo);
+
+				// last slice read by this thread (reading a slice of a virtual stack is expensive)
+				int currentSlice = -1;
+				ImageProcessor sliceImage = null;
+
+				long featureTime = 0;
+				long classificationTime = 0;
+
+				for (int t = nextTile.getAndIncrement(); t < numTiles; t = nextTile.getAndIncrement())
+				{
+					if (Thread.currentThread().isInterrupted()) 
+						return null;
+
+					final int slice = t / (numTilesX * numTilesY);
+					final int tx = t % numTilesX;
+					final int ty = (t / numTilesX) % numTilesY;
+					final int x0 = tx * tileSize;
+					final int y0 = ty * tileSize;
+					final int w = Math.min(tileSize, width - x0);
+					final int h = Math.min(tileSize, height - y0);
+
+					if (slice != currentSlice)
+					{
+						sliceImage = imp.getImageStack().getProcessor(slice + 1);
+						currentSlice = slice;
+					}
+
+					// Crop the tile together with its border
+					final Rectangle padded = new Rectangle(x0 - pad, y0 - pad, w + 2 * pad, h + 2 * pad).intersection(
+							new Rectangle(0, 0, width, height));
+					sliceImage.setRoi(padded);
+					final ImageProcessor tileImage = sliceImage.crop();
+
+					long time = System.currentTimeMillis();
+
+					// Create feature stack for the tile
+					final FeatureStack tileFeatures = new FeatureStack(new ImagePlus("tile-" + t, tileImage));
+					// Use the same features as the current classifier
+					tileFeatures.setEnabledFeatures(featureStackArray.getEnabledFeatures());
+					tileFeatures.setMaximumSigma(maximumSigma);
+					tileFeatures.setMinimumSigma(minimumSigma);
+					tileFeatures.setMembranePatchSize(membranePatchSize);
+					tileFeatures.setMembraneSize(membraneThickness);
+					tileFeatures.setUseNeighbors(featureStackArray.useNeighborhood());
+					tileFeatures.setOldColorFormat(featureStackArray.isOldColorFormat());
+					if(false == tileFeatures.updateFeaturesST())
+					{
+						IJ.log("Classifier execution was interrupted.");
+						return null;
+					}
+					filterFeatureStackByList(featureNames, tileFeatures);
+
+					featureTime += System.currentTimeMillis() - time;
+					time = System.currentTimeMillis();
+
+					final int offsetX = x0 - padded.x;
+					final int offsetY = y0 - padded.y;
+
+					try{
+						if (probabilityMaps)
+						{
+							final float[][] pixels = new float[numClasses][];
+							for (int c = 0; c < numClasses; c++)
+								pixels[c] = (float[]) classified.getPixels(slice * numChannels + c + 1);
+
+							for (int y = 0; y < h; y++)
+								for (int x = 0; x < w; x++)
+								{
+									tileFeatures.createInstanceInPlace(x + offsetX, y + offsetY, 0, ins);
+									final double[] prob = classifier.distributionForInstance( ins );
+									final int index = x0 + x + (y0 + y) * width;
+									for (int c = 0; c < numClasses; c++)
+										pixels[c][index] = (float) prob[c];
+								}
+						}
+						else
+						{
+							final byte[] pixels = (byte[]) classified.getPixels(slice + 1);
+
+							for (int y = 0; y < h; y++)
+								for (int x = 0; x < w; x++)
+								{
+									tileFeatures.createInstanceInPlace(x + offsetX, y + offsetY, 0, ins);
+									pixels[x0 + x + (y0 + y) * width] = (byte) Utils.maxIndex( classifier.distributionForInstance( ins ) );
+								}
+						}
+					}catch(Exception e){
+						IJ.showMessage("Could not apply Classifier!");
+						e.printStackTrace();
+						return null;
+					}
+
+					classificationTime += System.currentTimeMillis() - time;
+					counter.addAndGet((long) w * h);
+				}
+
+				return new long[]{ featureTime, classificationTime };
+			}
+		};
+	}
+
+	/**
+	 * Get the border to add around each tile in {@link #applyClassifierTiled},
+	 * so that the filters of the features see (nearly) the same neighborhood
+	 * as on the whole image.
+	 *
+	 * @return border width in pixels
+	 */
+	private int getTilePadding()
+	{
+		int pad = (int) Math.ceil(3 * maximumSigma);
+		if (featureStackArray.getEnabledFeatures()[FeatureStack.MEMBRANE])
+			pad = Math.max(pad, membranePatchSize);
+		return pad;
+	}
+
 	/**
 	 * Apply current classifier to a given image with precomputed features.
 	 *
@@ -5472,6 +5799,94 @@ public float getMinimumSigma()
 		return minimumSigma;
 	}
 
+	/**
+	 * Set the cache of calculated features, which is used to avoid
+	 * calculating the same features again (for example when retraining)
+	 * @param featureCache feature cache (null to not cache features)
+	 */
+	public void setFeatureCache(FeatureCache featureCache)
+	{
+		this.featureCache = featureCache;
+		if( null != featureStackArray )
+			featureStackArray.setFeatureCache(featureCache);
+	}
+
+	/**
+	 * Get the cache of calculated features
+	 * @return feature cache (null if features are not cached)
+	 */
+	public FeatureCache getFeatureCache()
+	{
+		return featureCache;
+	}
+
+	/**
+	 * Set the maximum size of the cache of calculated features. The cache
+	 * is disabled by default, a positive size enables it.
+	 * @param maxBytes maximum number of bytes of features to keep in memory (0 to not cache features)
+	 */
+	public void setFeatureCacheSize(long maxBytes)
+	{
+		if( maxBytes <= 0 )
+		{
+			if( null != featureCache )
+			{
+				featureCache.clear();
+				setFeatureCache( null );
+			}
+		}
+		else if( null == featureCache )
+			setFeatureCache( new FeatureCache( maxBytes ) );
+		else
+			featureCache.setMaxBytes( maxBytes );
+	}
+
+	/**
+	 * Get the maximum size of the cache of calculated features
+	 * @return maximum number of bytes of features to keep in memory (0 if features are not cached)
+	 */
+	public long getFeatureCacheSize()
+	{
+		return null == featureCache ? 0 : featureCache.getMaxBytes();
+	}
+
+	/**
+	 * Set the size of the tiles to classify at once in {@link #applyClassifierTiled}
+	 * @param tileSize width and height of the tiles (in pixels)
+	 */
+	public void setTileSize(int tileSize)
+	{
+		this.tileSize = Math.max(1, tileSize);
+	}
+
+	/**
+	 * Get the size of the tiles to classify at once in {@link #applyClassifierTiled}
+	 * @return width and height of the tiles (in pixels)
+	 */
+	public int getTileSize()
+	{
+		return tileSize;
+	}
+
+	/**
+	 * Set whether {@link #applyClassifier(ImagePlus, int, boolean)} should be
+	 * replaced by {@link #applyClassifierTiled} when classifying images
+	 * @param classifyInTiles true to classify tile by tile
+	 */
+	public void setClassifyInTiles(boolean classifyInTiles)
+	{
+		this.classifyInTiles = classifyInTiles;
+	}
+
+	/**
+	 * Check whether images are classified tile by tile
+	 * @return true if images are classified with {@link #applyClassifierTiled}
+	 */
+	public boolean isClassifyInTiles()
+	{
+		return classifyInTiles;
+	}
+
 	/**
 	 * Get current number of trees (for random forest training)
 	 * @return number of trees
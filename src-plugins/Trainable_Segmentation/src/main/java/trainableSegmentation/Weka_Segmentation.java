@@ -236,6 +236,10 @@ public class Weka_Segmentation implements PlugIn
 	public static final String CHANGE_CLASS_NAME = "changeClassName";
 	/** name of the macro method to set the overlay opacity */
 	public static final String SET_OPACITY = "setOpacity";
+	/** name of the macro method to set the size of the feature cache */
+	public static final String SET_FEATURE_CACHE = "setFeatureCacheSize";
+	/** name of the macro method to set the size of the classification tiles */
+	public static final String SET_TILE_SIZE = "setTileSize";
 	/** boolean flag set to true while training */
 	boolean trainingFlag = false;
 		
@@ -1686,7 +1690,9 @@ public void run() {
 
 					IJ.log("Processing image " + file.getName() + " in thread " + numThread);
 
-					ImagePlus segmentation = wekaSegmentation.applyClassifier(testImage, numFurtherThreads, probabilityMaps);
+					ImagePlus segmentation = wekaSegmentation.isClassifyInTiles() ?
+							wekaSegmentation.applyClassifierTiled(testImage, numFurtherThreads, probabilityMaps) :
+							wekaSegmentation.applyClassifier(testImage, numFurtherThreads, probabilityMaps);
 
 					if (showResults && null != segmentation) 
 					{
@@ -2099,6 +2105,8 @@ public boolean showSettingsDialog()
 
 		gd.addMessage("Advanced options:");
 		gd.addCheckbox("Homogenize classes", wekaSegmentation.doHomogenizeClasses());
+		gd.addNumericField("Feature cache (MB, 0 = off):", wekaSegmentation.getFeatureCacheSize() / (1024 * 1024), 0);
+		gd.addNumericField("Classification tile size (0 = whole slices):", wekaSegmentation.isClassifyInTiles() ? wekaSegmentation.getTileSize() : 0, 0);
 		gd.addButton("Save feature stack", new SaveFeatureStackButtonListener("Select location to save feature stack", wekaSegmentation.getFeatureStackArray()));
 		gd.addSlider("Result overlay opacity", 0, 100, win.overlayOpacity);
 		gd.addHelp("http://fiji.sc/Trainable_Weka_Segmentation");
@@ -2238,6 +2246,24 @@ public boolean showSettingsDialog()
 			// Macro recording
 			record(SET_HOMOGENIZATION, new String[] { Boolean.toString( homogenizeClasses )});
 		}
+
+		// Update size of the feature cache
+		final long newCacheSize = (long) gd.getNextNumber() * 1024 * 1024;
+		if( wekaSegmentation.getFeatureCacheSize() != newCacheSize )
+		{
+			wekaSegmentation.setFeatureCacheSize( newCacheSize );
+			// Macro recording
+			record(SET_FEATURE_CACHE, new String[] { Long.toString( newCacheSize / (1024 * 1024) )});
+		}
+
+		// Update size of the classification tiles
+		final int newTileSize = Math.max(0, (int) gd.getNextNumber());
+		if( (wekaSegmentation.isClassifyInTiles() ? wekaSegmentation.getTileSize() : 0) != newTileSize )
+		{
+			setTileSize( wekaSegmentation, newTileSize );
+			// Macro recording
+			record(SET_TILE_SIZE, new String[] { Integer.toString( newTileSize )});
+		}
 		
 		// Update result overlay alpha
 		final int newOpacity = (int) gd.getNextNumber();
@@ -2632,7 +2658,9 @@ public static void applyClassifier(
 
 			IJ.log("Processing image " + dir + "/" + fileName );
 
-			ImagePlus segmentation = wekaSegmentation.applyClassifier(testImage, 0, probabilityMaps);
+			ImagePlus segmentation = wekaSegmentation.isClassifyInTiles() ?
+					wekaSegmentation.applyClassifierTiled(testImage, 0, probabilityMaps) :
+					wekaSegmentation.applyClassifier(testImage, 0, probabilityMaps);
 
 			if (showResults) 
 			{
@@ -3050,6 +3078,47 @@ public static void setOpacity( String newOpacity )
 			win.resultOverlay.setComposite(alpha);
 		}
 	}
+
+	/**
+	 * Set the size of the feature cache
+	 * @param newSize string containing the new size in MB (integer, 0 to not cache features)
+	 */
+	public static void setFeatureCacheSize( String newSize )
+	{
+		final ImageWindow iw = WindowManager.getCurrentImage().getWindow();
+		if( iw instanceof CustomWindow )
+		{
+			final CustomWindow win = (CustomWindow) iw;
+			final WekaSegmentation wekaSegmentation = win.getWekaSegmentation();
+			wekaSegmentation.setFeatureCacheSize( Long.parseLong(newSize) * 1024 * 1024 );
+		}
+	}
+
+	/**
+	 * Set the size of the tiles used to classify images
+	 * @param newSize string containing the width and height of the tiles in pixels (integer, 0 to classify whole slices)
+	 */
+	public static void setTileSize( String newSize )
+	{
+		final ImageWindow iw = WindowManager.getCurrentImage().getWindow();
+		if( iw instanceof CustomWindow )
+		{
+			final CustomWindow win = (CustomWindow) iw;
+			setTileSize( win.getWekaSegmentation(), Integer.parseInt(newSize) );
+		}
+	}
+
+	/**
+	 * Enable tiled classification with the given tile size, or disable it
+	 * @param wekaSegmentation segmentation to update
+	 * @param tileSize width and height of the tiles in pixels (0 to classify whole slices)
+	 */
+	private static void setTileSize( WekaSegmentation wekaSegmentation, int tileSize )
+	{
+		wekaSegmentation.setClassifyInTiles( tileSize > 0 );
+		if( tileSize > 0 )
+			wekaSegmentation.setTileSize( tileSize );
+	}
 	
 }// end of Weka_Segmentation class
 
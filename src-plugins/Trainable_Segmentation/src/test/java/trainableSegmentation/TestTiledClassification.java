@@ -0,0 +1,92 @@
+package trainableSegmentation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.process.FloatProcessor;
+
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks that {@link WekaSegmentation#applyClassifierTiled} classifies like
+ * {@link WekaSegmentation#applyClassifier(ImagePlus, int, boolean)}: exactly
+ * when a single tile covers each slice, and up to the approximation of the
+ * filters at the tile borders otherwise.
+ */
+public class TestTiledClassification {
+	final static int w = 64, h = 48, d = 3;
+
+	static ImagePlus image;
+	static WekaSegmentation segmentation;
+
+	/** Bright disks on a dark background, both noisy */
+	static ImagePlus createInput() {
+		final Random random = new Random(42);
+		final ImageStack stack = new ImageStack(w, h);
+		for (int k = 0; k < d; k++) {
+			final float[] pixels = new float[w * h];
+			for (int j = 0; j < h; j++)
+				for (int i = 0; i < w; i++) {
+					final double dx = i - (16 + 12 * k), dy = j - 24;
+					final double value = dx * dx + dy * dy <= 100 || (i - 50) * (i - 50) + (j - 10) * (j - 10) <= 36 ? 200 : 50;
+					pixels[i + w * j] = (float)(value + 20 * random.nextGaussian());
+				}
+			stack.addSlice(null, new FloatProcessor(w, h, pixels, null));
+		}
+		return new ImagePlus("input", stack);
+	}
+
+	@BeforeClass
+	public static void train() {
+		image = createInput();
+		segmentation = new WekaSegmentation(image);
+		final boolean[] features = new boolean[FeatureStack.availableFeatures.length];
+		features[FeatureStack.GAUSSIAN] = true;
+		features[FeatureStack.SOBEL] = true;
+		features[FeatureStack.DOG] = true;
+		segmentation.setEnabledFeatures(features);
+		segmentation.setMaximumSigma(4);
+		for (int k = 1; k <= d; k++) {
+			segmentation.addExample(0, new Roi(12 + 12 * (k - 1), 20, 8, 8), k);
+			segmentation.addExample(1, new Roi(2, 38, 20, 8), k);
+		}
+		assertTrue(segmentation.trainClassifier());
+	}
+
+	@Test
+	public void singleTileIsExact() {
+		segmentation.setTileSize(Math.max(w, h));
+		for (final boolean probabilityMaps : new boolean[] { false, true }) {
+			final ImageStack expected = segmentation.applyClassifier(image, 2, probabilityMaps).getImageStack();
+			final ImageStack tiled = segmentation.applyClassifierTiled(image, 2, probabilityMaps).getImageStack();
+			assertEquals(expected.getSize(), tiled.getSize());
+			for (int s = 1; s <= expected.getSize(); s++)
+				assertArrayEquals((float[])expected.getProcessor(s).convertToFloat().getPixels(),
+						(float[])tiled.getProcessor(s).convertToFloat().getPixels(), 0);
+		}
+	}
+
+	@Test
+	public void smallTilesAgree() {
+		segmentation.setTileSize(16);
+		final ImageStack expected = segmentation.applyClassifier(image, 2, false).getImageStack();
+		final ImageStack tiled = segmentation.applyClassifierTiled(image, 2, false).getImageStack();
+		assertEquals(d, tiled.getSize());
+		int same = 0;
+		for (int s = 1; s <= d; s++) {
+			final byte[] a = (byte[])expected.getProcessor(s).convertToByte(false).getPixels();
+			final byte[] b = (byte[])tiled.getProcessor(s).convertToByte(false).getPixels();
+			for (int i = 0; i < w * h; i++)
+				if (a[i] == b[i])
+					same++;
+		}
+		assertTrue("only " + same + " of " + (w * h * d) + " pixels agree", same >= 0.95 * w * h * d);
+	}
+}
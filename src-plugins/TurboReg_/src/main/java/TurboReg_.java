@@ -105,6 +105,11 @@
 import java.io.StringReader;
 import java.util.Stack;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /*====================================================================
 |	TurboReg_
@@ -130,11 +135,154 @@
 private double[][] targetPoints =
 	new double[turboRegPointHandler.NUM_POINTS][2];
 private ImagePlus transformedImage = null;
+private int threads = Runtime.getRuntime().availableProcessors();
 
 /*....................................................................
 	Public methods
 ....................................................................*/
 
+/*********************************************************************
+ Refine the landmarks of every slice of <code>source</code> with
+ respect to the first slice of <code>target</code>. The pyramids of
+ the target and of its mask are computed once and shared by all
+ slices, and the pyramids of the next slice are computed while the
+ current slice is being registered. The second slice of
+ <code>target</code>, if any, is its mask; the slices of
+ <code>source</code> are not masked. The cropping and the landmarks
+ are given as for the option <code>-align</code> of <code>run</code>,
+ and the registration is done as for it.
+ @param source Stack whose slices are registered.
+ @param sourceCrop Cropping of the slices of <code>source</code>.
+ @param target Image against which the slices are registered.
+ @param targetCrop Cropping of <code>target</code>.
+ @param transformation Transformation code.
+ @param sourcePoints Initial source landmarks, common to all slices.
+ @param targetPoints Target landmarks.
+ @return The refined source landmarks of each slice, relative to the
+ original image; the first index runs over the slices, from
+ <code>0</code> for the first slice. The return value is
+ <code>null</code> if an image is not grayscale.
+ @see TurboReg_#run
+ @see TurboReg_#setThreads
+ ********************************************************************/
+public double[][][] alignSlices (
+	final ImagePlus source,
+	final int[] sourceCrop,
+	final ImagePlus target,
+	final int[] targetCrop,
+	final int transformation,
+	final double[][] sourcePoints,
+	final double[][] targetPoints
+) {
+	if ((source.getType() != source.GRAY16)
+		&& (source.getType() != source.GRAY32)
+		&& ((source.getType() != source.GRAY8)
+		|| source.getStack().isRGB() || source.getStack().isHSB())) {
+		IJ.error(
+			source.getTitle() + " should be grayscale (8, 16, or 32 bit)");
+		return(null);
+	}
+	if ((target.getType() != target.GRAY16)
+		&& (target.getType() != target.GRAY32)
+		&& ((target.getType() != target.GRAY8)
+		|| target.getStack().isRGB() || target.getStack().isHSB())) {
+		IJ.error(
+			target.getTitle() + " should be grayscale (8, 16, or 32 bit)");
+		return(null);
+	}
+	source.setRoi(sourceCrop[0], sourceCrop[1], sourceCrop[2], sourceCrop[3]);
+	target.setRoi(targetCrop[0], targetCrop[1], targetCrop[2], targetCrop[3]);
+	source.setSlice(1);
+	target.setSlice(1);
+	ImagePlus sourceImp = new ImagePlus("source",
+		source.getProcessor().crop());
+	final ImagePlus targetImp = new ImagePlus("target",
+		target.getProcessor().crop());
+	turboRegImage sourceImg = new turboRegImage(
+		sourceImp, transformation, false);
+	final turboRegImage targetImg = new turboRegImage(
+		targetImp, transformation, true);
+	final int pyramidDepth = getPyramidDepth(
+		sourceImp.getWidth(), sourceImp.getHeight(),
+		targetImp.getWidth(), targetImp.getHeight());
+	sourceImg.setPyramidDepth(pyramidDepth);
+	targetImg.setPyramidDepth(pyramidDepth);
+	sourceImg.setThreads(threads);
+	targetImg.setThreads(threads);
+	sourceImg.getThread().start();
+	targetImg.getThread().start();
+	if (2 <= target.getStackSize()) {
+		target.setSlice(2);
+	}
+	final ImagePlus targetMskImp = new ImagePlus("target mask",
+		target.getProcessor().crop());
+	final turboRegMask targetMsk = new turboRegMask(targetMskImp);
+	target.setSlice(1);
+	if (target.getStackSize() < 2) {
+		targetMsk.clearMask();
+	}
+	targetMsk.setPyramidDepth(pyramidDepth);
+	targetMsk.getThread().start();
+	final int points = (transformation == turboRegDialog.RIGID_BODY)
+		? (transformation) : (transformation / 2);
+	final double[][][] refinedPoints = new double[source.getStackSize()][][];
+	try {
+		targetMsk.getThread().join();
+		targetImg.getThread().join();
+	} catch (InterruptedException e) {
+		IJ.log(
+			"Unexpected interruption exception " + e.getMessage());
+	}
+	for (int i = 1; (i <= source.getStackSize()); i++) {
+		final double[][] sourceSlicePoints =
+			new double[turboRegPointHandler.NUM_POINTS][2];
+		final double[][] targetSlicePoints =
+			new double[turboRegPointHandler.NUM_POINTS][2];
+		for (int k = 0; (k < points); k++) {
+			sourceSlicePoints[k][0] = sourcePoints[k][0] - sourceCrop[0];
+			sourceSlicePoints[k][1] = sourcePoints[k][1] - sourceCrop[1];
+			targetSlicePoints[k][0] = targetPoints[k][0] - targetCrop[0];
+			targetSlicePoints[k][1] = targetPoints[k][1] - targetCrop[1];
+		}
+		final turboRegPointHandler sourcePh = new turboRegPointHandler(
+			sourceImp, transformation);
+		final turboRegPointHandler targetPh = new turboRegPointHandler(
+			targetImp, transformation);
+		sourcePh.setPoints(sourceSlicePoints);
+		targetPh.setPoints(targetSlicePoints);
+		try {
+			sourceImg.getThread().join();
+		} catch (InterruptedException e) {
+			IJ.log(
+				"Unexpected interruption exception " + e.getMessage());
+		}
+		final turboRegTransform tt = new turboRegTransform(
+			sourceImg, null, sourcePh,
+			targetImg, targetMsk, targetPh, transformation, false, false);
+		tt.setThreads(threads);
+		if (i < source.getStackSize()) {
+			source.setSlice(i + 1);
+			sourceImp = new ImagePlus("source",
+				source.getProcessor().crop());
+			sourceImg = new turboRegImage(sourceImp, transformation, false);
+			sourceImg.setPyramidDepth(pyramidDepth);
+			sourceImg.setThreads(threads);
+			sourceImg.getThread().start();
+		}
+		tt.doRegistration();
+		final double[][] refined = sourcePh.getPoints();
+		refinedPoints[i - 1] = new double[points][2];
+		for (int k = 0; (k < points); k++) {
+			refinedPoints[i - 1][k][0] = refined[k][0] + sourceCrop[0];
+			refinedPoints[i - 1][k][1] = refined[k][1] + sourceCrop[1];
+		}
+	}
+	source.setSlice(1);
+	source.killRoi();
+	target.killRoi();
+	return(refinedPoints);
+} /* end alignSlices */
+
 /*********************************************************************
  Accessor method for the <code>(double[][])sourcePoints</code> variable.
  This variable is valid only after a call to <code>run</code> with the
@@ -855,6 +1003,18 @@ else if (token[1].equals("-window")) {
 	}
 } /* end run */
 
+/*********************************************************************
+ Set the number of threads that compute the pyramids and refine the
+ landmarks. By default, there are as many threads as processors; with
+ a single thread, the work is done as by earlier versions.
+ @param threads Number of threads.
+ ********************************************************************/
+public void setThreads (
+	final int threads
+) {
+	this.threads = threads;
+} /* end setThreads */
+
 /*....................................................................
 	Private methods
 ....................................................................*/
@@ -901,6 +1061,8 @@ private ImagePlus alignImages (
 		targetImp.getWidth(), targetImp.getHeight());
 	sourceImg.setPyramidDepth(pyramidDepth);
 	targetImg.setPyramidDepth(pyramidDepth);
+	sourceImg.setThreads(threads);
+	targetImg.setThreads(threads);
 	sourceImg.getThread().start();
 	targetImg.getThread().start();
 	if (2 <= source.getStackSize()) {
@@ -982,6 +1144,7 @@ private ImagePlus alignImages (
 	final turboRegFinalAction finalAction = new turboRegFinalAction(
 		sourceImg, sourceMsk, sourcePh,
 		targetImg, targetMsk, targetPh, transformation);
+	finalAction.setThreads(threads);
 	finalAction.getThread().start();
 	try {
 		finalAction.getThread().join();
@@ -2929,6 +3092,7 @@ private void stopTargetThreads (
 private volatile int pyramidDepth;
 private volatile int sourceColorPlane;
 private volatile int transformation;
+private volatile int threads = Runtime.getRuntime().availableProcessors();
 private volatile boolean accelerated;
 private volatile boolean saveOnExit;
 private volatile boolean colorOutput;
@@ -2972,6 +3136,7 @@ public void run (
 			tt = new turboRegTransform(sourceImg, sourceMsk, sourcePh,
 				targetImg, targetMsk, targetPh, transformation, accelerated,
 				(td != null));
+			tt.setThreads(threads);
 			if (operation == AUTOMATIC) {
 				tt.doRegistration();
 			}
@@ -3004,6 +3169,7 @@ public void run (
 					sourceImg = new turboRegImage(sourceImp,
 						turboRegDialog.GENERIC_TRANSFORMATION, false);
 					sourceImg.setPyramidDepth(1);
+					sourceImg.setThreads(threads);
 					sourceImg.getThread().start();
 					try {
 						sourceImg.getThread().join();
@@ -3072,10 +3238,12 @@ public void run (
 			tt = new turboRegTransform(sourceImg, null, sourcePh,
 				targetImg, targetMsk, targetPh, transformation, accelerated,
 				(td != null));
+			tt.setThreads(threads);
 			if (2 <= sourceImp.getStackSize()) {
 				sourceImp.setSlice(2);
 				sourceImg = new turboRegImage(sourceImp, transformation, false);
 				sourceImg.setPyramidDepth(pyramidDepth);
+				sourceImg.setThreads(threads);
 				sourceImg.getThread().start();
 			}
 			tt.doRegistration();
@@ -3104,11 +3272,13 @@ public void run (
 				tt = new turboRegTransform(sourceImg, null, sourcePh,
 					targetImg, targetMsk, targetPh, transformation, accelerated,
 					(td != null));
+				tt.setThreads(threads);
 				if (i < sourceImp.getStackSize()) {
 					sourceImp.setSlice(i + 1);
 					sourceImg = new turboRegImage(sourceImp, transformation,
 						false);
 					sourceImg.setPyramidDepth(pyramidDepth);
+					sourceImg.setThreads(threads);
 					sourceImg.getThread().start();
 				}
 				tt.doRegistration();
@@ -3133,6 +3303,17 @@ public void run (
 	}
 } /* end run */
 
+/*********************************************************************
+ Set the number of threads that compute the pyramids of the source
+ slices and refine the landmarks.
+ @param threads Number of threads.
+ ********************************************************************/
+public void setThreads (
+	final int threads
+) {
+	this.threads = threads;
+} /* end setThreads */
+
 /*********************************************************************
  Pass parameter from <code>turboRegDialog</code> to
  <code>turboRegFinalAction</code>.
@@ -3299,6 +3480,7 @@ public turboRegFinalAction (
 private int height;
 private int pyramidDepth;
 private int transformation;
+private int threads = Runtime.getRuntime().availableProcessors();
 private boolean isTarget;
 
 /*....................................................................
@@ -3447,6 +3629,18 @@ public void setPyramidDepth (
 	this.pyramidDepth = pyramidDepth;
 } /* end setPyramidDepth */
 
+/*********************************************************************
+ Set the number of threads that share out the rows and the columns
+ of the image when the pyramids are computed. By default, there are
+ as many threads as processors.
+ @param threads Number of threads.
+ ********************************************************************/
+public void setThreads (
+	final int threads
+) {
+	this.threads = threads;
+} /* end setThreads */
+
 /*********************************************************************
  Set or modify the transformation.
  ********************************************************************/
@@ -3537,11 +3731,7 @@ private void basicToCardinal2D (
 	final int height,
 	final int degree
 ) {
-	final double[] hLine = new double[width];
-	final double[] vLine = new double[height];
-	final double[] hData = new double[width];
-	final double[] vData = new double[height];
-	double[] h = null;
+	final double[] h;
 	switch (degree) {
 		case 3: {
 			h = new double[2];
@@ -3564,20 +3754,30 @@ private void basicToCardinal2D (
 	}
 	int workload = width + height;
 	turboRegProgressBar.addWorkload(workload);
-	for (int y = 0; ((y < height) && (!t.isInterrupted())); y++) {
-		extractRow(basic, y, hLine);
-		symmetricFirMirrorOffBounds1D(h, hLine, hData);
-		putRow(cardinal, y, hData);
-		turboRegProgressBar.stepProgressBar();
-		workload--;
-	}
-	for (int x = 0; ((x < width) && (!t.isInterrupted())); x++) {
-		extractColumn(cardinal, width, x, vLine);
-		symmetricFirMirrorOffBounds1D(h, vLine, vData);
-		putColumn(cardinal, width, x, vData);
-		turboRegProgressBar.stepProgressBar();
-		workload--;
-	}
+	workload -= new turboRegLines() {
+		protected void processLine (
+			final int y,
+			final double[] hLine,
+			final double[] hData
+		) {
+			extractRow(basic, y, hLine);
+			symmetricFirMirrorOffBounds1D(h, hLine, hData);
+			putRow(cardinal, y, hData);
+			turboRegProgressBar.stepProgressBar();
+		}
+	}.processLines(t, height, width, width, threads);
+	workload -= new turboRegLines() {
+		protected void processLine (
+			final int x,
+			final double[] vLine,
+			final double[] vData
+		) {
+			extractColumn(cardinal, width, x, vLine);
+			symmetricFirMirrorOffBounds1D(h, vLine, vData);
+			putColumn(cardinal, width, x, vData);
+			turboRegProgressBar.stepProgressBar();
+		}
+	}.processLines(t, width, height, height, threads);
 	turboRegProgressBar.skipProgressBar(workload);
 	turboRegProgressBar.workloadDone(width + height);
 } /* end basicToCardinal2D */
@@ -3710,35 +3910,40 @@ private void coefficientToXYGradient2D (
 	final int width,
 	final int height
 ) {
-	final double[] hLine = new double[width];
-	final double[] hData = new double[width];
-	final double[] vLine = new double[height];
 	int workload = 2 * (width + height);
 	turboRegProgressBar.addWorkload(workload);
-	for (int y = 0; ((y < height) && (!t.isInterrupted())); y++) {
-		extractRow(basic, y, hLine);
-		System.arraycopy(hLine, 0, hData, 0, width);
-		coefficientToGradient1D(hLine);
-		turboRegProgressBar.stepProgressBar();
-		workload--;
-		coefficientToSamples1D(hData);
-		putRow(xGradient, y, hLine);
-		putRow(yGradient, y, hData);
-		turboRegProgressBar.stepProgressBar();
-		workload--;
-	}
-	for (int x = 0; ((x < width) && (!t.isInterrupted())); x++) {
-		extractColumn(xGradient, width, x, vLine);
-		coefficientToSamples1D(vLine);
-		putColumn(xGradient, width, x, vLine);
-		turboRegProgressBar.stepProgressBar();
-		workload--;
-		extractColumn(yGradient, width, x, vLine);
-		coefficientToGradient1D(vLine);
-		putColumn(yGradient, width, x, vLine);
-		turboRegProgressBar.stepProgressBar();
-		workload--;
-	}
+	workload -= 2 * new turboRegLines() {
+		protected void processLine (
+			final int y,
+			final double[] hLine,
+			final double[] hData
+		) {
+			extractRow(basic, y, hLine);
+			System.arraycopy(hLine, 0, hData, 0, width);
+			coefficientToGradient1D(hLine);
+			turboRegProgressBar.stepProgressBar();
+			coefficientToSamples1D(hData);
+			putRow(xGradient, y, hLine);
+			putRow(yGradient, y, hData);
+			turboRegProgressBar.stepProgressBar();
+		}
+	}.processLines(t, height, width, width, threads);
+	workload -= 2 * new turboRegLines() {
+		protected void processLine (
+			final int x,
+			final double[] vLine,
+			final double[] unused
+		) {
+			extractColumn(xGradient, width, x, vLine);
+			coefficientToSamples1D(vLine);
+			putColumn(xGradient, width, x, vLine);
+			turboRegProgressBar.stepProgressBar();
+			extractColumn(yGradient, width, x, vLine);
+			coefficientToGradient1D(vLine);
+			putColumn(yGradient, width, x, vLine);
+			turboRegProgressBar.stepProgressBar();
+		}
+	}.processLines(t, width, height, 0, threads);
 	turboRegProgressBar.skipProgressBar(workload);
 	turboRegProgressBar.workloadDone(2 * (width + height));
 } /* end coefficientToXYGradient2D */
@@ -3784,21 +3989,31 @@ private void extractRow (
 private float[] getBasicFromCardinal2D (
 ) {
 	final float[] basic = new float[width * height];
-	final double[] hLine = new double[width];
-	final double[] vLine = new double[height];
 	turboRegProgressBar.addWorkload(width + height);
-	for (int y = 0; (y < height); y++) {
-		extractRow(image, y, hLine);
-		samplesToInterpolationCoefficient1D(hLine, 3, 0.0);
-		putRow(basic, y, hLine);
-		turboRegProgressBar.stepProgressBar();
-	}
-	for (int x = 0; (x < width); x++) {
-		extractColumn(basic, width, x, vLine);
-		samplesToInterpolationCoefficient1D(vLine, 3, 0.0);
-		putColumn(basic, width, x, vLine);
-		turboRegProgressBar.stepProgressBar();
-	}
+	new turboRegLines() {
+		protected void processLine (
+			final int y,
+			final double[] hLine,
+			final double[] unused
+		) {
+			extractRow(image, y, hLine);
+			samplesToInterpolationCoefficient1D(hLine, 3, 0.0);
+			putRow(basic, y, hLine);
+			turboRegProgressBar.stepProgressBar();
+		}
+	}.processLines(null, height, width, 0, threads);
+	new turboRegLines() {
+		protected void processLine (
+			final int x,
+			final double[] vLine,
+			final double[] unused
+		) {
+			extractColumn(basic, width, x, vLine);
+			samplesToInterpolationCoefficient1D(vLine, 3, 0.0);
+			putColumn(basic, width, x, vLine);
+			turboRegProgressBar.stepProgressBar();
+		}
+	}.processLines(null, width, height, 0, threads);
 	turboRegProgressBar.workloadDone(width + height);
 	return(basic);
 } /* end getBasicFromCardinal2D */
@@ -3811,24 +4026,32 @@ private float[] getBasicFromCardinal2D (
 	final int degree
 ) {
 	final float[] basic = new float[width * height];
-	final double[] hLine = new double[width];
-	final double[] vLine = new double[height];
 	int workload = width + height;
 	turboRegProgressBar.addWorkload(workload);
-	for (int y = 0; ((y < height) && (!t.isInterrupted())); y++) {
-		extractRow(cardinal, y, hLine);
-		samplesToInterpolationCoefficient1D(hLine, degree, 0.0);
-		putRow(basic, y, hLine);
-		turboRegProgressBar.stepProgressBar();
-		workload--;
-	}
-	for (int x = 0; ((x < width) && (!t.isInterrupted())); x++) {
-		extractColumn(basic, width, x, vLine);
-		samplesToInterpolationCoefficient1D(vLine, degree, 0.0);
-		putColumn(basic, width, x, vLine);
-		turboRegProgressBar.stepProgressBar();
-		workload--;
-	}
+	workload -= new turboRegLines() {
+		protected void processLine (
+			final int y,
+			final double[] hLine,
+			final double[] unused
+		) {
+			extractRow(cardinal, y, hLine);
+			samplesToInterpolationCoefficient1D(hLine, degree, 0.0);
+			putRow(basic, y, hLine);
+			turboRegProgressBar.stepProgressBar();
+		}
+	}.processLines(t, height, width, 0, threads);
+	workload -= new turboRegLines() {
+		protected void processLine (
+			final int x,
+			final double[] vLine,
+			final double[] unused
+		) {
+			extractColumn(basic, width, x, vLine);
+			samplesToInterpolationCoefficient1D(vLine, degree, 0.0);
+			putColumn(basic, width, x, vLine);
+			turboRegProgressBar.stepProgressBar();
+		}
+	}.processLines(t, width, height, 0, threads);
 	turboRegProgressBar.skipProgressBar(workload);
 	turboRegProgressBar.workloadDone(width + height);
 	return(basic);
@@ -3842,28 +4065,34 @@ private float[] getHalfDual2D (
 ) {
 	final int halfWidth = fullWidth / 2;
 	final int halfHeight = fullHeight / 2;
-	final double[] hLine = new double[fullWidth];
-	final double[] hData = new double[halfWidth];
-	final double[] vLine = new double[fullHeight];
-	final double[] vData = new double[halfHeight];
 	final float[] demiDual = new float[halfWidth * fullHeight];
 	final float[] halfDual = new float[halfWidth * halfHeight];
 	int workload = halfWidth + fullHeight;
 	turboRegProgressBar.addWorkload(workload);
-	for (int y = 0; ((y < fullHeight) && (!t.isInterrupted())); y++) {
-		extractRow(fullDual, y, hLine);
-		reduceDual1D(hLine, hData);
-		putRow(demiDual, y, hData);
-		turboRegProgressBar.stepProgressBar();
-		workload--;
-	}
-	for (int x = 0; ((x < halfWidth) && (!t.isInterrupted())); x++) {
-		extractColumn(demiDual, halfWidth, x, vLine);
-		reduceDual1D(vLine, vData);
-		putColumn(halfDual, halfWidth, x, vData);
-		turboRegProgressBar.stepProgressBar();
-		workload--;
-	}
+	workload -= new turboRegLines() {
+		protected void processLine (
+			final int y,
+			final double[] hLine,
+			final double[] hData
+		) {
+			extractRow(fullDual, y, hLine);
+			reduceDual1D(hLine, hData);
+			putRow(demiDual, y, hData);
+			turboRegProgressBar.stepProgressBar();
+		}
+	}.processLines(t, fullHeight, fullWidth, halfWidth, threads);
+	workload -= new turboRegLines() {
+		protected void processLine (
+			final int x,
+			final double[] vLine,
+			final double[] vData
+		) {
+			extractColumn(demiDual, halfWidth, x, vLine);
+			reduceDual1D(vLine, vData);
+			putColumn(halfDual, halfWidth, x, vData);
+			turboRegProgressBar.stepProgressBar();
+		}
+	}.processLines(t, halfWidth, fullHeight, halfHeight, threads);
 	turboRegProgressBar.skipProgressBar(workload);
 	turboRegProgressBar.workloadDone(halfWidth + fullHeight);
 	return(halfDual);
@@ -3904,28 +4133,36 @@ private double getInitialCausalCoefficientMirrorOffBounds (
 /*------------------------------------------------------------------*/
 private void imageToXYGradient2D (
 ) {
-	final double[] hLine = new double[width];
-	final double[] vLine = new double[height];
 	xGradient = new float[width * height];
 	yGradient = new float[width * height];
 	int workload = width + height;
 	turboRegProgressBar.addWorkload(workload);
-	for (int y = 0; ((y < height) && (!t.isInterrupted())); y++) {
-		extractRow(image, y, hLine);
-		samplesToInterpolationCoefficient1D(hLine, 3, 0.0);
-		coefficientToGradient1D(hLine);
-		putRow(xGradient, y, hLine);
-		turboRegProgressBar.stepProgressBar();
-		workload--;
-	}
-	for (int x = 0; ((x < width) && (!t.isInterrupted())); x++) {
-		extractColumn(image, width, x, vLine);
-		samplesToInterpolationCoefficient1D(vLine, 3, 0.0);
-		coefficientToGradient1D(vLine);
-		putColumn(yGradient, width, x, vLine);
-		turboRegProgressBar.stepProgressBar();
-		workload--;
-	}
+	workload -= new turboRegLines() {
+		protected void processLine (
+			final int y,
+			final double[] hLine,
+			final double[] unused
+		) {
+			extractRow(image, y, hLine);
+			samplesToInterpolationCoefficient1D(hLine, 3, 0.0);
+			coefficientToGradient1D(hLine);
+			putRow(xGradient, y, hLine);
+			turboRegProgressBar.stepProgressBar();
+		}
+	}.processLines(t, height, width, 0, threads);
+	workload -= new turboRegLines() {
+		protected void processLine (
+			final int x,
+			final double[] vLine,
+			final double[] unused
+		) {
+			extractColumn(image, width, x, vLine);
+			samplesToInterpolationCoefficient1D(vLine, 3, 0.0);
+			coefficientToGradient1D(vLine);
+			putColumn(yGradient, width, x, vLine);
+			turboRegProgressBar.stepProgressBar();
+		}
+	}.processLines(t, width, height, 0, threads);
 	turboRegProgressBar.skipProgressBar(workload);
 	turboRegProgressBar.workloadDone(width + height);
 } /* end imageToXYGradient2D */
@@ -4142,6 +4379,189 @@ private void symmetricFirMirrorOffBounds1D (
 
 } /* end class turboRegImage */
 
+/*====================================================================
+|	turboRegLines
+\===================================================================*/
+
+/*********************************************************************
+ This class shares out independent lines of work between several
+ threads. Each thread gets its own pair of <code>double</code> buffers
+ and takes the next unprocessed line until all lines are done, or
+ until the owner thread gets interrupted.
+ ********************************************************************/
+abstract class turboRegLines
+	implements
+		Runnable
+
+{ /* begin class turboRegLines */
+
+/*....................................................................
+	Private variables
+....................................................................*/
+private final AtomicInteger nextLine = new AtomicInteger(0);
+private final AtomicInteger doneLines = new AtomicInteger(0);
+private Thread owner;
+private Throwable failure;
+private volatile boolean stopped;
+private int lines;
+private int inLength;
+private int outLength;
+
+/*....................................................................
+	Public methods
+....................................................................*/
+
+/*********************************************************************
+ Process the lines <code>0</code> to <code>lines - 1</code> with up to
+ <code>threads</code> threads, one of which is the calling thread.
+ @param owner Thread whose interruption stops the processing, or
+ <code>null</code> if the processing is not interruptible.
+ @param lines Number of lines to process.
+ @param inLength Length of the input buffer of each thread.
+ @param outLength Length of the output buffer of each thread.
+ @param threads Maximal number of threads.
+ @return Number of lines that have been processed.
+ ********************************************************************/
+public int processLines (
+	final Thread owner,
+	final int lines,
+	final int inLength,
+	final int outLength,
+	final int threads
+) {
+	return(processLines(owner, lines, inLength, outLength, threads, null));
+} /* end processLines */
+
+/*********************************************************************
+ Process the lines <code>0</code> to <code>lines - 1</code> with up to
+ <code>threads</code> threads, one of which is the calling thread, and
+ the others of which are taken from a pool.
+ @param owner Thread whose interruption stops the processing, or
+ <code>null</code> if the processing is not interruptible.
+ @param lines Number of lines to process.
+ @param inLength Length of the input buffer of each thread.
+ @param outLength Length of the output buffer of each thread.
+ @param threads Maximal number of threads.
+ @param pool Pool of at least <code>threads - 1</code> threads, or
+ <code>null</code> to start new threads.
+ @return Number of lines that have been processed.
+ ********************************************************************/
+public int processLines (
+	final Thread owner,
+	final int lines,
+	final int inLength,
+	final int outLength,
+	final int threads,
+	final ExecutorService pool
+) {
+	this.owner = owner;
+	this.lines = lines;
+	this.inLength = inLength;
+	this.outLength = outLength;
+	final int helpers = Math.max(0, Math.min(threads, lines) - 1);
+	final Thread[] workers = new Thread[(pool == null) ? (helpers) : (0)];
+	final Future<?>[] tasks = new Future<?>[(pool == null) ? (0) : (helpers)];
+	for (int k = 0; (k < workers.length); k++) {
+		workers[k] = new Thread(this);
+		workers[k].setDaemon(true);
+		workers[k].start();
+	}
+	for (int k = 0; (k < tasks.length); k++) {
+		tasks[k] = pool.submit(this);
+	}
+	run();
+	boolean interrupted = false;
+	for (int k = 0; (k < workers.length); k++) {
+		while (workers[k].isAlive()) {
+			try {
+				workers[k].join();
+			} catch (InterruptedException e) {
+				stopped = true;
+				interrupted = true;
+			}
+		}
+	}
+	for (int k = 0; (k < tasks.length); k++) {
+		while (!tasks[k].isDone()) {
+			try {
+				tasks[k].get();
+			} catch (InterruptedException e) {
+				stopped = true;
+				interrupted = true;
+			} catch (ExecutionException e) {
+				fail(e.getCause());
+			}
+		}
+	}
+	if (interrupted) {
+		Thread.currentThread().interrupt();
+	}
+	synchronized (this) {
+		if (failure instanceof RuntimeException) {
+			throw((RuntimeException)failure);
+		}
+		else if (failure instanceof Error) {
+			throw((Error)failure);
+		}
+	}
+	return(doneLines.get());
+} /* end processLines */
+
+/*********************************************************************
+ Process lines until none is left.
+ ********************************************************************/
+public void run (
+) {
+	final double[] in = new double[inLength];
+	final double[] out = new double[outLength];
+	try {
+		while (!stopped && ((owner == null) || !owner.isInterrupted())) {
+			final int i = nextLine.getAndIncrement();
+			if (lines <= i) {
+				break;
+			}
+			processLine(i, in, out);
+			doneLines.incrementAndGet();
+		}
+	} catch (RuntimeException e) {
+		fail(e);
+	} catch (Error e) {
+		fail(e);
+	}
+} /* end run */
+
+/*....................................................................
+	Protected methods
+....................................................................*/
+
+/*********************************************************************
+ Process the line <code>i</code>.
+ @param i Index of the line.
+ @param in Input buffer of the current thread.
+ @param out Output buffer of the current thread.
+ ********************************************************************/
+protected abstract void processLine (
+	int i,
+	double[] in,
+	double[] out
+);
+
+/*....................................................................
+	Private methods
+....................................................................*/
+
+/*------------------------------------------------------------------*/
+private synchronized void fail (
+	final Throwable e
+) {
+	stopped = true;
+	if (failure == null) {
+		failure = e;
+	}
+} /* end fail */
+
+} /* end class turboRegLines */
+
 /*====================================================================
 |	turboRegMask
 \===================================================================*/
@@ -5948,6 +6368,14 @@ public static synchronized void workloadDone (
  ********************************************************************/
 private static final int ITERATION_PROGRESSION = 2;
 
+/*********************************************************************
+ Number of rows of the bands over which the mean squares, gradient,
+ and Hessian are accumulated separately before being summed up. The
+ bands are shared out between the threads; since they do not depend
+ on the number of threads, neither does the result.
+ ********************************************************************/
+private static final int BAND_HEIGHT = 32;
+
 private final double[] dxWeight = new double[4];
 private final double[] dyWeight = new double[4];
 private final double[] xWeight = new double[4];
@@ -6005,6 +6433,11 @@ public static synchronized void workloadDone (
 private int iterationCost;
 private boolean accelerated;
 private boolean interactive;
+private long bandArea;
+private int firstRow;
+private int lastRow;
+private int threads = Runtime.getRuntime().availableProcessors();
+private ExecutorService pool;
 
 /*....................................................................
 	Public methods
@@ -6238,177 +6671,20 @@ public float[] doFinalTransform (
 } /* end doFinalTransform */
 
 /*********************************************************************
- Refine the landmarks.
+ Refine the landmarks. The threads that evaluate the mean squares are
+ started once for the whole registration.
  ********************************************************************/
 public void doRegistration (
 ) {
-	Stack sourceImgPyramid;
-	Stack sourceMskPyramid;
-	Stack targetImgPyramid;
-	Stack targetMskPyramid;
-	if (sourceMsk == null) {
-		sourceImgPyramid = sourceImg.getPyramid();
-		sourceMskPyramid = null;
-		targetImgPyramid = (Stack)targetImg.getPyramid().clone();
-		targetMskPyramid = (Stack)targetMsk.getPyramid().clone();
-	}
-	else {
-		sourceImgPyramid = sourceImg.getPyramid();
-		sourceMskPyramid = sourceMsk.getPyramid();
-		targetImgPyramid = targetImg.getPyramid();
-		targetMskPyramid = targetMsk.getPyramid();
+	pool = (1 < threads) ? Executors.newFixedThreadPool(threads - 1) : null;
+	try {
+		refineLandmarks();
+	} finally {
+		if (pool != null) {
+			pool.shutdown();
+			pool = null;
+		}
 	}
-	pyramidDepth = targetImg.getPyramidDepth();
-	iterationPower = (int)Math.pow(
-		(double)ITERATION_PROGRESSION, (double)pyramidDepth);
-	turboRegProgressBar.addWorkload(
-		pyramidDepth * maxIterations * iterationPower
-		/ ITERATION_PROGRESSION
-		- (iterationPower - 1) / (ITERATION_PROGRESSION - 1));
-	iterationCost = 1;
-	scaleBottomDownLandmarks();
-	while (!targetImgPyramid.isEmpty()) {
-		iterationPower /= ITERATION_PROGRESSION;
-		if (transformation == turboRegDialog.BILINEAR) {
-			inNx = ((Integer)sourceImgPyramid.pop()).intValue();
-			inNy = ((Integer)sourceImgPyramid.pop()).intValue();
-			inImg = (float[])sourceImgPyramid.pop();
-			if (sourceMskPyramid == null) {
-				inMsk = null;
-			}
-			else {
-				inMsk = (float[])sourceMskPyramid.pop();
-			}
-			outNx = ((Integer)targetImgPyramid.pop()).intValue();
-			outNy = ((Integer)targetImgPyramid.pop()).intValue();
-			outImg = (float[])targetImgPyramid.pop();
-			outMsk = (float[])targetMskPyramid.pop();
-		}
-		else {
-			inNx = ((Integer)targetImgPyramid.pop()).intValue();
-			inNy = ((Integer)targetImgPyramid.pop()).intValue();
-			inImg = (float[])targetImgPyramid.pop();
-			inMsk = (float[])targetMskPyramid.pop();
-			outNx = ((Integer)sourceImgPyramid.pop()).intValue();
-			outNy = ((Integer)sourceImgPyramid.pop()).intValue();
-			outImg = (float[])sourceImgPyramid.pop();
-			xGradient = (float[])sourceImgPyramid.pop();
-			yGradient = (float[])sourceImgPyramid.pop();
-			if (sourceMskPyramid == null) {
-				outMsk = null;
-			}
-			else {
-				outMsk = (float[])sourceMskPyramid.pop();
-			}
-		}
-		twiceInNx = 2 * inNx;
-		twiceInNy = 2 * inNy;
-		switch (transformation) {
-			case turboRegDialog.TRANSLATION: {
-				targetJacobian = 1.0;
-				inverseMarquardtLevenbergOptimization(
-					iterationPower * maxIterations - 1);
-				break;
-			}
-			case turboRegDialog.RIGID_BODY: {
-				inverseMarquardtLevenbergRigidBodyOptimization(
-					iterationPower * maxIterations - 1);
-				break;
-			}
-			case turboRegDialog.SCALED_ROTATION: {
-				targetJacobian = (targetPoint[0][0] - targetPoint[1][0])
-					* (targetPoint[0][0] - targetPoint[1][0])
-					+ (targetPoint[0][1] - targetPoint[1][1])
-					* (targetPoint[0][1] - targetPoint[1][1]);
-				inverseMarquardtLevenbergOptimization(
-					iterationPower * maxIterations - 1);
-				break;
-			}
-			case turboRegDialog.AFFINE: {
-				targetJacobian = (targetPoint[1][0] - targetPoint[2][0])
-					* targetPoint[0][1]
-					+ (targetPoint[2][0] - targetPoint[0][0])
-					* targetPoint[1][1]
-					+ (targetPoint[0][0] - targetPoint[1][0])
-					* targetPoint[2][1];
-				inverseMarquardtLevenbergOptimization(
-					iterationPower * maxIterations - 1);
-				break;
-			}
-			case turboRegDialog.BILINEAR: {
-				MarquardtLevenbergOptimization(
-					iterationPower * maxIterations - 1);
-				break;
-			}
-		}
-		scaleUpLandmarks();
-		sourcePh.setPoints(sourcePoint);
-		iterationCost *= ITERATION_PROGRESSION;
-	}
-	iterationPower /= ITERATION_PROGRESSION;
-	if (transformation == turboRegDialog.BILINEAR) {
-		inNx = sourceImg.getWidth();
-		inNy = sourceImg.getHeight();
-		inImg = sourceImg.getCoefficient();
-		if (sourceMsk == null) {
-			inMsk = null;
-		}
-		else {
-			inMsk = sourceMsk.getMask();
-		}
-		outNx = targetImg.getWidth();
-		outNy = targetImg.getHeight();
-		outImg = targetImg.getImage();
-		outMsk = targetMsk.getMask();
-	}
-	else {
-		inNx = targetImg.getWidth();
-		inNy = targetImg.getHeight();
-		inImg = targetImg.getCoefficient();
-		inMsk = targetMsk.getMask();
-		outNx = sourceImg.getWidth();
-		outNy = sourceImg.getHeight();
-		outImg = sourceImg.getImage();
-		xGradient = sourceImg.getXGradient();
-		yGradient = sourceImg.getYGradient();
-		if (sourceMsk == null) {
-			outMsk = null;
-		}
-		else {
-			outMsk = sourceMsk.getMask();
-		}
-	}
-	twiceInNx = 2 * inNx;
-	twiceInNy = 2 * inNy;
-	if (accelerated) {
-		turboRegProgressBar.skipProgressBar(
-			iterationCost * (maxIterations - 1));
-	}
-	else {
-		switch (transformation) {
-			case turboRegDialog.RIGID_BODY: {
-				inverseMarquardtLevenbergRigidBodyOptimization(
-					maxIterations - 1);
-				break;
-			}
-			case turboRegDialog.TRANSLATION:
-			case turboRegDialog.SCALED_ROTATION:
-			case turboRegDialog.AFFINE: {
-				inverseMarquardtLevenbergOptimization(maxIterations - 1);
-				break;
-			}
-			case turboRegDialog.BILINEAR: {
-				MarquardtLevenbergOptimization(maxIterations - 1);
-				break;
-			}
-		}
-	}
-	sourcePh.setPoints(sourcePoint);
-	iterationPower = (int)Math.pow(
-		(double)ITERATION_PROGRESSION, (double)pyramidDepth);
-	turboRegProgressBar.workloadDone(
-		pyramidDepth * maxIterations * iterationPower / ITERATION_PROGRESSION
-		- (iterationPower - 1) / (ITERATION_PROGRESSION - 1));
 } /* end doRegistration */
 
 /*********************************************************************
@@ -6503,6 +6779,17 @@ public String saveTransformation (
 	return(path + filename);
 } /* end saveTransformation */
 
+/*********************************************************************
+ Set the number of threads that evaluate the mean squares. By
+ default, there are as many threads as processors.
+ @param threads Number of threads.
+ ********************************************************************/
+public void setThreads (
+	final int threads
+) {
+	this.threads = threads;
+} /* end setThreads */
+
 /*********************************************************************
  Keep a local copy of most everything. Select among the pre-stored
  constants.
@@ -6548,6 +6835,38 @@ public turboRegTransform (
 	}
 } /* end turboRegTransform */
 
+/*********************************************************************
+ Share the images of the current pyramid level with
+ <code>transform</code>, so as to evaluate the mean squares over the
+ rows <code>firstRow</code> to <code>lastRow - 1</code> only.
+ @param transform Transformation that is being optimized.
+ @param firstRow First row of the band.
+ @param lastRow Row that follows the band.
+ ********************************************************************/
+private turboRegTransform (
+	final turboRegTransform transform,
+	final int firstRow,
+	final int lastRow
+) {
+	targetPoint = transform.targetPoint;
+	inImg = transform.inImg;
+	outImg = transform.outImg;
+	xGradient = transform.xGradient;
+	yGradient = transform.yGradient;
+	inMsk = transform.inMsk;
+	outMsk = transform.outMsk;
+	targetJacobian = transform.targetJacobian;
+	inNx = transform.inNx;
+	inNy = transform.inNy;
+	outNx = transform.outNx;
+	outNy = transform.outNy;
+	twiceInNx = transform.twiceInNx;
+	twiceInNy = transform.twiceInNy;
+	transformation = transform.transformation;
+	this.firstRow = firstRow;
+	this.lastRow = lastRow;
+} /* end turboRegTransform */
+
 /*....................................................................
 	Private methods
 ....................................................................*/
@@ -6843,11 +7162,11 @@ private double getAffineMeanSquares (
 	long area = 0L;
 	int xMsk;
 	int yMsk;
-	int k = 0;
+	int k = firstRow * outNx;
 	if (outMsk == null) {
-		yx = matrix[0][0];
-		yy = matrix[1][0];
-		for (int v = 0; (v < outNy); v++) {
+		yx = matrix[0][0] + (double)firstRow * matrix[0][2];
+		yy = matrix[1][0] + (double)firstRow * matrix[1][2];
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -6877,9 +7196,9 @@ private double getAffineMeanSquares (
 		}
 	}
 	else {
-		yx = matrix[0][0];
-		yy = matrix[1][0];
-		for (int v = 0; (v < outNy); v++) {
+		yx = matrix[0][0] + (double)firstRow * matrix[0][2];
+		yy = matrix[1][0] + (double)firstRow * matrix[1][2];
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -6908,6 +7227,7 @@ private double getAffineMeanSquares (
 			yy += matrix[1][2];
 		}
 	}
+	bandArea = area;
 	return(meanSquares / ((double)area * Math.abs(det / targetJacobian)));
 } /* getAffineMeanSquares */
 
@@ -6951,7 +7271,7 @@ private double getAffineMeanSquares (
 	long area = 0L;
 	int xMsk;
 	int yMsk;
-	int k = 0;
+	int k = firstRow * outNx;
 	uv32 /= det;
 	uv21 /= det;
 	uv13 /= det;
@@ -6959,9 +7279,9 @@ private double getAffineMeanSquares (
 		gradient[i] = 0.0;
 	}
 	if (outMsk == null) {
-		yx = matrix[0][0];
-		yy = matrix[1][0];
-		for (int v = 0; (v < outNy); v++) {
+		yx = matrix[0][0] + (double)firstRow * matrix[0][2];
+		yy = matrix[1][0] + (double)firstRow * matrix[1][2];
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -7006,9 +7326,9 @@ private double getAffineMeanSquares (
 		}
 	}
 	else {
-		yx = matrix[0][0];
-		yy = matrix[1][0];
-		for (int v = 0; (v < outNy); v++) {
+		yx = matrix[0][0] + (double)firstRow * matrix[0][2];
+		yy = matrix[1][0] + (double)firstRow * matrix[1][2];
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -7052,6 +7372,7 @@ private double getAffineMeanSquares (
 			yy += matrix[1][2];
 		}
 	}
+	bandArea = area;
 	return(meanSquares / ((double)area * Math.abs(det / targetJacobian)));
 } /* getAffineMeanSquares */
 
@@ -7096,7 +7417,7 @@ private double getAffineMeanSquares (
 	long area = 0L;
 	int xMsk;
 	int yMsk;
-	int k = 0;
+	int k = firstRow * outNx;
 	uv32 /= det;
 	uv21 /= det;
 	uv13 /= det;
@@ -7107,9 +7428,9 @@ private double getAffineMeanSquares (
 		}
 	}
 	if (outMsk == null) {
-		yx = matrix[0][0];
-		yy = matrix[1][0];
-		for (int v = 0; (v < outNy); v++) {
+		yx = matrix[0][0] + (double)firstRow * matrix[0][2];
+		yy = matrix[1][0] + (double)firstRow * matrix[1][2];
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -7175,9 +7496,9 @@ private double getAffineMeanSquares (
 		}
 	}
 	else {
-		yx = matrix[0][0];
-		yy = matrix[1][0];
-		for (int v = 0; (v < outNy); v++) {
+		yx = matrix[0][0] + (double)firstRow * matrix[0][2];
+		yy = matrix[1][0] + (double)firstRow * matrix[1][2];
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -7247,9 +7568,67 @@ private double getAffineMeanSquares (
 			hessian[i][j] = hessian[j][i];
 		}
 	}
+	bandArea = area;
 	return(meanSquares / ((double)area * Math.abs(det / targetJacobian)));
 } /* getAffineMeanSquares */
 
+/*------------------------------------------------------------------*/
+private double getBandMeanSquares (
+	final double[][] sourcePoint,
+	final double[][] matrix,
+	final double[][] hessian,
+	final double[] gradient
+) {
+	switch (transformation) {
+		case turboRegDialog.TRANSLATION: {
+			if (gradient == null) {
+				return(getTranslationMeanSquares(matrix));
+			}
+			else if (hessian == null) {
+				return(getTranslationMeanSquares(matrix, gradient));
+			}
+			return(getTranslationMeanSquares(matrix, hessian, gradient));
+		}
+		case turboRegDialog.RIGID_BODY: {
+			if (gradient == null) {
+				return(getRigidBodyMeanSquares(matrix));
+			}
+			else if (hessian == null) {
+				return(getRigidBodyMeanSquares(matrix, gradient));
+			}
+			return(getRigidBodyMeanSquares(matrix, hessian, gradient));
+		}
+		case turboRegDialog.SCALED_ROTATION: {
+			if (gradient == null) {
+				return(getScaledRotationMeanSquares(sourcePoint, matrix));
+			}
+			else if (hessian == null) {
+				return(getScaledRotationMeanSquares(sourcePoint, matrix,
+					gradient));
+			}
+			return(getScaledRotationMeanSquares(sourcePoint, matrix,
+				hessian, gradient));
+		}
+		case turboRegDialog.AFFINE: {
+			if (gradient == null) {
+				return(getAffineMeanSquares(sourcePoint, matrix));
+			}
+			else if (hessian == null) {
+				return(getAffineMeanSquares(sourcePoint, matrix, gradient));
+			}
+			return(getAffineMeanSquares(sourcePoint, matrix,
+				hessian, gradient));
+		}
+		case turboRegDialog.BILINEAR: {
+			if (gradient == null) {
+				return(getBilinearMeanSquares(matrix));
+			}
+			return(getBilinearMeanSquares(matrix, hessian, gradient));
+		}
+	}
+	return(0.0);
+} /* end getBandMeanSquares */
+
 /*------------------------------------------------------------------*/
 private double getBilinearMeanSquares (
 	final double[][] matrix
@@ -7265,13 +7644,13 @@ private double getBilinearMeanSquares (
 	long area = 0L;
 	int xMsk;
 	int yMsk;
-	int k = 0;
+	int k = firstRow * outNx;
 	if (inMsk == null) {
-		yx = matrix[0][0];
-		yy = matrix[1][0];
-		yxy = 0.0;
-		yyy = 0.0;
-		for (int v = 0; (v < outNy); v++) {
+		yx = matrix[0][0] + (double)firstRow * matrix[0][2];
+		yy = matrix[1][0] + (double)firstRow * matrix[1][2];
+		yxy = (double)firstRow * matrix[0][3];
+		yyy = (double)firstRow * matrix[1][3];
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -7303,11 +7682,11 @@ private double getBilinearMeanSquares (
 		}
 	}
 	else {
-		yx = matrix[0][0];
-		yy = matrix[1][0];
-		yxy = 0.0;
-		yyy = 0.0;
-		for (int v = 0; (v < outNy); v++) {
+		yx = matrix[0][0] + (double)firstRow * matrix[0][2];
+		yy = matrix[1][0] + (double)firstRow * matrix[1][2];
+		yxy = (double)firstRow * matrix[0][3];
+		yyy = (double)firstRow * matrix[1][3];
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -7339,6 +7718,7 @@ private double getBilinearMeanSquares (
 			yyy += matrix[1][3];
 		}
 	}
+	bandArea = area;
 	return(meanSquares / (double)area);
 } /* getBilinearMeanSquares */
 
@@ -7374,7 +7754,7 @@ private double getBilinearMeanSquares (
 	long area = 0L;
 	int xMsk;
 	int yMsk;
-	int k = 0;
+	int k = firstRow * outNx;
 	computeBilinearGradientConstants();
 	for (int i = 0; (i < transformation); i++) {
 		gradient[i] = 0.0;
@@ -7383,11 +7763,11 @@ private double getBilinearMeanSquares (
 		}
 	}
 	if (inMsk == null) {
-		yx = matrix[0][0];
-		yy = matrix[1][0];
-		yxy = 0.0;
-		yyy = 0.0;
-		for (int v = 0; (v < outNy); v++) {
+		yx = matrix[0][0] + (double)firstRow * matrix[0][2];
+		yy = matrix[1][0] + (double)firstRow * matrix[1][2];
+		yxy = (double)firstRow * matrix[0][3];
+		yyy = (double)firstRow * matrix[1][3];
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -7478,11 +7858,11 @@ private double getBilinearMeanSquares (
 		}
 	}
 	else {
-		yx = matrix[0][0];
-		yy = matrix[1][0];
-		yxy = 0.0;
-		yyy = 0.0;
-		for (int v = 0; (v < outNy); v++) {
+		yx = matrix[0][0] + (double)firstRow * matrix[0][2];
+		yy = matrix[1][0] + (double)firstRow * matrix[1][2];
+		yxy = (double)firstRow * matrix[0][3];
+		yyy = (double)firstRow * matrix[1][3];
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -7578,9 +7958,80 @@ private double getBilinearMeanSquares (
 			hessian[i][j] = hessian[j][i];
 		}
 	}
+	bandArea = area;
 	return(meanSquares / (double)area);
 } /* getBilinearMeanSquares */
 
+/*------------------------------------------------------------------*/
+private double getMeanSquares (
+	final double[][] sourcePoint,
+	final double[][] matrix,
+	final double[][] hessian,
+	final double[] gradient
+) {
+	final int bands = (outNy + BAND_HEIGHT - 1) / BAND_HEIGHT;
+	final double[] bandMeanSquares = new double[bands];
+	final long[] bandAreas = new long[bands];
+	final double[][] bandGradient = new double[bands][];
+	final double[][][] bandHessian = new double[bands][][];
+	new turboRegLines() {
+		protected void processLine (
+			final int band,
+			final double[] in,
+			final double[] out
+		) {
+			final turboRegTransform tt = new turboRegTransform(
+				turboRegTransform.this, band * BAND_HEIGHT,
+				Math.min(outNy, (band + 1) * BAND_HEIGHT));
+			if (gradient != null) {
+				bandGradient[band] = new double[gradient.length];
+			}
+			if (hessian != null) {
+				bandHessian[band] = new double[hessian.length][];
+				for (int i = 0; (i < hessian.length); i++) {
+					bandHessian[band][i] = new double[hessian[i].length];
+				}
+			}
+			bandMeanSquares[band] = tt.getBandMeanSquares(sourcePoint, matrix,
+				bandHessian[band], bandGradient[band]);
+			bandAreas[band] = tt.bandArea;
+		}
+	}.processLines(null, bands, 0, 0, threads, pool);
+	double meanSquares = 0.0;
+	long area = 0L;
+	if (gradient != null) {
+		for (int i = 0; (i < gradient.length); i++) {
+			gradient[i] = 0.0;
+		}
+	}
+	if (hessian != null) {
+		for (int i = 0; (i < hessian.length); i++) {
+			for (int j = 0; (j < hessian[i].length); j++) {
+				hessian[i][j] = 0.0;
+			}
+		}
+	}
+	for (int band = 0; (band < bands); band++) {
+		if (0L < bandAreas[band]) {
+			meanSquares += (double)bandAreas[band] * bandMeanSquares[band];
+			area += bandAreas[band];
+		}
+		if (gradient != null) {
+			for (int i = 0; (i < gradient.length); i++) {
+				gradient[i] += bandGradient[band][i];
+			}
+		}
+		if (hessian != null) {
+			for (int i = 0; (i < hessian.length); i++) {
+				for (int j = 0; (j < hessian[i].length); j++) {
+					hessian[i][j] += bandHessian[band][i][j];
+				}
+			}
+		}
+	}
+	return(meanSquares / (double)area);
+} /* end getMeanSquares */
+
 /*------------------------------------------------------------------*/
 private double getRigidBodyMeanSquares (
 	final double[][] matrix
@@ -7594,11 +8045,11 @@ private double getRigidBodyMeanSquares (
 	long area = 0L;
 	int xMsk;
 	int yMsk;
-	int k = 0;
+	int k = firstRow * outNx;
 	if (outMsk == null) {
-		yx = matrix[0][0];
-		yy = matrix[1][0];
-		for (int v = 0; (v < outNy); v++) {
+		yx = matrix[0][0] + (double)firstRow * matrix[0][2];
+		yy = matrix[1][0] + (double)firstRow * matrix[1][2];
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -7628,9 +8079,9 @@ private double getRigidBodyMeanSquares (
 		}
 	}
 	else {
-		yx = matrix[0][0];
-		yy = matrix[1][0];
-		for (int v = 0; (v < outNy); v++) {
+		yx = matrix[0][0] + (double)firstRow * matrix[0][2];
+		yy = matrix[1][0] + (double)firstRow * matrix[1][2];
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -7659,6 +8110,7 @@ private double getRigidBodyMeanSquares (
 			yy += matrix[1][2];
 		}
 	}
+	bandArea = area;
 	return(meanSquares / (double)area);
 } /* getRigidBodyMeanSquares */
 
@@ -7677,14 +8129,14 @@ private double getRigidBodyMeanSquares (
 	long area = 0L;
 	int xMsk;
 	int yMsk;
-	int k = 0;
+	int k = firstRow * outNx;
 	for (int i = 0; (i < transformation); i++) {
 		gradient[i] = 0.0;
 	}
 	if (outMsk == null) {
-		yx = matrix[0][0];
-		yy = matrix[1][0];
-		for (int v = 0; (v < outNy); v++) {
+		yx = matrix[0][0] + (double)firstRow * matrix[0][2];
+		yy = matrix[1][0] + (double)firstRow * matrix[1][2];
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -7718,9 +8170,9 @@ private double getRigidBodyMeanSquares (
 		}
 	}
 	else {
-		yx = matrix[0][0];
-		yy = matrix[1][0];
-		for (int v = 0; (v < outNy); v++) {
+		yx = matrix[0][0] + (double)firstRow * matrix[0][2];
+		yy = matrix[1][0] + (double)firstRow * matrix[1][2];
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -7753,6 +8205,7 @@ private double getRigidBodyMeanSquares (
 			yy += matrix[1][2];
 		}
 	}
+	bandArea = area;
 	return(meanSquares / (double)area);
 } /* getRigidBodyMeanSquares */
 
@@ -7772,7 +8225,7 @@ private double getRigidBodyMeanSquares (
 	long area = 0L;
 	int xMsk;
 	int yMsk;
-	int k = 0;
+	int k = firstRow * outNx;
 	for (int i = 0; (i < transformation); i++) {
 		gradient[i] = 0.0;
 		for (int j = 0; (j < transformation); j++) {
@@ -7780,9 +8233,9 @@ private double getRigidBodyMeanSquares (
 		}
 	}
 	if (outMsk == null) {
-		yx = matrix[0][0];
-		yy = matrix[1][0];
-		for (int v = 0; (v < outNy); v++) {
+		yx = matrix[0][0] + (double)firstRow * matrix[0][2];
+		yy = matrix[1][0] + (double)firstRow * matrix[1][2];
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -7823,9 +8276,9 @@ private double getRigidBodyMeanSquares (
 		}
 	}
 	else {
-		yx = matrix[0][0];
-		yy = matrix[1][0];
-		for (int v = 0; (v < outNy); v++) {
+		yx = matrix[0][0] + (double)firstRow * matrix[0][2];
+		yy = matrix[1][0] + (double)firstRow * matrix[1][2];
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -7870,6 +8323,7 @@ private double getRigidBodyMeanSquares (
 			hessian[i][j] = hessian[j][i];
 		}
 	}
+	bandArea = area;
 	return(meanSquares / (double)area);
 } /* getRigidBodyMeanSquares */
 
@@ -7894,11 +8348,11 @@ private double getScaledRotationMeanSquares (
 	long area = 0L;
 	int xMsk;
 	int yMsk;
-	int k = 0;
+	int k = firstRow * outNx;
 	if (outMsk == null) {
-		yx = matrix[0][0];
-		yy = matrix[1][0];
-		for (int v = 0; (v < outNy); v++) {
+		yx = matrix[0][0] + (double)firstRow * matrix[0][2];
+		yy = matrix[1][0] + (double)firstRow * matrix[1][2];
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -7928,9 +8382,9 @@ private double getScaledRotationMeanSquares (
 		}
 	}
 	else {
-		yx = matrix[0][0];
-		yy = matrix[1][0];
-		for (int v = 0; (v < outNy); v++) {
+		yx = matrix[0][0] + (double)firstRow * matrix[0][2];
+		yy = matrix[1][0] + (double)firstRow * matrix[1][2];
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -7959,6 +8413,7 @@ private double getScaledRotationMeanSquares (
 			yy += matrix[1][2];
 		}
 	}
+	bandArea = area;
 	return(meanSquares / ((double)area * uv2 / targetJacobian));
 } /* getScaledRotationMeanSquares */
 
@@ -8011,14 +8466,14 @@ private double getScaledRotationMeanSquares (
 	long area = 0L;
 	int xMsk;
 	int yMsk;
-	int k = 0;
+	int k = firstRow * outNx;
 	for (int i = 0; (i < transformation); i++) {
 		gradient[i] = 0.0;
 	}
 	if (outMsk == null) {
-		yx = matrix[0][0];
-		yy = matrix[1][0];
-		for (int v = 0; (v < outNy); v++) {
+		yx = matrix[0][0] + (double)firstRow * matrix[0][2];
+		yy = matrix[1][0] + (double)firstRow * matrix[1][2];
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -8064,9 +8519,9 @@ private double getScaledRotationMeanSquares (
 		}
 	}
 	else {
-		yx = matrix[0][0];
-		yy = matrix[1][0];
-		for (int v = 0; (v < outNy); v++) {
+		yx = matrix[0][0] + (double)firstRow * matrix[0][2];
+		yy = matrix[1][0] + (double)firstRow * matrix[1][2];
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -8111,6 +8566,7 @@ private double getScaledRotationMeanSquares (
 			yy += matrix[1][2];
 		}
 	}
+	bandArea = area;
 	return(meanSquares / ((double)area * uv2 / targetJacobian));
 } /* getScaledRotationMeanSquares */
 
@@ -8164,7 +8620,7 @@ private double getScaledRotationMeanSquares (
 	long area = 0L;
 	int xMsk;
 	int yMsk;
-	int k = 0;
+	int k = firstRow * outNx;
 	for (int i = 0; (i < transformation); i++) {
 		gradient[i] = 0.0;
 		for (int j = 0; (j < transformation); j++) {
@@ -8172,9 +8628,9 @@ private double getScaledRotationMeanSquares (
 		}
 	}
 	if (outMsk == null) {
-		yx = matrix[0][0];
-		yy = matrix[1][0];
-		for (int v = 0; (v < outNy); v++) {
+		yx = matrix[0][0] + (double)firstRow * matrix[0][2];
+		yy = matrix[1][0] + (double)firstRow * matrix[1][2];
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -8230,9 +8686,9 @@ private double getScaledRotationMeanSquares (
 		}
 	}
 	else {
-		yx = matrix[0][0];
-		yy = matrix[1][0];
-		for (int v = 0; (v < outNy); v++) {
+		yx = matrix[0][0] + (double)firstRow * matrix[0][2];
+		yy = matrix[1][0] + (double)firstRow * matrix[1][2];
+		for (int v = firstRow; (v < lastRow); v++) {
 			x0 = yx;
 			y0 = yy;
 			for (int u = 0; (u < outNx); u++, k++) {
@@ -8292,6 +8748,7 @@ private double getScaledRotationMeanSquares (
 			hessian[i][j] = hessian[j][i];
 		}
 	}
+	bandArea = area;
 	return(meanSquares / ((double)area * uv2 / targetJacobian));
 } /* getScaledRotationMeanSquares */
 
@@ -8455,13 +8912,14 @@ private double getTranslationMeanSquares (
 	long area = 0L;
 	int xMsk;
 	int yMsk;
-	int k = 0;
+	int k = firstRow * outNx;
 	x = dx - Math.floor(dx);
 	y = dy - Math.floor(dy);
 	xWeights();
 	yWeights();
+	dy += (double)firstRow;
 	if (outMsk == null) {
-		for (int v = 0; (v < outNy); v++) {
+		for (int v = firstRow; (v < lastRow); v++) {
 			y = dy++;
 			yMsk = (0.0 <= y) ? ((int)(y + 0.5)) : ((int)(y - 0.5));
 			if ((0 <= yMsk) && (yMsk < inNy)) {
@@ -8487,7 +8945,7 @@ private double getTranslationMeanSquares (
 		}
 	}
 	else {
-		for (int v = 0; (v < outNy); v++) {
+		for (int v = firstRow; (v < lastRow); v++) {
 			y = dy++;
 			yMsk = (0.0 <= y) ? ((int)(y + 0.5)) : ((int)(y - 0.5));
 			if ((0 <= yMsk) && (yMsk < inNy)) {
@@ -8512,6 +8970,7 @@ private double getTranslationMeanSquares (
 			}
 		}
 	}
+	bandArea = area;
 	return(meanSquares / (double)area);
 } /* end getTranslationMeanSquares */
 
@@ -8528,7 +8987,7 @@ private double getTranslationMeanSquares (
 	long area = 0L;
 	int xMsk;
 	int yMsk;
-	int k = 0;
+	int k = firstRow * outNx;
 	for (int i = 0; (i < transformation); i++) {
 		gradient[i] = 0.0;
 	}
@@ -8536,8 +8995,9 @@ private double getTranslationMeanSquares (
 	y = dy - Math.floor(dy);
 	xWeights();
 	yWeights();
+	dy += (double)firstRow;
 	if (outMsk == null) {
-		for (int v = 0; (v < outNy); v++) {
+		for (int v = firstRow; (v < lastRow); v++) {
 			y = dy++;
 			yMsk = (0.0 <= y) ? ((int)(y + 0.5)) : ((int)(y - 0.5));
 			if ((0 <= yMsk) && (yMsk < inNy)) {
@@ -8565,7 +9025,7 @@ private double getTranslationMeanSquares (
 		}
 	}
 	else {
-		for (int v = 0; (v < outNy); v++) {
+		for (int v = firstRow; (v < lastRow); v++) {
 			y = dy++;
 			yMsk = (0.0 <= y) ? ((int)(y + 0.5)) : ((int)(y - 0.5));
 			if ((0 <= yMsk) && (yMsk < inNy)) {
@@ -8592,6 +9052,7 @@ private double getTranslationMeanSquares (
 			}
 		}
 	}
+	bandArea = area;
 	return(meanSquares / (double)area);
 } /* end getTranslationMeanSquares */
 
@@ -8609,7 +9070,7 @@ private double getTranslationMeanSquares (
 	long area = 0L;
 	int xMsk;
 	int yMsk;
-	int k = 0;
+	int k = firstRow * outNx;
 	for (int i = 0; (i < transformation); i++) {
 		gradient[i] = 0.0;
 		for (int j = 0; (j < transformation); j++) {
@@ -8620,8 +9081,9 @@ private double getTranslationMeanSquares (
 	y = dy - Math.floor(dy);
 	xWeights();
 	yWeights();
+	dy += (double)firstRow;
 	if (outMsk == null) {
-		for (int v = 0; (v < outNy); v++) {
+		for (int v = firstRow; (v < lastRow); v++) {
 			y = dy++;
 			yMsk = (0.0 <= y) ? ((int)(y + 0.5)) : ((int)(y - 0.5));
 			if ((0 <= yMsk) && (yMsk < inNy)) {
@@ -8652,7 +9114,7 @@ private double getTranslationMeanSquares (
 		}
 	}
 	else {
-		for (int v = 0; (v < outNy); v++) {
+		for (int v = firstRow; (v < lastRow); v++) {
 			y = dy++;
 			yMsk = (0.0 <= y) ? ((int)(y + 0.5)) : ((int)(y - 0.5));
 			if ((0 <= yMsk) && (yMsk < inNy)) {
@@ -8687,6 +9149,7 @@ private double getTranslationMeanSquares (
 			hessian[i][j] = hessian[j][i];
 		}
 	}
+	bandArea = area;
 	return(meanSquares / (double)area);
 } /* end getTranslationMeanSquares */
 
@@ -8752,17 +9215,16 @@ private void inverseMarquardtLevenbergOptimization (
 	int iteration = 0;
 	switch (transformation) {
 		case turboRegDialog.TRANSLATION: {
-			bestMeanSquares = getTranslationMeanSquares(
-				matrix, hessian, gradient);
+			bestMeanSquares = getMeanSquares(null, matrix, hessian, gradient);
 			break;
 		}
 		case turboRegDialog.SCALED_ROTATION: {
-			bestMeanSquares = getScaledRotationMeanSquares(
+			bestMeanSquares = getMeanSquares(
 				sourcePoint, matrix, hessian, gradient);
 			break;
 		}
 		case turboRegDialog.AFFINE: {
-			bestMeanSquares = getAffineMeanSquares(
+			bestMeanSquares = getMeanSquares(
 				sourcePoint, matrix, hessian, gradient);
 			break;
 		}
@@ -8786,33 +9248,33 @@ private void inverseMarquardtLevenbergOptimization (
 		switch (transformation) {
 			case turboRegDialog.TRANSLATION: {
 				if (accelerated) {
-					meanSquares = getTranslationMeanSquares(
-						matrix, gradient);
+					meanSquares = getMeanSquares(
+						null, matrix, null, gradient);
 				}
 				else {
-					meanSquares = getTranslationMeanSquares(
-						matrix, hessian, gradient);
+					meanSquares = getMeanSquares(
+						null, matrix, hessian, gradient);
 				}
 				break;
 			}
 			case turboRegDialog.SCALED_ROTATION: {
 				if (accelerated) {
-					meanSquares = getScaledRotationMeanSquares(
-						attempt, matrix, gradient);
+					meanSquares = getMeanSquares(
+						attempt, matrix, null, gradient);
 				}
 				else {
-					meanSquares = getScaledRotationMeanSquares(
+					meanSquares = getMeanSquares(
 						attempt, matrix, hessian, gradient);
 				}
 				break;
 			}
 			case turboRegDialog.AFFINE: {
 				if (accelerated) {
-					meanSquares = getAffineMeanSquares(
-						attempt, matrix, gradient);
+					meanSquares = getMeanSquares(
+						attempt, matrix, null, gradient);
 				}
 				else {
-					meanSquares = getAffineMeanSquares(
+					meanSquares = getMeanSquares(
 						attempt, matrix, hessian, gradient);
 				}
 				break;
@@ -8843,15 +9305,15 @@ private void inverseMarquardtLevenbergOptimization (
 	matrix = getTransformationMatrix(attempt, targetPoint);
 	switch (transformation) {
 		case turboRegDialog.TRANSLATION: {
-			meanSquares = getTranslationMeanSquares(matrix);
+			meanSquares = getMeanSquares(null, matrix, null, null);
 			break;
 		}
 		case turboRegDialog.SCALED_ROTATION: {
-			meanSquares = getScaledRotationMeanSquares(attempt, matrix);
+			meanSquares = getMeanSquares(attempt, matrix, null, null);
 			break;
 		}
 		case turboRegDialog.AFFINE: {
-			meanSquares = getAffineMeanSquares(attempt, matrix);
+			meanSquares = getMeanSquares(attempt, matrix, null, null);
 			break;
 		}
 	}
@@ -8890,7 +9352,7 @@ private void inverseMarquardtLevenbergRigidBodyOptimization (
 			+ targetPoint[k][1] * matrix[1][2];
 	}
 	matrix = getTransformationMatrix(sourcePoint, targetPoint);
-	bestMeanSquares = getRigidBodyMeanSquares(matrix, hessian, gradient);
+	bestMeanSquares = getMeanSquares(null, matrix, hessian, gradient);
 	iteration++;
 	do {
 		for (int k = 0; (k < transformation); k++) {
@@ -8913,10 +9375,10 @@ private void inverseMarquardtLevenbergRigidBodyOptimization (
 			+ 0.25 * Math.sqrt((double)(inNx * inNx) + (double)(inNy * inNy))
 			* Math.abs(update[0]);
 		if (accelerated) {
-			meanSquares = getRigidBodyMeanSquares(attempt, gradient);
+			meanSquares = getMeanSquares(null, attempt, null, gradient);
 		}
 		else {
-			meanSquares = getRigidBodyMeanSquares(attempt, hessian, gradient);
+			meanSquares = getMeanSquares(null, attempt, hessian, gradient);
 		}
 		iteration++;
 		if (meanSquares < bestMeanSquares) {
@@ -8948,7 +9410,7 @@ private void inverseMarquardtLevenbergRigidBodyOptimization (
 		- (matrix[1][0] + update[2]) * s;
 	attempt[1][0] = (matrix[0][0] + update[1]) * s
 		+ (matrix[1][0] + update[2]) * c;
-	meanSquares = getRigidBodyMeanSquares(attempt);
+	meanSquares = getMeanSquares(null, attempt, null, null);
 	iteration++;
 	if (meanSquares < bestMeanSquares) {
 		for (int i = 0; (i < 2); i++) {
@@ -9056,7 +9518,7 @@ private void MarquardtLevenbergOptimization (
 	double lambda = FIRST_LAMBDA;
 	double displacement;
 	int iteration = 0;
-	bestMeanSquares = getBilinearMeanSquares(matrix, hessian, gradient);
+	bestMeanSquares = getMeanSquares(null, matrix, hessian, gradient);
 	iteration++;
 	do {
 		for (int k = 0; (k < transformation); k++) {
@@ -9073,7 +9535,7 @@ private void MarquardtLevenbergOptimization (
 		}
 		displacement /= 0.5 * (double)transformation;
 		matrix = getTransformationMatrix(targetPoint, attempt);
-		meanSquares = getBilinearMeanSquares(matrix, hessian, gradient);
+		meanSquares = getMeanSquares(null, matrix, hessian, gradient);
 		iteration++;
 		if (meanSquares < bestMeanSquares) {
 			bestMeanSquares = meanSquares;
@@ -9097,7 +9559,7 @@ private void MarquardtLevenbergOptimization (
 		attempt[k][1] = sourcePoint[k][1] - update[2 * k + 1];
 	}
 	matrix = getTransformationMatrix(targetPoint, attempt);
-	meanSquares = getBilinearMeanSquares(matrix);
+	meanSquares = getMeanSquares(null, matrix, null, null);
 	iteration++;
 	if (meanSquares < bestMeanSquares) {
 		for (int k = 0; (k < (transformation / 2)); k++) {
@@ -9123,6 +9585,178 @@ private double[] matrixMultiply (
 	return(result);
 } /* end matrixMultiply */
 
+/*------------------------------------------------------------------*/
+private void refineLandmarks (
+) {
+	Stack sourceImgPyramid;
+	Stack sourceMskPyramid;
+	Stack targetImgPyramid;
+	Stack targetMskPyramid;
+	if (sourceMsk == null) {
+		sourceImgPyramid = sourceImg.getPyramid();
+		sourceMskPyramid = null;
+		targetImgPyramid = (Stack)targetImg.getPyramid().clone();
+		targetMskPyramid = (Stack)targetMsk.getPyramid().clone();
+	}
+	else {
+		sourceImgPyramid = sourceImg.getPyramid();
+		sourceMskPyramid = sourceMsk.getPyramid();
+		targetImgPyramid = targetImg.getPyramid();
+		targetMskPyramid = targetMsk.getPyramid();
+	}
+	pyramidDepth = targetImg.getPyramidDepth();
+	iterationPower = (int)Math.pow(
+		(double)ITERATION_PROGRESSION, (double)pyramidDepth);
+	turboRegProgressBar.addWorkload(
+		pyramidDepth * maxIterations * iterationPower
+		/ ITERATION_PROGRESSION
+		- (iterationPower - 1) / (ITERATION_PROGRESSION - 1));
+	iterationCost = 1;
+	scaleBottomDownLandmarks();
+	while (!targetImgPyramid.isEmpty()) {
+		iterationPower /= ITERATION_PROGRESSION;
+		if (transformation == turboRegDialog.BILINEAR) {
+			inNx = ((Integer)sourceImgPyramid.pop()).intValue();
+			inNy = ((Integer)sourceImgPyramid.pop()).intValue();
+			inImg = (float[])sourceImgPyramid.pop();
+			if (sourceMskPyramid == null) {
+				inMsk = null;
+			}
+			else {
+				inMsk = (float[])sourceMskPyramid.pop();
+			}
+			outNx = ((Integer)targetImgPyramid.pop()).intValue();
+			outNy = ((Integer)targetImgPyramid.pop()).intValue();
+			outImg = (float[])targetImgPyramid.pop();
+			outMsk = (float[])targetMskPyramid.pop();
+		}
+		else {
+			inNx = ((Integer)targetImgPyramid.pop()).intValue();
+			inNy = ((Integer)targetImgPyramid.pop()).intValue();
+			inImg = (float[])targetImgPyramid.pop();
+			inMsk = (float[])targetMskPyramid.pop();
+			outNx = ((Integer)sourceImgPyramid.pop()).intValue();
+			outNy = ((Integer)sourceImgPyramid.pop()).intValue();
+			outImg = (float[])sourceImgPyramid.pop();
+			xGradient = (float[])sourceImgPyramid.pop();
+			yGradient = (float[])sourceImgPyramid.pop();
+			if (sourceMskPyramid == null) {
+				outMsk = null;
+			}
+			else {
+				outMsk = (float[])sourceMskPyramid.pop();
+			}
+		}
+		twiceInNx = 2 * inNx;
+		twiceInNy = 2 * inNy;
+		switch (transformation) {
+			case turboRegDialog.TRANSLATION: {
+				targetJacobian = 1.0;
+				inverseMarquardtLevenbergOptimization(
+					iterationPower * maxIterations - 1);
+				break;
+			}
+			case turboRegDialog.RIGID_BODY: {
+				inverseMarquardtLevenbergRigidBodyOptimization(
+					iterationPower * maxIterations - 1);
+				break;
+			}
+			case turboRegDialog.SCALED_ROTATION: {
+				targetJacobian = (targetPoint[0][0] - targetPoint[1][0])
+					* (targetPoint[0][0] - targetPoint[1][0])
+					+ (targetPoint[0][1] - targetPoint[1][1])
+					* (targetPoint[0][1] - targetPoint[1][1]);
+				inverseMarquardtLevenbergOptimization(
+					iterationPower * maxIterations - 1);
+				break;
+			}
+			case turboRegDialog.AFFINE: {
+				targetJacobian = (targetPoint[1][0] - targetPoint[2][0])
+					* targetPoint[0][1]
+					+ (targetPoint[2][0] - targetPoint[0][0])
+					* targetPoint[1][1]
+					+ (targetPoint[0][0] - targetPoint[1][0])
+					* targetPoint[2][1];
+				inverseMarquardtLevenbergOptimization(
+					iterationPower * maxIterations - 1);
+				break;
+			}
+			case turboRegDialog.BILINEAR: {
+				MarquardtLevenbergOptimization(
+					iterationPower * maxIterations - 1);
+				break;
+			}
+		}
+		scaleUpLandmarks();
+		sourcePh.setPoints(sourcePoint);
+		iterationCost *= ITERATION_PROGRESSION;
+	}
+	iterationPower /= ITERATION_PROGRESSION;
+	if (transformation == turboRegDialog.BILINEAR) {
+		inNx = sourceImg.getWidth();
+		inNy = sourceImg.getHeight();
+		inImg = sourceImg.getCoefficient();
+		if (sourceMsk == null) {
+			inMsk = null;
+		}
+		else {
+			inMsk = sourceMsk.getMask();
+		}
+		outNx = targetImg.getWidth();
+		outNy = targetImg.getHeight();
+		outImg = targetImg.getImage();
+		outMsk = targetMsk.getMask();
+	}
+	else {
+		inNx = targetImg.getWidth();
+		inNy = targetImg.getHeight();
+		inImg = targetImg.getCoefficient();
+		inMsk = targetMsk.getMask();
+		outNx = sourceImg.getWidth();
+		outNy = sourceImg.getHeight();
+		outImg = sourceImg.getImage();
+		xGradient = sourceImg.getXGradient();
+		yGradient = sourceImg.getYGradient();
+		if (sourceMsk == null) {
+			outMsk = null;
+		}
+		else {
+			outMsk = sourceMsk.getMask();
+		}
+	}
+	twiceInNx = 2 * inNx;
+	twiceInNy = 2 * inNy;
+	if (accelerated) {
+		turboRegProgressBar.skipProgressBar(
+			iterationCost * (maxIterations - 1));
+	}
+	else {
+		switch (transformation) {
+			case turboRegDialog.RIGID_BODY: {
+				inverseMarquardtLevenbergRigidBodyOptimization(
+					maxIterations - 1);
+				break;
+			}
+			case turboRegDialog.TRANSLATION:
+			case turboRegDialog.SCALED_ROTATION:
+			case turboRegDialog.AFFINE: {
+				inverseMarquardtLevenbergOptimization(maxIterations - 1);
+				break;
+			}
+			case turboRegDialog.BILINEAR: {
+				MarquardtLevenbergOptimization(maxIterations - 1);
+				break;
+			}
+		}
+	}
+	sourcePh.setPoints(sourcePoint);
+	iterationPower = (int)Math.pow(
+		(double)ITERATION_PROGRESSION, (double)pyramidDepth);
+	turboRegProgressBar.workloadDone(
+		pyramidDepth * maxIterations * iterationPower / ITERATION_PROGRESSION
+		- (iterationPower - 1) / (ITERATION_PROGRESSION - 1));
+} /* end refineLandmarks */
+
 /*------------------------------------------------------------------*/
 private void scaleBottomDownLandmarks (
 ) {
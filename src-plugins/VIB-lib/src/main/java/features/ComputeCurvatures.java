@@ -713,7 +713,32 @@ public boolean hessianEigenvaluesAtPoint3D( int x,
             return false;
         }
 
-        FloatArray3D data3D = (FloatArray3D)data;
+        return hessianEigenvaluesAtPoint3D( (FloatArray3D)data,
+                                            x, y, z,
+                                            orderOnAbsoluteSize,
+                                            result,
+                                            normalize,
+                                            fixUp,
+                                            sepX, sepY, sepZ );
+    }
+
+    /* As above, but for a point in data3D (which should already be
+       the Gaussian convolution of the image, or of part of it) rather
+       than in the Gaussian calculated by setup().  This is useful for
+       calculating the eigenvalues for parts of a large image on
+       demand, without calling setup() at all. */
+
+    public boolean hessianEigenvaluesAtPoint3D( FloatArray3D data3D,
+                                                int x,
+                                                int y,
+                                                int z, // zero-indexed
+                                                boolean orderOnAbsoluteSize,
+                                                double [] result, /* should be 3 elements */
+                                                boolean normalize,
+                                                boolean fixUp,
+                                                float sepX,
+                                                float sepY,
+                                                float sepZ ) {
 
         if( fixUp ) {
 
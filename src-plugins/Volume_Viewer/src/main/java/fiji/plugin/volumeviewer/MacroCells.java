@@ -0,0 +1,226 @@
+/*
+ * Volume Viewer 2.01
+ * 01.12.2012
+ *
+ * (C) Kai Uwe Barthel
+ */
+
+package fiji.plugin.volumeviewer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A coarse grid of cells of 8x8x8 voxels over the volume. For each cell it
+ * keeps the smallest and largest value that the interpolation can use for a
+ * sample inside the cell, for each of the data arrays the transfer functions
+ * look at. The min/max values are calculated once per volume (when first
+ * needed), and from them and the transfer function the cells are marked in
+ * which every sample is fully transparent, so that a ray can step over them.
+ */
+class MacroCells {
+
+	static final int SHIFT = 3; 	// cells of 8 voxels
+	static final int SIZE = 1 << SHIFT;
+
+	final Volume vol;
+	final int nx, ny, nz;
+
+	// smallest and largest values per cell, null until needed
+	private byte[][] dataMinMax, gradMinMax, meanMinMax, diffMinMax;
+
+	// the cells in which all samples are transparent, null if no cells may be skipped
+	private boolean[] empty;
+
+	MacroCells(Volume vol) {
+		this.vol = vol;
+		// samples may lie on the far border of the volume, x <= widthV
+		nx = (vol.widthV  >> SHIFT) + 1;
+		ny = (vol.heightV >> SHIFT) + 1;
+		nz = (vol.depthV  >> SHIFT) + 1;
+	}
+
+	/**
+	 * Marks the cells that are transparent with the current transfer function.
+	 * Returns false if no cells can be skipped, which is the case for the
+	 * painted alpha (ALPHA4), which changes while painting, and for the
+	 * tricubic polynomial interpolation, which may overshoot the values it
+	 * interpolates.
+	 */
+	boolean update(int alphaMode, int interpolationMode, float[] a1_R, float[][] a2_R, float[][] a3_R) {
+		empty = null;
+		if (interpolationMode == Control.TRICUBIC_POLYNOMIAL)
+			return false;
+
+		boolean[] e = new boolean[nx*ny*nz];
+		if (alphaMode == Control.ALPHA1) {
+			if (dataMinMax == null)
+				dataMinMax = minMax(vol.data3D[0]);
+			// number of values below i with alpha > 0
+			int[] visible = new int[257];
+			for (int i = 0; i < 256; i++)
+				visible[i+1] = visible[i] + (a1_R[i] > 0 ? 1 : 0);
+			byte[] min = dataMinMax[0], max = dataMinMax[1];
+			for (int i = 0; i < e.length; i++) {
+				int lo = low(min[i], 255), hi = high(max[i], 255);
+				e[i] = visible[hi+1] - visible[lo] == 0;
+			}
+		}
+		else if (alphaMode == Control.ALPHA2 || alphaMode == Control.ALPHA3) {
+			byte[][] mm1, mm2;
+			float[][] a;
+			if (alphaMode == Control.ALPHA2) {
+				if (dataMinMax == null)
+					dataMinMax = minMax(vol.data3D[0]);
+				if (gradMinMax == null)
+					gradMinMax = minMax(vol.grad3D);
+				mm1 = dataMinMax;
+				mm2 = gradMinMax;
+				a = a2_R;
+			}
+			else {
+				if (meanMinMax == null)
+					meanMinMax = minMax(vol.mean3D);
+				if (diffMinMax == null)
+					diffMinMax = minMax(vol.diff3D);
+				mm1 = meanMinMax;
+				mm2 = diffMinMax;
+				a = a3_R;
+			}
+			// summed area table of the entries with alpha > 0
+			int[][] visible = new int[257][129];
+			for (int x = 0; x < 256; x++)
+				for (int y = 0; y < 128; y++)
+					visible[x+1][y+1] = visible[x][y+1] + visible[x+1][y] - visible[x][y] + (a[x][y] > 0 ? 1 : 0);
+			for (int i = 0; i < e.length; i++) {
+				int lo1 = low(mm1[0][i], 255), hi1 = high(mm1[1][i], 255);
+				// the gradient and difference are cut at 127 by the renderer
+				int lo2 = low(mm2[0][i], 127), hi2 = high(mm2[1][i], 127);
+				e[i] = visible[hi1+1][hi2+1] - visible[lo1][hi2+1] - visible[hi1+1][lo2] + visible[lo1][lo2] == 0;
+			}
+		}
+		else
+			return false;
+
+		empty = e;
+		return true;
+	}
+
+	/*
+	 * The interpolated values lie between the smallest and the largest value used,
+	 * allowing for one of rounding.
+	 */
+	private static int low(byte min, int limit) {
+		return Math.min(limit, Math.max(0, (0xFF & min) - 1));
+	}
+
+	private static int high(byte max, int limit) {
+		return Math.min(limit, (0xFF & max) + 1);
+	}
+
+	/**
+	 * Returns how many samples on the ray, starting with the one at (x,y,z) and
+	 * going in steps of (dx,dy,dz), are inside the cell of the sample, if this
+	 * cell is transparent. Returns 0 if it is not. The position has to be inside
+	 * the volume.
+	 */
+	final int emptySamples(float x, float y, float z, float dx, float dy, float dz) {
+		int cx = (int)x >> SHIFT;
+		int cy = (int)y >> SHIFT;
+		int cz = (int)z >> SHIFT;
+		if (!empty[(cz*ny + cy)*nx + cx])
+			return 0;
+		float t = Math.min(steps(x, cx, dx), Math.min(steps(y, cy, dy), steps(z, cz, dz)));
+		int n = (int) t;
+		return (n < 1) ? 1 : n;
+	}
+
+	// the number of steps until the position leaves cell c
+	private static float steps(float p, int c, float d) {
+		if (d > 0)
+			return (((c+1) << SHIFT) - p) / d;
+		if (d < 0)
+			return ((c << SHIFT) - p) / d;
+		return Float.MAX_VALUE;
+	}
+
+	/**
+	 * Calculates the smallest and largest values of a (padded) data array used
+	 * for samples in each cell. A sample at x uses the voxels (int)(x+0.5)-2
+	 * to (int)(x+0.5)+1 for the tricubic spline, fewer for the other
+	 * interpolations. With the two voxels of padding, these are the array entries
+	 * from 8*c to 8*c+11 for cell c, which lie in the blocks of 8 entries c and c+1.
+	 * So the min and max of each block of the array are found first, in parallel
+	 * over the z blocks, and each cell takes them from 2x2x2 blocks.
+	 */
+	private byte[][] minMax(final byte[][][] data) {
+		final int bz = (data.length + SIZE-1) >> SHIFT;
+		final int by = (data[0].length + SIZE-1) >> SHIFT;
+		final int bx = (data[0][0].length + SIZE-1) >> SHIFT;
+		final byte[] bMin = new byte[bx*by*bz];
+		final byte[] bMax = new byte[bx*by*bz];
+
+		final AtomicInteger nextZ = new AtomicInteger(0);
+		Thread[] threads = new Thread[Math.min(bz, Runtime.getRuntime().availableProcessors())];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					for (int z = nextZ.getAndIncrement(); z < bz; z = nextZ.getAndIncrement()) {
+						int b0 = z*by*bx;
+						for (int i = b0; i < b0 + by*bx; i++) {
+							bMin[i] = (byte)255;
+							bMax[i] = 0;
+						}
+						int zEnd = Math.min(data.length, (z+1) << SHIFT);
+						for (int zi = z << SHIFT; zi < zEnd; zi++) {
+							for (int yi = 0; yi < data[zi].length; yi++) {
+								byte[] row = data[zi][yi];
+								int b = b0 + (yi >> SHIFT)*bx;
+								for (int xi = 0; xi < row.length; xi++) {
+									int v = 0xFF & row[xi];
+									int i = b + (xi >> SHIFT);
+									if (v < (0xFF & bMin[i])) bMin[i] = (byte)v;
+									if (v > (0xFF & bMax[i])) bMax[i] = (byte)v;
+								}
+							}
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		// all blocks have to be done, so wait even if interrupted
+		boolean interrupted = false;
+		for (int t = 0; t < threads.length; t++) {
+			while (threads[t].isAlive()) {
+				try {
+					threads[t].join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+
+		byte[] min = new byte[nx*ny*nz];
+		byte[] max = new byte[nx*ny*nz];
+		for (int cz = 0; cz < nz; cz++) {
+			for (int cy = 0; cy < ny; cy++) {
+				for (int cx = 0; cx < nx; cx++) {
+					int lo = 255, hi = 0;
+					for (int z = cz; z <= cz+1 && z < bz; z++)
+						for (int y = cy; y <= cy+1 && y < by; y++)
+							for (int x = cx; x <= cx+1 && x < bx; x++) {
+								int i = (z*by + y)*bx + x;
+								lo = Math.min(lo, 0xFF & bMin[i]);
+								hi = Math.max(hi, 0xFF & bMax[i]);
+							}
+					int i = (cz*ny + cy)*nx + cx;
+					min[i] = (byte)lo;
+					max[i] = (byte)hi;
+				}
+			}
+		}
+		return new byte[][] {min, max};
+	}
+}
@@ -15,6 +15,10 @@
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.SwingWorker;
 import javax.swing.UIManager;
@@ -561,7 +565,10 @@ public void render_SliceAndBorders(){
 		updateImage();
 	}
 
-	private int maxThreads = 8;
+	private int maxThreads = Runtime.getRuntime().availableProcessors();
+	// edge length of the tiles rendered by the threads
+	private static final int TILE_SIZE = 32;
+	private MacroCells macroCells;
 	private int numThreads = 1;
 	private int subMax;
 	private int counter = 0;
@@ -578,7 +585,7 @@ public void render_volume(int sub){
 		if (control.LOG) System.out.println("render volume, sub: " + sub);
 		
 		isRendering = true;
-		counter = numThreads = (sub == subMax) ? 1 : maxThreads;
+		counter = numThreads = maxThreads;
 		
 		setPixelsToZero();
 
@@ -656,27 +663,58 @@ else if (control.alphaMode == Control.ALPHA3) {
 		volData3D = vv.vol.data3D[0];
 		
 		ySmin = (ySmin/sub)*sub;
-		int stripHeight = (ySmax-ySmin) / numThreads;
-		stripHeight = (stripHeight/sub) *sub;
-		int stripStart = ySmin;
 
 		isRGB = control.isRGB && control.lutNr == 0;
-		
-		for(int i = 0; i < numThreads-1; i++, stripStart += stripHeight) 
-			new RenderCalculations(sub, nd, dxV, dyV, dzV, xSmin, xSmax, stripStart, stripStart+stripHeight, zSmin).execute();
-		new RenderCalculations(sub, nd, dxV, dyV, dzV, xSmin, xSmax, stripStart, stripStart+stripHeight, zSmin).execute();
+
+		// find the cells of the volume which the rays can step over
+		if (macroCells == null || macroCells.vol != vv.vol)
+			macroCells = new MacroCells(vv.vol);
+		boolean skipEmpty = macroCells.update(control.alphaMode, actualInterpolationMode, vv.a1_R, vv.a2_R, vv.a3_R);
+
+		// start of the first ray (xSmin ySmin zSmin) in volume coordinates, and its change from pixel to pixel
+		int s_2 = sub/2;
+		float[] xyzV = vv.trScreen2Vol(xSmin+s_2, ySmin+s_2, zSmin);
+		float[] xyzVx = vv.trScreen2Vol(xSmin+s_2+1, ySmin+s_2, zSmin);
+		float[] xyzVy = vv.trScreen2Vol(xSmin+s_2, ySmin+s_2+1, zSmin);
+		float[] rayStart = {xyzV[0], xyzV[1], xyzV[2], 
+				xyzVx[0] - xyzV[0], xyzVx[1] - xyzV[1], xyzVx[2] - xyzV[2],
+				xyzVy[0] - xyzV[0], xyzVy[1] - xyzV[1], xyzVy[2] - xyzV[2]};
+
+		// the threads take square tiles (a multiple of sub wide) in turn 
+		int tileSize = sub * Math.max(1, TILE_SIZE / sub);
+		AtomicInteger nextTile = new AtomicInteger(0);
+		// SwingWorker.execute() would share at most 10 threads with all other workers,
+		// so run the workers on their own pool, whose threads end once the frame is rendered
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		for(int i = 0; i < numThreads; i++) 
+			executor.execute(new RenderCalculations(sub, nd, dxV, dyV, dzV, xSmin, xSmax, ySmin, ySmax, rayStart,
+					tileSize, nextTile, skipEmpty ? macroCells : null));
+		executor.shutdown();
 			
 		control.interpolationMode = actualInterpolationMode;			
 	}
 
 
+	/**
+	 * Renders tiles of the screen area, taking them in turn with the other
+	 * RenderCalculations of the same frame.
+	 */
 	private class RenderCalculations extends SwingWorker<Void, Void> {
 
 		private int sub, nd, xSMin, xSMax, ySMin, ySMax;
-		private float dxV, dyV, dzV, zSMin;
+		private float dxV, dyV, dzV;
+		// volume position of the first ray, and its change from pixel to pixel in x and y
+		private float x0V, y0V, z0V, dxVx, dyVx, dzVx, dxVy, dyVy, dzVy;
+		// the tiles and the next one to be rendered
+		private int xTiles, yTiles, tileSize, nTilesX, nTiles;
+		private AtomicInteger nextTile;
+		// the transparent cells of the volume, or null
+		private MacroCells macroCells;
+		private Random random = new Random();
 		
 		public RenderCalculations(int sub, int nd, float dxV, float dyV, float dzV, 
-				int xSMin, int xSMax, int ySMin, int ySMax, float zSMin) {
+				int xSMin, int xSMax, int ySMin, int ySMax, float[] rayStart,
+				int tileSize, AtomicInteger nextTile, MacroCells macroCells) {
 			this.sub = sub;
 			this.nd = nd;
 			this.dxV = dxV;
@@ -686,7 +724,18 @@ public RenderCalculations(int sub, int nd, float dxV, float dyV, float dzV,
 			this.xSMax = xSMax;
 			this.ySMin = ySMin;
 			this.ySMax = ySMax;
-			this.zSMin = zSMin;
+			x0V  = rayStart[0]; y0V  = rayStart[1]; z0V  = rayStart[2];
+			dxVx = rayStart[3]; dyVx = rayStart[4]; dzVx = rayStart[5];
+			dxVy = rayStart[6]; dyVy = rayStart[7]; dzVy = rayStart[8];
+			this.tileSize = tileSize;
+			xTiles = (xSMin/tileSize)*tileSize;
+			yTiles = (ySMin/tileSize)*tileSize;
+			if (xSMax > xSMin && ySMax > ySMin) {
+				nTilesX = (xSMax-1 - xTiles)/tileSize + 1;
+				nTiles = nTilesX * ((ySMax-1 - yTiles)/tileSize + 1);
+			}
+			this.nextTile = nextTile;
+			this.macroCells = macroCells;
 		}
 
 		@Override
@@ -729,232 +778,243 @@ else if (sub >= 3) {
 		}
 
 		private Void doRendering() {
-			int s_2 = sub/2;
-
-			// Startpunkt xSMin ySMin zSMin (tiefster Punkt) in Screenkoordinaten
-			float[] xyzV = vv.trScreen2Vol(xSMin+s_2, ySMin+s_2, zSMin);
-			float x0V = xyzV[0], y0V = xyzV[1], z0V = xyzV[2]; 
-
-			// inkrementelle Aenderung in Volumenkoordinaten
-			xyzV = vv.trScreen2Vol(xSMin+s_2+1, ySMin+s_2, zSMin);
-			float dxVx = xyzV[0] - x0V, dyVx = xyzV[1] - y0V, dzVx = xyzV[2] - z0V; 
-
-			xyzV = vv.trScreen2Vol(xSMin+s_2, ySMin+s_2+1, zSMin);
-			float dxVy = xyzV[0] - x0V, dyVy = xyzV[1] - y0V, dzVy = xyzV[2] - z0V; 
-
-
-			for (int yS = ySMin; yS < ySMax; yS++) {				
-				for (int j=0, xS = xSMin; xS < xSMax; xS++, j++) {
-					if (doStopRendering) return null;
-					if (vv.cube.isInside(xS, yS)) {
-						if (yS%sub == 0 && xS%sub == 0) {
-							boolean hasBeenInTheVolume = false;
-
-							float rand = (float) (-Math.random());
-							float xV = x0V + j*dxVx + rand*dxV; 
-							float yV = y0V + j*dyVx + rand*dyV; 
-							float zV = z0V + j*dzVx + rand*dzV; 
-
-							int ns = 0;		// check where to start rendering
-							if(xV < 0) 
-								if  (dxV > 0) ns = (int) (-xV / dxV);
-								else continue;
-							else if(xV > vv.vol.widthV) 
-								if (dxV < 0) ns = (int) Math.max(((vv.vol.widthV-xV)/dxV),ns);
-								else continue;
-							if(yV < 0) 
-								if (dyV > 0) ns = (int) Math.max((-yV/dyV), ns);
-								else continue;
-							else if(yV > vv.vol.heightV) 
-								if (dyV < 0) ns = (int) Math.max(((vv.vol.heightV-yV)/dyV), ns);
-								else continue;
-							if(zV < 0) 
-								if (dzV > 0) ns = (int) Math.max((-zV/dzV), ns);
-								else continue;
-							else if(zV > vv.vol.depthV) 
-								if(dzV < 0) ns = (int) Math.max(((vv.vol.depthV-zV)/dzV), ns);
-								else continue;
-
-							xV += ns*dxV;
-							yV += ns*dyV;
-							zV += ns*dzV;		
-
-							float valR = 0, valG=0, valB=0, nx = 0, ny= 0, nz= 0, a, aNext = 1, sumA = 1;
-							int valProj = 0, mean=0, diff=0, rMax=0, gMax=0, bMax=0, val;
-							int[] actLut = null;
-
-							boolean didStartInVolume = false;
-							for (int n = ns; n < nd; n++, xV += dxV, yV += dyV, zV += dzV) {
-								if (xV >= 0 && xV <= vv.vol.widthV && yV >= 0 && yV <= vv.vol.heightV && zV >= 0 && zV <= vv.vol.depthV) { 
-									hasBeenInTheVolume = true;
-									
-									if (control.alphaMode == Control.ALPHA1) {
-										val = interpolation.get(volData3D, zV, yV, xV);
-										a = vv.a1_R[val];
-										if (a == 0) continue;
-										actLut = vv.lookupTable.lut[val];
-									}
-									else if (control.alphaMode == Control.ALPHA2) {
-										val = interpolation.get(volData3D, zV, yV, xV);
-										int grad = Math.min(127,interpolation.get(vv.vol.grad3D, zV, yV, xV));
-										a = vv.a2_R[val][grad];
-										if (a == 0) continue;
-										actLut = vv.lookupTable.lut2D_2[val][grad];
-									}
-									else if (control.alphaMode == Control.ALPHA3) {
-										mean = interpolation.get(vv.vol.mean3D, zV, yV, xV);
-										diff = Math.min(127,interpolation.get(vv.vol.diff3D, zV, yV, xV));
-										a = vv.a3_R[mean][diff];
-										if (a == 0) continue;
-										actLut = vv.lookupTable.lut2D_3[mean][diff];
-										val = mean;
-									}
-									else { // ALPHA4
-										a = interpolation.get(vv.vol.aPaint_3D, zV, yV, xV);
-										if (a == 0) continue;
-										a *= 0.00392f; //  / 255;
-										a = a * a; 	
-										val = interpolation.get(vv.vol.col_3D, zV, yV, xV);
-										actLut = vv.lookupTable.lut[val];
-									}
-									
-									if (n - ns < 3 && (xV >= 3 && xV <= vv.vol.widthV-3 && yV >= 3 && yV <= vv.vol.heightV-3 && zV >= 3 && zV <= vv.vol.depthV-3))
-										didStartInVolume = true;
-									
-									int r, g, b;
-									if(isRGB) {
-										r = vv.lookupTable.lut[interpolation.get(vv.vol.data3D[1], zV, yV, xV)][0];
-										g = vv.lookupTable.lut[interpolation.get(vv.vol.data3D[2], zV, yV, xV)][1];
-										b = vv.lookupTable.lut[interpolation.get(vv.vol.data3D[3], zV, yV, xV)][2];
-									}
-									else {
-										r = actLut[0]; g = actLut[1]; b = actLut[2];	
-									}
-									
-									if (control.renderMode == Control.VOLUME) {
-										float an = a*aNext;
-										valR += an * r;
-										valG += an * g;
-										valB += an * b;	
-										
-										if (control.useLight) {
-											int dx = interpolation.get(vv.vol.nx_3D, zV, yV, xV) - 128;
-											int dy = interpolation.get(vv.vol.ny_3D, zV, yV, xV) - 128;
-											int dz = interpolation.get(vv.vol.nz_3D, zV, yV, xV) - 128;
-											nx += an * dx;
-											ny += an * dy;
-											nz += an * dz;
-
-										}
-										aNext *= (1-a);
-										if (aNext < 0.02) {
-											aNext = 0; break;
-										}
-									}
-									else if (control.renderMode == Control.PROJECTION) {
-										valR += a * r;
-										valG += a * g;
-										valB += a * b;
-										sumA += a;	
-									}
-									else { // if (renderMode == PROJECTION_MAX) {
-										if (isRGB) {
-											if (r+g+b > valProj) {
-												valProj = r+g+b;
-												rMax = r;
-												gMax = g;
-												bMax = b;
-											}
-										}
-										else if (val > valProj) 
-											valProj = val;
-									}
-								}
-								else if (hasBeenInTheVolume) // has left the volume
-									break;
+			for (int tile = nextTile.getAndIncrement(); tile < nTiles; tile = nextTile.getAndIncrement()) {
+				// the tiles start at multiples of tileSize, so also at multiples of sub
+				int xT0 = xTiles + (tile % nTilesX)*tileSize;
+				int yT0 = yTiles + (tile / nTilesX)*tileSize;
+				int xT1 = Math.min(xSMax, xT0 + tileSize);
+				int yT1 = Math.min(ySMax, yT0 + tileSize);
+				xT0 = Math.max(xSMin, xT0);
+				yT0 = Math.max(ySMin, yT0);
+
+				for (int yS = yT0; yS < yT1; yS++) {				
+					int i = xT0 - xSMin, k = yS - ySMin;
+					float xRow = x0V + i*dxVx + k*dxVy;
+					float yRow = y0V + i*dyVx + k*dyVy;
+					float zRow = z0V + i*dzVx + k*dzVy;
+					for (int j=0, xS = xT0; xS < xT1; xS++, j++) {
+						if (doStopRendering) return null;
+						if (vv.cube.isInside(xS, yS)) {
+							if (yS%sub == 0 && xS%sub == 0) 
+								renderRay(xS, yS, xRow + j*dxVx, yRow + j*dyVx, zRow + j*dzVx);
+							else // copy previous value (for sub > 1)
+								pixels[yS*width + xS] = pixels[ (yS/sub)*sub*width + (xS/sub)*sub];	
+						}	
+					}
+				}
+			}
+			return null;
+		}
+
+		private void renderRay(int xS, int yS, float xV, float yV, float zV) {
+			boolean hasBeenInTheVolume = false;
+
+			float rand = -random.nextFloat();
+			xV += rand*dxV; 
+			yV += rand*dyV; 
+			zV += rand*dzV; 
+
+			int ns = 0;		// check where to start rendering
+			if(xV < 0) 
+				if  (dxV > 0) ns = (int) (-xV / dxV);
+				else return;
+			else if(xV > vv.vol.widthV) 
+				if (dxV < 0) ns = (int) Math.max(((vv.vol.widthV-xV)/dxV),ns);
+				else return;
+			if(yV < 0) 
+				if (dyV > 0) ns = (int) Math.max((-yV/dyV), ns);
+				else return;
+			else if(yV > vv.vol.heightV) 
+				if (dyV < 0) ns = (int) Math.max(((vv.vol.heightV-yV)/dyV), ns);
+				else return;
+			if(zV < 0) 
+				if (dzV > 0) ns = (int) Math.max((-zV/dzV), ns);
+				else return;
+			else if(zV > vv.vol.depthV) 
+				if(dzV < 0) ns = (int) Math.max(((vv.vol.depthV-zV)/dzV), ns);
+				else return;
+
+			xV += ns*dxV;
+			yV += ns*dyV;
+			zV += ns*dzV;		
+
+			float valR = 0, valG=0, valB=0, nx = 0, ny= 0, nz= 0, a, aNext = 1, sumA = 1;
+			int valProj = 0, mean=0, diff=0, rMax=0, gMax=0, bMax=0, val;
+			int[] actLut = null;
+
+			boolean didStartInVolume = false;
+			for (int n = ns; n < nd; n++, xV += dxV, yV += dyV, zV += dzV) {
+				if (xV >= 0 && xV <= vv.vol.widthV && yV >= 0 && yV <= vv.vol.heightV && zV >= 0 && zV <= vv.vol.depthV) { 
+					hasBeenInTheVolume = true;
+
+					// step over the cells in which everything is transparent
+					if (macroCells != null) {
+						int empty = macroCells.emptySamples(xV, yV, zV, dxV, dyV, dzV);
+						if (empty > 0) {
+							n += empty-1;
+							xV += (empty-1)*dxV;
+							yV += (empty-1)*dyV;
+							zV += (empty-1)*dzV;
+							continue;
+						}
+					}
+					
+					if (control.alphaMode == Control.ALPHA1) {
+						val = interpolation.get(volData3D, zV, yV, xV);
+						a = vv.a1_R[val];
+						if (a == 0) continue;
+						actLut = vv.lookupTable.lut[val];
+					}
+					else if (control.alphaMode == Control.ALPHA2) {
+						val = interpolation.get(volData3D, zV, yV, xV);
+						int grad = Math.min(127,interpolation.get(vv.vol.grad3D, zV, yV, xV));
+						a = vv.a2_R[val][grad];
+						if (a == 0) continue;
+						actLut = vv.lookupTable.lut2D_2[val][grad];
+					}
+					else if (control.alphaMode == Control.ALPHA3) {
+						mean = interpolation.get(vv.vol.mean3D, zV, yV, xV);
+						diff = Math.min(127,interpolation.get(vv.vol.diff3D, zV, yV, xV));
+						a = vv.a3_R[mean][diff];
+						if (a == 0) continue;
+						actLut = vv.lookupTable.lut2D_3[mean][diff];
+						val = mean;
+					}
+					else { // ALPHA4
+						a = interpolation.get(vv.vol.aPaint_3D, zV, yV, xV);
+						if (a == 0) continue;
+						a *= 0.00392f; //  / 255;
+						a = a * a; 	
+						val = interpolation.get(vv.vol.col_3D, zV, yV, xV);
+						actLut = vv.lookupTable.lut[val];
+					}
+					
+					if (n - ns < 3 && (xV >= 3 && xV <= vv.vol.widthV-3 && yV >= 3 && yV <= vv.vol.heightV-3 && zV >= 3 && zV <= vv.vol.depthV-3))
+						didStartInVolume = true;
+					
+					int r, g, b;
+					if(isRGB) {
+						r = vv.lookupTable.lut[interpolation.get(vv.vol.data3D[1], zV, yV, xV)][0];
+						g = vv.lookupTable.lut[interpolation.get(vv.vol.data3D[2], zV, yV, xV)][1];
+						b = vv.lookupTable.lut[interpolation.get(vv.vol.data3D[3], zV, yV, xV)][2];
+					}
+					else {
+						r = actLut[0]; g = actLut[1]; b = actLut[2];	
+					}
+					
+					if (control.renderMode == Control.VOLUME) {
+						float an = a*aNext;
+						valR += an * r;
+						valG += an * g;
+						valB += an * b;	
+						
+						if (control.useLight) {
+							int dx = interpolation.get(vv.vol.nx_3D, zV, yV, xV) - 128;
+							int dy = interpolation.get(vv.vol.ny_3D, zV, yV, xV) - 128;
+							int dz = interpolation.get(vv.vol.nz_3D, zV, yV, xV) - 128;
+							nx += an * dx;
+							ny += an * dy;
+							nz += an * dz;
+
+						}
+						aNext *= (1-a);
+						if (aNext < 0.02) {
+							aNext = 0; break;
+						}
+					}
+					else if (control.renderMode == Control.PROJECTION) {
+						valR += a * r;
+						valG += a * g;
+						valB += a * b;
+						sumA += a;	
+					}
+					else { // if (renderMode == PROJECTION_MAX) {
+						if (isRGB) {
+							if (r+g+b > valProj) {
+								valProj = r+g+b;
+								rMax = r;
+								gMax = g;
+								bMax = b;
 							}
+						}
+						else if (val > valProj) 
+							valProj = val;
+					}
+				}
+				else if (hasBeenInTheVolume) // has left the volume
+					break;
+			}
 
-							if (control.renderMode == Control.VOLUME) {
-								if (didStartInVolume) {
-									nx += 20*dxV; ny += 20*dyV; nz += 20*dzV;
-								}
-								int alpha = (int) ((1-aNext)*255); 
-								if (alpha > 0) {
-									if (control.useLight) {
-										// Oberflächen Normalen-Vektor 
-										float[] xyz0 = vv.trVolume2Screen(0, 0, 0);
-										float[] xyz = vv.trVolume2Screen(nx/control.scale, ny/control.scale, nz/(control.zAspect*control.scale));
-
-										float[] n = new float[3]; 
-										n[0] = xyz[0]-xyz0[0];
-										n[1] = xyz[1]-xyz0[1];
-										n[2] = xyz[2]-xyz0[2];
-											
-										float lenN = (n[0]*n[0] + n[1]*n[1] + n[2]*n[2]);
-										if (lenN > 0) {
-											lenN = (float) (1/Math.sqrt(lenN));
-											n[0] *= lenN;
-											n[1] *= lenN;
-											n[2] *= lenN;
-										}
-										
-										float diffuse = (n[0]*light[0] + n[1]*light[1] + n[2]*light[2]);
-
-										// specular // Reflexion 2*(N*L)*N - L
-										float sp = 2*(n[0]*light[0] + n[1]*light[1] + n[2]*light[2]);  // scalar product sp = 2*N*L
-										//float[] r = new float[3];
-										//r[0] = sp*n[0] - light[0];
-										//r[1] = sp*n[1] - light[1];
-										//r[2] = sp*n[2] - light[2];
-
-										//float[] v = new float[3]; // view
-										//v[2] = 1;
-										//float spec = Math.max(0, r[0]*v[0] + r[1]*v[1] + r[2]*v[2]);
-										float spec = Math.max(0, (sp*n[2] - light[2]));
-										spec = (float) (Math.pow(spec,control.shineValue)*((control.shineValue+2)/(2*Math.PI)));
-
-										float lightFactor = control.ambientValue  + diffuse*control.diffuseValue  + spec*control.specularValue;
-										valR = (int) Math.min(255, Math.max(0, control.objectLightValue*valR + lightRed * lightFactor));
-										valG = (int) Math.min(255, Math.max(0, control.objectLightValue*valG + lightGreen*lightFactor));
-										valB = (int) Math.min(255, Math.max(0, control.objectLightValue*valB + lightBlue* lightFactor));										
+			if (control.renderMode == Control.VOLUME) {
+				if (didStartInVolume) {
+					nx += 20*dxV; ny += 20*dyV; nz += 20*dzV;
+				}
+				int alpha = (int) ((1-aNext)*255); 
+				if (alpha > 0) {
+					if (control.useLight) {
+						// Oberflächen Normalen-Vektor 
+						float[] xyz0 = vv.trVolume2Screen(0, 0, 0);
+						float[] xyz = vv.trVolume2Screen(nx/control.scale, ny/control.scale, nz/(control.zAspect*control.scale));
+
+						float[] n = new float[3]; 
+						n[0] = xyz[0]-xyz0[0];
+						n[1] = xyz[1]-xyz0[1];
+						n[2] = xyz[2]-xyz0[2];
+							
+						float lenN = (n[0]*n[0] + n[1]*n[1] + n[2]*n[2]);
+						if (lenN > 0) {
+							lenN = (float) (1/Math.sqrt(lenN));
+							n[0] *= lenN;
+							n[1] *= lenN;
+							n[2] *= lenN;
+						}
+						
+						float diffuse = (n[0]*light[0] + n[1]*light[1] + n[2]*light[2]);
+
+						// specular // Reflexion 2*(N*L)*N - L
+						float sp = 2*(n[0]*light[0] + n[1]*light[1] + n[2]*light[2]);  // scalar product sp = 2*N*L
+						//float[] r = new float[3];
+						//r[0] = sp*n[0] - light[0];
+						//r[1] = sp*n[1] - light[1];
+						//r[2] = sp*n[2] - light[2];
+
+						//float[] v = new float[3]; // view
+						//v[2] = 1;
+						//float spec = Math.max(0, r[0]*v[0] + r[1]*v[1] + r[2]*v[2]);
+						float spec = Math.max(0, (sp*n[2] - light[2]));
+						spec = (float) (Math.pow(spec,control.shineValue)*((control.shineValue+2)/(2*Math.PI)));
+
+						float lightFactor = control.ambientValue  + diffuse*control.diffuseValue  + spec*control.specularValue;
+						valR = (int) Math.min(255, Math.max(0, control.objectLightValue*valR + lightRed * lightFactor));
+						valG = (int) Math.min(255, Math.max(0, control.objectLightValue*valG + lightGreen*lightFactor));
+						valB = (int) Math.min(255, Math.max(0, control.objectLightValue*valB + lightBlue* lightFactor));										
 
 //										valR = (int) Math.min(255, Math.max(0, 128 + 127*n[0]));
 //										valG = (int) Math.min(255, Math.max(0, 128 + 127*n[1]));
 //										valB = (int) Math.min(255, Math.max(0, 128 + 127*n[2]));		
-										
+						
 //										valR = (int) (lenN*255);
 //										valG = (int) (lenN*255);
 //										valB = (int) (lenN*255);											
 
-									}
+					}
 
-									pixels[yS*width + xS] = (alpha << 24) | ((int) valR << 16) | ((int) valG << 8) | ((int) valB);
-								}
-							}
-							else if (control.renderMode == Control.PROJECTION) {
-								int al = 255;  
-								valR /= sumA;
-								valG /= sumA;
-								valB /= sumA;
-								pixels[yS*width + xS] = (al << 24) | ((int) valR << 16) | ((int) valG << 8) | ((int) valB);
-							}
-							else {
-								if (isRGB)
-									pixels[yS*width + xS] = (255 << 24) | (rMax << 16) | (gMax << 8) | bMax;
-								else
-									pixels[yS*width + xS] = vv.lookupTable.colors[valProj];
-							}
-						}
-						else { // copy previous value (for sub > 1)
-							pixels[yS*width + xS] = pixels[ (yS/sub)*sub*width + (xS/sub)*sub];	
-						}
-					}	
+					pixels[yS*width + xS] = (alpha << 24) | ((int) valR << 16) | ((int) valG << 8) | ((int) valB);
 				}
-				x0V += dxVy; 
-				y0V += dyVy; 
-				z0V += dzVy; 
 			}
-			return null;
+			else if (control.renderMode == Control.PROJECTION) {
+				int al = 255;  
+				valR /= sumA;
+				valG /= sumA;
+				valB /= sumA;
+				pixels[yS*width + xS] = (al << 24) | ((int) valR << 16) | ((int) valG << 8) | ((int) valB);
+			}
+			else {
+				if (isRGB)
+					pixels[yS*width + xS] = (255 << 24) | (rMax << 16) | (gMax << 8) | bMax;
+				else
+					pixels[yS*width + xS] = vv.lookupTable.colors[valProj];
+			}
 		}
 	}
 	
@@ -1438,6 +1438,26 @@ public double precomputed_getWeightDyDy(int l, int m, int u, int v)
 	public double precomputed_getWeightI(int l, int m, int u, int v)
 	{return prec_yWeight[v][l]*prec_xWeight[u][m];}
 
+	//------------------------------------------------------------------
+	/**
+	 * Get precomputed x component of the weight of coefficient m
+	 * @param m
+	 * @param u
+	 * @return the x component of the weight of the coefficient m (prec_xWeight)
+	 */
+	public double precomputed_getWeightX(int m, int u)
+	{return prec_xWeight[u][m];}
+
+	//------------------------------------------------------------------
+	/**
+	 * Get precomputed y component of the weight of coefficient l
+	 * @param l
+	 * @param v
+	 * @return the y component of the weight of the coefficient l (prec_yWeight)
+	 */
+	public double precomputed_getWeightY(int l, int v)
+	{return prec_yWeight[v][l];}
+
 	//------------------------------------------------------------------
 	/**
 	 * Interpolate the X and Y derivatives of the image at a
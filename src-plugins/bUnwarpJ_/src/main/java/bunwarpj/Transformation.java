@@ -27,6 +27,7 @@
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Prefs;
 import ij.io.SaveDialog;
 import ij.process.ByteProcessor;
 import ij.process.ColorProcessor;
@@ -40,6 +41,11 @@
 import java.io.File;
 import java.util.Arrays;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 
 /**
@@ -248,6 +254,16 @@
 	/** regularization P12 (target to source) matrix */
 	private double  [][]P12_TargetToSource;
 
+	// Concurrent evaluation
+	/** number of image rows in each of the tiles processed by the pool of threads */
+	private static final int TILE_HEIGHT = 16;
+	/** pool of threads of the current registration (null outside of a registration) */
+	private ExecutorService tilePool = null;
+	/** tiles of the (target to source) image similarity, kept between evaluations */
+	private SimilarityTiles similarityTilesTargetToSource = null;
+	/** tiles of the (source to target) image similarity, kept between evaluations */
+	private SimilarityTiles similarityTilesSourceToTarget = null;
+
 	/*....................................................................
        Public methods
     ....................................................................*/
@@ -457,6 +473,22 @@ public Transformation (
 	 * algorithm to the selected source and target images.
 	 */
 	public void doBidirectionalRegistration ()
+	{
+		tilePool = newTilePool();
+		try {
+			bidirectionalRegistration();
+		} finally {
+			tilePool.shutdown();
+			tilePool = null;
+		}
+	} // end doBidirectionalRegistration
+
+	//------------------------------------------------------------------
+	/**
+	 * Body of doBidirectionalRegistration, run while the pool of threads of the
+	 * registration exists.
+	 */
+	private void bidirectionalRegistration ()
 	{	
 		// This function can only be applied with splines of an odd order
 
@@ -791,7 +823,7 @@ public void doBidirectionalRegistration ()
 			}
 		}
 		
-	} // end doBidirectionalRegistration
+	} // end bidirectionalRegistration
 
 	//------------------------------------------------------------------
 	/**
@@ -799,6 +831,22 @@ public void doBidirectionalRegistration ()
 	 * elastic registration to the selected source and target images.
 	 */
 	public void doUnidirectionalRegistration ()
+	{
+		tilePool = newTilePool();
+		try {
+			unidirectionalRegistration();
+		} finally {
+			tilePool.shutdown();
+			tilePool = null;
+		}
+	} // end doUnidirectionalRegistration
+
+	//------------------------------------------------------------------
+	/**
+	 * Body of doUnidirectionalRegistration, run while the pool of threads of the
+	 * registration exists.
+	 */
+	private void unidirectionalRegistration ()
 	{		
 		// This function can only be applied with splines of an odd order
 
@@ -1052,7 +1100,7 @@ public void doUnidirectionalRegistration ()
 			}
 		}
 		
-	} /* end doUnidirectionalRegistration */
+	} /* end unidirectionalRegistration */
 	
 
 	/*--------------------------------------------------------------------------*/
@@ -2299,63 +2347,69 @@ private void computeDeformation(
 		
 		*/
 		
-		Thread x_thread = new Thread(new ConcurrentDeformation(cx,	auxTargetCurrentHeight, auxTargetCurrentWidth,
-			 		  								 			transformation_x, intervals));
-		
-		Thread y_thread = new Thread(new ConcurrentDeformation(cy,	auxTargetCurrentHeight, auxTargetCurrentWidth,
-		 			transformation_y, intervals));
-		
-		x_thread.start();
-		y_thread.start();
-		
-		try{
-			x_thread.join();
-			y_thread.join();
-			x_thread = null;
-			y_thread = null;
-		} catch (InterruptedException e) {
-				e.printStackTrace();					
+		// Set these coefficients to an interpolator (the interpolation
+		// does not change the model, so it is shared by the tiles)
+		final BSplineModel swx = new BSplineModel(cx);
+		final BSplineModel swy = new BSplineModel(cy);
+
+		// Both tables are calculated by row tiles in the pool of threads
+		final int nTiles = (auxTargetCurrentHeight + TILE_HEIGHT - 1) / TILE_HEIGHT;
+		final Runnable[] tiles = new Runnable[2 * nTiles];
+		for (int i=0; i<nTiles; i++)
+		{
+			final int y_start = i * TILE_HEIGHT;
+			final int y_end = Math.min(auxTargetCurrentHeight, y_start + TILE_HEIGHT);
+			tiles[2*i] = new ConcurrentDeformation(swx, auxTargetCurrentHeight, auxTargetCurrentWidth,
+					transformation_x, intervals, y_start, y_end);
+			tiles[2*i+1] = new ConcurrentDeformation(swy, auxTargetCurrentHeight, auxTargetCurrentWidth,
+					transformation_y, intervals, y_start, y_end);
 		}
+		runTiles(tiles);
 	}
 
 	/* ------------------------------------------------------------------------ */
 	/**
-	 *  Class to concurrently calculate the two deformation mapping tables
+	 *  Class to concurrently calculate the rows of a deformation mapping table
 	 * 	 
 	 */	
-	private class ConcurrentDeformation extends Thread
+	private class ConcurrentDeformation implements Runnable
 	{
-		final double [][]c;			
+		final BSplineModel sw;
 		final int auxTargetCurrentHeight;
 		final int auxTargetCurrentWidth;		
 		final double[][] transformation;
 		final int intervals;
+		/** first row of the tile */
+		final int y_start;
+		/** row after the last row of the tile */
+		final int y_end;
 		
-		ConcurrentDeformation(double [][]c, 
+		ConcurrentDeformation(BSplineModel sw, 
 		 		  			  int auxTargetCurrentHeight,
 		 		  			  int auxTargetCurrentWidth,
 		 		  			  double[][] transformation,
-		 		  			  int intervals)
+		 		  			  int intervals,
+		 		  			  int y_start,
+		 		  			  int y_end)
 		{
-			this.c = c;	
+			this.sw = sw;	
 			this.auxTargetCurrentWidth = auxTargetCurrentWidth;
 			this.auxTargetCurrentHeight = auxTargetCurrentHeight;
 			this.transformation = transformation;
 			this.intervals = intervals;
+			this.y_start = y_start;
+			this.y_end = y_end;
 		}
 	
 		//------------------------------------------------------------------
 		/**
-		 * Run method to calculate the corresponding X or Y transformation
-		 * table.
+		 * Run method to calculate the rows of the corresponding X or Y
+		 * transformation table.
 		 */
 		public void run() 
 		{
-			// Set these coefficients to an interpolator
-			BSplineModel sw = new BSplineModel(c);
-			
 			// Compute the transformation mapping
-			for (int v=0; v<auxTargetCurrentHeight; v++) 
+			for (int v=y_start; v<y_end; v++) 
 			{
 				final double tv = (double)(v * intervals) / (double)(auxTargetCurrentHeight - 1) + 1.0F;
 				for (int u = 0; u<auxTargetCurrentWidth; u++)
@@ -6512,76 +6566,47 @@ private double evaluateSimilarityMultiThread(
 		// Image similarity calculated in a concurrent way
 		if(imageWeight != 0)
 		{
-			// Check the number of processors in the computer 
-			final int nproc = Runtime.getRuntime().availableProcessors();
-
-			// We will use threads to calculate the similarity of the different 
-			// parts of the target and source image
-			int block_height = auxTargetCurrentHeight / nproc;
-			if (auxTargetCurrentHeight % 2 != 0) 
-				block_height++;
-			
-			// We use as many threads as processors
-			final int nThreads = nproc; 
-			
-			Thread[] threads  = new Thread[nThreads];
-			Rectangle[] rects = new Rectangle[nThreads];
-			
-			// Every thread will provide the corresponding similarity value and
-			// gradient
-			final double [][]grad_thread = new double[nThreads][grad.length];
-			// Result array:
-			// First result is the partial image similarity and second the number of pixels
-			final double [][]result = new double[nThreads][2];
-			// Number of processed pixels (taking into account the masks)
-			int n = 0;
-			
-			for (int i=0; i<nThreads; i++) 
-			{
-				// Last block goes to the end of the window
-				int y_start = i * block_height;
-				if (nThreads-1 == i) 
-					block_height = auxTargetCurrentHeight  - i * block_height;
-				
-				// Corresponding rectangle
-				rects[i] = new Rectangle(0, y_start, auxTargetCurrentWidth, block_height);
-				
-				
-				// Create threads and start them.
-				threads[i] = new Thread(new EvaluateSimilarityTile(auxTarget, auxSource, auxTargetMsk,
-							   										auxSourceMsk, swx, swy, auxFactorWidth, auxFactorHeight,
-							   										intervals, grad_thread[i], result[i],
-							   										rects[i]));
-				threads[i].start();
-			}
-			
-			// Wait for the threads to finish
-			for (int i=0; i<nThreads; i++) 
+			// The tiles keep the values that do not depend on the deformation
+			// coefficients, so they are only made again for a new image size or
+			// deformation grid
+			SimilarityTiles tiles = (!bIsReverse) ? similarityTilesTargetToSource : similarityTilesSourceToTarget;
+			if (tiles == null || !tiles.isFor(auxTargetMsk, auxTargetCurrentWidth, auxTargetCurrentHeight,
+					intervals, auxFactorWidth, auxFactorHeight))
 			{
-				try {
-					threads[i].join();
-					threads[i] = null;
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}			
+				tiles = new SimilarityTiles(auxTargetMsk, auxTargetCurrentWidth, auxTargetCurrentHeight,
+						intervals, auxFactorWidth, auxFactorHeight);
+				if (!bIsReverse)
+					similarityTilesTargetToSource = tiles;
+				else
+					similarityTilesSourceToTarget = tiles;
 			}
 			
-			// Accumulate results
-			for (int i=0; i<nThreads; i++) 
+			// Evaluate all tiles in the pool of threads
+			tiles.evaluate(auxTarget, auxSource, auxSourceMsk, swx, swy);
+
+			// Accumulate results (in the order of the tiles, so that
+			// the result does not depend on the number of threads)
+			int n = 0;
+			for (int i=0; i<tiles.tiles.length; i++)
 			{
-				imageSimilarity += result[i][0];
-				n += result[i][1];								
+				final SimilarityTile tile = tiles.tiles[i];
+				imageSimilarity += tile.imageSimilarity;
+				n += tile.n;
+				for (int k=0; k<twiceNk; k++)
+					grad[k] += tile.grad[k];
 			}
-			
-			// Average image similarity
-			imageSimilarity /= n;
-			// Average gradients
-			for(int i = 0; i<nThreads; i++)
+
+			// Average the image related terms
+			if (n!=0)
 			{
-				for(int j = 0; j < grad.length; j++)
-					grad[j] += (grad_thread[i][j]/n);
-			}
-			
+				imageSimilarity *= imageWeight/n;
+				double aux = imageWeight * 2.0/n; // This is the 2 coming from the
+												  // derivative
+				for (int k=0; k<twiceNk; k++) 
+					grad[k] *= aux;
+			} 
+			else
+				imageSimilarity = 1/FLT_EPSILON;
 		}
 		
 		
@@ -6717,195 +6742,380 @@ private double evaluateSimilarityMultiThread(
 	
 	/* ------------------------------------------------------------------------ */
 	/**
-	 *  Class to run concurrent similarity evaluation
-	 * 	 
-	 */		
-	private class EvaluateSimilarityTile implements Runnable 
+	 * Create a pool of threads to process the image tiles, with as many
+	 * threads as set in ImageJ (Edit &gt; Options &gt; Memory &amp; Threads).
+	 *
+	 * @return pool of threads
+	 */
+	private static ExecutorService newTilePool()
+	{
+		return Executors.newFixedThreadPool(Math.max(1, Prefs.getThreads()),
+			new ThreadFactory()
+			{
+				public Thread newThread(Runnable r)
+				{
+					final Thread t = new Thread(r, "bUnwarpJ tile");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+	}
+
+	/* ------------------------------------------------------------------------ */
+	/**
+	 * Run a set of tiles in the pool of threads and wait until all of them
+	 * are done. The threads take the next tile as soon as they are free, so
+	 * there should be several tiles per thread. Outside of a registration,
+	 * a pool is created for these tiles only.
+	 *
+	 * @param tiles tiles to run
+	 */
+	private void runTiles(final Runnable[] tiles)
+	{
+		final ExecutorService pool = (tilePool != null) ? tilePool : newTilePool();
+		final Future<?>[] futures = new Future<?>[tiles.length];
+		try {
+			for (int i=0; i<tiles.length; i++)
+				futures[i] = pool.submit(tiles[i]);
+		} finally {
+			// the submitted tiles still run after shutdown
+			if (pool != tilePool)
+				pool.shutdown();
+		}
+
+		// The results are only complete when all tiles are done,
+		// so wait for them even if interrupted
+		boolean interrupted = false;
+		Throwable failure = null;
+		for (int i=0; i<tiles.length; i++)
+		{
+			while (true)
+			{
+				try {
+					futures[i].get();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					if (failure == null)
+						failure = e.getCause();
+					break;
+				}
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (failure instanceof RuntimeException)
+			throw (RuntimeException) failure;
+		if (failure instanceof Error)
+			throw (Error) failure;
+		if (failure != null)
+			throw new RuntimeException(failure);
+	}
+
+	/* ------------------------------------------------------------------------ */
+	/**
+	 * Row tiles of the target image over which the image similarity is
+	 * evaluated. The values that do not depend on the deformation coefficients
+	 * (the B-spline basis values of the deformation and the target mask) are
+	 * cached per tile, so they are only calculated once per image size and
+	 * deformation grid instead of once per evaluation.
+	 */
+	private class SimilarityTiles
 	{
-		// Fields
-		/** current target image */
-		final BSplineModel auxTarget;
-		/** current source image */
-		final BSplineModel auxSource;
 		/** target mask */
 		final Mask auxTargetMsk;
-		/** source mask */
-		final Mask auxSourceMsk;
-		/** B-spline deformation in x */
-		final BSplineModel swx;
-		/** B-spline deformation in y */
-		final BSplineModel swy;
+		/** width of the current target image */
+		final int width;
+		/** height of the current target image */
+		final int height;
+		/** number of intervals between B-spline coefficients */
+		final int intervals;
 		/** factor width */
 		final double auxFactorWidth;
 		/** factor height */
 		final double auxFactorHeight;
-		/** number of intervals between B-spline coefficients */
-		final int intervals;
-		/** similarity gradient */
-		final double[] grad;
-		/** evaluation results: image similarity value for the current rectangle and number of pixels that have been evaluated */
-		final double[] result;
-		/** rectangle containing the area of the image to be evaluated */
-		final Rectangle rect;
-		
+		/** tiles, from top to bottom */
+		final SimilarityTile[] tiles;
+
+		/** x component of the basis values of the deformation, 4 per column (shared by all tiles) */
+		double[] xWeight = null;
+		/** x index of the deformation coefficients, 4 per column (-1 if outside the grid) */
+		int[] xIndex = null;
+
+		// Current evaluation (set before the tiles are run)
+		/** current target image */
+		BSplineModel auxTarget;
+		/** current source image */
+		BSplineModel auxSource;
+		/** source mask */
+		Mask auxSourceMsk;
+		/** B-spline deformation in x */
+		BSplineModel swx;
+		/** B-spline deformation coefficients in x */
+		double[] cx;
+		/** B-spline deformation coefficients in y */
+		double[] cy;
+
 		/**
-		 * Evaluate similarity tile constructor 
-		 * 
+		 * Similarity tiles constructor
+		 *
+		 * @param auxTargetMsk target mask
+		 * @param width width of the current target image
+		 * @param height height of the current target image
+		 * @param intervals number of intervals between B-spline coefficients
+		 * @param auxFactorWidth factor width
+		 * @param auxFactorHeight factor height
+		 */
+		SimilarityTiles(final Mask auxTargetMsk,
+						final int width,
+						final int height,
+						final int intervals,
+						final double auxFactorWidth,
+						final double auxFactorHeight)
+		{
+			this.auxTargetMsk = auxTargetMsk;
+			this.width = width;
+			this.height = height;
+			this.intervals = intervals;
+			this.auxFactorWidth = auxFactorWidth;
+			this.auxFactorHeight = auxFactorHeight;
+
+			this.tiles = new SimilarityTile[(height + TILE_HEIGHT - 1) / TILE_HEIGHT];
+			for (int i=0; i<tiles.length; i++)
+				tiles[i] = new SimilarityTile(this, i * TILE_HEIGHT,
+						Math.min(height, (i + 1) * TILE_HEIGHT));
+		}
+
+		/**
+		 * Check if the tiles can be used for an evaluation.
+		 *
+		 * @return true if the tiles were made for the same image size, deformation grid and mask
+		 */
+		boolean isFor(final Mask auxTargetMsk,
+					  final int width,
+					  final int height,
+					  final int intervals,
+					  final double auxFactorWidth,
+					  final double auxFactorHeight)
+		{
+			return this.auxTargetMsk == auxTargetMsk && this.width == width && this.height == height
+				&& this.intervals == intervals && this.auxFactorWidth == auxFactorWidth
+				&& this.auxFactorHeight == auxFactorHeight;
+		}
+
+		/**
+		 * Evaluate the similarity of every tile in the pool of threads. The
+		 * results are left in the tiles.
+		 *
 		 * @param auxTarget current target image
 		 * @param auxSource current source image
-		 * @param auxTargetMsk target mask
 		 * @param auxSourceMsk source mask
-		 * @param swx B-spline deformation in x
+		 * @param swx B-spline deformation in x (with precomputed weights)
 		 * @param swy B-spline deformation in y
-		 * @param auxFactorWidth factor width
-		 * @param auxFactorHeight factor height
-		 * @param intervals number of intervals between B-spline coefficients
-		 * @param grad similarity gradient (output)
-		 * @param result output results: image similarity value for the current rectangle and number of pixels that have been evaluated
-		 * @param rect rectangle containing the area of the image to be evaluated
 		 */
-		EvaluateSimilarityTile(final BSplineModel auxTarget,
-							   final BSplineModel auxSource,
-							   final Mask auxTargetMsk,
-							   final Mask auxSourceMsk,
-							   final BSplineModel swx,
-							   final BSplineModel swy,
-							   final double auxFactorWidth,
-							   final double auxFactorHeight,
-							   final int intervals,
-							   final double[] grad,
-							   final double[] result,
-							   final Rectangle rect)
+		void evaluate(final BSplineModel auxTarget,
+					  final BSplineModel auxSource,
+					  final Mask auxSourceMsk,
+					  final BSplineModel swx,
+					  final BSplineModel swy)
 		{
 			this.auxTarget = auxTarget;
 			this.auxSource = auxSource;
-			
-			this.auxTargetMsk = auxTargetMsk;
 			this.auxSourceMsk = auxSourceMsk;
-			
 			this.swx = swx;
-			this.swy = swy;
-			
-			this.auxFactorWidth = auxFactorWidth;
-			this.auxFactorHeight = auxFactorHeight;
-					
-			this.intervals = intervals;
-			
-			this.grad = grad;
-			
-			this.result = result;
-		
-			this.rect = rect;
+			// The deformations are interpolated from their own coefficients
+			// (they have no pyramid), as in precomputed_interpolateI
+			this.cx = swx.getCoefficients();
+			this.cy = swy.getCoefficients();
+
+			if (xWeight == null)
+			{
+				xWeight = new double[4 * width];
+				xIndex = new int[4 * width];
+				for (int u=0; u<width; u++)
+					for (int m=0; m<4; m++)
+					{
+						xWeight[4*u+m] = swx.precomputed_getWeightX(m, u);
+						xIndex[4*u+m] = swx.prec_xIndex[u][m];
+					}
+			}
+
+			runTiles(tiles);
+		}
+	} // end class SimilarityTiles
+
+	/* ------------------------------------------------------------------------ */
+	/**
+	 *  Class to run concurrent similarity evaluation on a tile of rows
+	 * 	 
+	 */		
+	private class SimilarityTile implements Runnable 
+	{
+		/** tiles this tile belongs to */
+		final SimilarityTiles parent;
+		/** first row of the tile */
+		final int y_start;
+		/** row after the last row of the tile */
+		final int y_end;
+
+		/** y component of the basis values of the deformation, 4 per row of the tile */
+		double[] yWeight = null;
+		/** offset of the row of deformation coefficients, 4 per row of the tile (-1 if outside the grid) */
+		int[] yOffset = null;
+		/** true for the pixels of the tile that are inside the target mask */
+		boolean[] inTargetMask = null;
+
+		/** similarity gradient of the tile (without the factor 2 * imageWeight) */
+		final double[] grad;
+		/** image similarity of the tile (sum of the squared errors) */
+		double imageSimilarity;
+		/** number of pixels of the tile that have been evaluated */
+		int n;
+
+		/**
+		 * Similarity tile constructor 
+		 * 
+		 * @param parent tiles this tile belongs to
+		 * @param y_start first row of the tile
+		 * @param y_end row after the last row of the tile
+		 */
+		SimilarityTile(final SimilarityTiles parent,
+					   final int y_start,
+					   final int y_end)
+		{
+			this.parent = parent;
+			this.y_start = y_start;
+			this.y_end = y_end;
+			final int cYdim = parent.intervals + 3;
+			this.grad = new double[2 * cYdim * cYdim];
+		}
+
+		//------------------------------------------------------------------
+		/**
+		 * Calculate the values that do not change between evaluations.
+		 */
+		private void cache()
+		{
+			final int width = parent.width;
+			final int rows = y_end - y_start;
+			final int cYdim = parent.intervals + 3;
+			final double []w = new double[4 * rows];
+			final int []o = new int[4 * rows];
+			final boolean []msk = new boolean[rows * width];
+			for (int v=y_start, r=0; v<y_end; v++, r++)
+			{
+				for (int l=0; l<4; l++)
+				{
+					w[4*r+l] = parent.swx.precomputed_getWeightY(l, v);
+					final int iy = parent.swx.prec_yIndex[v][l];
+					o[4*r+l] = (iy == -1) ? -1 : iy * cYdim;
+				}
+				for (int u=0; u<width; u++)
+					msk[r*width+u] = parent.auxTargetMsk.getValue(u/parent.auxFactorWidth, v/parent.auxFactorHeight);
+			}
+			yWeight = w;
+			yOffset = o;
+			inTargetMask = msk;
 		}
 
 		//------------------------------------------------------------------
 		/**
 		 * Run method to evaluate the similarity of source and target images. 
-		 * Only the part defined by the rectangle will be evaluated.
+		 * Only the rows of the tile will be evaluated.
 		 */
-	
 		public void run() 
 		{
-			final int cYdim = intervals+3;
-			final int cXdim = cYdim;
-			final int Nk = cYdim * cXdim;
-			final int twiceNk = 2 * Nk;
-			
+			if (inTargetMask == null)
+				cache();
+
+			final int width = parent.width;
+			final int cYdim = parent.intervals + 3;
+			final int Nk = cYdim * cYdim;
+			final double []xWeight = parent.xWeight;
+			final int []xIndex = parent.xIndex;
+			final double []cx = parent.cx;
+			final double []cy = parent.cy;
+			final BSplineModel auxSource = parent.auxSource;
+			final Mask auxSourceMsk = parent.auxSourceMsk;
+			final double auxFactorWidth = parent.auxFactorWidth;
+			final double auxFactorHeight = parent.auxFactorHeight;
+			final double []targetCurrentImage = parent.auxTarget.getCurrentImage();
+
+			Arrays.fill(grad, 0.0);
 			double imageSimilarity = 0.0;
-			
-			// The rectangle marks the area of the image to be treated.
-			int uv = rect.y * rect.width + rect.x;
-			final int Ydim = rect.y + rect.height;
-			final int Xdim = rect.x + rect.width;						
-			
-			// Loop over all points in the source image (rectangle)
 			int n = 0;
-			
 
 			final double []I1D = new double[2]; // Space for the first derivatives of I1
+			// Weights and indexes of the coefficients of the current point
+			final double []weightI = new double[16];
+			final int []k = new int[16];
 
-			final double []targetCurrentImage = auxTarget.getCurrentImage();
-
-			for (int v=rect.y; v<Ydim; v++)
-			{										
-				for (int u=rect.x; u<Xdim; u++, uv++) 
+			int uv = y_start * width;
+			for (int v=y_start, r=0; v<y_end; v++, r++)
+			{
+				for (int u=0; u<width; u++, uv++) 
 				{
-					// Compute image term .....................................................
-
 					// Check if this point is in the target mask
-					if (auxTargetMsk.getValue(u/auxFactorWidth, v/auxFactorHeight))
+					if (!inTargetMask[r*width+u])
+						continue;
+
+					// Compute the position of this point in the source,
+					// as precomputed_interpolateI does for swx and swy
+					// (both deformations share the basis values)
+					double x = 0.0, y = 0.0;
+					int nk = 0;
+					for (int l=0; l<4; l++)
 					{
-						// Compute value in the source image
-						final double I2 = targetCurrentImage[uv];
-
-						// Compute the position of this point in the target
-						double x = swx.precomputed_interpolateI(u,v);
-						double y = swy.precomputed_interpolateI(u,v);
-
-						// Check if this point is in the source mask
-						if (auxSourceMsk.getValue(x/auxFactorWidth, y/auxFactorHeight))
+						final int p = yOffset[4*r+l];
+						if (p == -1) continue;
+						double sx = 0.0, sy = 0.0;
+						for (int m=0; m<4; m++)
 						{
-							// Compute the value of the target at that point
-							final double I1 = auxSource.prepareForInterpolationAndInterpolateIAndD(x, y, I1D, false, PYRAMID);							
+							final int ix = xIndex[4*u+m];
+							if (ix == -1) continue;
+							sx += xWeight[4*u+m] * cx[p + ix];
+							sy += xWeight[4*u+m] * cy[p + ix];
+							weightI[nk] = yWeight[4*r+l] * xWeight[4*u+m];
+							k[nk++] = p + ix;
+						}
+						x += yWeight[4*r+l] * sx;
+						y += yWeight[4*r+l] * sy;
+					}
 
-							final double I1dx = I1D[0], I1dy = I1D[1];
+					// Check if this point is in the source mask
+					if (!auxSourceMsk.getValue(x/auxFactorWidth, y/auxFactorHeight))
+						continue;
 
-							final double error = I2 - I1;
-							final double error2 = error*error;							
-							imageSimilarity += error2;
+					// Compute the value of the source at that point
+					final double I1 = auxSource.prepareForInterpolationAndInterpolateIAndD(x, y, I1D, false, PYRAMID);
+					final double I1dx = I1D[0], I1dy = I1D[1];
 
-							// Compute the derivative with respect to all the c coefficients
-							// Cost of the derivatives = 16*(3 mults + 2 sums)
-							// Current cost = 359 mults + 346 sums
-							for (int l=0; l<4; l++)
-								for (int m=0; m<4; m++)
-								{
-									if (swx.prec_yIndex[v][l]==-1 || swx.prec_xIndex[u][m]==-1) continue;
-
-									// Note: It's the same to take the indexes and weightI from swx than from swy
-									double weightI = swx.precomputed_getWeightI(l,m,u,v);
-
-									int k = swx.prec_yIndex[v][l] * cYdim + swx.prec_xIndex[u][m];
+					final double error = targetCurrentImage[uv] - I1;
+					imageSimilarity += error*error;
 
-									// Compute partial result
-									// There's also a multiplication by 2 that I will
-									// do later
-									double aux = -error * weightI;
+					// Compute the derivative with respect to all the c coefficients
+					for (int i=0; i<nk; i++)
+					{
+						// There's also a multiplication by 2 that I will
+						// do later
+						final double aux = -error * weightI[i];
 
-									// Derivative related to X deformation
-									grad[k]   += aux * I1dx;
+						// Derivative related to X deformation
+						grad[k[i]]    += aux * I1dx;
 
-									// Derivative related to Y deformation
-									grad[k+Nk]+= aux * I1dy;
-								}
-							n++; // Another point has been successfully evaluated
-						}
+						// Derivative related to Y deformation
+						grad[k[i]+Nk] += aux * I1dy;
 					}
+					n++; // Another point has been successfully evaluated
 				}
 			}
-			
 
-			// Average the image related terms (now i do the 1/n outside)
-			if (n!=0)
-			{
-				imageSimilarity *= imageWeight;
-				double aux = imageWeight * 2.0; // This is the 2 coming from the
-												   // derivative that I would do later
-				for (int k=0; k<twiceNk; k++) 
-					grad[k] *= aux;
-			} 
-			else
-				imageSimilarity = 1/FLT_EPSILON;
-
-
-			// Set result (image similarity value for the current rectangle
-			// and number of pixels that have been evaluated)
-			this.result[0] = imageSimilarity;		
-			this.result[1] = n;			
-			
+			this.imageSimilarity = imageSimilarity;
+			this.n = n;
 		} // end run method
 		
-	} // end class EvaluateSimilarityTile
+	} // end class SimilarityTile
 
 	
 	/*--------------------------------------------------------------------------*/
@@ -12,6 +12,8 @@
 import imagescience.utility.Progressor;
 import imagescience.utility.Timer;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /** Computes Gaussian derivatives of images. */
 public class Differentiator {
 	
@@ -78,21 +80,7 @@ public Image run(final Image image, final double scale, final int xorder, final
 			final double xscale = scale/asps.x;
 			messenger.log("Operating at scale "+scale+"/"+asps.x+" = "+xscale+" pixels");
 			logstatus(info(xorder)+" in x-dimension...");
-			final double[] kernel = kernel(xscale,xorder,dims.x);
-			final int klenm1 = kernel.length - 1;
-			final double[] ain = new double[dims.x + 2*klenm1];
-			final double[] aout = new double[dims.x];
-			final Coordinates coords = new Coordinates();
-			deriv.axes(Axes.X);
-			for (coords.c=0; coords.c<dims.c; ++coords.c)
-				for (coords.t=0; coords.t<dims.t; ++coords.t)
-					for (coords.z=0; coords.z<dims.z; ++coords.z)
-						for (coords.y=0; coords.y<dims.y; ++coords.y) {
-							coords.x = -klenm1; deriv.get(coords,ain);
-							convolve(ain,aout,kernel);
-							coords.x = 0; deriv.set(coords,aout);
-							progressor.step();
-						}
+			convolve(deriv,Axes.X,kernel(xscale,xorder,dims.x));
 		}
 		
 		// Differentiation in y-dimension:
@@ -107,21 +95,7 @@ public Image run(final Image image, final double scale, final int xorder, final
 			final double yscale = scale/asps.y;
 			messenger.log("Operating at scale "+scale+"/"+asps.y+" = "+yscale+" pixels");
 			logstatus(info(yorder)+" in y-dimension...");
-			final double[] kernel = kernel(yscale,yorder,dims.y);
-			final int klenm1 = kernel.length - 1;
-			final double[] ain = new double[dims.y + 2*klenm1];
-			final double[] aout = new double[dims.y];
-			final Coordinates coords = new Coordinates();
-			deriv.axes(Axes.Y);
-			for (coords.c=0; coords.c<dims.c; ++coords.c)
-				for (coords.t=0; coords.t<dims.t; ++coords.t)
-					for (coords.z=0; coords.z<dims.z; ++coords.z)
-						for (coords.x=0; coords.x<dims.x; ++coords.x) {
-							coords.y = -klenm1; deriv.get(coords,ain);
-							convolve(ain,aout,kernel);
-							coords.y = 0; deriv.set(coords,aout);
-							progressor.step();
-						}
+			convolve(deriv,Axes.Y,kernel(yscale,yorder,dims.y));
 		}
 		
 		// Differentiation in z-dimension:
@@ -136,22 +110,7 @@ public Image run(final Image image, final double scale, final int xorder, final
 			final double zscale = scale/asps.z;
 			messenger.log("Operating at scale "+scale+"/"+asps.z+" = "+zscale+" slices");
 			logstatus(info(zorder)+" in z-dimension...");
-			final double[] kernel = kernel(zscale,zorder,dims.z);
-			final int klenm1 = kernel.length - 1;
-			final double[] ain = new double[dims.z + 2*klenm1];
-			final double[] aout = new double[dims.z];
-			final Coordinates coords = new Coordinates();
-			deriv.axes(Axes.Z);
-			for (coords.c=0; coords.c<dims.c; ++coords.c)
-				for (coords.t=0; coords.t<dims.t; ++coords.t)
-					for (coords.y=0; coords.y<dims.y; ++coords.y) {
-						for (coords.x=0; coords.x<dims.x; ++coords.x) {
-							coords.z = -klenm1; deriv.get(coords,ain);
-							convolve(ain,aout,kernel);
-							coords.z = 0; deriv.set(coords,aout);
-						}
-						progressor.step(dims.z);
-					}
+			convolve(deriv,Axes.Z,kernel(zscale,zorder,dims.z));
 		}
 		
 		messenger.status("");
@@ -288,6 +247,88 @@ private double[] kernel(final double s, final int d, final int m) {
 		return kernel;
 	}
 	
+	private void convolve(final Image image, final int axis, final double[] kernel) {
+		
+		// Each unit of work is a set of lines which corresponds to one progress step of the
+		// sequential order of processing: a single line in x or y, or all lines in z at one y:
+		final Dimensions dims = image.dimensions();
+		final int length, units, unitsteps;
+		switch (axis) {
+			case Axes.X: length = dims.x; units = dims.c*dims.t*dims.z*dims.y; unitsteps = 1; break;
+			case Axes.Y: length = dims.y; units = dims.c*dims.t*dims.z*dims.x; unitsteps = 1; break;
+			default: length = dims.z; units = dims.c*dims.t*dims.y; unitsteps = dims.z; break;
+		}
+		final int klenm1 = kernel.length - 1;
+		image.axes(axis);
+		
+		// The units are handed out in chunks to the threads, each using its own line buffers:
+		final int nthreads = Math.min(threads,units);
+		final int chunk = Math.max(1,units/(16*nthreads));
+		final AtomicInteger next = new AtomicInteger(0);
+		final Throwable[] failure = new Throwable[1];
+		final Thread[] workers = new Thread[nthreads];
+		for (int i=0; i<nthreads; ++i) workers[i] = new Thread() {
+			public void run() {
+				try {
+					final double[] ain = new double[length + 2*klenm1];
+					final double[] aout = new double[length];
+					final Coordinates coords = new Coordinates();
+					for (int start=next.getAndAdd(chunk); start<units; start=next.getAndAdd(chunk)) {
+						final int stop = Math.min(units,start+chunk);
+						for (int unit=start; unit<stop; ++unit) switch (axis) {
+							case Axes.X: {
+								coords.y = unit%dims.y; int rest = unit/dims.y;
+								coords.z = rest%dims.z; rest /= dims.z;
+								coords.t = rest%dims.t; coords.c = rest/dims.t;
+								coords.x = -klenm1; image.get(coords,ain);
+								convolve(ain,aout,kernel);
+								coords.x = 0; image.set(coords,aout);
+								break;
+							}
+							case Axes.Y: {
+								coords.x = unit%dims.x; int rest = unit/dims.x;
+								coords.z = rest%dims.z; rest /= dims.z;
+								coords.t = rest%dims.t; coords.c = rest/dims.t;
+								coords.y = -klenm1; image.get(coords,ain);
+								convolve(ain,aout,kernel);
+								coords.y = 0; image.set(coords,aout);
+								break;
+							}
+							default: {
+								coords.y = unit%dims.y; final int rest = unit/dims.y;
+								coords.t = rest%dims.t; coords.c = rest/dims.t;
+								for (coords.x=0; coords.x<dims.x; ++coords.x) {
+									coords.z = -klenm1; image.get(coords,ain);
+									convolve(ain,aout,kernel);
+									coords.z = 0; image.set(coords,aout);
+								}
+								break;
+							}
+						}
+						synchronized (progressor) { progressor.step(unitsteps*(stop - start)); }
+					}
+				} catch (Throwable e) {
+					synchronized (failure) { if (failure[0] == null) failure[0] = e; }
+				}
+			}
+		};
+		
+		if (nthreads == 1) workers[0].run();
+		else {
+			for (int i=0; i<nthreads; ++i) workers[i].start();
+			boolean interrupted = false;
+			for (int i=0; i<nthreads; ++i)
+				while (workers[i].isAlive())
+					try { workers[i].join(); }
+					catch (InterruptedException e) { interrupted = true; }
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+		
+		if (failure[0] instanceof RuntimeException) throw (RuntimeException)failure[0];
+		if (failure[0] instanceof Error) throw (Error)failure[0];
+		if (failure[0] != null) throw new RuntimeException(failure[0]);
+	}
+	
 	private void convolve(final double[] ain, final double[] aout, final double[] kernel) {
 		
 		// Mirror borders in input array:
@@ -338,6 +379,23 @@ private void check(final double scale, final int xorder, final int yorder, final
 		if (zorder < 0 || zorder > MAX_ORDER) throw new IllegalArgumentException("Differentiation order out of range in z-dimension");
 	}
 	
+	/** Sets the number of threads used for the convolutions. By default this is the number of processors available to the Java virtual machine. The threads process different image lines, each in the same way as a single thread would, so the results do not depend on the number of threads.
+		
+		@param n the number of threads.
+		
+		@exception IllegalArgumentException if {@code n} is less than {@code 1}.
+	*/
+	public void threads(final int n) {
+		
+		if (n < 1) throw new IllegalArgumentException("Number of threads less than 1");
+		threads = n;
+	}
+	
+	/** Returns the number of threads used for the convolutions. */
+	public int threads() { return threads; }
+	
+	private int threads = Runtime.getRuntime().availableProcessors();
+	
 	private void logstatus(final String s) {
 		
 		messenger.log(s);
@@ -110,6 +110,20 @@ public boolean replaceImage( final Image<T> img )
 		}
 	}
 	
+	/**
+	 * @return the fourier transform of the kernel, null if it was not computed yet
+	 */
+	public Image< ComplexFloatType > getKernelFFT() { return kernelFFT; }
+	
+	/**
+	 * Sets a precomputed fourier transform of the kernel, e.g. from another {@link FourierConvolution}
+	 * with the same kernel, image size and extension. It is not copied, so it must not be closed
+	 * as long as it is in use.
+	 * 
+	 * @param kernelFFT
+	 */
+	public void setKernelFFT( final Image< ComplexFloatType > kernelFFT ) { this.kernelFFT = kernelFFT; }
+	
 	/**
 	 * Defines if the image is extended by half the kernelsize all around its edges before computation.
 	 * This way, the outoufbounds will be correct.
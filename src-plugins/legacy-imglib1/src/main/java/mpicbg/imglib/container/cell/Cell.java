@@ -74,6 +74,27 @@ public Cell( final A creator, final int cellId, final int[] dim, final int offse
 		Array.createAllocationSteps( dim, step );		
 	}
 	
+	/**
+	 * Creates a Cell without allocating its data, for subclasses that
+	 * manage the data themselves and override {@link #getData()}.
+	 */
+	protected Cell( final int cellId, final int[] dim, final int offset[], final int entitiesPerPixel )
+	{
+		this.offset = offset;		
+		this.cellId = cellId;
+		this.numDimensions = dim.length;
+		this.dim = dim;
+		this.numPixels = ContainerImpl.getNumPixels( dim );
+		this.numEntities = PixelGridContainerImpl.getNumEntities( dim, entitiesPerPixel );
+		
+		step = new int[ numDimensions ];
+		
+		this.data = null;
+		
+		// the steps when moving inside a cell
+		Array.createAllocationSteps( dim, step );		
+	}
+	
 	public A getData() { return data; }
 	protected void close() { data.close(); }
 	
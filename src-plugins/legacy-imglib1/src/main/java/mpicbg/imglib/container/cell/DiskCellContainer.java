@@ -0,0 +1,344 @@
+/*
+ * #%L
+ * ImgLib: a general-purpose, multidimensional image processing library.
+ * %%
+ * Copyright (C) 2009 - 2013 Stephan Preibisch, Tobias Pietzsch, Barry DeZonia,
+ * Stephan Saalfeld, Albert Cardona, Curtis Rueden, Christian Dietz, Jean-Yves
+ * Tinevez, Johannes Schindelin, Lee Kamentsky, Larry Lindsey, Grant Harris,
+ * Mark Hiner, Aivar Grislis, Martin Horn, Nick Perry, Michael Zinsmaier,
+ * Steffen Jaensch, Jan Funke, Mark Longair, and Dimiter Prodanov.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of any organization.
+ * #L%
+ */
+
+package mpicbg.imglib.container.cell;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.WeakHashMap;
+
+import mpicbg.imglib.container.ContainerFactory;
+import mpicbg.imglib.container.basictypecontainer.array.ArrayDataAccess;
+import mpicbg.imglib.cursor.Cursor;
+import mpicbg.imglib.type.Type;
+
+/**
+ * A {@link CellContainer} that keeps its cells in a file and only holds a
+ * limited number of them in memory. Cells are loaded when a cursor enters
+ * them and evicted in least-recently-used order once the cached cells take
+ * more than a given number of bytes. Evicted cells that may have been
+ * modified are written back to the file first. Cells that have never been
+ * written are all zeros and do not need to be read.
+ * 
+ * The cell a cursor is currently in is never evicted, so all cursors of
+ * the {@link CellContainer} work unchanged. Since it is not known whether
+ * a cursor writes, every cell handed to a cursor is assumed to be modified
+ * unless the container is set to be read-only. Arrays obtained from
+ * {@link Cell#getData()} directly are only valid until the cell is evicted.
+ */
+public class DiskCellContainer<T extends Type<T>, A extends ArrayDataAccess<A>> extends CellContainer<T, A>
+{
+	final protected File file;
+	final protected boolean deleteFile;
+	final protected RandomAccessFile raf;
+	final protected FileChannel channel;
+	final protected long cacheBytes, maxCellBytes;
+	final protected ByteBuffer buffer;
+
+	// the cached cells in access order
+	final protected LinkedHashMap<Integer, DiskCell<T, A>> cache = new LinkedHashMap<Integer, DiskCell<T, A>>( 16, 0.75f, true );
+	
+	// the cell each cursor is currently in
+	final protected WeakHashMap<Cursor<?>, DiskCell<T, A>> cursorCells = new WeakHashMap<Cursor<?>, DiskCell<T, A>>();
+	
+	protected long cachedBytes = 0;
+	protected boolean readOnly = false;
+	
+	/**
+	 * @param file - the file backing the cells, it is created or overwritten
+	 * @param deleteFile - whether to delete the file when the container is closed
+	 * @param cacheBytes - the maximal number of bytes of cells to keep in memory
+	 */
+	public DiskCellContainer( final ContainerFactory factory, final A creator, final int[] dim, final int[] cellSize, final int entitiesPerPixel,
+			final File file, final boolean deleteFile, final long cacheBytes )
+	{
+		super( factory, creator, dim, cellSize, entitiesPerPixel );
+		
+		this.file = file;
+		this.deleteFile = deleteFile;
+		this.cacheBytes = cacheBytes;
+		
+		int maxEntities = 0;
+		for ( final Cell<T, A> cell : data )
+			maxEntities = Math.max( maxEntities, cell.getNumEntities() );
+		
+		this.maxCellBytes = getNumBytes( creator.createArray( maxEntities ).getCurrentStorageArray() );
+		this.buffer = ByteBuffer.allocateDirect( (int)maxCellBytes ).order( ByteOrder.nativeOrder() );
+		
+		try
+		{
+			this.raf = new RandomAccessFile( file, "rw" );
+			raf.setLength( 0 );
+			this.channel = raf.getChannel();
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( "DiskCellContainer(): cannot open " + file + ": " + e, e );
+		}
+	}
+	
+	@Override
+	public DiskCell<T, A> createCellInstance( final A creator, final int cellId, final int[] dim, final int offset[], final int entitiesPerPixel )
+	{
+		return new DiskCell<T,A>( this, creator, cellId, dim, offset, entitiesPerPixel );
+	}
+	
+	@Override
+	public synchronized A update( final Cursor<?> c )
+	{
+		final DiskCell<T, A> cell = (DiskCell<T, A>)data.get( c.getStorageIndex() );
+		
+		// pin the cell before loading so that it is not evicted right away
+		cursorCells.put( c, cell );
+		
+		final A a = load( cell );
+		
+		if ( !readOnly )
+			cell.dirty = true;
+		
+		return a;
+	}
+	
+	/**
+	 * Returns the data of a cell, loading it if necessary.
+	 */
+	protected synchronized A load( final DiskCell<T, A> cell )
+	{
+		if ( cell.cached != null )
+		{
+			// touch it
+			cache.get( cell.getCellId() );
+			return cell.cached;
+		}
+		
+		final A a = cell.creator.createArray( cell.getNumEntities() );
+		
+		if ( cell.onDisk )
+			read( cell.getCellId(), a.getCurrentStorageArray() );
+		
+		cell.cached = a;
+		cache.put( cell.getCellId(), cell );
+		cachedBytes += getNumBytes( a.getCurrentStorageArray() );
+		
+		evict();
+		
+		return a;
+	}
+	
+	/**
+	 * Evicts the least recently used cells that are not pinned by a cursor
+	 * until the cache fits into its budget.
+	 */
+	protected void evict()
+	{
+		if ( cachedBytes <= cacheBytes )
+			return;
+		
+		final HashSet<DiskCell<T, A>> pinned = new HashSet<DiskCell<T, A>>( cursorCells.values() );
+		final Iterator<DiskCell<T, A>> i = cache.values().iterator();
+		
+		while ( cachedBytes > cacheBytes && i.hasNext() )
+		{
+			final DiskCell<T, A> cell = i.next();
+			
+			if ( pinned.contains( cell ) )
+				continue;
+			
+			if ( cell.dirty )
+				write( cell );
+			
+			cachedBytes -= getNumBytes( cell.cached.getCurrentStorageArray() );
+			cell.cached = null;
+			i.remove();
+		}
+	}
+	
+	/**
+	 * Writes all modified cells in memory to disk.
+	 */
+	public synchronized void flush()
+	{
+		for ( final DiskCell<T, A> cell : cache.values() )
+			if ( cell.dirty )
+				write( cell );
+	}
+	
+	/**
+	 * If set, cells handed to a cursor are not considered modified and
+	 * are not written back when they are evicted.
+	 */
+	public synchronized void setReadOnly( final boolean readOnly ) { this.readOnly = readOnly; }
+	public boolean isReadOnly() { return readOnly; }
+	
+	public long getCacheBytes() { return cacheBytes; }
+	public synchronized long getCachedBytes() { return cachedBytes; }
+	public synchronized int getNumCachedCells() { return cache.size(); }
+	public File getFile() { return file; }
+	
+	@Override
+	public synchronized void close()
+	{
+		super.close();
+		
+		cache.clear();
+		cursorCells.clear();
+		cachedBytes = 0;
+		
+		try
+		{
+			channel.close();
+			raf.close();
+		}
+		catch ( final IOException e )
+		{
+			System.err.println( "DiskCellContainer.close(): cannot close " + file + ": " + e );
+		}
+		
+		if ( deleteFile )
+			file.delete();
+	}
+	
+	protected void write( final DiskCell<T, A> cell )
+	{
+		final Object array = cell.cached.getCurrentStorageArray();
+		
+		buffer.clear();
+		buffer.limit( getNumBytes( array ) );
+		
+		if ( array instanceof byte[] )
+			buffer.put( (byte[])array );
+		else if ( array instanceof short[] )
+			buffer.asShortBuffer().put( (short[])array );
+		else if ( array instanceof char[] )
+			buffer.asCharBuffer().put( (char[])array );
+		else if ( array instanceof int[] )
+			buffer.asIntBuffer().put( (int[])array );
+		else if ( array instanceof long[] )
+			buffer.asLongBuffer().put( (long[])array );
+		else if ( array instanceof float[] )
+			buffer.asFloatBuffer().put( (float[])array );
+		else
+			buffer.asDoubleBuffer().put( (double[])array );
+		
+		buffer.position( 0 );
+		
+		try
+		{
+			long position = (long)cell.getCellId() * maxCellBytes;
+			
+			while ( buffer.hasRemaining() )
+				position += channel.write( buffer, position );
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( "DiskCellContainer: cannot write cell " + cell.getCellId() + " to " + file + ": " + e, e );
+		}
+		
+		cell.onDisk = true;
+		cell.dirty = false;
+	}
+	
+	protected void read( final int cellId, final Object array )
+	{
+		buffer.clear();
+		buffer.limit( getNumBytes( array ) );
+		
+		try
+		{
+			long position = (long)cellId * maxCellBytes;
+			
+			while ( buffer.hasRemaining() )
+			{
+				final int n = channel.read( buffer, position );
+				if ( n < 0 )
+					throw new IOException( "unexpected end of file" );
+				position += n;
+			}
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( "DiskCellContainer: cannot read cell " + cellId + " from " + file + ": " + e, e );
+		}
+		
+		buffer.position( 0 );
+		
+		if ( array instanceof byte[] )
+			buffer.get( (byte[])array );
+		else if ( array instanceof short[] )
+			buffer.asShortBuffer().get( (short[])array );
+		else if ( array instanceof char[] )
+			buffer.asCharBuffer().get( (char[])array );
+		else if ( array instanceof int[] )
+			buffer.asIntBuffer().get( (int[])array );
+		else if ( array instanceof long[] )
+			buffer.asLongBuffer().get( (long[])array );
+		else if ( array instanceof float[] )
+			buffer.asFloatBuffer().get( (float[])array );
+		else
+			buffer.asDoubleBuffer().get( (double[])array );
+	}
+	
+	/**
+	 * Returns the number of bytes of a primitive array.
+	 */
+	public static int getNumBytes( final Object array )
+	{
+		if ( array instanceof byte[] )
+			return ( (byte[])array ).length;
+		else if ( array instanceof short[] )
+			return ( (short[])array ).length * 2;
+		else if ( array instanceof char[] )
+			return ( (char[])array ).length * 2;
+		else if ( array instanceof int[] )
+			return ( (int[])array ).length * 4;
+		else if ( array instanceof float[] )
+			return ( (float[])array ).length * 4;
+		else if ( array instanceof long[] )
+			return ( (long[])array ).length * 8;
+		else if ( array instanceof double[] )
+			return ( (double[])array ).length * 8;
+		else
+			throw new IllegalArgumentException( "DiskCellContainer: unsupported storage array " + array );
+	}
+}
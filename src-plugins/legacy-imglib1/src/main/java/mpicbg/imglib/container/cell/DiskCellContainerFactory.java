@@ -0,0 +1,175 @@
+/*
+ * #%L
+ * ImgLib: a general-purpose, multidimensional image processing library.
+ * %%
+ * Copyright (C) 2009 - 2013 Stephan Preibisch, Tobias Pietzsch, Barry DeZonia,
+ * Stephan Saalfeld, Albert Cardona, Curtis Rueden, Christian Dietz, Jean-Yves
+ * Tinevez, Johannes Schindelin, Lee Kamentsky, Larry Lindsey, Grant Harris,
+ * Mark Hiner, Aivar Grislis, Martin Horn, Nick Perry, Michael Zinsmaier,
+ * Steffen Jaensch, Jan Funke, Mark Longair, and Dimiter Prodanov.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of any organization.
+ * #L%
+ */
+
+package mpicbg.imglib.container.cell;
+
+import java.io.File;
+import java.io.IOException;
+
+import mpicbg.imglib.container.DirectAccessContainer;
+import mpicbg.imglib.container.basictypecontainer.array.ArrayDataAccess;
+import mpicbg.imglib.container.basictypecontainer.array.BitArray;
+import mpicbg.imglib.container.basictypecontainer.array.ByteArray;
+import mpicbg.imglib.container.basictypecontainer.array.CharArray;
+import mpicbg.imglib.container.basictypecontainer.array.DoubleArray;
+import mpicbg.imglib.container.basictypecontainer.array.FloatArray;
+import mpicbg.imglib.container.basictypecontainer.array.IntArray;
+import mpicbg.imglib.container.basictypecontainer.array.LongArray;
+import mpicbg.imglib.container.basictypecontainer.array.ShortArray;
+import mpicbg.imglib.type.Type;
+
+/**
+ * Creates {@link DiskCellContainer}s, each backed by a temporary file in a
+ * given directory that is deleted when the container is closed.
+ */
+public class DiskCellContainerFactory extends CellContainerFactory
+{
+	public static long standardCacheBytes = 256l * 1024l * 1024l;
+
+	protected long cacheBytes = standardCacheBytes;
+	protected File directory = null;
+	protected boolean readOnly = false;
+
+	public DiskCellContainerFactory()
+	{
+	}
+	
+	public DiskCellContainerFactory( final int cellSize )
+	{
+		super( cellSize );
+	}
+	
+	public DiskCellContainerFactory( final int[] cellSize )
+	{
+		super( cellSize );
+	}
+	
+	/**
+	 * @param cellSize - the size of the cells
+	 * @param cacheBytes - the maximal number of bytes of cells each container keeps in memory
+	 * @param directory - where to put the files, null for the default temporary directory
+	 */
+	public DiskCellContainerFactory( final int[] cellSize, final long cacheBytes, final File directory )
+	{
+		super( cellSize );
+		
+		this.cacheBytes = cacheBytes;
+		this.directory = directory;
+	}
+
+	public void setCacheBytes( final long cacheBytes ) { this.cacheBytes = cacheBytes; }
+	public long getCacheBytes() { return cacheBytes; }
+	
+	public void setDirectory( final File directory ) { this.directory = directory; }
+	public File getDirectory() { return directory; }
+
+	/**
+	 * Whether the created containers start out read-only, see {@link DiskCellContainer#setReadOnly(boolean)}.
+	 */
+	public void setReadOnly( final boolean readOnly ) { this.readOnly = readOnly; }
+	public boolean isReadOnly() { return readOnly; }
+	
+	protected <T extends Type<T>, A extends ArrayDataAccess<A>> DiskCellContainer<T, A> createInstance( final A creator, int[] dimensions, final int entitiesPerPixel )
+	{
+		dimensions = checkDimensions( dimensions );
+		final int[] cellSize = checkCellSize( this.cellSize, dimensions );
+		final File file;
+		
+		try
+		{
+			file = File.createTempFile( "imglib-cells", ".raw", directory );
+			file.deleteOnExit();
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( "DiskCellContainerFactory(): cannot create a file in " + directory + ": " + e, e );
+		}
+		
+		final DiskCellContainer<T, A> container = new DiskCellContainer<T, A>( this, creator, dimensions, cellSize, entitiesPerPixel, file, true, cacheBytes );
+		container.setReadOnly( readOnly );
+		
+		return container;
+	}
+
+	@Override
+	public <T extends Type<T>> DirectAccessContainer<T, BitArray> createBitInstance( int[] dimensions, int entitiesPerPixel )
+	{
+		return createInstance( new BitArray( 1 ), dimensions, entitiesPerPixel );
+	}
+	
+	@Override
+	public <T extends Type<T>> DirectAccessContainer<T, ByteArray> createByteInstance( int[] dimensions, int entitiesPerPixel )
+	{
+		return createInstance( new ByteArray( 1 ), dimensions, entitiesPerPixel );
+	}
+
+	@Override
+	public <T extends Type<T>> DirectAccessContainer<T, CharArray> createCharInstance(int[] dimensions, int entitiesPerPixel)
+	{
+		return createInstance( new CharArray( 1 ), dimensions, entitiesPerPixel );
+	}
+
+	@Override
+	public <T extends Type<T>> DirectAccessContainer<T, DoubleArray> createDoubleInstance(int[] dimensions, int entitiesPerPixel)
+	{
+		return createInstance( new DoubleArray( 1 ), dimensions, entitiesPerPixel );
+	}
+
+	@Override
+	public <T extends Type<T>> DirectAccessContainer<T, FloatArray> createFloatInstance(int[] dimensions, int entitiesPerPixel)
+	{
+		return createInstance( new FloatArray( 1 ), dimensions, entitiesPerPixel );
+	}
+
+	@Override
+	public <T extends Type<T>> DirectAccessContainer<T, IntArray> createIntInstance(int[] dimensions, int entitiesPerPixel)
+	{
+		return createInstance( new IntArray( 1 ), dimensions, entitiesPerPixel );
+	}
+
+	@Override
+	public <T extends Type<T>> DirectAccessContainer<T, LongArray> createLongInstance(int[] dimensions, int entitiesPerPixel)
+	{
+		return createInstance( new LongArray( 1 ), dimensions, entitiesPerPixel );
+	}
+
+	@Override
+	public <T extends Type<T>> DirectAccessContainer<T, ShortArray> createShortInstance(int[] dimensions, int entitiesPerPixel)
+	{
+		return createInstance( new ShortArray( 1 ), dimensions, entitiesPerPixel );
+	}
+}
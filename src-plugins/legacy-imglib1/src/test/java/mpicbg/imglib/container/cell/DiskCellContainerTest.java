@@ -0,0 +1,129 @@
+/*
+ * #%L
+ * ImgLib: a general-purpose, multidimensional image processing library.
+ * %%
+ * Copyright (C) 2009 - 2013 Stephan Preibisch, Tobias Pietzsch, Barry DeZonia,
+ * Stephan Saalfeld, Albert Cardona, Curtis Rueden, Christian Dietz, Jean-Yves
+ * Tinevez, Johannes Schindelin, Lee Kamentsky, Larry Lindsey, Grant Harris,
+ * Mark Hiner, Aivar Grislis, Martin Horn, Nick Perry, Michael Zinsmaier,
+ * Steffen Jaensch, Jan Funke, Mark Longair, and Dimiter Prodanov.
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * 
+ * The views and conclusions contained in the software and documentation are
+ * those of the authors and should not be interpreted as representing official
+ * policies, either expressed or implied, of any organization.
+ * #L%
+ */
+
+package mpicbg.imglib.container.cell;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import mpicbg.imglib.cursor.Cursor;
+import mpicbg.imglib.cursor.LocalizableByDimCursor;
+import mpicbg.imglib.cursor.LocalizableCursor;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.image.ImageFactory;
+import mpicbg.imglib.type.numeric.real.FloatType;
+
+import org.junit.Test;
+
+/**
+ * Tests that a {@link DiskCellContainer} with a cache much smaller than the
+ * image keeps the values written by the cell cursors.
+ *
+ */
+public class DiskCellContainerTest
+{
+	final static int[] dim = new int[] { 37, 29, 11 };
+
+	private static float value( final int[] position )
+	{
+		return position[ 0 ] + 100 * position[ 1 ] + 10000 * position[ 2 ];
+	}
+
+	@Test
+	public void testWriteAndRead()
+	{
+		// room for two cells of 8x8x8 floats
+		final DiskCellContainerFactory containerFactory = new DiskCellContainerFactory( new int[] { 8, 8, 8 }, 2 * 8 * 8 * 8 * 4, null );
+		final Image<FloatType> image = new ImageFactory<FloatType>( new FloatType(), containerFactory ).createImage( dim );
+		final DiskCellContainer<?, ?> container = (DiskCellContainer<?, ?>)image.getContainer();
+		final int[] position = new int[ dim.length ];
+
+		final LocalizableCursor<FloatType> writer = image.createLocalizableCursor();
+		while ( writer.hasNext() )
+		{
+			writer.fwd();
+			writer.getPosition( position );
+			writer.getType().set( value( position ) );
+		}
+		writer.close();
+
+		assertTrue( container.getCachedBytes() <= container.getCacheBytes() );
+
+		// read back in iteration order
+		final LocalizableCursor<FloatType> reader = image.createLocalizableCursor();
+		while ( reader.hasNext() )
+		{
+			reader.fwd();
+			reader.getPosition( position );
+			assertEquals( value( position ), reader.getType().get(), 0 );
+		}
+		reader.close();
+
+		// and by random access, jumping between cells all the time
+		container.setReadOnly( true );
+		final LocalizableByDimCursor<FloatType> random = image.createLocalizableByDimCursor();
+		for ( int z = dim[ 2 ] - 1; z >= 0; --z )
+			for ( int x = 0; x < dim[ 0 ]; ++x )
+				for ( int y = dim[ 1 ] - 1; y >= 0; --y )
+				{
+					position[ 0 ] = x;
+					position[ 1 ] = y;
+					position[ 2 ] = z;
+					random.setPosition( position );
+					assertEquals( value( position ), random.getType().get(), 0 );
+				}
+		random.close();
+
+		image.close();
+	}
+
+	@Test
+	public void testUnwrittenCellsAreZero()
+	{
+		final DiskCellContainerFactory containerFactory = new DiskCellContainerFactory( new int[] { 4, 4, 4 }, 4 * 4 * 4 * 4, null );
+		final Image<FloatType> image = new ImageFactory<FloatType>( new FloatType(), containerFactory ).createImage( dim );
+
+		final Cursor<FloatType> cursor = image.createCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			assertEquals( 0, cursor.getType().get(), 0 );
+		}
+		cursor.close();
+
+		image.close();
+	}
+}
@@ -28,9 +28,16 @@
 import java.awt.Rectangle;
 import java.awt.TextField;
 import java.awt.geom.AffineTransform;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.FilenameFilter;
+import java.io.IOException;
 
 import mpicbg.ij.FeatureTransform;
 import mpicbg.ij.SIFT;
@@ -121,6 +128,8 @@ public class Register_Virtual_Stack_MT implements PlugIn
 	public static boolean non_shrinkage = false;
 	/** save transformation flag */
 	public static boolean save_transforms = false;
+	/** flag to keep the extracted features in a cache on disk (only with shrinkage constrain) */
+	public static boolean cache_features = false;
 	
 	/** source directory **/
 	public static String sourceDirectory="";
@@ -165,6 +174,12 @@ public class Register_Virtual_Stack_MT implements PlugIn
 	public static final float STOP_THRESHOLD = 0.01f;
 	/** maximum number of iterations in the relaxation loop */
 	public static final int MAX_ITER = 300;
+	/** name of the directory (inside the source directory) to cache the extracted features into */
+	public static final String FEATURES_CACHE_DIRECTORY = "features.cache";
+	/** identifier at the beginning of every features cache file ("RVSF") */
+	private static final int FEATURES_CACHE_MAGIC = 0x52565346;
+	/** version of the features cache file format */
+	private static final int FEATURES_CACHE_VERSION = 1;
 
 
 	//---------------------------------------------------------------------------------
@@ -184,6 +199,7 @@ public void run(String arg)
 		gd.addCheckbox("Advanced setup", advanced);	
 		gd.addCheckbox("Shrinkage constrain", non_shrinkage);
 		gd.addCheckbox("Save transforms", save_transforms);
+		gd.addCheckbox("Cache features", cache_features);
 		
 		gd.showDialog();
 		
@@ -198,6 +214,7 @@ public void run(String arg)
 		advanced = gd.getNextBoolean();
 		non_shrinkage = gd.getNextBoolean();
 		save_transforms = gd.getNextBoolean();
+		cache_features = gd.getNextBoolean();
 
 		String source_dir = sourceDirectory;
 		if (null == source_dir) 
@@ -386,6 +403,9 @@ public boolean accept(File dir, String name)
 			return;
 		}
 		
+		if(cache_features)
+			IJ.log("Features are only cached with the shrinkage constrain, \"Cache features\" is not used.");
+		
 		int referenceIndex = -1;
 		for(int i = 0; i < names.length; i++)
 			if(names[i].equals(referenceName))
@@ -579,71 +599,69 @@ public static void exec(
 		transform[0] = new RigidModel2D();
 		
 		// FIRST LOOP (calculate correspondences and first RIGID solution)
-		ArrayList<Feature>[] fs = new ArrayList[sorted_file_names.length];
-		Future<ArrayList<Feature>> fu[] = new Future[sorted_file_names.length];
+		// The features are extracted in a sliding window: the features of the
+		// next slices are extracted while the consecutive pairs are matched, and
+		// only the features of the slices in the window are kept in memory
+		final int n = sorted_file_names.length;
+		final int window = Runtime.getRuntime().availableProcessors() + 1;
+		final String cache_dir = cache_features ? makeFeaturesCacheDirectory(source_dir) : null;
+		Future<ArrayList<Feature>> fu[] = new Future[n];
+		final Future<ArrayList<PointMatch>>[] fpm = new Future[n-1];
 		try{
-			// Extract features for all images
-			for (int i=0; i<sorted_file_names.length; i++) 
+			// Start the feature extraction of the first window of slices
+			for (int i=0; i<Math.min(window, n); i++)
+				fu[i] = exe.submit(extractFeatures(p, source_dir, sorted_file_names[i], i, cache_dir));
+
+			ArrayList<Feature> fsPrevious = null;
+			// Number of pairs of slices whose matches have been collected
+			int matched = 0;
+			// Loop over the sequence to select correspondences by pairs
+			for (int i=0; i<n; i++) 
 			{
-				IJ.showStatus("Extracting features from slices...");
-				fu[i] = exe.submit(extractFeatures(p, source_dir + sorted_file_names[i], i));			
-			}
-
-			System.gc();
-
-			// Join threads of feature extraction
-			for (int i=0; i<sorted_file_names.length; i++) 	
-			{
-				IJ.showStatus("Extracting features " + (i+1) + "/" + sorted_file_names.length);
-				IJ.showProgress((double) (i+1) / sorted_file_names.length);
-				fs[i] = fu[i].get();
+				IJ.showStatus("Extracting and matching features " + (i+1) + "/" + n);
+				IJ.showProgress((double) (i+1) / n);
+				final ArrayList<Feature> fsCurrent = fu[i].get();
 				fu[i] = null;
-			}
 
-			fu = null;
-			// shut down the executor service to allow garbage collection
-			exe.shutdown();
-			
-			// Match features				
-			exe = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-			final Future<ArrayList<PointMatch>>[] fpm = new Future[sorted_file_names.length-1];
-			// Loop over the sequence to select correspondences by pairs			
-			for (int i=1; i<sorted_file_names.length; i++) 
-			{							
-				IJ.showStatus("Matching features...");							
-				
-				// Match features (create candidates)											
-					
-				// Filter candidates into inliers (concurrent way)
-				try {
-					fpm[i-1] = exe.submit(matchFeatures(p, fs[i], fs[i-1], featuresModel));
-					
-				} 
-				catch ( NotEnoughDataPointsException e ) 
+				// Keep the window full
+				if (i + window < n)
+					fu[i + window] = exe.submit(extractFeatures(p, source_dir, sorted_file_names[i + window], i + window, cache_dir));
+
+				if (i > 0)
 				{
-					IJ.log("No features model found for file " + i + ": " + sorted_file_names[i]);
-					// If the feature extraction does not find correspondences, then
-					// only the elastic registration can be performed
-					if(Param.registrationModelIndex != Register_Virtual_Stack_MT.ELASTIC)
+					// Filter candidates into inliers (concurrent way)
+					try {
+						fpm[i-1] = exe.submit(matchFeatures(p, fsCurrent, fsPrevious, featuresModel));
+					} 
+					catch ( NotEnoughDataPointsException e ) 
 					{
-						IJ.error("No features model found for file " + i + ": " + sorted_file_names[i]);
-						return;
+						IJ.log("No features model found for file " + i + ": " + sorted_file_names[i]);
+						// If the feature extraction does not find correspondences, then
+						// only the elastic registration can be performed
+						if(Param.registrationModelIndex != Register_Virtual_Stack_MT.ELASTIC)
+						{
+							IJ.error("No features model found for file " + i + ": " + sorted_file_names[i]);
+							return;
+						}
 					}
 				}
+				fsPrevious = fsCurrent;
+
+				// Join the matching of the pairs that left the window,
+				// so their features can be garbage collected
+				for ( ; matched < i - window; matched++)
+					inliers[matched] = joinMatching(fpm, matched, sorted_file_names);
 			}
-			// Join threads of feature matching
-			for (int i=1; i<sorted_file_names.length; i++) 			
+			fsPrevious = null;
+			fu = null;
+
+			// Join the remaining threads of feature matching
+			for ( ; matched < n-1; matched++)
 			{
-				IJ.showStatus("Matching features " + (i+1) + "/" + sorted_file_names.length);
-				IJ.showProgress((double) (i+1) / sorted_file_names.length);
-				inliers[i-1] = fpm[i-1].get();
-				fs[i-1].clear();
-				if(inliers[i-1].size() < 2)
-					IJ.log("Error: not model found for images " + sorted_file_names[i-1] + " and " + sorted_file_names[i] );
+				IJ.showStatus("Matching features " + (matched+2) + "/" + n);
+				inliers[matched] = joinMatching(fpm, matched, sorted_file_names);
 			}
-			fs[sorted_file_names.length-1].clear();
 
-			fs = null;
 			// shut down the executor service to allow garbage collection
 			exe.shutdown();
 			System.gc();
@@ -1494,31 +1512,259 @@ public ArrayList<Feature> call() {
 
 	//-----------------------------------------------------------------------------------------
 	/**
-	 * Generate object to concurrently extract features
+	 * Generate object to concurrently extract features from an image file.
+	 * If a cache directory is given, the features are read from the cache when
+	 * they were extracted from the same file with the same SIFT parameters, and
+	 * stored into it otherwise.
 	 * 
 	 * @param p feature extraction parameters
-	 * @param ip input image
+	 * @param dir directory of the image
+	 * @param name file name of the image
+	 * @param index index of the image in the sequence
+	 * @param cache_dir features cache directory (null to not use a cache)
 	 * @return list of extracted features
 	 */
-	private static  Callable<ArrayList<Feature>> extractFeatures(final Param p, final String path, final int index) {
+	private static  Callable<ArrayList<Feature>> extractFeatures(
+			final Param p, 
+			final String dir, 
+			final String name, 
+			final int index, 
+			final String cache_dir) 
+	{
 		return new Callable<ArrayList<Feature>>() {
 			public ArrayList<Feature> call() 
 			{
-				
-				ImagePlus imp = IJ.openImage(path);
+				final File file = new File(dir + name);
+				final File cacheFile = (null == cache_dir) ? null : new File(cache_dir + name + ".features");
+				if (null != cacheFile && cacheFile.exists())
+				{
+					try {
+						final ArrayList<Feature> fs = loadFeatures(cacheFile, file, p, index);
+						if (null != fs)
+							return fs;
+					} catch (IOException e) {
+						IJ.log("Could not read cached features " + cacheFile + ": " + e);
+					} catch (RuntimeException e) {
+						IJ.log("Could not read cached features " + cacheFile + ": " + e);
+					} catch (OutOfMemoryError e) {
+						IJ.log("Could not read cached features " + cacheFile + ": " + e);
+					}
+				}
+
+				ImagePlus imp = IJ.openImage(dir + name);
 				centerX[index] = imp.getWidth() / 2;
 				centerY[index] = imp.getHeight() / 2;
 				ArrayList<Feature> fs = new ArrayList<Feature>();
 				new SIFT( new FloatArray2DSIFT( p.sift ) ).extractFeatures(imp.getProcessor(), fs);
+				final int width = imp.getWidth();
+				final int height = imp.getHeight();
 				flush(imp);
 				imp = null;
 
+				if (null != cacheFile)
+				{
+					try {
+						saveFeatures(cacheFile, file, p, width, height, fs);
+					} catch (IOException e) {
+						IJ.log("Could not cache features " + cacheFile + ": " + e);
+					}
+				}
+
 				System.gc();
 				
 				return fs;
 			}
 		};
 	}
+
+	//-----------------------------------------------------------------------------------------
+	/**
+	 * Create (if necessary) the features cache directory inside the source directory.
+	 * 
+	 * @param source_dir source directory
+	 * @return path of the features cache directory (ending with "/") or null if it could not be created
+	 */
+	static private String makeFeaturesCacheDirectory(final String source_dir)
+	{
+		final File dir = new File(source_dir + FEATURES_CACHE_DIRECTORY);
+		if (!dir.isDirectory() && !dir.mkdir())
+		{
+			IJ.log("Could not create features cache directory " + dir + ", features will not be cached.");
+			return null;
+		}
+		return source_dir + FEATURES_CACHE_DIRECTORY + "/";
+	}
+
+	//-----------------------------------------------------------------------------------------
+	/**
+	 * Save the features of an image into a binary cache file. The file starts
+	 * with the size and modification time of the image and the SIFT parameters,
+	 * followed by the scale, orientation, location and descriptor of every feature.
+	 * 
+	 * @param cacheFile cache file
+	 * @param file image file the features were extracted from
+	 * @param p feature extraction parameters
+	 * @param width image width
+	 * @param height image height
+	 * @param fs list of extracted features
+	 * @throws IOException if the file could not be written
+	 */
+	static private void saveFeatures(
+			final File cacheFile,
+			final File file,
+			final Param p,
+			final int width,
+			final int height,
+			final List<Feature> fs) throws IOException
+	{
+		// Write into a temporary file first, so an interrupted run does
+		// not leave an incomplete cache file
+		final File tmp = new File(cacheFile.getPath() + ".tmp");
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(FEATURES_CACHE_MAGIC);
+			out.writeInt(FEATURES_CACHE_VERSION);
+			out.writeLong(file.length());
+			out.writeLong(file.lastModified());
+			writeSIFTParam(out, p.sift);
+			out.writeInt(width);
+			out.writeInt(height);
+			out.writeInt(fs.size());
+			for (final Feature f : fs)
+			{
+				out.writeFloat(f.scale);
+				out.writeFloat(f.orientation);
+				out.writeFloat(f.location[0]);
+				out.writeFloat(f.location[1]);
+				out.writeInt(f.descriptor.length);
+				for (final float d : f.descriptor)
+					out.writeFloat(d);
+			}
+		} finally {
+			out.close();
+		}
+		cacheFile.delete();
+		if (!tmp.renameTo(cacheFile))
+		{
+			tmp.delete();
+			throw new IOException("could not rename " + tmp);
+		}
+	}
+
+	//-----------------------------------------------------------------------------------------
+	/**
+	 * Load the features of an image from a binary cache file (see 
+	 * {@link #saveFeatures(File, File, Param, int, int, List)}) and set the image center.
+	 * 
+	 * @param cacheFile cache file
+	 * @param file image file the features were extracted from
+	 * @param p feature extraction parameters
+	 * @param index index of the image in the sequence
+	 * @return list of features, or null if the image or the SIFT parameters have changed
+	 * @throws IOException if the file could not be read or is corrupt
+	 */
+	static private ArrayList<Feature> loadFeatures(
+			final File cacheFile,
+			final File file,
+			final Param p,
+			final int index) throws IOException
+	{
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+		try {
+			if (in.readInt() != FEATURES_CACHE_MAGIC 
+					|| in.readInt() != FEATURES_CACHE_VERSION
+					|| in.readLong() != file.length()
+					|| in.readLong() != file.lastModified()
+					|| !readSIFTParam(in, p.sift))
+				return null;
+			final int width = in.readInt();
+			final int height = in.readInt();
+			final int size = in.readInt();
+			// Each feature takes 4 floats, the descriptor length and the descriptor,
+			// so a valid count cannot need more bytes than the file has
+			final int descriptorLength = p.sift.fdSize * p.sift.fdSize * p.sift.fdBins;
+			if (width <= 0 || height <= 0 || size < 0 
+					|| (long) size * (20 + 4L * descriptorLength) > cacheFile.length())
+				throw new IOException("corrupt features cache file");
+			final ArrayList<Feature> fs = new ArrayList<Feature>(size);
+			for (int i = 0; i < size; i++)
+			{
+				final float scale = in.readFloat();
+				final float orientation = in.readFloat();
+				final float[] location = new float[]{ in.readFloat(), in.readFloat() };
+				if (in.readInt() != descriptorLength)
+					throw new IOException("corrupt features cache file");
+				final float[] descriptor = new float[descriptorLength];
+				for (int j = 0; j < descriptor.length; j++)
+					descriptor[j] = in.readFloat();
+				fs.add(new Feature(scale, orientation, location, descriptor));
+			}
+			centerX[index] = width / 2;
+			centerY[index] = height / 2;
+			return fs;
+		} finally {
+			in.close();
+		}
+	}
+
+	//-----------------------------------------------------------------------------------------
+	/**
+	 * Write the SIFT parameters that change the extracted features.
+	 * 
+	 * @param out output stream
+	 * @param sift SIFT parameters
+	 * @throws IOException if the parameters could not be written
+	 */
+	static private void writeSIFTParam(final DataOutputStream out, final FloatArray2DSIFT.Param sift) throws IOException
+	{
+		out.writeFloat(sift.initialSigma);
+		out.writeInt(sift.steps);
+		out.writeInt(sift.minOctaveSize);
+		out.writeInt(sift.maxOctaveSize);
+		out.writeInt(sift.fdSize);
+		out.writeInt(sift.fdBins);
+	}
+
+	//-----------------------------------------------------------------------------------------
+	/**
+	 * Read SIFT parameters and compare them to the current ones.
+	 * 
+	 * @param in input stream
+	 * @param sift current SIFT parameters
+	 * @return true if the parameters are the same as the current ones
+	 * @throws IOException if the parameters could not be read
+	 */
+	static private boolean readSIFTParam(final DataInputStream in, final FloatArray2DSIFT.Param sift) throws IOException
+	{
+		return in.readFloat() == sift.initialSigma
+				&& in.readInt() == sift.steps
+				&& in.readInt() == sift.minOctaveSize
+				&& in.readInt() == sift.maxOctaveSize
+				&& in.readInt() == sift.fdSize
+				&& in.readInt() == sift.fdBins;
+	}
+
+	//-----------------------------------------------------------------------------------------
+	/**
+	 * Wait for the matching of a pair of consecutive slices.
+	 * 
+	 * @param fpm matching jobs (the finished job is removed)
+	 * @param i index of the pair (slices i and i+1)
+	 * @param sorted_file_names array of sorted source file names
+	 * @return list of inliers
+	 * @throws Exception if the matching failed
+	 */
+	static private List<PointMatch> joinMatching(
+			final Future<ArrayList<PointMatch>>[] fpm,
+			final int i,
+			final String[] sorted_file_names) throws Exception
+	{
+		final List<PointMatch> inliers = fpm[i].get();
+		fpm[i] = null;
+		if(inliers.size() < 2)
+			IJ.log("Error: not model found for images " + sorted_file_names[i] + " and " + sorted_file_names[i+1] );
+		return inliers;
+	}
 	
 	
 	//-----------------------------------------------------------------------------------------